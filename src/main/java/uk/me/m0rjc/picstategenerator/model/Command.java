@@ -1,15 +1,35 @@
 package uk.me.m0rjc.picstategenerator.model;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
 
 /**
  * A command we can ask to be built. Commands are immutable, so instances can be
- * reused.
+ * reused. Two commands are equal if they are of the same class and were created
+ * with equal parameters, so that equivalent states can be found.
  * 
  * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
  */
 public abstract class Command
 {
+    /** Number of flags held in each byte of a variable. */
+    private static final int BITS_PER_BYTE = 8;
+
+    /** The values that, with the class, decide what the command does. */
+    private final Object[] m_parameters;
+
+    /**
+     * @param parameters
+     *            the values that, with the class, decide what the command does.
+     */
+    protected Command(final Object... parameters)
+    {
+        m_parameters = parameters;
+    }
+
     /**
      * Render this command using the visitor.
      * 
@@ -28,7 +48,7 @@ public abstract class Command
      */
     public static Command clearValue(final Variable value)
     {
-        return new Command()
+        return new Command(value)
         {
             @Override
             public void accept(final StateModel model, final IModelVisitor visitor)
@@ -48,7 +68,7 @@ public abstract class Command
     public static Command clearIndexedValue(final Variable value,
             final Variable indexer)
     {
-        return new Command()
+        return new Command(value, indexer)
         {
             @Override
             public void accept(final StateModel model, final IModelVisitor visitor)
@@ -67,7 +87,7 @@ public abstract class Command
      */
     public static Command storeValue(final Variable input, final Variable output)
     {
-        return new Command()
+        return new Command(input, output)
         {
             @Override
             public void accept(final StateModel model, final IModelVisitor visitor)
@@ -85,7 +105,7 @@ public abstract class Command
      */
     public static Command incrementValue(final Variable value)
     {
-        return new Command()
+        return new Command(value)
         {
             @Override
             public void accept(final StateModel model, final IModelVisitor visitor)
@@ -95,6 +115,25 @@ public abstract class Command
         };
     }
 
+    /**
+     * Create a command to load a counter with a count.
+     * 
+     * @param counter single byte counter
+     * @param count value to load
+     * @return the new Command instance.
+     */
+    public static Command loadCounter(final Variable counter, final int count)
+    {
+        return new Command(counter, count)
+        {
+            @Override
+            public void accept(final StateModel model, final IModelVisitor visitor)
+            {
+                visitor.visitCommandLoadCounter(counter, count);
+            }
+        };
+    }
+
     /**
      * Convenience method to create a "Store Value at indexed location" command.
      *
@@ -106,7 +145,7 @@ public abstract class Command
     public static Command storeValueIndex(final Variable input,
             final Variable output, final Variable outputIndexer)
     {
-        return new Command()
+        return new Command(input, output, outputIndexer)
         {
             @Override
             public void accept(final StateModel model, final IModelVisitor visitor)
@@ -117,6 +156,70 @@ public abstract class Command
         };
     }
 
+    /**
+     * Create a command to start storing a sequence of values in an array. Must
+     * follow clearing the indexer.
+     *
+     * @param output array variable to write to.
+     * @param outputIndexer variable containing the index, which has just been cleared.
+     * @return the Command instance.
+     */
+    public static Command startIndexedStore(final Variable output, final Variable outputIndexer)
+    {
+        return new Command(output, outputIndexer)
+        {
+            @Override
+            public void accept(final StateModel model, final IModelVisitor visitor)
+            {
+                visitor.visitCommandStartIndexedStore(output, outputIndexer);
+            }
+        };
+    }
+
+    /**
+     * Create a command to terminate a sequence started by
+     * {@link #startIndexedStore(Variable, Variable)} by clearing the member after
+     * the last one written.
+     *
+     * @param output array variable written.
+     * @param outputIndexer variable containing the index.
+     * @return the Command instance.
+     */
+    public static Command endIndexedStore(final Variable output, final Variable outputIndexer)
+    {
+        return new Command(output, outputIndexer)
+        {
+            @Override
+            public void accept(final StateModel model, final IModelVisitor visitor)
+            {
+                visitor.visitCommandEndIndexedStore(output, outputIndexer);
+            }
+        };
+    }
+
+    /**
+     * Create a command to store the next value of a sequence started by
+     * {@link #startIndexedStore(Variable, Variable)} and increment the index.
+     *
+     * @param input variable to read from.
+     * @param output array variable to write to.
+     * @param outputIndexer variable containing the index.
+     * @param terminate true to clear the member after the one written.
+     * @return the Command instance.
+     */
+    public static Command storeNextIndexed(final Variable input, final Variable output,
+            final Variable outputIndexer, final boolean terminate)
+    {
+        return new Command(input, output, outputIndexer, terminate)
+        {
+            @Override
+            public void accept(final StateModel model, final IModelVisitor visitor)
+            {
+                visitor.visitCommandStoreNextIndexed(input, output, outputIndexer, terminate);
+            }
+        };
+    }
+
     /**
      * Convenience method to create a "Set Flag" command.
      * 
@@ -131,15 +234,129 @@ public abstract class Command
     public static Command setFlag(final Variable flags, final String flagName,
             final boolean newValue)
     {
-        return new Command()
+        int bit = flags.getBit(flagName);
+        int mask = 1 << (bit % BITS_PER_BYTE);
+        return new SetFlagsCommand(flags, bit / BITS_PER_BYTE,
+                newValue ? mask : 0, newValue ? 0 : mask);
+    }
+
+    /**
+     * Sets and clears flags held in one byte of a variable. Adjacent commands
+     * on the same byte are combined by {@link Command#acceptAll} so that the
+     * byte can be written once.
+     */
+    private static final class SetFlagsCommand extends Command
+    {
+        /** Variable holding the flags. */
+        private final Variable m_flags;
+        /** Byte of the variable holding the flags. */
+        private final int m_byteOffset;
+        /** Bits to set. */
+        private final int m_setMask;
+        /** Bits to clear. */
+        private final int m_clearMask;
+
+        /**
+         * @param flags variable holding the flags
+         * @param byteOffset byte of the variable holding the flags
+         * @param setMask bits to set
+         * @param clearMask bits to clear
+         */
+        private SetFlagsCommand(final Variable flags, final int byteOffset,
+                final int setMask, final int clearMask)
         {
-            @Override
-            public void accept(final StateModel model, final IModelVisitor visitor)
+            super(flags, byteOffset, setMask, clearMask);
+            m_flags = flags;
+            m_byteOffset = byteOffset;
+            m_setMask = setMask;
+            m_clearMask = clearMask;
+        }
+
+        /**
+         * @param next a command to run straight after this one.
+         * @return a command that does both, or null if the next command
+         *         is not a change to flags in the same byte.
+         */
+        private SetFlagsCommand merge(final Command next)
+        {
+            if (!(next instanceof SetFlagsCommand))
             {
-                visitor.visitCommandSetFlag(flags, flags.getBit(flagName),
-                        newValue);
+                return null;
             }
-        };
+            SetFlagsCommand other = (SetFlagsCommand) next;
+            if (!m_flags.equals(other.m_flags)
+                    || m_byteOffset != other.m_byteOffset)
+            {
+                return null;
+            }
+            // The later command wins for any bit both of them write.
+            int written = other.m_setMask | other.m_clearMask;
+            return new SetFlagsCommand(m_flags, m_byteOffset,
+                    (m_setMask & ~written) | other.m_setMask,
+                    (m_clearMask & ~written) | other.m_clearMask);
+        }
+
+        @Override
+        public void accept(final StateModel model, final IModelVisitor visitor)
+        {
+            visitor.visitCommandSetFlags(m_flags, m_byteOffset, m_setMask,
+                    m_clearMask);
+        }
+    }
+
+    /**
+     * Add the simple commands that make up this command to the list.
+     * 
+     * @param out
+     *            list to add to.
+     */
+    void flatten(final List<Command> out)
+    {
+        out.add(this);
+    }
+
+    /**
+     * Render a list of commands in order. Adjacent changes to flags in the
+     * same byte are combined so that the byte is written once.
+     * 
+     * @param model
+     *            model being rendered
+     * @param commands
+     *            commands to render
+     * @param visitor
+     *            that which shall render them.
+     */
+    static void acceptAll(final StateModel model, final List<Command> commands,
+            final IModelVisitor visitor)
+    {
+        List<Command> simple = new ArrayList<Command>();
+        for (Command c : commands)
+        {
+            c.flatten(simple);
+        }
+
+        Command pending = null;
+        for (Command c : simple)
+        {
+            SetFlagsCommand merged = pending instanceof SetFlagsCommand
+                    ? ((SetFlagsCommand) pending).merge(c) : null;
+            if (merged != null)
+            {
+                pending = merged;
+            }
+            else
+            {
+                if (pending != null)
+                {
+                    pending.accept(model, visitor);
+                }
+                pending = c;
+            }
+        }
+        if (pending != null)
+        {
+            pending.accept(model, visitor);
+        }
     }
 
     /**
@@ -151,7 +368,7 @@ public abstract class Command
      */
     public static Command call(final RomLocation method)
     {
-        return new Command()
+        return new Command(method)
         {
             @Override
             public void accept(final StateModel model, final IModelVisitor visitor)
@@ -175,6 +392,22 @@ public abstract class Command
         return null;
     }
 
+    /**
+     * @return the variables and ROM locations this command uses.
+     */
+    List<Object> getSymbols()
+    {
+        List<Object> symbols = new ArrayList<Object>();
+        for (Object p : m_parameters)
+        {
+            if (p instanceof Variable || p instanceof RomLocation)
+            {
+                symbols.add(p);
+            }
+        }
+        return symbols;
+    }
+
     /**
      * @return Does this command require the subroutine stack? The default
      * implementation returns false.
@@ -193,4 +426,24 @@ public abstract class Command
     {
         return null;
     }
+
+    @Override
+    public int hashCode()
+    {
+        return getClass().hashCode() * 31 + Arrays.hashCode(m_parameters);
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass())
+        {
+            return false;
+        }
+        return Arrays.equals(m_parameters, ((Command) obj).m_parameters);
+    }
 }
@@ -37,6 +37,37 @@ public class CompositeCommand extends Command
 	@Override
 	public void accept(StateModel model, IModelVisitor visitor)
 	{
-		for(Command c : m_commands) c.accept(model, visitor);
+		acceptAll(model, m_commands, visitor);
+	}
+
+	@Override
+	void flatten(List<Command> out)
+	{
+		for(Command c : m_commands) c.flatten(out);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result
+				+ ((m_commands == null) ? 0 : m_commands.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj) return true;
+		if (obj == null) return false;
+		if (getClass() != obj.getClass()) return false;
+		CompositeCommand other = (CompositeCommand) obj;
+		if (m_commands == null)
+		{
+			if (other.m_commands != null) return false;
+		}
+		else if (!m_commands.equals(other.m_commands)) return false;
+		return true;
 	}
 }
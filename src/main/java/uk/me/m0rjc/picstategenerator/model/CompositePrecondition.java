@@ -30,10 +30,16 @@ public class CompositePrecondition extends Precondition
 	
 	@Override
 	public void accept(IModelVisitor visitor)
+	{
+		acceptAll(m_contents, visitor);
+	}
+
+	@Override
+	void flatten(List<Precondition> out)
 	{
 		for(Precondition p : m_contents)
 		{
-			p.accept(visitor);
+			p.flatten(out);
 		}
 	}
 
@@ -47,6 +53,17 @@ public class CompositePrecondition extends Precondition
 		return true;
 	}
 
+	@Override
+	public boolean narrowRange(Variable variable, int[] range)
+	{
+		boolean result = false;
+		for(Precondition p : m_contents)
+		{
+			if(p.narrowRange(variable, range)) result = true;
+		}
+		return result;
+	}
+
 	@Override
 	public int hashCode()
 	{
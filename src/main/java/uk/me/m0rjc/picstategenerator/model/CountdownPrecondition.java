@@ -0,0 +1,70 @@
+package uk.me.m0rjc.picstategenerator.model;
+
+import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
+
+/**
+ * A precondition that counts down a counter, passing while the count has not
+ * reached zero. Unlike other preconditions this changes a variable, so it must
+ * be the last precondition of its transition. The counter is decremented
+ * whether or not it passes, so a count of zero on failure shows that the
+ * count ran out.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public class CountdownPrecondition extends Precondition
+{
+	private final Variable m_counter;
+
+	/**
+	 * @param counter single byte counter. Must not be zero when tested.
+	 */
+	public CountdownPrecondition(Variable counter)
+	{
+		m_counter = counter;
+	}
+
+	/**
+	 * @see uk.me.m0rjc.picstategenerator.model.Precondition#accept(uk.me.m0rjc.picstategenerator.visitor.IModelVisitor)
+	 */
+	@Override
+	public void accept(IModelVisitor visitor)
+	{
+		visitor.visitTransitionPreconditionCountdown(m_counter);
+	}
+
+	@Override
+	Variable getVariable()
+	{
+		return m_counter;
+	}
+
+	/**
+	 * A countdown does not depend on a single value, so this method returns false.
+	 */
+	@Override
+	public boolean accepts(Variable variable, int value)
+	{
+		return false;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31 + ((m_counter == null) ? 0 : m_counter.hashCode());
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj) return true;
+		if (obj == null) return false;
+		if (getClass() != obj.getClass()) return false;
+		CountdownPrecondition other = (CountdownPrecondition) obj;
+		if (m_counter == null)
+		{
+			if (other.m_counter != null) return false;
+		}
+		else if (!m_counter.equals(other.m_counter)) return false;
+		return true;
+	}
+}
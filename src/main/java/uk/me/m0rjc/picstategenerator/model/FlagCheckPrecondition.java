@@ -3,21 +3,58 @@ package uk.me.m0rjc.picstategenerator.model;
 import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
 
 /**
- * A precondition that checks the value of a flag.
+ * A precondition that checks the value of one or more flags held in the same
+ * byte of a variable.
  *
  * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
  */
 public class FlagCheckPrecondition extends Precondition
 {
 	private final Variable m_variable;
-	private final int m_bit;
-	private final boolean m_expectedValue;
-	
+	/** Byte of the variable holding the flags. */
+	private final int m_byteOffset;
+	/** Bits of the byte that are checked. */
+	private final int m_mask;
+	/** Expected value of the checked bits. Only bits in the mask are set. */
+	private final int m_expected;
+
 	public FlagCheckPrecondition(Variable variable, int bit, boolean expectedValue)
+	{
+		this(variable, bit / 8, 1 << (bit % 8), expectedValue ? 1 << (bit % 8) : 0);
+	}
+
+	private FlagCheckPrecondition(Variable variable, int byteOffset, int mask, int expected)
 	{
 		m_variable = variable;
-		m_bit = bit;
-		m_expectedValue = expectedValue;
+		m_byteOffset = byteOffset;
+		m_mask = mask;
+		m_expected = expected;
+	}
+
+	/**
+	 * Combine with a check of other flags in the same byte, so that both are
+	 * tested at once.
+	 * @param other another flag check.
+	 * @return a check of the flags of both, or null if the other checks a different
+	 * byte or expects a different value of a flag checked by this.
+	 */
+	@Override
+	Precondition merge(Precondition p)
+	{
+		if(!(p instanceof FlagCheckPrecondition)) return null;
+		FlagCheckPrecondition other = (FlagCheckPrecondition)p;
+		if(!m_variable.equals(other.m_variable) || m_byteOffset != other.m_byteOffset)
+		{
+			return null;
+		}
+
+		int common = m_mask & other.m_mask;
+		if((m_expected & common) != (other.m_expected & common))
+		{
+			return null;
+		}
+		return new FlagCheckPrecondition(m_variable, m_byteOffset,
+				m_mask | other.m_mask, m_expected | other.m_expected);
 	}
 
 	/**
@@ -26,7 +63,13 @@ public class FlagCheckPrecondition extends Precondition
 	@Override
 	public void accept(IModelVisitor visitor)
 	{
-		visitor.visitTransitionPreconditionFlag(m_variable, m_bit, m_expectedValue);
+		visitor.visitTransitionPreconditionFlags(m_variable, m_byteOffset, m_mask, m_expected);
+	}
+
+	@Override
+	Variable getVariable()
+	{
+		return m_variable;
 	}
 
 	/**
@@ -37,6 +80,35 @@ public class FlagCheckPrecondition extends Precondition
 	{
 		return false;
 	}
-	
-	
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + m_byteOffset;
+		result = prime * result + m_mask;
+		result = prime * result + m_expected;
+		result = prime * result
+				+ ((m_variable == null) ? 0 : m_variable.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj) return true;
+		if (obj == null) return false;
+		if (getClass() != obj.getClass()) return false;
+		FlagCheckPrecondition other = (FlagCheckPrecondition) obj;
+		if (m_byteOffset != other.m_byteOffset) return false;
+		if (m_mask != other.m_mask) return false;
+		if (m_expected != other.m_expected) return false;
+		if (m_variable == null)
+		{
+			if (other.m_variable != null) return false;
+		}
+		else if (!m_variable.equals(other.m_variable)) return false;
+		return true;
+	}
 }
@@ -14,6 +14,7 @@ public class GosubCommand extends Command
 	
 	public GosubCommand(String targetStateName)
 	{
+		super(targetStateName);
 		m_targetStateName = targetStateName;
 	}
 
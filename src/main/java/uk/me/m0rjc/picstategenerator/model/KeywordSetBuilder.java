@@ -0,0 +1,216 @@
+package uk.me.m0rjc.picstategenerator.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Build the nodes to read any of a set of keywords as a minimal acyclic
+ * automaton. Keywords are added in sorted order and the states of the previous
+ * keyword that no later keyword can share are merged with equivalent states as
+ * soon as they are complete, so common suffixes share nodes as well as common
+ * prefixes. The command for a keyword is performed on reading its last
+ * character, so suffixes are only shared by keywords with equal commands.
+ *
+ * <p>No keyword may be a prefix of another, as every keyword ends in the same
+ * node.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+final class KeywordSetBuilder
+{
+    /** A state of the automaton. */
+    private static final class State
+    {
+        /** Transitions out of the state, by character. */
+        private final TreeMap<Character, Edge> m_edges = new TreeMap<Character, Edge>();
+
+        /** Position in the register, or null if not yet registered. */
+        private Integer m_id;
+    }
+
+    /** A transition of the automaton. */
+    private static final class Edge
+    {
+        /** Target state. Changed if an equivalent state is found. */
+        private State m_target;
+
+        /** Command performed on the transition, or null. */
+        private final Command m_command;
+
+        /**
+         * @param target target state.
+         * @param command command performed on the transition, or null.
+         */
+        private Edge(final State target, final Command command)
+        {
+            m_target = target;
+            m_command = command;
+        }
+    }
+
+    /** State in which every keyword starts. */
+    private final State m_start = new State();
+
+    /** State in which every keyword ends. */
+    private final State m_end = new State();
+
+    /** Registered states, by their transitions. */
+    private final Map<List<Object>, State> m_register = new HashMap<List<Object>, State>();
+
+    /** Keyword added last, or null. */
+    private String m_previous;
+
+    /** Constructor. */
+    KeywordSetBuilder()
+    {
+        m_end.m_id = 0;
+    }
+
+    /**
+     * Add a keyword. Keywords must be added in sorted order.
+     *
+     * @param keyword the keyword.
+     * @param command command to perform on reading the keyword, or null.
+     */
+    public void add(final String keyword, final Command command)
+    {
+        if (keyword.length() == 0)
+        {
+            throw new IllegalArgumentException("Keywords must not be empty.");
+        }
+        if (m_previous != null && keyword.compareTo(m_previous) <= 0)
+        {
+            throw new IllegalArgumentException("Keyword " + keyword + " is not after " + m_previous + ".");
+        }
+        if (m_previous != null && keyword.startsWith(m_previous))
+        {
+            throw new IllegalArgumentException("Keyword " + m_previous + " is a prefix of " + keyword + ".");
+        }
+
+        int common = 0;
+        State state = m_start;
+        while (m_previous != null && common < m_previous.length()
+                && m_previous.charAt(common) == keyword.charAt(common))
+        {
+            state = state.m_edges.get(keyword.charAt(common)).m_target;
+            common++;
+        }
+        if (!state.m_edges.isEmpty())
+        {
+            replaceOrRegister(state);
+        }
+
+        for (int i = common; i < keyword.length() - 1; i++)
+        {
+            State next = new State();
+            state.m_edges.put(keyword.charAt(i), new Edge(next, null));
+            state = next;
+        }
+        state.m_edges.put(keyword.charAt(keyword.length() - 1), new Edge(m_end, command));
+        m_previous = keyword;
+    }
+
+    /**
+     * Register the states of the last transition out of a state, which no later
+     * keyword will change, replacing each by an equivalent state if one is
+     * already registered.
+     *
+     * @param state a state.
+     */
+    private void replaceOrRegister(final State state)
+    {
+        Edge last = state.m_edges.lastEntry().getValue();
+        State child = last.m_target;
+        if (child.m_id != null)
+        {
+            return;
+        }
+        replaceOrRegister(child);
+
+        List<Object> key = getKey(child);
+        State equivalent = m_register.get(key);
+        if (equivalent != null)
+        {
+            last.m_target = equivalent;
+        }
+        else
+        {
+            child.m_id = m_register.size() + 1;
+            m_register.put(key, child);
+        }
+    }
+
+    /**
+     * @param state a state whose targets are all registered.
+     * @return a key that is equal for states with the same transitions.
+     */
+    private static List<Object> getKey(final State state)
+    {
+        List<Object> key = new ArrayList<Object>();
+        for (Map.Entry<Character, Edge> e : state.m_edges.entrySet())
+        {
+            key.add(e.getKey());
+            key.add(e.getValue().m_command);
+            key.add(e.getValue().m_target.m_id);
+        }
+        return key;
+    }
+
+    /**
+     * Finish the automaton and add its nodes to the model.
+     *
+     * @param start node to read the keywords from. Transitions are added to it.
+     * @return the node entered once any keyword has been read.
+     */
+    public Node build(final Node start)
+    {
+        if (m_start.m_edges.isEmpty())
+        {
+            return start;
+        }
+        replaceOrRegister(m_start);
+
+        StateModel model = start.getModel();
+        Variable input = model.getInputVariable();
+        Map<State, Node> nodes = new IdentityHashMap<State, Node>();
+        nodes.put(m_start, start);
+        nodes.put(m_end, model.createNode());
+
+        LinkedList<State> pending = new LinkedList<State>();
+        pending.add(m_start);
+        while (!pending.isEmpty())
+        {
+            State state = pending.removeFirst();
+            Node node = nodes.get(state);
+            for (Map.Entry<Character, Edge> e : state.m_edges.entrySet())
+            {
+                State target = e.getValue().m_target;
+                Node targetNode = nodes.get(target);
+                if (targetNode == null)
+                {
+                    targetNode = model.createNode();
+                    nodes.put(target, targetNode);
+                    pending.add(target);
+                }
+                Transition t = new Transition().whenEqual(input, e.getKey()).goTo(targetNode);
+                if (e.getValue().m_command != null)
+                {
+                    t.doCommand(e.getValue().m_command);
+                }
+                node.addTransition(t);
+            }
+        }
+        return nodes.get(m_end);
+    }
+
+    /** @return the characters that keywords start with. */
+    public Iterable<Character> getFirstCharacters()
+    {
+        return m_start.m_edges.keySet();
+    }
+}
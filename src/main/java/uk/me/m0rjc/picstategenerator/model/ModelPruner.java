@@ -0,0 +1,193 @@
+package uk.me.m0rjc.picstategenerator.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Find the parts of a model that nothing uses. Building a model leaves nodes
+ * behind that no transition or command leads to from the root node, such as the
+ * node made for choices that all go elsewhere. The variables and ROM locations
+ * that only those nodes used, or that nothing ever used, are unused too.
+ *
+ * <p>Only symbols that the module declares or imports for itself are unused. A
+ * variable exported with GLOBAL may be used by the application, and one declared
+ * elsewhere, such as a Special Function Register, costs nothing.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+final class ModelPruner
+{
+    /** The model. */
+    private final StateModel m_model;
+
+    /** Nodes reachable from the root node. */
+    private final Set<Node> m_reachableNodes = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+
+    /** Names of the variables and ROM locations used by the reachable nodes. */
+    private final Set<String> m_usedSymbols = new HashSet<String>();
+
+    /**
+     * @param model the model.
+     */
+    public ModelPruner(final StateModel model)
+    {
+        m_model = model;
+        findReachableNodes();
+        m_usedSymbols.add(model.getInputVariable().getName());
+        for (Node node : m_reachableNodes)
+        {
+            addPreconditions(node.getEntryPreconditions());
+            addCommands(node.getEntryCommands());
+            addCommands(node.getExitCommands());
+            for (Transition t : node.getTransitions())
+            {
+                addPreconditions(t.getPreconditions());
+                addCommands(t.getCommands());
+            }
+        }
+    }
+
+    /**
+     * @param nodes all nodes of the model.
+     * @return those of the nodes that cannot be reached from the root node.
+     */
+    public Set<Node> getUnusedNodes(final Collection<Node> nodes)
+    {
+        Set<Node> unused = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        for (Node node : nodes)
+        {
+            if (!m_reachableNodes.contains(node))
+            {
+                unused.add(node);
+            }
+        }
+        return unused;
+    }
+
+    /**
+     * @param variables all variables of the model.
+     * @return those of the variables that are declared or imported by the module
+     *         but not used by any reachable node.
+     */
+    public List<Variable> getUnusedVariables(final Collection<Variable> variables)
+    {
+        List<Variable> unused = new ArrayList<Variable>();
+        for (Variable v : variables)
+        {
+            if ((v.isMustImport() || v.isMustDeclareStorage() && !v.isMustExport())
+                    && !m_usedSymbols.contains(v.getName()))
+            {
+                unused.add(v);
+            }
+        }
+        return unused;
+    }
+
+    /**
+     * @param locations all ROM locations registered with the model.
+     * @return those of the locations that are imported by the module but not called
+     *         by any reachable node.
+     */
+    public List<RomLocation> getUnusedRomLocations(final Collection<RomLocation> locations)
+    {
+        List<RomLocation> unused = new ArrayList<RomLocation>();
+        for (RomLocation r : locations)
+        {
+            if (r.isMustImport() && !m_usedSymbols.contains(r.getName()))
+            {
+                unused.add(r);
+            }
+        }
+        return unused;
+    }
+
+    /**
+     * Find the nodes reachable from the root node by transitions and by commands
+     * such as gosub.
+     */
+    private void findReachableNodes()
+    {
+        LinkedList<Node> queue = new LinkedList<Node>();
+        m_reachableNodes.add(m_model.getInitialState());
+        queue.add(m_model.getInitialState());
+        while (!queue.isEmpty())
+        {
+            Node node = queue.removeFirst();
+            List<String> targets = new ArrayList<String>();
+            addTargetNames(node.getEntryCommands(), targets);
+            addTargetNames(node.getExitCommands(), targets);
+            for (Transition t : node.getTransitions())
+            {
+                targets.add(t.getTargetNodeName());
+                addTargetNames(t.getCommands(), targets);
+            }
+            for (String name : targets)
+            {
+                Node target = m_model.getNode(name);
+                if (target != null && m_reachableNodes.add(target))
+                {
+                    queue.add(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the names of the nodes named by the commands to the list.
+     */
+    private static void addTargetNames(final List<Command> commands, final List<String> names)
+    {
+        for (Command c : commands)
+        {
+            if (c.getTargetNode() != null)
+            {
+                names.add(c.getTargetNode());
+            }
+        }
+    }
+
+    /**
+     * Note the variables tested by the preconditions.
+     */
+    private void addPreconditions(final List<Precondition> preconditions)
+    {
+        List<Precondition> simple = new ArrayList<Precondition>();
+        for (Precondition p : preconditions)
+        {
+            p.flatten(simple);
+        }
+        for (Precondition p : simple)
+        {
+            if (p.getVariable() != null)
+            {
+                m_usedSymbols.add(p.getVariable().getName());
+            }
+        }
+    }
+
+    /**
+     * Note the variables and ROM locations used by the commands.
+     */
+    private void addCommands(final List<Command> commands)
+    {
+        List<Command> simple = new ArrayList<Command>();
+        for (Command c : commands)
+        {
+            c.flatten(simple);
+        }
+        for (Command c : simple)
+        {
+            for (Object symbol : c.getSymbols())
+            {
+                m_usedSymbols.add(symbol instanceof Variable
+                        ? ((Variable) symbol).getName() : ((RomLocation) symbol).getName());
+            }
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package uk.me.m0rjc.picstategenerator.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
 import uk.me.m0rjc.picstategenerator.visitor.INode;
@@ -16,6 +21,9 @@ import uk.me.m0rjc.picstategenerator.visitor.INode;
  */
 public class Node implements INode
 {
+	/** Largest number of times an input can be repeated, held in a byte counter. */
+	private static final int MAX_REPETITIONS = 255;
+
 	/** Name for this state */
 	private String m_stateName;
 	
@@ -25,6 +33,9 @@ public class Node implements INode
 	/** Code to be run on entry to the state */
 	private List<Command> m_entryCode = new ArrayList<Command>();
 
+	/** Code to be run by each transition that leaves the state for another */
+	private List<Command> m_exitCode = new ArrayList<Command>();
+
 	/** Does this node use shared entry code? */
 	private boolean m_useSharedEntryCode;
 	
@@ -82,6 +93,41 @@ public class Node implements INode
 		return node;
 	}
 
+	/**
+	 * Encode the transitions needed to read any of the given keywords. The keywords
+	 * are built in sorted order into a minimal automaton, so keywords share the
+	 * nodes for common prefixes and, where their commands are equal, for common
+	 * suffixes. Every keyword ends in the same new node.
+	 * 
+	 * @param keywords the command to perform on reading each keyword, or null for
+	 *        none. No keyword may be a prefix of another.
+	 * @return the node that is entered once any keyword is read
+	 * @exception IllegalArgumentException if a keyword is empty or a prefix of another,
+	 *        or this node already has a transition for the first character of a keyword.
+	 */
+	public Node addKeywords(Map<String, Command> keywords)
+	{
+		KeywordSetBuilder builder = new KeywordSetBuilder();
+		for(Map.Entry<String, Command> e : new TreeMap<String, Command>(keywords).entrySet())
+		{
+			builder.add(e.getKey(), e.getValue());
+		}
+		
+		Variable input = m_model.getInputVariable();
+		for(char ch : builder.getFirstCharacters())
+		{
+			for(Transition t : m_transitions)
+			{
+				if(t.accepts(input, ch))
+				{
+					throw new IllegalArgumentException("Node " + m_stateName
+							+ " already has a transition for keywords starting with " + ch);
+				}
+			}
+		}
+		return builder.build(this);
+	}
+
 	/**
 	 * Get or create a transition that covers a literal value
 	 * @param ch
@@ -186,12 +232,33 @@ public class Node implements INode
 	 * @return the node that is entered on reading the last number
 	 */
 	public Node addNumbers(final int min, final int max, final Variable storage) 
+	{
+		return addNumbers(min, max, storage, true);
+	}
+	
+	/**
+	 * Create node or nodes to capture numbers as a character array.
+	 * 
+	 * If max > min then the result will be a null terminated string. Allow space for the null.
+	 * If max == min then the result will not be null terminated.
+	 * 
+	 * If the storage is not cleared then bytes beyond the numbers read keep their old
+	 * values. A null terminated string is then terminated when the numbers node is left.
+	 * 
+	 * @param min the minimum amount of characters to read.
+	 * @param max the maximum amount of characters to read.
+	 * @param storage character array to store the result.
+	 * @param clearStorage true to clear the whole of the storage on starting to read.
+	 * @return the node that is entered on reading the last number
+	 */
+	public Node addNumbers(final int min, final int max, final Variable storage,
+			final boolean clearStorage) 
 	{
 		Variable input = m_model.getInputVariable();
 		CompositePrecondition p = new CompositePrecondition(
 				VariableValuePrecondition.createGE(input, '0'),
 				VariableValuePrecondition.createLE(input, '9'));
-		return addInputClassSequence(p, min, max, storage);
+		return addRepetition(p, min, max, storage, clearStorage);
 	}
 	
     /**
@@ -228,126 +295,156 @@ public class Node implements INode
     }
 	
 	/**
-	 * Create node or nodes to capture based on the given condition
+	 * Read inputs of a class repeated between min and max times, storing them into a
+	 * variable. The inputs are counted on this node, which stays put until the input
+	 * that completes the minimum, so the repetition costs one state however wide it
+	 * is. That input and any after it up to the maximum are read into the node that
+	 * is returned. If min is 0 this node is returned.
 	 * 
-	 * If max > min then the result will be a null terminated string. Allow space for the null.
-	 * If max == min then the result will not be null terminated.
+	 * <p>Transitions this node already has are only taken before the first input of
+	 * the class is read. If min is 0 they may be taken at any point.</p>
 	 * 
-	 * @return the node that is entered on reading the last input
+	 * <p>If max > min then the result will be a null terminated string. Allow space for
+	 * the null. If max == min then the result will not be null terminated. A cleared
+	 * storage needs no terminator to be written. Otherwise the string is terminated
+	 * once, on leaving the node that is returned.</p>
+	 * 
+	 * @param inputClass condition on the input variable accepting inputs of the class.
+	 * @param min the minimum amount of inputs to read.
+	 * @param max the maximum amount of inputs to read. At least 1 and no more than 255.
+	 * @param storage array to store the inputs in, or null to not store them.
+	 * @param clearStorage true to clear the whole of the storage on starting to read.
+	 * @return the node that is entered on reading the last input.
+	 * @exception IllegalArgumentException if the counts are out of range.
 	 */
-	private Node addInputClassSequence(Precondition condition, int min, int max, Variable storage) 
+	public Node addRepetition(Precondition inputClass, int min, int max, Variable storage,
+			boolean clearStorage)
 	{
-		Node exitNode;
+		if(min < 0 || max < 1 || max < min || max > MAX_REPETITIONS)
+		{
+			throw new IllegalArgumentException("Node " + m_stateName + " cannot repeat "
+					+ min + " to " + max + " times");
+		}
 		Variable counter = m_model.getCountVariable();
+		Variable remaining = m_model.getCountdownVariable();
 		Variable input = m_model.getInputVariable();
 		boolean requiresNullTerminatedString = max > min;
+		// A fixed length read counts down the input left, so that the length test and
+		// its update are a single decrement.
+		boolean countdown = min == max && min > 1;
 		
-		CompositeCommand storeCommand = buildStoreCommand(input, storage, counter, requiresNullTerminatedString);
+		// The count up is then only needed as the index to store at.
+		boolean countUp = storage != null || !countdown;
+		CompositeCommand storeCommand = buildStoreCommand(input, storage, countUp ? counter : null);
 		
 		assert storage == null || storage.getSize() >= (requiresNullTerminatedString ? max+1 : max);
 		
-		// This node - clear the counter on entry
-		addEntryCommand(Command.clearValue(counter));
-		if(storage != null) addEntryCommand(Command.clearValue(storage));
+		// Transitions already here are only for the first input. This node is only
+		// left with inputs read if min is 1, and is the node returned if min is 0.
+		// A countdown is tested whether or not the inputs are also counted up to
+		// store them, so the test is the same with or without storage.
+		if(min > 1)
+		{
+			Precondition nothingRead = countdown
+					? Precondition.equals(remaining, max) : Precondition.equals(counter, 0);
+
+			for(Transition t : m_transitions)
+			{
+				t.when(nothingRead);
+			}
+		}
 		
-		// The target state
-		if(min == 0)
+		if(countUp)
 		{
-			exitNode = this;
+			addEntryCommand(Command.clearValue(counter));
 		}
-		else if(min == 1)
+		if(storage != null)
 		{
-			// Any numbers allow us to exit
-			Transition t = createEmptyTransitionToNewNode()
-				.when(condition)
-				.doCommand(storeCommand);
-			exitNode = m_model.getNode(t.getTargetNodeName());
+			if(clearStorage)
+			{
+				addEntryCommand(Command.clearValue(storage));
+			}
+			addEntryCommand(Command.startIndexedStore(storage, counter));
 		}
-		else if(min == max && m_transitions.isEmpty())
+		if(countdown)
 		{
-			Transition t;
-			// We can stay on the start node until we hit max. It's a generalisation
-			// that fails if there are non-number transitions, but in my examples I don't
-			// do that so will take advantage of optimising out one state.
-			t = createSelfTransition()
-				.ignoreTargetNodeEntry()
-				.when(condition)
-				.when(Precondition.lessThan(counter, max - 1))
-				.doCommand(storeCommand);
-
-			exitNode = m_model.getNode(t.getTargetNodeName());
-			
-			t = createEmptyTransitionToNewNode()
-				.when(condition)
-				.when(Precondition.equals(counter, max - 1))
-				.doCommand(storeCommand);
-			
-			exitNode = m_model.getNode(t.getTargetNodeName());
+			addEntryCommand(Command.loadCounter(remaining, max));
+		}
+		
+		Node exitNode;
+		if(min == 0)
+		{
+			exitNode = this;
 		}
 		else
 		{
-			Transition t;
-			// First number takes us into a state where we start collecting numbers until we reach the minimum
-			t = createEmptyTransitionToNewNode()
-							.when(condition)
-							.when(VariableValuePrecondition.createLE(counter, min - 2))
-							.doCommand(storeCommand);
-
-			Node numbersNode = m_model.getNode(t.getTargetNodeName());
-
-			// Subsequent numbers less than min keep us in this state
-			if(min > 2)
+			// Stay on this node until the input that completes the minimum.
+			if(countdown)
 			{
-				numbersNode.createSelfTransition()
-						   .when(condition)
-						   .when(VariableValuePrecondition.createLE(counter, min - 2))
-						   .doCommand(storeCommand);
+				// The countdown reaches zero on the last input, failing this transition.
+				createSelfTransition()
+					.ignoreTargetNodeEntry()
+					.when(inputClass)
+					.when(Precondition.countdown(remaining))
+					.doCommand(storeCommand);
+			}
+			else if(min > 1)
+			{
+				createSelfTransition()
+					.ignoreTargetNodeEntry()
+					.when(inputClass)
+					.when(VariableValuePrecondition.createLE(counter, min - 2))
+					.doCommand(storeCommand);
 			}
 			
-			// Once we hit min then we can go to the exit state
-			t = numbersNode.createEmptyTransitionToNewNode()
-						   .when(condition)
-						   .when(VariableValuePrecondition.createGE(counter, min - 1))
-						   .doCommand(storeCommand);
-			
+			// Only reached on matching input once the rest of the minimum has been read.
+			Transition t = createEmptyTransitionToNewNode()
+				.when(inputClass)
+				.doCommand(storeCommand);
 			exitNode = m_model.getNode(t.getTargetNodeName());
 		}
-
+		
 		if(max > min)
 		{
-			exitNode.createSelfTransition()
-				.when(condition)
+			Transition t = exitNode.createSelfTransition()
+				.when(inputClass)
 				.when(VariableValuePrecondition.createLE(counter, max - 1))
 				.doCommand(storeCommand);
+			if(exitNode == this)
+			{
+				// Entering again would restart the count.
+				t.ignoreTargetNodeEntry();
+			}
+		}
+		
+		if(requiresNullTerminatedString && storage != null && !clearStorage)
+		{
+			exitNode.addExitCommand(Command.endIndexedStore(storage, counter));
 		}
 		
 		return exitNode;
 	}
 
 	/**
-	 * Build the command needed as part of an
-	 * {@link #addInputClassSequence(Precondition, int, int, Variable) input class sequence}
+	 * Build the command needed as part of a
+	 * {@link #addRepetition(Precondition, int, int, Variable, boolean) repetition}
 	 * that will store the value in the right place and increment the counter.
 	 * 
 	 * @param input input variable
 	 * @param storage where to store the value. May be null to not store.
-	 * @param counter position counter within the variable
-	 * @param requiresNullTerminatedString if true then the next space will be set to null.
+	 * @param counter position counter within the variable. May be null if the
+	 *        value is not stored and the input is counted down instead.
 	 * @return the storage command.
 	 */
 	private CompositeCommand buildStoreCommand(Variable input,
-			Variable storage, Variable counter,
-			boolean requiresNullTerminatedString)
+			Variable storage, Variable counter)
 	{
 		CompositeCommand storeCommand = new CompositeCommand();
 		if(storage != null)
 		{
-			storeCommand.add(Command.storeValueIndex(input, storage, counter))
-					    .add(Command.incrementValue(counter));
-			if(requiresNullTerminatedString)
-				storeCommand.add(Command.clearIndexedValue(storage, counter));
+			storeCommand.add(Command.storeNextIndexed(input, storage, counter, false));
 		}
-		else
+		else if(counter != null)
 		{
 			storeCommand.add(Command.incrementValue(counter));
 		}
@@ -375,6 +472,16 @@ public class Node implements INode
 		return this;
 	}
 
+	/**
+	 * Add commands to execute on leaving this node for another.
+	 * @return this node
+	 */
+	public Node addExitCommand(Command c)
+	{
+		m_exitCode.add(c);
+		return this;
+	}
+
 	/**
 	 * @see uk.me.m0rjc.picstategenerator.visitor.INode#getStateName()
 	 */
@@ -440,20 +547,23 @@ public class Node implements INode
 		}
 		
 		visitor.startNode(this);
-		for(Transition t : m_transitions)
-		{
-			t.accept(m_model, visitor);
-		}
+		renderTransitions(visitor);
 		
 		if(isFallbackTransitionNeeded())
 		{
 			Transition t = new Transition();
 			t.goTo(m_model.getInitialState());
-			t.accept(m_model, visitor);
+			renderTransition(t, visitor);
 		}
 		visitor.endNode(this);
 		
-		// Ask target nodes to render themselves.
+		// Ask target nodes to render themselves. The target of the last transition
+		// goes first so that a jump to its shared entry code can fall through.
+		String fallThroughName = getFallThroughTargetName();
+		if(fallThroughName != null)
+		{
+			m_model.getNode(fallThroughName).accept(seenNodes, visitor);
+		}
 		for (String targetName : getAllTargetNodeNames())
 		{
 			Node n = m_model.getNode(targetName);
@@ -461,6 +571,264 @@ public class Node implements INode
 		}
 	}
 
+	/**
+	 * Render the transitions in list order. Runs of consecutive transitions that each
+	 * accept a single range of the input variable are offered to the visitor as an
+	 * input switch so that it may dispatch on the input rather than test each range
+	 * in turn. The other transitions are rendered by
+	 * {@link #renderSharedTests(List, List, int, IModelVisitor)}.
+	 * 
+	 * @param visitor
+	 */
+	private void renderTransitions(IModelVisitor visitor)
+	{
+		Variable input = m_model.getInputVariable();
+		List<Transition> pending = new ArrayList<Transition>();
+		int start = 0;
+		while(start < m_transitions.size())
+		{
+			int end = start;
+			while(end < m_transitions.size() && m_transitions.get(end).getAcceptedRange(input) != null)
+			{
+				end++;
+			}
+			
+			List<int[]> ranges = new ArrayList<int[]>();
+			List<List<Transition>> cases = new ArrayList<List<Transition>>();
+			if(end - start > 1 && groupByInputRange(input, m_transitions.subList(start, end), ranges, cases))
+			{
+				renderSharedTests(pending, visitor);
+				pending.clear();
+				renderInputSwitch(input, ranges, cases, visitor);
+				start = end;
+			}
+			else
+			{
+				pending.add(m_transitions.get(start));
+				start++;
+			}
+		}
+		renderSharedTests(pending, visitor);
+	}
+
+	/**
+	 * Render consecutive transitions, testing preconditions that several of them
+	 * start with once for all of them.
+	 */
+	private void renderSharedTests(List<Transition> transitions, IModelVisitor visitor)
+	{
+		List<List<Precondition>> preconditions = new ArrayList<List<Precondition>>();
+		for(Transition t : transitions)
+		{
+			preconditions.add(t.getAllPreconditions(m_model));
+		}
+		renderSharedTests(transitions, preconditions, 0, visitor);
+	}
+
+	/**
+	 * Render consecutive transitions whose leading preconditions have already been
+	 * tested. Where several transitions in a row share their next preconditions those
+	 * are tested once in a code block of their own, so that if they fail the whole
+	 * group is skipped, and the group is rendered inside the block in the same way.
+	 * 
+	 * <p>The transitions are still tried in order, and a failed test has no effect,
+	 * so this does not change which transition is taken. A countdown changes its
+	 * counter whether or not it passes, so a transition with one is never grouped.</p>
+	 * 
+	 * @param transitions consecutive transitions.
+	 * @param preconditions the normalised preconditions of each transition.
+	 * @param tested number of leading preconditions of each already tested.
+	 * @param visitor
+	 */
+	private void renderSharedTests(List<Transition> transitions, List<List<Precondition>> preconditions,
+			int tested, IModelVisitor visitor)
+	{
+		int start = 0;
+		while(start < transitions.size())
+		{
+			List<Precondition> first = preconditions.get(start);
+			int end = start + 1;
+			int shared = Integer.MAX_VALUE;
+			while(end < transitions.size())
+			{
+				int count = countSharedTests(first, preconditions.get(end), tested);
+				if(count == 0)
+				{
+					break;
+				}
+				shared = Math.min(shared, count);
+				end++;
+			}
+
+			if(end - start > 1)
+			{
+				visitor.push();
+				for(Precondition p : first.subList(tested, tested + shared))
+				{
+					p.accept(visitor);
+				}
+				renderSharedTests(transitions.subList(start, end), preconditions.subList(start, end),
+						tested + shared, visitor);
+				visitor.pop();
+			}
+			else
+			{
+				renderTransition(transitions.get(start), tested, visitor);
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * Count the preconditions after those already tested that two transitions share.
+	 * @return the number shared, or 0 if either transition has a countdown.
+	 */
+	private static int countSharedTests(List<Precondition> a, List<Precondition> b, int tested)
+	{
+		if(hasCountdown(a) || hasCountdown(b))
+		{
+			return 0;
+		}
+		int count = 0;
+		while(tested + count < a.size() && tested + count < b.size()
+				&& a.get(tested + count).equals(b.get(tested + count)))
+		{
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Does the list hold a countdown precondition?
+	 */
+	private static boolean hasCountdown(List<Precondition> preconditions)
+	{
+		for(Precondition p : preconditions)
+		{
+			if(p instanceof CountdownPrecondition) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Render a transition out of this node, running the exit code first if it leaves
+	 * for another node.
+	 */
+	private void renderTransition(Transition t, IModelVisitor visitor)
+	{
+		renderTransition(t, 0, visitor);
+	}
+
+	/**
+	 * Render a transition out of this node whose leading preconditions have already
+	 * been tested, running the exit code first if it leaves for another node.
+	 */
+	private void renderTransition(Transition t, int tested, IModelVisitor visitor)
+	{
+		if(t.getNode(m_model) == this)
+		{
+			t.accept(m_model, Collections.<Command>emptyList(), tested, visitor);
+		}
+		else
+		{
+			t.accept(m_model, m_exitCode, tested, visitor);
+		}
+	}
+
+	/**
+	 * Group a run of transitions that each accept a single range of input values
+	 * by range, so that they can be rendered as an input switch. Only transitions
+	 * sharing a range can both match, so their relative order is kept while the
+	 * order between ranges does not matter.
+	 * 
+	 * <p>If two different ranges overlap then the order between them does matter, so
+	 * the run cannot be rendered as a switch.</p>
+	 * 
+	 * @param input the input variable.
+	 * @param run consecutive transitions, each with an accepted input range.
+	 * @param ranges list to add the distinct {low, high} ranges to.
+	 * @param cases list to add the transitions accepting each range to.
+	 * @return true if the run makes a switch of at least two cases.
+	 */
+	private static boolean groupByInputRange(Variable input, List<Transition> run, List<int[]> ranges,
+			List<List<Transition>> cases)
+	{
+		for(Transition t : run)
+		{
+			int[] range = t.getAcceptedRange(input);
+			int index = 0;
+			while(index < ranges.size() && !Arrays.equals(ranges.get(index), range))
+			{
+				index++;
+			}
+			if(index == ranges.size())
+			{
+				ranges.add(range);
+				cases.add(new ArrayList<Transition>());
+			}
+			cases.get(index).add(t);
+		}
+		return cases.size() >= 2 && !rangesOverlap(ranges);
+	}
+
+	/**
+	 * Render transitions grouped by {@link #groupByInputRange(Variable, List, List, List)}
+	 * as an input switch. Each transition still renders its own preconditions, which
+	 * the visitor may omit if its dispatch has already decided them.
+	 * 
+	 * @param input the input variable.
+	 * @param ranges the distinct ranges.
+	 * @param cases the transitions accepting each range.
+	 * @param visitor
+	 */
+	private void renderInputSwitch(Variable input, List<int[]> ranges, List<List<Transition>> cases,
+			IModelVisitor visitor)
+	{
+		int[] lowValues = new int[ranges.size()];
+		int[] highValues = new int[ranges.size()];
+		for(int i = 0; i < ranges.size(); i++)
+		{
+			lowValues[i] = ranges.get(i)[0];
+			highValues[i] = ranges.get(i)[1];
+		}
+		
+		visitor.startInputSwitch(input, lowValues, highValues);
+		for(int i = 0; i < cases.size(); i++)
+		{
+			visitor.startSwitchCase(lowValues[i], highValues[i]);
+			for(Transition t : cases.get(i))
+			{
+				renderTransition(t, visitor);
+			}
+			visitor.endSwitchCase(lowValues[i], highValues[i]);
+		}
+		visitor.endInputSwitch();
+	}
+
+	/**
+	 * Do any of the given distinct ranges overlap?
+	 * @param ranges list of {low, high} pairs, no two the same.
+	 */
+	private static boolean rangesOverlap(List<int[]> ranges)
+	{
+		int[][] sorted = ranges.toArray(new int[ranges.size()][]);
+		Arrays.sort(sorted, new Comparator<int[]>(){
+			@Override
+			public int compare(int[] a, int[] b)
+			{
+				return a[0] - b[0];
+			}
+		});
+		for(int i = 1; i < sorted.length; i++)
+		{
+			if(sorted[i][0] <= sorted[i - 1][1])
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Optionally build this node. It is a script end point.
 	 * Script end points normally direct straight to the root node.
@@ -479,6 +847,12 @@ public class Node implements INode
 		{
 			renderSharedEntryCode(visitor);
 		}
+		
+		// A subroutine may call others from its entry code before it returns.
+		for (String targetName : getAllTargetNodeNames())
+		{
+			m_model.getNode(targetName).accept(seenNodes, visitor);
+		}
 	}
 
 	
@@ -521,14 +895,26 @@ public class Node implements INode
 		}
 		else
 		{
-			for(Command c : getEntryCommands())
-			{
-				c.accept(m_model, visitor);
-			}
+			renderInlineEntryCode(visitor);
 			visitor.visitTransitionGoToNode(this);
 		}
 	}
 
+	/**
+	 * Render a copy of the entry commands for this node within a transition.
+	 * 
+	 * @param visitor
+	 */
+	private void renderInlineEntryCode(IModelVisitor visitor)
+	{
+		if(hasEntryCommands())
+		{
+			visitor.startInlineEntryCode(this);
+			Command.acceptAll(m_model, getEntryCommands(), visitor);
+			visitor.endInlineEntryCode(this);
+		}
+	}
+
 	/**
 	 * Render the code to switch to the root node as part of a transition.
 	 * This node may have entry commands which need to be rendered first.
@@ -550,10 +936,7 @@ public class Node implements INode
 		}
 		else
 		{
-			for(Command c : getEntryCommands())
-			{
-				c.accept(m_model, visitor);
-			}
+			renderInlineEntryCode(visitor);
 			// Direct call prevents an infinite loop in the case of an empty model.
 			rootNode.renderGoToThisNode(visitor, ignoreTargetNodeEntry);
 		}
@@ -582,10 +965,7 @@ public class Node implements INode
 	private void renderSharedEntryCode(IModelVisitor visitor)
 	{
 		visitor.startSharedEntryCode(this);
-		for(Command c : m_entryCode)
-		{
-			c.accept(m_model, visitor);
-		}
+		Command.acceptAll(m_model, m_entryCode, visitor);
 		
 		if(!isScriptEndPoint())
 		{
@@ -610,6 +990,18 @@ public class Node implements INode
 		return m_entryCode;
 	}
 
+	/** Return the list of commands to perform on leaving this node for another. */
+	public List<Command> getExitCommands()
+	{
+		return m_exitCode;
+	}
+
+	/** Return the transitions out of this node. */
+	List<Transition> getTransitions()
+	{
+		return m_transitions;
+	}
+
 	/**
 	 * Does the assembler need to create code for a fallback position, should
 	 * none of the transitions for this node be satisfied?
@@ -645,6 +1037,16 @@ public class Node implements INode
 		m_useSharedEntryCode = true;
 	}
 
+	/**
+	 * Choose whether this node uses shared entry code or has its entry code
+	 * copied into each transition to it.
+	 * @param useSharedEntryCode true to use shared entry code.
+	 */
+	public void setUseSharedEntryCode(boolean useSharedEntryCode)
+	{
+		m_useSharedEntryCode = useSharedEntryCode;
+	}
+
 	/**
 	 * Work through the tree setting all nodes with multiple entrants to "use shared entry code"
 	 * @param seenNodes Set of nodes that have been visited
@@ -680,7 +1082,7 @@ public class Node implements INode
 		for(Command c : m_entryCode)
 		{
 			String target = c.getTargetNode();
-			if(target != null) targets.add(target);
+			if(target != null) targets.add(getCanonicalName(target));
 		}
 		
 		for(Transition t : m_transitions)
@@ -688,9 +1090,10 @@ public class Node implements INode
 			// Don't count self transitions as they use shorter code
 			for(String targetName : t.getAllTargetNodeNames())
 			{
-				if(targetName != getStateName())
+				String canonicalName = getCanonicalName(targetName);
+				if(canonicalName != getStateName())
 				{
-					targets.add(targetName);
+					targets.add(canonicalName);
 				}
 			}
 		}
@@ -704,6 +1107,35 @@ public class Node implements INode
 		return targets;
 	}
 
+	/**
+	 * Return the name of the node entered by the last transition rendered, or null
+	 * if that is the fallback transition to the root node or a self transition.
+	 */
+	private String getFallThroughTargetName()
+	{
+		if(m_transitions.isEmpty() || isFallbackTransitionNeeded())
+		{
+			return null;
+		}
+		Transition last = m_transitions.get(m_transitions.size() - 1);
+		Node target = last.getNode(m_model);
+		if(target == null || target == this)
+		{
+			return null;
+		}
+		return target.getStateName();
+	}
+
+	/**
+	 * Return the name of the node the model holds under the given name. This differs
+	 * if the named node was merged into an equivalent node.
+	 */
+	private String getCanonicalName(String name)
+	{
+		Node node = m_model.getNode(name);
+		return node == null ? name : node.getStateName();
+	}
+
 	/**
 	 * True if this Node uses the subroutine stack.
 	 */
@@ -714,6 +1146,11 @@ public class Node implements INode
 			if(c.requiresSubroutineStack()) return true;
 		}
 
+		for(Command c : m_exitCode)
+		{
+			if(c.requiresSubroutineStack()) return true;
+		}
+
 		for(Transition t : m_transitions)
 		{
 			if(t.requiresSubroutineStack()) return true;
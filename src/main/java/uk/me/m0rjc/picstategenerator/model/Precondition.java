@@ -1,5 +1,8 @@
 package uk.me.m0rjc.picstategenerator.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
 
 /**
@@ -25,6 +28,171 @@ public abstract class Precondition
 	 */
 	public abstract boolean accepts(Variable variable, int value);
 
+	/**
+	 * The default implementation returns null.
+	 * @return the variable this simple precondition tests, or null if it tests none.
+	 */
+	Variable getVariable()
+	{
+		return null;
+	}
+
+	/**
+	 * Add the simple preconditions that make up this precondition to the list.
+	 * @param out list to add to.
+	 */
+	void flatten(List<Precondition> out)
+	{
+		out.add(this);
+	}
+
+	/**
+	 * Does this precondition pass whatever the values of the variables? Such a
+	 * precondition needs no test. The default implementation returns false.
+	 */
+	boolean isVacuous()
+	{
+		return false;
+	}
+
+	/**
+	 * Combine with another precondition so that both can be tested at once.
+	 * The default implementation returns null.
+	 * @param other another precondition that must also pass.
+	 * @return a precondition that passes only when both pass, or null if they cannot
+	 * be combined.
+	 */
+	Precondition merge(Precondition other)
+	{
+		return null;
+	}
+
+	/**
+	 * Visit a list of preconditions, all of which must pass, in the form given
+	 * by {@link #normalise(List)}.
+	 * @param preconditions preconditions in the order they were given.
+	 * @param visitor visitor to render them.
+	 */
+	static void acceptAll(List<Precondition> preconditions, IModelVisitor visitor)
+	{
+		for(Precondition p : normalise(preconditions))
+		{
+			p.accept(visitor);
+		}
+	}
+
+	/**
+	 * Simplify a list of preconditions, all of which must pass. Checks of flags
+	 * in the same byte are combined so that they can be tested at once. Bounds and
+	 * equality tests of the same variable are combined into the narrowest test of
+	 * the range they leave, which also removes tests implied by others. Tests that
+	 * always pass are removed.
+	 *
+	 * <p>The result keeps the order in which each test first appeared, so lists that
+	 * start with the same tests give results that start with the same tests.</p>
+	 *
+	 * <p>Combining moves a later test to where an earlier one was. This is only safe
+	 * because no precondition other than a countdown has a side effect: a test that
+	 * fails sooner cannot change what happens. A countdown decrements its counter
+	 * whether or not it passes, so no test is moved ahead of one.</p>
+	 * @param preconditions preconditions in the order they were given.
+	 * @return simple preconditions to be tested in order.
+	 */
+	static List<Precondition> normalise(List<Precondition> preconditions)
+	{
+		List<Precondition> simple = new ArrayList<Precondition>();
+		for(Precondition p : preconditions)
+		{
+			p.flatten(simple);
+		}
+
+		List<Precondition> combined = new ArrayList<Precondition>();
+		for(Precondition p : simple)
+		{
+			if(!mergeInto(combined, p))
+			{
+				combined.add(p);
+			}
+		}
+
+		List<Precondition> result = new ArrayList<Precondition>();
+		for(Precondition p : combined)
+		{
+			if(!p.isVacuous())
+			{
+				result.add(p);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Combine two tests of the value of a variable into the simplest test of the
+	 * values that both accept.
+	 * @param variable variable tested.
+	 * @param a a test of the variable's value.
+	 * @param b another test of the variable's value.
+	 * @return the combined test, or null if either does not test the variable or
+	 * no value passes both.
+	 */
+	static Precondition mergeBounds(Variable variable, Precondition a, Precondition b)
+	{
+		int[] range = {0, RangePrecondition.MAX_BYTE_VALUE};
+		if(!a.narrowRange(variable, range) || !b.narrowRange(variable, range)
+				|| range[0] > range[1])
+		{
+			return null;
+		}
+		if(range[0] == range[1])
+		{
+			return VariableValuePrecondition.createEQ(variable, range[0]);
+		}
+		if(range[0] == 0 && range[1] < RangePrecondition.MAX_BYTE_VALUE)
+		{
+			return VariableValuePrecondition.createLE(variable, range[1]);
+		}
+		if(range[0] > 0 && range[1] == RangePrecondition.MAX_BYTE_VALUE)
+		{
+			return VariableValuePrecondition.createGE(variable, range[0]);
+		}
+		return new RangePrecondition(variable, range[0], range[1]);
+	}
+
+	/**
+	 * Merge a precondition into an earlier one it can be combined with, provided
+	 * no countdown lies between them.
+	 * @return true if merged.
+	 */
+	private static boolean mergeInto(List<Precondition> combined, Precondition p)
+	{
+		for(int i = combined.size() - 1; i >= 0; i--)
+		{
+			Precondition merged = combined.get(i).merge(p);
+			if(merged != null)
+			{
+				combined.set(i, merged);
+				return true;
+			}
+			if(combined.get(i) instanceof CountdownPrecondition)
+			{
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Narrow an inclusive range of values of the given variable to those that
+	 * this precondition accepts.
+	 * @param variable variable in use
+	 * @param range two element array holding the lowest and highest value. Updated in place.
+	 * @return true if this precondition tests the variable.
+	 */
+	public boolean narrowRange(Variable variable, int[] range)
+	{
+		return false;
+	}
+
 	/**
 	 * Utility method to create a condition that checks a flag
 	 * @return
@@ -34,6 +202,17 @@ public abstract class Precondition
 		return new FlagCheckPrecondition(holdingVariable, holdingVariable.getBit(flagName), expectedValue);
 	}
 
+	/**
+	 * Convenience method to create a countdown precondition. It must be the
+	 * last precondition of its transition.
+	 * @param counter counter loaded with {@link Command#loadCounter(Variable, int)}
+	 * @return the precondition
+	 */
+	public static Precondition countdown(Variable counter)
+	{
+		return new CountdownPrecondition(counter);
+	}
+
 	/**
 	 * Convenience method to create an Equals precondition
 	 * @param inputVariable
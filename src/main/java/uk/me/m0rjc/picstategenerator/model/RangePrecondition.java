@@ -0,0 +1,116 @@
+package uk.me.m0rjc.picstategenerator.model;
+
+import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
+
+/**
+ * A precondition that requires the value of a variable to be within an inclusive range.
+ * Made when a transition has both a lower and an upper bound on the same variable,
+ * so that the builder can test both at once.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public class RangePrecondition extends Precondition
+{
+	/** Largest value of a byte variable. */
+	static final int MAX_BYTE_VALUE = 255;
+
+	private final Variable m_variable;
+	private final int m_low;
+	private final int m_high;
+
+	/**
+	 * @param variable variable to test
+	 * @param low lowest value accepted
+	 * @param high highest value accepted
+	 */
+	public RangePrecondition(Variable variable, int low, int high)
+	{
+		m_variable = variable;
+		m_low = low;
+		m_high = high;
+	}
+
+	/**
+	 * @see uk.me.m0rjc.picstategenerator.model.Precondition#accept(uk.me.m0rjc.picstategenerator.visitor.IModelVisitor)
+	 */
+	@Override
+	public void accept(IModelVisitor visitor)
+	{
+		visitor.visitTransitionPreconditionRange(m_variable, m_low, m_high);
+	}
+
+	@Override
+	Variable getVariable()
+	{
+		return m_variable;
+	}
+
+	@Override
+	public boolean accepts(Variable variable, int value)
+	{
+		return m_variable.equals(variable) && value >= m_low && value <= m_high;
+	}
+
+	@Override
+	public boolean narrowRange(Variable variable, int[] range)
+	{
+		if(m_variable.equals(variable))
+		{
+			range[0] = Math.max(range[0], m_low);
+			range[1] = Math.min(range[1], m_high);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A further test of the value of the same variable narrows the range.
+	 */
+	@Override
+	Precondition merge(Precondition other)
+	{
+		if(!(other instanceof VariableValuePrecondition || other instanceof RangePrecondition))
+		{
+			return null;
+		}
+		return mergeBounds(m_variable, this, other);
+	}
+
+	/**
+	 * The range 0 to 255 passes every byte value.
+	 */
+	@Override
+	boolean isVacuous()
+	{
+		return m_low <= 0 && m_high >= MAX_BYTE_VALUE;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + m_low;
+		result = prime * result + m_high;
+		result = prime * result
+				+ ((m_variable == null) ? 0 : m_variable.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj) return true;
+		if (obj == null) return false;
+		if (getClass() != obj.getClass()) return false;
+		RangePrecondition other = (RangePrecondition) obj;
+		if (m_low != other.m_low) return false;
+		if (m_high != other.m_high) return false;
+		if (m_variable == null)
+		{
+			if (other.m_variable != null) return false;
+		}
+		else if (!m_variable.equals(other.m_variable)) return false;
+		return true;
+	}
+}
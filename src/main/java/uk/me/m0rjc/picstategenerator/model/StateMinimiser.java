@@ -0,0 +1,169 @@
+package uk.me.m0rjc.picstategenerator.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merge equivalent states of a model by partition refinement. Nodes start in
+ * blocks by their entry code and entry preconditions, then blocks are split by
+ * the transitions of their nodes until no block splits. Two transitions are the
+ * same if they have equal preconditions and commands and go to nodes in the same
+ * block. Each block is then replaced by its first node, the root node coming
+ * first.
+ *
+ * <p>Nodes named by gosub commands are compared by name, so a gosub to either of
+ * two equivalent nodes does not make callers equivalent.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+final class StateMinimiser
+{
+    /** The model. */
+    private final StateModel m_model;
+
+    /** Nodes in a fixed order, the root node first. */
+    private final List<Node> m_nodes;
+
+    /** Block of each node. */
+    private final Map<Node, Integer> m_blocks = new IdentityHashMap<Node, Integer>();
+
+    /**
+     * @param model the model.
+     * @param nodes every node of the model.
+     */
+    public StateMinimiser(final StateModel model, final Collection<Node> nodes)
+    {
+        m_model = model;
+        m_nodes = new ArrayList<Node>(nodes);
+        final Node root = model.getInitialState();
+        Collections.sort(m_nodes, new Comparator<Node>()
+        {
+            @Override
+            public int compare(final Node a, final Node b)
+            {
+                if (a == b)
+                {
+                    return 0;
+                }
+                if (a == root || b == root)
+                {
+                    return a == root ? -1 : 1;
+                }
+                return a.getStateName().compareTo(b.getStateName());
+            }
+        });
+    }
+
+    /**
+     * Merge equivalent nodes, rewiring transitions to the node kept.
+     *
+     * @return the node kept for each node merged, by name of the merged node.
+     */
+    public Map<String, Node> minimise()
+    {
+        int blockCount = partition(initialSignatures());
+        int previous;
+        do
+        {
+            previous = blockCount;
+            blockCount = partition(refinedSignatures());
+        }
+        while (blockCount != previous);
+
+        Map<Integer, Node> representatives = new HashMap<Integer, Node>();
+        Map<String, Node> merged = new LinkedHashMap<String, Node>();
+        for (Node node : m_nodes)
+        {
+            Node representative = representatives.get(m_blocks.get(node));
+            if (representative == null)
+            {
+                representatives.put(m_blocks.get(node), node);
+            }
+            else
+            {
+                merged.put(node.getStateName(), representative);
+            }
+        }
+
+        for (Node node : representatives.values())
+        {
+            for (Transition t : node.getTransitions())
+            {
+                Node target = t.getNode(m_model);
+                if (target != null)
+                {
+                    t.goTo(representatives.get(m_blocks.get(target)));
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return for each node, what must be equal for nodes to start in the same
+     *         block.
+     */
+    private List<Object> initialSignatures()
+    {
+        List<Object> signatures = new ArrayList<Object>();
+        for (Node node : m_nodes)
+        {
+            signatures.add(Arrays.<Object> asList(node.isScriptEndPoint(),
+                    node.getEntryCommands(), node.getEntryPreconditions(),
+                    node.getExitCommands()));
+        }
+        return signatures;
+    }
+
+    /**
+     * @return for each node, what must be equal for nodes to stay in the same
+     *         block.
+     */
+    private List<Object> refinedSignatures()
+    {
+        List<Object> signatures = new ArrayList<Object>();
+        for (Node node : m_nodes)
+        {
+            List<Object> transitions = new ArrayList<Object>();
+            for (Transition t : node.getTransitions())
+            {
+                Node target = t.getNode(m_model);
+                Object targetKey = target == null ? t.getTargetNodeName() : m_blocks.get(target);
+                transitions.add(Arrays.<Object> asList(t.getPreconditions(), t.getCommands(),
+                        t.isIgnoreTargetNodeEntry(), targetKey));
+            }
+            signatures.add(Arrays.<Object> asList(m_blocks.get(node), transitions));
+        }
+        return signatures;
+    }
+
+    /**
+     * Put nodes with equal signatures in the same block.
+     *
+     * @param signatures signature of each node, in the order of the nodes.
+     * @return the number of blocks.
+     */
+    private int partition(final List<Object> signatures)
+    {
+        Map<Object, Integer> blocks = new HashMap<Object, Integer>();
+        for (int i = 0; i < m_nodes.size(); i++)
+        {
+            Integer block = blocks.get(signatures.get(i));
+            if (block == null)
+            {
+                block = blocks.size();
+                blocks.put(signatures.get(i), block);
+            }
+            m_blocks.put(m_nodes.get(i), block);
+        }
+        return blocks.size();
+    }
+}
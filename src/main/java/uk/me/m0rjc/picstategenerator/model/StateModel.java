@@ -2,13 +2,20 @@ package uk.me.m0rjc.picstategenerator.model;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
 
 import uk.me.m0rjc.picstategenerator.visitor.IModel;
 import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
+import uk.me.m0rjc.picstategenerator.visitor.ISubroutineCosts;
 
 /**
  * The model used to build the state tree.
@@ -17,9 +24,15 @@ import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
  */
 public class StateModel implements IModel
 {
+    /** Logger. */
+    private static final Logger m_log = Logger.getLogger(StateModel.class.getName());
+
     /** Assumed amount of RAM pages supported. */
     private static final int MAX_RAM_PAGES = 15;
 
+    /** Number of distinct byte values. */
+    private static final int BYTE_VALUES = 256;
+
     /** A name for the model. Must be short - will be used for symbols */
     private String m_modelName;
 
@@ -35,6 +48,9 @@ public class StateModel implements IModel
     /** Variable which holds a counter used for the "Numbers Nodes". */
     private Variable m_countVariable;
 
+    /** Variable which counts down the input left in a fixed length "Numbers Node". */
+    private Variable m_countdownVariable;
+
     /** Variable which holds the input value. */
     private Variable m_inputVariable;
 
@@ -44,6 +60,9 @@ public class StateModel implements IModel
     /** Counter for creating unique node names. */
     private int m_stateIndex;
 
+    /** True if repeated sub-graphs may be shared as subroutines. */
+    private boolean m_shareSubroutines = true;
+
     /**
      * Construct the model.
      * 
@@ -130,6 +149,21 @@ public class StateModel implements IModel
         return m_countVariable;
     }
 
+    /**
+     * @return the variable used to count down the input left in a fixed length field.
+     * It will be created on demand when this method is called.
+     */
+    public Variable getCountdownVariable()
+    {
+        if (m_countdownVariable == null)
+        {
+            String name = m_modelName + "_countdown";
+            m_countdownVariable = new Variable(name, SymbolOwnership.INTERNAL, Variable.ACCESS_BANK, 1);
+            addVariable(m_countdownVariable);
+        }
+        return m_countdownVariable;
+    }
+
     /**
      * @param v the variable that will contain input to the state engine.
      * @throws IllegalStateException if the variable has already been set.
@@ -176,6 +210,53 @@ public class StateModel implements IModel
         return m_variablesByName.values();
     }
 
+    /**
+     * @return all nodes, each once, although a merged node is registered under
+     *         more than one name.
+     */
+    @Override
+    public Collection<Node> getNodes()
+    {
+        return new LinkedHashSet<Node>(m_nodesByName.values());
+    }
+
+    /**
+     * Divide the values of the input variable into classes that every transition
+     * treats alike. A transition that accepts a range of the input accepts all or
+     * none of each class. Classes are numbered from zero in order of value.
+     * 
+     * @return the class of each byte value.
+     */
+    @Override
+    public int[] getInputClasses()
+    {
+        boolean[] starts = new boolean[BYTE_VALUES + 1];
+        for (Node node : getNodes())
+        {
+            for (Transition t : node.getTransitions())
+            {
+                int[] range = t.getAcceptedRange(m_inputVariable);
+                if (range != null)
+                {
+                    starts[range[0]] = true;
+                    starts[range[1] + 1] = true;
+                }
+            }
+        }
+
+        int[] classes = new int[BYTE_VALUES];
+        int inputClass = 0;
+        for (int value = 1; value < BYTE_VALUES; value++)
+        {
+            if (starts[value])
+            {
+                inputClass++;
+            }
+            classes[value] = inputClass;
+        }
+        return classes;
+    }
+
     /**
      * @return the Initial State, creating one if needed.
      */
@@ -200,13 +281,98 @@ public class StateModel implements IModel
     }
 
     /**
-     * Perform any optimisation of the now complete model.
+     * Perform any optimisation of the now complete model. Nodes that cannot be
+     * reached, and symbols that nothing uses, are removed first. Equivalent
+     * states are merged next. The name of a merged state stays registered for
+     * the state that replaces it, so gosub commands naming it still find a node.
+     * Repeated sub-graphs are shared later by {@link #shareSubroutines(ISubroutineCosts)},
+     * once the builder is known.
      */
     public void optimiseModel()
     {
+        removeUnused();
+
+        Map<Node, Boolean> nodes = new IdentityHashMap<Node, Boolean>();
+        for (Node node : m_nodesByName.values())
+        {
+            nodes.put(node, Boolean.TRUE);
+        }
+        Map<String, Node> merged = new StateMinimiser(this, nodes.keySet()).minimise();
+        m_nodesByName.putAll(merged);
+        if (!merged.isEmpty())
+        {
+            m_log.info(String.format("Model %s: merged %d equivalent states, leaving %d.",
+                    m_modelName, merged.size(), nodes.size() - merged.size()));
+        }
+
         m_rootNode.setSharedEntryCodeOnMultipleEntryNodes(new HashSet<String>());
     }
 
+    /**
+     * Share repeated sub-graphs as subroutines where the builder finds it better,
+     * unless turned off by {@link #setShareSubroutines(boolean)}, and remove the
+     * copies no longer used. Call after {@link #optimiseModel()} and before the
+     * builder plans or visits the model.
+     * 
+     * @param costs costs of the builder that will output the model.
+     */
+    public void shareSubroutines(final ISubroutineCosts costs)
+    {
+        if (!m_shareSubroutines)
+        {
+            return;
+        }
+        SubroutineExtractor extractor = new SubroutineExtractor(this, costs);
+        int subroutines = extractor.extract();
+        if (subroutines > 0)
+        {
+            m_nodesByName.values().removeAll(extractor.getUnusedNodes());
+            m_rootNode.setSharedEntryCodeOnMultipleEntryNodes(new HashSet<String>());
+            m_log.info(String.format("Model %s: shared %d repeated sub-graphs as subroutines,"
+                    + " saving about %d words.", m_modelName, subroutines, extractor.getWordsSaved()));
+        }
+    }
+
+    /**
+     * Remove the nodes that cannot be reached from the root node, and the
+     * variables and ROM locations that the module declares or imports but that no
+     * reachable node uses.
+     */
+    private void removeUnused()
+    {
+        ModelPruner pruner = new ModelPruner(this);
+        Set<Node> nodes = pruner.getUnusedNodes(m_nodesByName.values());
+        List<Variable> variables = pruner.getUnusedVariables(m_variablesByName.values());
+        List<RomLocation> locations = pruner.getUnusedRomLocations(m_externalRom);
+        if (nodes.isEmpty() && variables.isEmpty() && locations.isEmpty())
+        {
+            return;
+        }
+
+        m_nodesByName.values().removeAll(nodes);
+        int bytes = 0;
+        for (Variable v : variables)
+        {
+            m_variablesByName.remove(v.getName());
+            if (v.isMustDeclareStorage())
+            {
+                bytes += v.getSize();
+            }
+        }
+        if (variables.contains(m_countVariable))
+        {
+            m_countVariable = null;
+        }
+        if (variables.contains(m_countdownVariable))
+        {
+            m_countdownVariable = null;
+        }
+        m_externalRom.removeAll(locations);
+        m_log.info(String.format("Model %s: removed %d unreachable nodes, %d unused variables of"
+                + " %d bytes and %d unused ROM locations.", m_modelName, nodes.size(),
+                variables.size(), bytes, locations.size()));
+    }
+
     /**
      * Visit the model.
      * 
@@ -288,6 +454,133 @@ public class StateModel implements IModel
         return false;
     }
 
+    @Override
+    public int getSubroutineStackDepth()
+    {
+        int maxDepth = 0;
+        for (int depth : getSubroutineStackDepths().values())
+        {
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        return maxDepth;
+    }
+
+    /**
+     * Find how deep the subroutine stack can be as each node runs. Nodes reached
+     * from the root node by transitions run with an empty stack. A subroutine runs
+     * one deeper than the deepest node that calls it, as do the nodes it reaches by
+     * transitions. A transition from a subroutine to a node reached from the root
+     * node abandons the subroutine, so that node does not run any deeper.
+     * 
+     * @return the depth of the stack by node, for the nodes that run inside a
+     *         subroutine.
+     * @throws IllegalStateException if a subroutine can call itself, so the stack
+     *             has no limit.
+     */
+    @Override
+    public Map<Node, Integer> getSubroutineStackDepths()
+    {
+        Set<Node> topLevel = findNodesByTransition(m_rootNode, Collections.<Node> emptySet());
+        Map<Node, Set<Node>> callers = new IdentityHashMap<Node, Set<Node>>();
+        for (Node node : m_nodesByName.values())
+        {
+            List<Command> commands = new ArrayList<Command>(node.getEntryCommands());
+            commands.addAll(node.getExitCommands());
+            for (Transition t : node.getTransitions())
+            {
+                commands.addAll(t.getCommands());
+            }
+            for (Command c : commands)
+            {
+                Node target = c instanceof GosubCommand ? getNode(c.getTargetNode()) : null;
+                if (target == null)
+                {
+                    continue;
+                }
+                Set<Node> nodes = callers.get(target);
+                if (nodes == null)
+                {
+                    nodes = new HashSet<Node>();
+                    callers.put(target, nodes);
+                }
+                nodes.add(node);
+            }
+        }
+
+        Map<Node, Set<Node>> bodies = new IdentityHashMap<Node, Set<Node>>();
+        for (Node subroutine : callers.keySet())
+        {
+            bodies.put(subroutine, findNodesByTransition(subroutine, topLevel));
+        }
+
+        Map<Node, Integer> depths = new IdentityHashMap<Node, Integer>();
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (Map.Entry<Node, Set<Node>> subroutine : callers.entrySet())
+            {
+                int depth = 0;
+                for (Node caller : subroutine.getValue())
+                {
+                    depth = Math.max(depth, getDepth(depths, caller));
+                }
+                depth++;
+                if (depth > callers.size())
+                {
+                    throw new IllegalStateException(String.format(
+                            "Model %s: subroutine %s can call itself, so its stack has no limit.",
+                            m_modelName, subroutine.getKey().getStateName()));
+                }
+                for (Node node : bodies.get(subroutine.getKey()))
+                {
+                    if (getDepth(depths, node) < depth)
+                    {
+                        depths.put(node, depth);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * @return the depth of the subroutine stack when the node runs, as found so
+     *         far.
+     */
+    private static int getDepth(final Map<Node, Integer> depths, final Node node)
+    {
+        Integer depth = depths.get(node);
+        return depth == null ? 0 : depth;
+    }
+
+    /**
+     * @param start node to start from.
+     * @param stop nodes not to enter.
+     * @return the start node and the nodes reached from it by transitions, without
+     *         entering the stop nodes.
+     */
+    private Set<Node> findNodesByTransition(final Node start, final Set<Node> stop)
+    {
+        Set<Node> found = new HashSet<Node>();
+        LinkedList<Node> queue = new LinkedList<Node>();
+        found.add(start);
+        queue.add(start);
+        while (!queue.isEmpty())
+        {
+            for (Transition t : queue.removeFirst().getTransitions())
+            {
+                Node target = t.getNode(this);
+                if (target != null && !stop.contains(target) && found.add(target))
+                {
+                    queue.add(target);
+                }
+            }
+        }
+        return found;
+    }
+
     /**
      * Set the Initial Node for the model. This is the default node that each
      * node will return to if none of its transitions match.
@@ -299,6 +592,17 @@ public class StateModel implements IModel
         m_rootNode = node;
     }
 
+    /**
+     * Set whether {@link #shareSubroutines(ISubroutineCosts)} may share repeated
+     * sub-graphs as subroutines. The default is true.
+     * 
+     * @param share false to leave repeated sub-graphs as they are.
+     */
+    public void setShareSubroutines(final boolean share)
+    {
+        m_shareSubroutines = share;
+    }
+
     /**
      * Locate the ROM location with the given name.
      * 
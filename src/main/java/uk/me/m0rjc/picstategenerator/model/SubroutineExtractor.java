@@ -0,0 +1,874 @@
+package uk.me.m0rjc.picstategenerator.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.me.m0rjc.picstategenerator.visitor.ISubroutineCosts;
+
+/**
+ * Share repeated sub-graphs of a model as subroutines. Two sub-graphs repeat if
+ * their nodes pair up with equal entry code, entry preconditions, exit code and
+ * transitions, each pair of transitions going to paired nodes, to the same node
+ * or to the exit of its own sub-graph. The exits differ, otherwise the states
+ * would have been merged. A sub-graph is only entered at its first node.
+ *
+ * <p>The first copy is kept as the subroutine. Its transitions to its exit go
+ * instead to a new node that returns from the subroutine. Each transition that
+ * entered a copy makes a gosub to the subroutine and then goes on to the exit of
+ * that copy. The other copies are no longer used.</p>
+ *
+ * <p>A sub-graph may not use the subroutine stack and no transition may call the
+ * subroutine where a return from another subroutine could follow, so the stack
+ * does not grow deeper. A stack of one return is the cheapest to save and
+ * restore.</p>
+ *
+ * <p>Program memory is estimated from the transitions, preconditions and
+ * commands, using the cost of going to a node and the size of a return given by
+ * the builder's {@link ISubroutineCosts}. A sub-graph is shared if its copies
+ * cost more than the calls, the return and, for the first subroutine, the RAM
+ * of the stack. The builder then weighs the words saved against the cycles each
+ * call adds.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+final class SubroutineExtractor
+{
+    /** Estimated words for each node, covering its fallback to the root node. */
+    private static final int NODE_WORDS = 3;
+
+    /** Estimated words to test a precondition. */
+    private static final int PRECONDITION_WORDS = 3;
+
+    /** Estimated words for a command. */
+    private static final int COMMAND_WORDS = 2;
+
+    /**
+     * Words for the return from the subroutine: a BANKSEL, then the return read
+     * into PCLATU, PCLATH and PCL.
+     */
+    private static final int RETURN_WORDS = 6;
+
+    /** Cycles for the return from the subroutine. */
+    private static final int RETURN_CYCLES = 7;
+
+    /** Most transitions compared when matching two sub-graphs. */
+    private static final int MAX_MATCH_STEPS = 2000;
+
+    /** The model. */
+    private final StateModel m_model;
+
+    /** Costs of the builder, which weighs words against cycles. */
+    private final ISubroutineCosts m_costs;
+
+    /** Words and cycles to set the state and return. */
+    private final int m_goToNodeCost;
+
+    /** Words and cycles to save a return on a stack of one return. */
+    private final int m_saveReturnCost;
+
+    /** Bytes of RAM for a stack of one return. */
+    private final int m_stackBytes;
+
+    /** Nodes of copies replaced by a subroutine. */
+    private final Set<Node> m_unusedNodes = newNodeSet();
+
+    /** Estimated words saved. */
+    private int m_wordsSaved;
+
+    /** Nodes reachable from the root node, the root node first. */
+    private List<Node> m_nodes;
+
+    /** Transitions to each node. */
+    private Map<Node, List<Transition>> m_entries;
+
+    /** Node each transition leaves. */
+    private Map<Transition, Node> m_sources;
+
+    /** Transitions belonging to more than one node, which may not be changed. */
+    private Set<Transition> m_sharedTransitions;
+
+    /** Nodes named by commands, such as the target of a gosub. */
+    private Set<Node> m_namedNodes;
+
+    /** Nodes from which a return from subroutine may follow. */
+    private Set<Node> m_returningNodes;
+
+    /** What must be equal for two nodes to pair up, by node. */
+    private Map<Node, Object> m_signatures;
+
+    /** Transitions compared by the current match. */
+    private int m_steps;
+
+    /**
+     * @param model the model.
+     * @param costs costs of the builder that will output the model.
+     */
+    public SubroutineExtractor(final StateModel model, final ISubroutineCosts costs)
+    {
+        m_model = model;
+        m_costs = costs;
+        m_goToNodeCost = costs.getGoToNodeCost(model);
+        // A MOVLW and MOVWF for each byte of the return.
+        m_saveReturnCost = 2 * costs.getReturnSize();
+        m_stackBytes = costs.getReturnSize();
+    }
+
+    /**
+     * Share repeated sub-graphs until none is found that the builder finds
+     * better shared.
+     *
+     * @return the number of subroutines made.
+     */
+    public int extract()
+    {
+        // If a word saved for nothing is not better then nothing is.
+        if (m_costs.getSharingBenefit(1, 0) <= 0)
+        {
+            return 0;
+        }
+        int subroutines = 0;
+        while (true)
+        {
+            analyse();
+            List<Copy> best = null;
+            int bestBenefit = 0;
+            int bestWords = 0;
+            for (List<Node> group : groupBySignature())
+            {
+                for (int i = 0; i < group.size() - 1; i++)
+                {
+                    List<Copy> copies = findCopies(group, i);
+                    if (copies == null)
+                    {
+                        continue;
+                    }
+                    int words = estimateWordsSaved(copies);
+                    int benefit = getBenefit(copies, words);
+                    if (benefit > bestBenefit)
+                    {
+                        best = copies;
+                        bestBenefit = benefit;
+                        bestWords = words;
+                    }
+                }
+            }
+            if (best == null)
+            {
+                return subroutines;
+            }
+            share(best);
+            m_wordsSaved += bestWords;
+            subroutines++;
+        }
+    }
+
+    /**
+     * @return the nodes of copies replaced by a subroutine.
+     */
+    public Set<Node> getUnusedNodes()
+    {
+        return m_unusedNodes;
+    }
+
+    /**
+     * @return the estimated words of program memory saved.
+     */
+    public int getWordsSaved()
+    {
+        return m_wordsSaved;
+    }
+
+    /**
+     * Find the nodes in use and how they are entered.
+     */
+    private void analyse()
+    {
+        m_nodes = findReachableNodes();
+        m_entries = new IdentityHashMap<Node, List<Transition>>();
+        m_sources = new IdentityHashMap<Transition, Node>();
+        m_sharedTransitions = Collections.newSetFromMap(new IdentityHashMap<Transition, Boolean>());
+        m_namedNodes = newNodeSet();
+        m_signatures = new IdentityHashMap<Node, Object>();
+        Set<Node> returns = newNodeSet();
+        for (Node node : m_nodes)
+        {
+            addNamedNodes(node.getEntryCommands());
+            addNamedNodes(node.getExitCommands());
+            for (Transition t : node.getTransitions())
+            {
+                addNamedNodes(t.getCommands());
+                if (m_sources.put(t, node) != null)
+                {
+                    m_sharedTransitions.add(t);
+                }
+                Node target = t.getNode(m_model);
+                if (target != null)
+                {
+                    List<Transition> entries = m_entries.get(target);
+                    if (entries == null)
+                    {
+                        entries = new ArrayList<Transition>();
+                        m_entries.put(target, entries);
+                    }
+                    entries.add(t);
+                }
+                if (hasReturn(t.getCommands()))
+                {
+                    returns.add(node);
+                }
+            }
+            if (hasReturn(node.getEntryCommands()) || hasReturn(node.getExitCommands()))
+            {
+                returns.add(node);
+            }
+        }
+        m_returningNodes = findReturningNodes(returns);
+    }
+
+    /**
+     * @return the nodes reachable from the root node by transitions and commands,
+     *         the root node first and the others by name.
+     */
+    private List<Node> findReachableNodes()
+    {
+        final Node root = m_model.getInitialState();
+        Set<Node> seen = newNodeSet();
+        LinkedList<Node> queue = new LinkedList<Node>();
+        seen.add(root);
+        queue.add(root);
+        while (!queue.isEmpty())
+        {
+            Node node = queue.removeFirst();
+            List<String> targets = new ArrayList<String>();
+            addTargetNames(node.getEntryCommands(), targets);
+            addTargetNames(node.getExitCommands(), targets);
+            for (Transition t : node.getTransitions())
+            {
+                targets.add(t.getTargetNodeName());
+                addTargetNames(t.getCommands(), targets);
+            }
+            for (String name : targets)
+            {
+                Node target = m_model.getNode(name);
+                if (target != null && seen.add(target))
+                {
+                    queue.add(target);
+                }
+            }
+        }
+
+        List<Node> nodes = new ArrayList<Node>(seen);
+        Collections.sort(nodes, new Comparator<Node>()
+        {
+            @Override
+            public int compare(final Node a, final Node b)
+            {
+                if (a == b)
+                {
+                    return 0;
+                }
+                if (a == root || b == root)
+                {
+                    return a == root ? -1 : 1;
+                }
+                return a.getStateName().compareTo(b.getStateName());
+            }
+        });
+        return nodes;
+    }
+
+    /**
+     * @return the given nodes and every node with transitions leading to them. If
+     *         that includes the root node then it is every node, as any node may
+     *         fall back to the root node.
+     */
+    private Set<Node> findReturningNodes(final Set<Node> returns)
+    {
+        Set<Node> returning = newNodeSet();
+        returning.addAll(returns);
+        LinkedList<Node> queue = new LinkedList<Node>(returns);
+        while (!queue.isEmpty())
+        {
+            List<Transition> entries = m_entries.get(queue.removeFirst());
+            if (entries == null)
+            {
+                continue;
+            }
+            for (Transition t : entries)
+            {
+                Node source = m_sources.get(t);
+                if (returning.add(source))
+                {
+                    queue.add(source);
+                }
+            }
+        }
+        if (returning.contains(m_model.getInitialState()))
+        {
+            returning.addAll(m_nodes);
+        }
+        return returning;
+    }
+
+    /**
+     * @return nodes that could start a sub-graph, in groups that could pair up.
+     */
+    private Iterable<List<Node>> groupBySignature()
+    {
+        Map<Object, List<Node>> groups = new LinkedHashMap<Object, List<Node>>();
+        for (Node node : m_nodes)
+        {
+            if (node == m_model.getInitialState() || !node.hasTransitions()
+                    || m_namedNodes.contains(node) || m_returningNodes.contains(node))
+            {
+                continue;
+            }
+            Object signature = getSignature(node);
+            List<Node> group = groups.get(signature);
+            if (group == null)
+            {
+                group = new ArrayList<Node>();
+                groups.put(signature, group);
+            }
+            group.add(node);
+        }
+        return groups.values();
+    }
+
+    /**
+     * @return what must be equal for the node to pair up with another, apart from
+     *         where its transitions go.
+     */
+    private Object getSignature(final Node node)
+    {
+        Object signature = m_signatures.get(node);
+        if (signature == null)
+        {
+            List<Object> transitions = new ArrayList<Object>();
+            for (Transition t : node.getTransitions())
+            {
+                transitions.add(Arrays.<Object> asList(t.getPreconditions(), t.getCommands(),
+                        t.isIgnoreTargetNodeEntry()));
+            }
+            signature = Arrays.<Object> asList(node.getEntryCommands(), node.getEntryPreconditions(),
+                    node.getExitCommands(), transitions);
+            m_signatures.put(node, signature);
+        }
+        return signature;
+    }
+
+    /**
+     * Find the copies of the sub-graph starting at a node of the group among the
+     * nodes after it.
+     *
+     * @param group nodes that could pair up.
+     * @param first position of the first node in the group.
+     * @return the copies, the first being the one to keep, or null if fewer than
+     *         two copies could be shared.
+     */
+    private List<Copy> findCopies(final List<Node> group, final int first)
+    {
+        List<Copy> copies = new ArrayList<Copy>();
+        for (int i = first + 1; i < group.size(); i++)
+        {
+            Match match = match(group.get(first), group.get(i));
+            if (match == null)
+            {
+                continue;
+            }
+            Copy shared = new Copy(group.get(first), match.m_pairs.keySet(), match.m_exit);
+            Copy other = new Copy(group.get(i), match.m_otherNodes, match.m_otherExit);
+            if (!isEntered(shared) || !isEntered(other))
+            {
+                continue;
+            }
+            if (copies.isEmpty())
+            {
+                copies.add(shared);
+            }
+            else if (shared.m_exit != copies.get(0).m_exit || !shared.m_nodes.equals(copies.get(0).m_nodes))
+            {
+                continue;
+            }
+            if (isSeparate(copies, other))
+            {
+                copies.add(other);
+            }
+        }
+        return copies.size() < 2 ? null : copies;
+    }
+
+    /**
+     * Pair up the sub-graphs starting at two nodes, taking as much as possible into
+     * the sub-graphs.
+     *
+     * @return the match, or null if there is none.
+     */
+    private Match match(final Node first, final Node second)
+    {
+        Match match = new Match();
+        if (!match.pair(first, second))
+        {
+            return null;
+        }
+        m_steps = 0;
+        return extend(match);
+    }
+
+    /**
+     * Compare the transitions waiting in the match. Where a pair of transitions
+     * goes to two different unpaired nodes and no exit has been found, the nodes are
+     * first paired and, if that fails, taken as the exits.
+     *
+     * @return the completed match, or null if the sub-graphs do not repeat.
+     */
+    private Match extend(final Match match)
+    {
+        while (!match.m_queue.isEmpty())
+        {
+            if (++m_steps > MAX_MATCH_STEPS)
+            {
+                return null;
+            }
+            Transition[] pair = match.m_queue.removeFirst();
+            Node a = pair[0].getNode(m_model);
+            Node b = pair[1].getNode(m_model);
+            if (a == null || b == null)
+            {
+                if (a != b || !pair[0].getTargetNodeName().equals(pair[1].getTargetNodeName()))
+                {
+                    return null;
+                }
+            }
+            else if (match.m_pairs.containsKey(a))
+            {
+                if (match.m_pairs.get(a) != b)
+                {
+                    return null;
+                }
+            }
+            else if (a == b)
+            {
+                if (!match.addOutside(a))
+                {
+                    return null;
+                }
+            }
+            else if (a == match.m_exit && b == match.m_otherExit)
+            {
+                if (pair[0].isIgnoreTargetNodeEntry())
+                {
+                    return null;
+                }
+            }
+            else if (match.m_exit == null)
+            {
+                Match paired = match.copy();
+                if (paired.pair(a, b))
+                {
+                    Match result = extend(paired);
+                    if (result != null)
+                    {
+                        return result;
+                    }
+                    if (m_steps > MAX_MATCH_STEPS)
+                    {
+                        return null;
+                    }
+                }
+                if (!match.setExit(a, b, pair[0]))
+                {
+                    return null;
+                }
+            }
+            else if (!match.pair(a, b))
+            {
+                return null;
+            }
+        }
+        return match.m_exit == null ? null : match;
+    }
+
+    /**
+     * Is the copy only entered at its first node, from nodes where no return from
+     * subroutine can follow, and free of the subroutine stack?
+     */
+    private boolean isEntered(final Copy copy)
+    {
+        int calls = 0;
+        for (Node node : copy.m_nodes)
+        {
+            if (m_namedNodes.contains(node) || m_returningNodes.contains(node) || node.requiresSubroutineStack())
+            {
+                return false;
+            }
+            for (Transition t : node.getTransitions())
+            {
+                if (m_sharedTransitions.contains(t))
+                {
+                    return false;
+                }
+            }
+            for (Transition t : getEntries(node))
+            {
+                Node source = m_sources.get(t);
+                if (copy.m_nodes.contains(source))
+                {
+                    continue;
+                }
+                if (node != copy.m_entry || t.isIgnoreTargetNodeEntry() || m_sharedTransitions.contains(t)
+                        || m_returningNodes.contains(source))
+                {
+                    return false;
+                }
+                calls++;
+            }
+        }
+        return calls > 0;
+    }
+
+    /**
+     * Does the copy share no node with the copies already found, including their
+     * exits and the nodes that call them?
+     */
+    private boolean isSeparate(final List<Copy> copies, final Copy other)
+    {
+        for (Copy copy : copies)
+        {
+            for (Node node : other.m_nodes)
+            {
+                if (copy.m_nodes.contains(node))
+                {
+                    return false;
+                }
+            }
+            if (other.m_nodes.contains(copy.m_exit) || copy.m_nodes.contains(other.m_exit))
+            {
+                return false;
+            }
+            for (Transition t : getCalls(copy))
+            {
+                if (other.m_nodes.contains(m_sources.get(t)))
+                {
+                    return false;
+                }
+            }
+            for (Transition t : getCalls(other))
+            {
+                if (copy.m_nodes.contains(m_sources.get(t)))
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return estimated words saved by sharing the copies, less the cost of the
+     *         calls, the return and, if the model has no subroutine stack yet, the
+     *         RAM of the stack.
+     */
+    private int estimateWordsSaved(final List<Copy> copies)
+    {
+        int words = 0;
+        for (Node node : copies.get(0).m_nodes)
+        {
+            words += NODE_WORDS + COMMAND_WORDS * node.getEntryCommands().size();
+            for (Transition t : node.getTransitions())
+            {
+                int preconditions = t.getPreconditions().size();
+                Node target = t.getNode(m_model);
+                if (target != null && !t.isIgnoreTargetNodeEntry())
+                {
+                    preconditions += target.getEntryPreconditions().size();
+                }
+                int commands = t.getCommands().size() + node.getExitCommands().size();
+                words += PRECONDITION_WORDS * preconditions + COMMAND_WORDS * commands + m_goToNodeCost;
+            }
+        }
+        // Each call saves its return, and goes on to the exit of its copy after the return.
+        int saved = words * (copies.size() - 1) - (m_saveReturnCost + m_goToNodeCost) * countCalls(copies)
+                - RETURN_WORDS;
+        return m_model.requiresSubroutineStack() ? saved : saved - m_stackBytes;
+    }
+
+    /**
+     * @param copies copies of a sub-graph.
+     * @param words estimated words saved by sharing them.
+     * @return how much better sharing the copies is by the builder, or 0 or less
+     *         if it is not better.
+     */
+    private int getBenefit(final List<Copy> copies, final int words)
+    {
+        // Each call runs the save and the return as well as the shared code.
+        return m_costs.getSharingBenefit(words, countCalls(copies) * (m_saveReturnCost + RETURN_CYCLES));
+    }
+
+    /**
+     * @return the number of transitions calling the copies.
+     */
+    private int countCalls(final List<Copy> copies)
+    {
+        int calls = 0;
+        for (Copy copy : copies)
+        {
+            calls += getCalls(copy).size();
+        }
+        return calls;
+    }
+
+    /**
+     * Keep the first copy as a subroutine and call it in place of each copy.
+     */
+    private void share(final List<Copy> copies)
+    {
+        Copy shared = copies.get(0);
+        Node returnNode = m_model.createNode();
+        returnNode.addEntryCommand(new ReturnFromSubroutineCommand());
+        for (Node node : shared.m_nodes)
+        {
+            for (Transition t : node.getTransitions())
+            {
+                if (t.getNode(m_model) == shared.m_exit)
+                {
+                    t.goTo(returnNode);
+                }
+            }
+        }
+
+        for (Copy copy : copies)
+        {
+            for (Transition t : getCalls(copy))
+            {
+                for (Precondition p : copy.m_entry.getEntryPreconditions())
+                {
+                    t.when(p);
+                }
+                t.doCommand(new GosubCommand(shared.m_entry.getStateName()));
+                t.goTo(copy.m_exit);
+            }
+            if (copy != shared)
+            {
+                m_unusedNodes.addAll(copy.m_nodes);
+            }
+        }
+    }
+
+    /**
+     * @return the transitions entering the copy from outside.
+     */
+    private List<Transition> getCalls(final Copy copy)
+    {
+        List<Transition> calls = new ArrayList<Transition>();
+        for (Transition t : getEntries(copy.m_entry))
+        {
+            if (!copy.m_nodes.contains(m_sources.get(t)))
+            {
+                calls.add(t);
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * @return the transitions to the node.
+     */
+    private List<Transition> getEntries(final Node node)
+    {
+        List<Transition> entries = m_entries.get(node);
+        return entries == null ? Collections.<Transition> emptyList() : entries;
+    }
+
+    /**
+     * Note the nodes named by the commands.
+     */
+    private void addNamedNodes(final List<Command> commands)
+    {
+        for (Command c : commands)
+        {
+            Node target = c.getTargetNode() == null ? null : m_model.getNode(c.getTargetNode());
+            if (target != null)
+            {
+                m_namedNodes.add(target);
+            }
+        }
+    }
+
+    /**
+     * Add the names of the nodes named by the commands to the list.
+     */
+    private static void addTargetNames(final List<Command> commands, final List<String> names)
+    {
+        for (Command c : commands)
+        {
+            if (c.getTargetNode() != null)
+            {
+                names.add(c.getTargetNode());
+            }
+        }
+    }
+
+    /**
+     * @return true if any of the commands returns from a subroutine.
+     */
+    private static boolean hasReturn(final List<Command> commands)
+    {
+        for (Command c : commands)
+        {
+            if (c instanceof ReturnFromSubroutineCommand)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a set of nodes compared by identity.
+     */
+    private static Set<Node> newNodeSet()
+    {
+        return Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    }
+
+    /**
+     * One copy of a repeated sub-graph.
+     */
+    private static final class Copy
+    {
+        /** The node that starts the sub-graph. */
+        private final Node m_entry;
+
+        /** The nodes of the sub-graph. */
+        private final Set<Node> m_nodes;
+
+        /** The node the sub-graph leaves for. */
+        private final Node m_exit;
+
+        /**
+         * @param entry the node that starts the sub-graph.
+         * @param nodes the nodes of the sub-graph.
+         * @param exit the node the sub-graph leaves for.
+         */
+        private Copy(final Node entry, final Set<Node> nodes, final Node exit)
+        {
+            m_entry = entry;
+            m_nodes = nodes;
+            m_exit = exit;
+        }
+    }
+
+    /**
+     * Two sub-graphs paired up so far.
+     */
+    private final class Match
+    {
+        /** Node of the second sub-graph paired with each node of the first. */
+        private final Map<Node, Node> m_pairs = new IdentityHashMap<Node, Node>();
+
+        /** Nodes of the second sub-graph. */
+        private final Set<Node> m_otherNodes = newNodeSet();
+
+        /** Nodes outside both sub-graphs that both go to. */
+        private final Set<Node> m_outside = newNodeSet();
+
+        /** Pairs of transitions waiting to be compared. */
+        private final LinkedList<Transition[]> m_queue = new LinkedList<Transition[]>();
+
+        /** The exit of the first sub-graph, or null if none found yet. */
+        private Node m_exit;
+
+        /** The exit of the second sub-graph. */
+        private Node m_otherExit;
+
+        /**
+         * @return a copy that can be extended without changing this one.
+         */
+        private Match copy()
+        {
+            Match copy = new Match();
+            copy.m_pairs.putAll(m_pairs);
+            copy.m_otherNodes.addAll(m_otherNodes);
+            copy.m_outside.addAll(m_outside);
+            copy.m_queue.addAll(m_queue);
+            copy.m_exit = m_exit;
+            copy.m_otherExit = m_otherExit;
+            return copy;
+        }
+
+        /**
+         * Pair up two nodes, queueing their transitions to be compared.
+         *
+         * @return false if the nodes cannot be paired.
+         */
+        private boolean pair(final Node a, final Node b)
+        {
+            if (a == b || a == m_model.getInitialState() || b == m_model.getInitialState()
+                    || isUsed(a) || isUsed(b) || !getSignature(a).equals(getSignature(b)))
+            {
+                return false;
+            }
+            m_pairs.put(a, b);
+            m_otherNodes.add(b);
+            List<Transition> transitions = a.getTransitions();
+            List<Transition> others = b.getTransitions();
+            for (int i = 0; i < transitions.size(); i++)
+            {
+                m_queue.add(new Transition[] {transitions.get(i), others.get(i)});
+            }
+            return true;
+        }
+
+        /**
+         * Note a node outside both sub-graphs that both go to.
+         *
+         * @return false if the node is in one of the sub-graphs.
+         */
+        private boolean addOutside(final Node node)
+        {
+            if (m_pairs.containsKey(node) || m_otherNodes.contains(node) || node == m_exit
+                    || node == m_otherExit)
+            {
+                return false;
+            }
+            m_outside.add(node);
+            return true;
+        }
+
+        /**
+         * Take two nodes as the exits of the sub-graphs.
+         *
+         * @param transition a transition to the exit of the first sub-graph.
+         * @return false if they cannot be the exits.
+         */
+        private boolean setExit(final Node a, final Node b, final Transition transition)
+        {
+            if (isUsed(a) || isUsed(b) || transition.isIgnoreTargetNodeEntry()
+                    || !a.getEntryPreconditions().isEmpty() || !b.getEntryPreconditions().isEmpty())
+            {
+                return false;
+            }
+            m_exit = a;
+            m_otherExit = b;
+            return true;
+        }
+
+        /**
+         * @return true if the node is already in a sub-graph, an exit or outside.
+         */
+        private boolean isUsed(final Node node)
+        {
+            return m_pairs.containsKey(node) || m_otherNodes.contains(node) || m_outside.contains(node)
+                    || node == m_exit || node == m_otherExit;
+        }
+    }
+}
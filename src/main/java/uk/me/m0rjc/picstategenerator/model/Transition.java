@@ -1,6 +1,7 @@
 package uk.me.m0rjc.picstategenerator.model;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -16,6 +17,9 @@ import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
  */
 public class Transition
 {
+	/** Largest value of a byte variable. */
+	private static final int MAX_BYTE_VALUE = 255;
+	
 	/** One of targetNamedNode or targetNode will be set on construction to say where we're going */
 	private String m_targetNamedNode;
 	/** Additional preconditions to allow entry to this transition */
@@ -98,6 +102,24 @@ public class Transition
 		return m_targetNamedNode;
 	}
 	
+	/** Return the preconditions of this transition. */
+	List<Precondition> getPreconditions()
+	{
+		return m_preconditions;
+	}
+
+	/** Return the commands performed on this transition. */
+	List<Command> getCommands()
+	{
+		return m_transitionCommands;
+	}
+
+	/** Does this transition ignore entry conditions and actions on the target node? */
+	boolean isIgnoreTargetNodeEntry()
+	{
+		return m_ignoreTargetNodeEntry;
+	}
+
 	/**
 	 * Add a command to be performed on transition
 	 * @param c
@@ -114,31 +136,63 @@ public class Transition
 	 * @param visitor
 	 */
 	public void accept(StateModel model, IModelVisitor visitor)
+	{
+		accept(model, Collections.<Command>emptyList(), visitor);
+	}
+	
+	/**
+	 * Visit this transition, running the given commands before its own once its
+	 * preconditions are met. Does not recurse into the Node
+	 * @param exitCommands exit commands of the node being left.
+	 * @param visitor
+	 */
+	public void accept(StateModel model, List<Command> exitCommands, IModelVisitor visitor)
+	{
+		accept(model, exitCommands, 0, visitor);
+	}
+
+	/**
+	 * Visit this transition, leaving out leading preconditions that have already
+	 * been tested by the enclosing code block. Does not recurse into the Node
+	 * @param exitCommands exit commands of the node being left.
+	 * @param testedPreconditions number of leading preconditions of
+	 *        {@link #getAllPreconditions(StateModel)} already tested.
+	 * @param visitor
+	 */
+	void accept(StateModel model, List<Command> exitCommands, int testedPreconditions, IModelVisitor visitor)
 	{
 		visitor.visitTransition(this);
-		for(Precondition p : m_preconditions)
+		List<Precondition> preconditions = getAllPreconditions(model);
+		for(Precondition p : preconditions.subList(testedPreconditions, preconditions.size()))
 		{
 			p.accept(visitor);
 		}
-		
-		Node node = getNode(model);		
-		if(!m_ignoreTargetNodeEntry)
-		{
-			for(Precondition p : node.getEntryPreconditions())
-			{
-				p.accept(visitor);
-			}
-		}
 
-		for(Command c : m_transitionCommands)
-		{
-			c.accept(model, visitor);
-		}
+		Node node = getNode(model);
+		List<Command> commands = new ArrayList<Command>(exitCommands);
+		commands.addAll(m_transitionCommands);
+		Command.acceptAll(model, commands, visitor);
+
 		
 		node.renderGoToNode(visitor, m_ignoreTargetNodeEntry);
 		visitor.endTransition(this);
 	}
 	
+	/**
+	 * Return the preconditions tested when this transition is taken, including the
+	 * entry preconditions of the target node unless they are ignored, in the form
+	 * given by {@link Precondition#normalise(List)}.
+	 */
+	List<Precondition> getAllPreconditions(StateModel model)
+	{
+		List<Precondition> preconditions = new ArrayList<Precondition>(m_preconditions);
+		if(!m_ignoreTargetNodeEntry)
+		{
+			preconditions.addAll(getNode(model).getEntryPreconditions());
+		}
+		return Precondition.normalise(preconditions);
+	}
+
 	/**
 	 * True if this value depends on this variable and only this variable and accepts the given
 	 * input.
@@ -154,6 +208,28 @@ public class Transition
 		return true;
 	}
 
+	/**
+	 * Return the range of values of the given byte variable that this transition's own
+	 * preconditions accept.
+	 * @param variable variable in use, normally the input variable.
+	 * @return two element array holding the lowest and highest value accepted, or null
+	 *         if the preconditions do not test the variable or accept no value.
+	 */
+	public int[] getAcceptedRange(Variable variable)
+	{
+		int[] range = {0, MAX_BYTE_VALUE};
+		boolean tested = false;
+		for(Precondition p : m_preconditions)
+		{
+			if(p.narrowRange(variable, range)) tested = true;
+		}
+		if(!tested || range[0] > range[1])
+		{
+			return null;
+		}
+		return range;
+	}
+
 	/**
 	 * Set to ignore entry conditions and actions on the target node.
 	 * @return
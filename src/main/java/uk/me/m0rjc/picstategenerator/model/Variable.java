@@ -14,6 +14,8 @@ public class Variable
     private static final int SIZE_OF_BYTE = 8;
     /** Special value for access bank on PIC18. */
     public static final int ACCESS_BANK = -1;
+    /** Special value for a variable whose bank is chosen by an allocator. */
+    public static final int AUTO_BANK = -2;
 
     /**
      * Construct.
@@ -23,7 +25,7 @@ public class Variable
      * @param ownership
      *            policy for creating the variable.
      * @param bank
-     *            RAM bank it lives in, or {@value #ACCESS_BANK}
+     *            RAM bank it lives in, {@value #ACCESS_BANK} or {@value #AUTO_BANK}
      * @param size
      *            bytes to allocate.
      */
@@ -34,12 +36,14 @@ public class Variable
         m_bank = bank;
         m_size = size;
         m_ownership = ownership;
+        m_autoBank = bank == AUTO_BANK;
     }
 
     private String m_name;
     private SymbolOwnership m_ownership;
     private int m_bank;
     private int m_size;
+    private boolean m_autoBank;
     private List<String> m_flags = new ArrayList<String>();
 
     /** Eclipse generated HashCode method. */
@@ -228,6 +232,41 @@ public class Variable
         return m_bank;
     }
 
+    /**
+     * @return true if the bank for this variable is chosen by an allocator.
+     */
+    public boolean isAutoBank()
+    {
+        return m_autoBank;
+    }
+
+    /**
+     * @return true if the bank for this variable is chosen by an allocator
+     *         that has not yet run.
+     */
+    public boolean isAwaitingBank()
+    {
+        return m_bank == AUTO_BANK;
+    }
+
+    /**
+     * Set the bank chosen by an allocator.
+     * 
+     * @param bank
+     *            RAM bank, or {@value #ACCESS_BANK}
+     * @throws IllegalStateException
+     *             if the variable was not declared with {@value #AUTO_BANK}.
+     */
+    public void allocateBank(final int bank)
+    {
+        if (!m_autoBank)
+        {
+            throw new IllegalStateException("Variable " + m_name
+                    + " has a fixed location");
+        }
+        m_bank = bank;
+    }
+
     /**
      * @return true if there are flags defined for this variable.
      */
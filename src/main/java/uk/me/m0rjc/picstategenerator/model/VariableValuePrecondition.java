@@ -22,6 +22,12 @@ public class VariableValuePrecondition extends Precondition
 			{
 				return queryValue <= myValue;
 			}
+
+			@Override
+			void narrowRange(int myValue, int[] range)
+			{
+				range[1] = Math.min(range[1], myValue);
+			}
 		},
 		EQUAL
 		{
@@ -36,6 +42,13 @@ public class VariableValuePrecondition extends Precondition
 			{
 				return queryValue == myValue;
 			}
+
+			@Override
+			void narrowRange(int myValue, int[] range)
+			{
+				range[0] = Math.max(range[0], myValue);
+				range[1] = Math.min(range[1], myValue);
+			}
 		},
 		GREATER_THAN_OR_EQUAL
 		{
@@ -50,8 +63,17 @@ public class VariableValuePrecondition extends Precondition
 			{
 				return queryValue >= myValue;
 			}
+
+			@Override
+			void narrowRange(int myValue, int[] range)
+			{
+				range[0] = Math.max(range[0], myValue);
+			}
 		};
 
+		/** Narrow the inclusive range {low, high} to the values this condition accepts. */
+		abstract void narrowRange(int myValue, int[] range);
+
 		/** Visitor/Builder pattern accept method. */
 		abstract void accept(IModelVisitor visitor, Variable variable, int value);
 		
@@ -82,13 +104,56 @@ public class VariableValuePrecondition extends Precondition
 				variable, value);
 	}
 
+	@Override
+	Variable getVariable()
+	{
+		return m_variable;
+	}
+
 	@Override
 	public boolean accepts(Variable variable, int value)
 	{
 		return m_variable.equals(variable) && m_comparison.accepts(m_value, value);
 	}
 
+	@Override
+	public boolean narrowRange(Variable variable, int[] range)
+	{
+		if(m_variable.equals(variable))
+		{
+			m_comparison.narrowRange(m_value, range);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Another test of the value of the same variable combines with this into a
+	 * test of the values both accept, so a lower and an upper bound become a
+	 * {@link RangePrecondition} and a bound implied by an equality test goes.
+	 */
+	@Override
+	Precondition merge(Precondition other)
+	{
+		if(!(other instanceof VariableValuePrecondition || other instanceof RangePrecondition))
+		{
+			return null;
+		}
+		return mergeBounds(m_variable, this, other);
+	}
+
+	/**
+	 * A lower bound of 0 or an upper bound of 255 passes every byte value.
+	 */
+	@Override
+	boolean isVacuous()
+	{
+		return m_comparison == Comparison.GREATER_THAN_OR_EQUAL && m_value <= 0
+				|| m_comparison == Comparison.LESS_THAN_OR_EQUAL && m_value >= RangePrecondition.MAX_BYTE_VALUE;
+	}
+
 	private final Comparison m_comparison;
+
 	private final Variable m_variable;
 	private final int m_value;
 
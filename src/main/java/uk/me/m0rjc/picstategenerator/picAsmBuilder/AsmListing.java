@@ -0,0 +1,340 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The statements of an assembler file held in memory, with the queries needed by
+ * the {@link PeepholeRule}s to follow the flow of control between them.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+final class AsmListing
+{
+    /** Matches symbols in operands. */
+    private static final Pattern SYMBOL = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /** Prefix of labels created by the optimiser. */
+    private static final String LABEL_PREFIX = "peep_";
+
+    /** The statements. Changed in place. */
+    private final List<AsmStatement> m_statements;
+
+    /** Counter for creating label names. */
+    private int m_labelCounter;
+
+    /**
+     * @param statements the statements, which are changed in place.
+     */
+    public AsmListing(final List<AsmStatement> statements)
+    {
+        m_statements = statements;
+    }
+
+    /** @return the number of statements. */
+    public int size()
+    {
+        return m_statements.size();
+    }
+
+    /**
+     * @param index position of a statement.
+     * @return the statement.
+     */
+    public AsmStatement get(final int index)
+    {
+        return m_statements.get(index);
+    }
+
+    /**
+     * @param index position of a statement.
+     * @param statement the statement to replace it with.
+     */
+    public void set(final int index, final AsmStatement statement)
+    {
+        m_statements.set(index, statement);
+    }
+
+    /**
+     * @param index position of the statement to remove.
+     */
+    public void remove(final int index)
+    {
+        m_statements.remove(index);
+    }
+
+    /**
+     * @param index position to insert at.
+     * @param statement the statement to insert.
+     */
+    public void insert(final int index, final AsmStatement statement)
+    {
+        m_statements.add(index, statement);
+    }
+
+    /**
+     * @param index position of a statement.
+     * @return the position of the next instruction in the same section, or -1 if none.
+     */
+    public int nextInstruction(final int index)
+    {
+        for (int i = index + 1; i < m_statements.size(); i++)
+        {
+            AsmStatement s = m_statements.get(i);
+            if (s.isInstruction())
+            {
+                return i;
+            }
+            if (s.getKind() == AsmStatement.Kind.SECTION)
+            {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param index position of a statement.
+     * @return the position of the previous instruction in the same section, or -1 if none.
+     */
+    public int previousInstruction(final int index)
+    {
+        for (int i = index - 1; i >= 0; i--)
+        {
+            AsmStatement s = m_statements.get(i);
+            if (s.isInstruction())
+            {
+                return i;
+            }
+            if (s.getKind() == AsmStatement.Kind.SECTION)
+            {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param from position of a statement.
+     * @param to position of a later statement.
+     * @return true if there is a label between them, so code can be entered between them.
+     */
+    public boolean hasLabelBetween(final int from, final int to)
+    {
+        for (int i = from + 1; i < to; i++)
+        {
+            if (m_statements.get(i).getKind() == AsmStatement.Kind.LABEL)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param index position of an instruction.
+     * @return true if the previous instruction may skip it.
+     */
+    public boolean isSkipped(final int index)
+    {
+        int previous = previousInstruction(index);
+        return previous >= 0 && m_statements.get(previous).isSkip();
+    }
+
+    /**
+     * @param from position of an instruction.
+     * @param to position of a later instruction.
+     * @return true if every instruction between them has no size, so that execution
+     *         passes from one straight to the other.
+     */
+    public boolean isAdjacent(final int from, final int to)
+    {
+        for (int i = from + 1; i < to; i++)
+        {
+            if (m_statements.get(i).getSize() > 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param label a label name.
+     * @return the position of the label, or -1 if it is not in this listing.
+     */
+    public int findLabel(final String label)
+    {
+        for (int i = 0; i < m_statements.size(); i++)
+        {
+            AsmStatement s = m_statements.get(i);
+            if (s.getKind() == AsmStatement.Kind.LABEL && s.getText().equals(label))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param label a label name.
+     * @return the position of the instruction at the label, or -1 if there is none in
+     *         this listing.
+     */
+    public int findLabelledInstruction(final String label)
+    {
+        int index = findLabel(label);
+        return index < 0 ? -1 : nextInstruction(index);
+    }
+
+    /**
+     * Find a label at the given instruction, creating one if there is none.
+     *
+     * @param index position of an instruction.
+     * @return the name of a label at the instruction.
+     */
+    public String labelInstruction(final int index)
+    {
+        for (int i = index - 1; i >= 0 && !m_statements.get(i).isInstruction(); i--)
+        {
+            if (m_statements.get(i).getKind() == AsmStatement.Kind.LABEL)
+            {
+                return m_statements.get(i).getText();
+            }
+        }
+        String label;
+        do
+        {
+            label = LABEL_PREFIX + m_labelCounter++;
+        }
+        while (findLabel(label) >= 0);
+        m_statements.add(index, AsmStatement.label(label));
+        return label;
+    }
+
+    /**
+     * @return the byte address of each statement within its section.
+     */
+    public int[] getAddresses()
+    {
+        int[] addresses = new int[m_statements.size()];
+        int address = 0;
+        for (int i = 0; i < m_statements.size(); i++)
+        {
+            AsmStatement s = m_statements.get(i);
+            if (s.getKind() == AsmStatement.Kind.SECTION)
+            {
+                address = 0;
+            }
+            addresses[i] = address;
+            address += s.getSize();
+        }
+        return addresses;
+    }
+
+    /**
+     * Can the given jump reach the given label? A GOTO can reach any label.
+     *
+     * @param index position of a jump or branch instruction.
+     * @param range words the jump can reach backwards, or 0 for any distance.
+     * @param label the target.
+     * @return true if the label is in this listing, in the same section and in range.
+     */
+    public boolean canReach(final int index, final int range, final String label)
+    {
+        if (range == 0)
+        {
+            return true;
+        }
+        int target = findLabel(label);
+        if (target < 0 || !isSameSection(index, target))
+        {
+            return false;
+        }
+        int[] addresses = getAddresses();
+        int offset = (addresses[target] - addresses[index] - AsmStatement.WORD_SIZE) / AsmStatement.WORD_SIZE;
+        return offset >= -range && offset < range;
+    }
+
+    /**
+     * @return true if there is no section directive between the two statements.
+     */
+    private boolean isSameSection(final int a, final int b)
+    {
+        for (int i = Math.min(a, b) + 1; i <= Math.max(a, b); i++)
+        {
+            if (m_statements.get(i).getKind() == AsmStatement.Kind.SECTION)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return every symbol used in the operands of an instruction or directive.
+     *         A label not in this set is not referenced.
+     */
+    public Set<String> getReferencedSymbols()
+    {
+        Set<String> symbols = new HashSet<String>();
+        for (AsmStatement s : m_statements)
+        {
+            symbols.addAll(getSymbols(s));
+        }
+        return symbols;
+    }
+
+    /**
+     * @param s a statement.
+     * @return the symbols used in its operands, and the targets of a computed jump.
+     */
+    public static Set<String> getSymbols(final AsmStatement s)
+    {
+        Set<String> symbols = new HashSet<String>();
+        if (s.isComputedJump())
+        {
+            symbols.addAll(s.getTargets());
+        }
+        if (s.isInstruction())
+        {
+            for (String operand : s.getOperands())
+            {
+                Matcher m = SYMBOL.matcher(operand);
+                while (m.find())
+                {
+                    symbols.add(m.group());
+                }
+            }
+        }
+        return symbols;
+    }
+
+    /** @return the bytes of program memory used. */
+    public int getSize()
+    {
+        int size = 0;
+        for (AsmStatement s : m_statements)
+        {
+            size += s.getSize();
+        }
+        return size;
+    }
+
+    /** @return the number of instructions that use program memory. */
+    public int getInstructionCount()
+    {
+        int count = 0;
+        for (AsmStatement s : m_statements)
+        {
+            if (s.getSize() > 0)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+}
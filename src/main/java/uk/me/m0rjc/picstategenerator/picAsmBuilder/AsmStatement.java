@@ -0,0 +1,432 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * One statement of the in-memory listing held by {@link PicAssemblyWriter}
+ * until the file is closed. A statement is preformatted text such as a comment,
+ * a section directive, a label or an instruction. Instructions know enough about
+ * the PIC18 instruction set for the {@link PeepholeOptimiser}. Instances are
+ * immutable.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+final class AsmStatement
+{
+    /** Kinds of statement. */
+    enum Kind
+    {
+        /** Preformatted text, such as comments and blank lines. */
+        TEXT,
+        /** A section directive. Addresses start again from 0. */
+        SECTION,
+        /** A label, output on the next instruction. */
+        LABEL,
+        /** An instruction or directive. */
+        INSTRUCTION,
+        /** Start of code counted towards a region of the memory map. Not output. */
+        REGION_START,
+        /** End of the innermost region of the memory map. Not output. */
+        REGION_END
+    }
+
+    /** Bytes in a word of program memory. */
+    public static final int WORD_SIZE = 2;
+
+    /** Words a conditional branch can reach backwards. */
+    static final int CONDITIONAL_BRANCH_RANGE = 128;
+
+    /** Words a BRA can reach backwards. */
+    static final int BRA_RANGE = 1024;
+
+    /** Instructions that take two words of program memory. */
+    private static final Set<String> TWO_WORD_INSTRUCTIONS = new HashSet<String>(Arrays.asList(
+            "GOTO", "CALL", "MOVFF", "LFSR", "MOVSF", "MOVSS"));
+
+    /** Directives that take no program memory. */
+    private static final Set<String> DIRECTIVES = new HashSet<String>(Arrays.asList(
+            "LIST", "EXTERN", "GLOBAL", "END"));
+
+    /** Instructions that skip the next instruction on a condition. */
+    private static final Set<String> SKIPS = new HashSet<String>(Arrays.asList(
+            "CPFSEQ", "CPFSGT", "CPFSLT", "TSTFSZ", "BTFSC", "BTFSS",
+            "DECFSZ", "DCFSNZ", "INCFSZ", "INFSNZ"));
+
+    /** Skips that do not change any register. */
+    private static final Set<String> PURE_SKIPS = new HashSet<String>(Arrays.asList(
+            "CPFSEQ", "CPFSGT", "CPFSLT", "TSTFSZ", "BTFSC", "BTFSS"));
+
+    /** Conditional branches, with a range of -128 to 127 words. */
+    private static final Set<String> CONDITIONAL_BRANCHES = new HashSet<String>(Arrays.asList(
+            "BZ", "BNZ", "BC", "BNC", "BN", "BNN", "BOV", "BNOV"));
+
+    /** Instructions that return from a subroutine or interrupt. */
+    private static final Set<String> RETURNS = new HashSet<String>(Arrays.asList(
+            "RETURN", "RETFIE", "RETLW"));
+
+    /** The kind of statement. */
+    private final Kind m_kind;
+
+    /** Text of TEXT and SECTION, name of a LABEL, or the op-code of an INSTRUCTION. */
+    private final String m_text;
+
+    /** Arguments of an instruction. Null entries are not output. */
+    private final String[] m_args;
+
+    /** Characters to indent an instruction. */
+    private final int m_indent;
+
+    /**
+     * True if the instruction must keep its size and position, for example an
+     * entry in a computed jump table.
+     */
+    private final boolean m_fixed;
+
+    /**
+     * Labels a computed jump may go to, or null if this is not a computed jump. A
+     * label at a table of fixed instructions stands for every entry of the table.
+     * The builder may add labels until the file is complete.
+     */
+    private final Collection<String> m_targets;
+
+    /**
+     * Times round the counted loop this branch goes back to the start of, or 0 if
+     * this is not the branch back of a counted loop.
+     */
+    private final int m_loopIterations;
+
+    /**
+     * @param kind kind of statement.
+     * @param text text, label name or op-code.
+     * @param args arguments of an instruction.
+     * @param indent characters to indent an instruction.
+     * @param fixed true if the instruction must keep its size and position.
+     * @param targets labels a computed jump may go to, or null.
+     */
+    private AsmStatement(final Kind kind, final String text, final String[] args, final int indent,
+            final boolean fixed, final Collection<String> targets)
+    {
+        this(kind, text, args, indent, fixed, targets, 0);
+    }
+
+    /**
+     * @param kind kind of statement.
+     * @param text text, label name or op-code.
+     * @param args arguments of an instruction.
+     * @param indent characters to indent an instruction.
+     * @param fixed true if the instruction must keep its size and position.
+     * @param targets labels a computed jump may go to, or null.
+     * @param loopIterations times round a counted loop, or 0.
+     */
+    private AsmStatement(final Kind kind, final String text, final String[] args, final int indent,
+            final boolean fixed, final Collection<String> targets, final int loopIterations)
+    {
+        m_kind = kind;
+        m_text = text;
+        m_args = args;
+        m_indent = indent;
+        m_fixed = fixed;
+        m_targets = targets;
+        m_loopIterations = loopIterations;
+    }
+
+    /**
+     * @param text preformatted text.
+     * @return a TEXT statement.
+     */
+    public static AsmStatement text(final String text)
+    {
+        return new AsmStatement(Kind.TEXT, text, null, 0, false, null);
+    }
+
+    /**
+     * @param text preformatted section directive.
+     * @return a SECTION statement.
+     */
+    public static AsmStatement section(final String text)
+    {
+        return new AsmStatement(Kind.SECTION, text, null, 0, false, null);
+    }
+
+    /**
+     * @param name the label.
+     * @return a LABEL statement.
+     */
+    public static AsmStatement label(final String name)
+    {
+        return new AsmStatement(Kind.LABEL, name, null, 0, false, null);
+    }
+
+    /**
+     * @param region identifier of a region of the memory map.
+     * @return a REGION_START statement.
+     */
+    public static AsmStatement regionStart(final String region)
+    {
+        return new AsmStatement(Kind.REGION_START, region, null, 0, false, null);
+    }
+
+    /**
+     * @return a REGION_END statement.
+     */
+    public static AsmStatement regionEnd()
+    {
+        return new AsmStatement(Kind.REGION_END, "", null, 0, false, null);
+    }
+
+    /**
+     * @param opCode the op-code.
+     * @param args the arguments. Null entries are not output.
+     * @param indent characters to indent.
+     * @param fixed true if the instruction must keep its size and position.
+     * @return an INSTRUCTION statement.
+     */
+    public static AsmStatement instruction(final String opCode, final String[] args, final int indent,
+            final boolean fixed)
+    {
+        return new AsmStatement(Kind.INSTRUCTION, opCode, args.clone(), indent, fixed, null);
+    }
+
+    /**
+     * @param opCode the op-code of an instruction that writes PCL.
+     * @param args the arguments.
+     * @param indent characters to indent.
+     * @param targets labels the jump may go to.
+     * @return an INSTRUCTION statement for a computed jump.
+     */
+    public static AsmStatement computedJump(final String opCode, final String[] args, final int indent,
+            final Collection<String> targets)
+    {
+        return new AsmStatement(Kind.INSTRUCTION, opCode, args.clone(), indent, false, targets);
+    }
+
+    /**
+     * @param opCode the op-code of a branch back to the start of a counted loop.
+     * @param args the arguments.
+     * @param indent characters to indent.
+     * @param iterations times round the loop. The branch must follow the skip that
+     *            leaves the loop, and is taken one time fewer.
+     * @return an INSTRUCTION statement for the branch back.
+     */
+    public static AsmStatement loopBranch(final String opCode, final String[] args, final int indent,
+            final int iterations)
+    {
+        return new AsmStatement(Kind.INSTRUCTION, opCode, args.clone(), indent, false, null, iterations);
+    }
+
+    /**
+     * @param opCode the new op-code.
+     * @param args the new arguments.
+     * @return an instruction in the place of this one, with the same indent.
+     */
+    public AsmStatement replace(final String opCode, final String... args)
+    {
+        return new AsmStatement(Kind.INSTRUCTION, opCode, args.clone(), m_indent, m_fixed, m_targets,
+                m_loopIterations);
+    }
+
+    /** @return the kind of statement. */
+    public Kind getKind()
+    {
+        return m_kind;
+    }
+
+    /** @return the text, label name or op-code. */
+    public String getText()
+    {
+        return m_text;
+    }
+
+    /** @return the arguments of an instruction as given. */
+    public String[] getArgs()
+    {
+        return m_args;
+    }
+
+    /** @return characters to indent an instruction. */
+    public int getIndent()
+    {
+        return m_indent;
+    }
+
+    /** @return true if the instruction must keep its size and position. */
+    public boolean isFixed()
+    {
+        return m_fixed;
+    }
+
+    /** @return true if this is a computed jump with known targets. */
+    public boolean isComputedJump()
+    {
+        return m_targets != null;
+    }
+
+    /** @return labels a computed jump may go to, or null if this is not a computed jump. */
+    public Collection<String> getTargets()
+    {
+        return m_targets;
+    }
+
+    /** @return times round the counted loop this branches back to the start of, or 0. */
+    public int getLoopIterations()
+    {
+        return m_loopIterations;
+    }
+
+    /** @return true if this is an instruction or directive. */
+    public boolean isInstruction()
+    {
+        return m_kind == Kind.INSTRUCTION;
+    }
+
+    /**
+     * @return the mnemonic in upper case. An op-code given with its operands, such as
+     *         a return line "GOTO isrExit", is split.
+     */
+    public String getMnemonic()
+    {
+        return m_text.trim().split("\\s+", 2)[0].toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return the operands, whether given as arguments or as part of the op-code.
+     */
+    public String[] getOperands()
+    {
+        List<String> operands = new ArrayList<String>();
+        for (String arg : m_args)
+        {
+            if (arg != null)
+            {
+                operands.add(arg.trim());
+            }
+        }
+        String[] parts = m_text.trim().split("\\s+", 2);
+        if (operands.isEmpty() && parts.length > 1)
+        {
+            for (String operand : parts[1].split(","))
+            {
+                operands.add(operand.trim());
+            }
+        }
+        return operands.toArray(new String[operands.size()]);
+    }
+
+    /**
+     * @return the target of a jump or branch with a single operand, otherwise null.
+     */
+    public String getTarget()
+    {
+        if (!isJump())
+        {
+            return null;
+        }
+        String[] operands = getOperands();
+        return operands.length == 1 ? operands[0] : null;
+    }
+
+    /** @return a key that is equal for instructions that do the same thing. */
+    public String getKey()
+    {
+        StringBuilder sb = new StringBuilder(getMnemonic());
+        for (String operand : getOperands())
+        {
+            sb.append(' ').append(operand);
+        }
+        return sb.toString();
+    }
+
+    /** @return the bytes of program memory used. */
+    public int getSize()
+    {
+        if (m_kind != Kind.INSTRUCTION)
+        {
+            return 0;
+        }
+        String mnemonic = getMnemonic();
+        if (DIRECTIVES.contains(mnemonic))
+        {
+            return 0;
+        }
+        if ("DB".equals(mnemonic))
+        {
+            // A DB line is padded to a whole word.
+            return (getOperands().length + 1) / WORD_SIZE * WORD_SIZE;
+        }
+        return TWO_WORD_INSTRUCTIONS.contains(mnemonic) ? 2 * WORD_SIZE : WORD_SIZE;
+    }
+
+    /** @return true if this conditionally skips the next instruction. */
+    public boolean isSkip()
+    {
+        return isInstruction() && SKIPS.contains(getMnemonic());
+    }
+
+    /** @return true if this conditionally skips the next instruction without changing a register. */
+    public boolean isPureSkip()
+    {
+        return isInstruction() && PURE_SKIPS.contains(getMnemonic());
+    }
+
+    /** @return true if this is a GOTO or BRA. */
+    public boolean isUnconditionalJump()
+    {
+        if (!isInstruction())
+        {
+            return false;
+        }
+        String mnemonic = getMnemonic();
+        return "GOTO".equals(mnemonic) || "BRA".equals(mnemonic);
+    }
+
+    /** @return true if this is a conditional branch such as BZ. */
+    public boolean isConditionalBranch()
+    {
+        return isInstruction() && CONDITIONAL_BRANCHES.contains(getMnemonic());
+    }
+
+    /** @return true if this is a GOTO, BRA or conditional branch. */
+    public boolean isJump()
+    {
+        return isUnconditionalJump() || isConditionalBranch();
+    }
+
+    /** @return true if this returns from a subroutine or interrupt. */
+    public boolean isReturn()
+    {
+        return isInstruction() && RETURNS.contains(getMnemonic());
+    }
+
+    /**
+     * @return true if execution never continues with the next instruction: a jump,
+     *         return or write to PCL.
+     */
+    public boolean isEndOfFlow()
+    {
+        if (isUnconditionalJump() || isReturn())
+        {
+            return true;
+        }
+        return isInstruction() && "MOVWF".equals(getMnemonic()) && getOperands().length > 0
+                && "PCL".equals(getOperands()[0]);
+    }
+
+    /**
+     * @return the largest distance in words that this kind of jump can reach
+     *         backwards, or 0 if it can reach anywhere.
+     */
+    public int getBranchRange()
+    {
+        if (isConditionalBranch())
+        {
+            return CONDITIONAL_BRANCH_RANGE;
+        }
+        return "BRA".equals(getMnemonic()) ? BRA_RANGE : 0;
+    }
+}
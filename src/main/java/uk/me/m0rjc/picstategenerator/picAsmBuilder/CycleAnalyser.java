@@ -0,0 +1,388 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Find the best and worst case instruction cycles from a label in an
+ * {@link AsmListing} to the point where the code returns or leaves the listing,
+ * following every path through branches, skips and computed jumps.
+ *
+ * <p>Methods called with CALL are counted as the CALL alone. A counted loop, whose
+ * body ends in the skip that leaves it then a branch back marked with the times
+ * round, is counted in full. Any other path that can loop has an unbounded worst
+ * case.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+final class CycleAnalyser
+{
+    /** Instructions that take two cycles. */
+    private static final Set<String> TWO_CYCLE_INSTRUCTIONS = new HashSet<String>(Arrays.asList(
+            "GOTO", "BRA", "CALL", "RCALL", "RETURN", "RETFIE", "RETLW", "MOVFF", "MOVSF", "MOVSS",
+            "LFSR", "TBLRD*", "TBLRD*+", "TBLRD*-", "TBLRD+*", "TBLWT*", "TBLWT*+", "TBLWT*-", "TBLWT+*"));
+
+    /** Cycles taken by a branch or skip when it jumps. */
+    private static final int JUMP_CYCLES = 2;
+
+    /** The best and worst case cycles from a point in the code. Instances are immutable. */
+    static final class Cost
+    {
+        /** Worst case of a path that can loop. */
+        public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+        /** No cycles. */
+        private static final Cost NONE = new Cost(0, 0);
+
+        /** Fewest cycles. */
+        private final int m_best;
+
+        /** Most cycles, or {@link #UNBOUNDED}. */
+        private final int m_worst;
+
+        /**
+         * @param best fewest cycles.
+         * @param worst most cycles.
+         */
+        private Cost(final int best, final int worst)
+        {
+            m_best = best;
+            m_worst = worst;
+        }
+
+        /** @return fewest cycles. */
+        public int getBest()
+        {
+            return m_best;
+        }
+
+        /** @return most cycles, or {@link #UNBOUNDED}. */
+        public int getWorst()
+        {
+            return m_worst;
+        }
+
+        /** @return true if the worst case is known. */
+        public boolean isBounded()
+        {
+            return m_worst != UNBOUNDED;
+        }
+
+        /**
+         * @param cycles cycles to add.
+         * @return this cost with the cycles added to both cases.
+         */
+        private Cost plus(final int cycles)
+        {
+            return new Cost(m_best + cycles, isBounded() ? m_worst + cycles : UNBOUNDED);
+        }
+
+        /**
+         * @param other cost of another path.
+         * @return the cost of taking either path.
+         */
+        private Cost either(final Cost other)
+        {
+            return new Cost(Math.min(m_best, other.m_best), Math.max(m_worst, other.m_worst));
+        }
+    }
+
+    /** The listing. */
+    private final AsmListing m_listing;
+
+    /** True to follow computed jumps, false to stop at them. */
+    private final boolean m_followComputedJumps;
+
+    /** Cost from each instruction reached so far, by position. */
+    private final Map<Integer, Cost> m_costs = new HashMap<Integer, Cost>();
+
+    /** Instructions on the path being analysed, to detect loops. */
+    private final Set<Integer> m_inProgress = new HashSet<Integer>();
+
+    /** True if a path was found to loop. */
+    private boolean m_looped;
+
+    /** Position of the branch back of each counted loop, by the position of its start. */
+    private Map<Integer, Integer> m_loopBranches;
+
+    /**
+     * @param listing the listing, which must not change while this is in use.
+     * @param followComputedJumps true to follow computed jumps to their targets,
+     *            false to count a computed jump as the end of the code.
+     */
+    public CycleAnalyser(final AsmListing listing, final boolean followComputedJumps)
+    {
+        m_listing = listing;
+        m_followComputedJumps = followComputedJumps;
+    }
+
+    /**
+     * @param label a label in the listing.
+     * @return the cycles from the label to the end of the code, or null if the label
+     *         is not in the listing.
+     */
+    public Cost analyse(final String label)
+    {
+        int index = m_listing.findLabelledInstruction(label);
+        return index < 0 ? null : costFrom(index);
+    }
+
+    /**
+     * Find the cost from an instruction, remembering it for the next time.
+     * Straight-line code is followed in a loop, so recursion only happens at
+     * instructions with more than one way on.
+     *
+     * @param start position of an instruction.
+     * @return the cost.
+     */
+    private Cost costFrom(final int start)
+    {
+        Cost known = m_costs.get(start);
+        if (known != null)
+        {
+            return known;
+        }
+        if (m_inProgress.contains(start))
+        {
+            m_looped = true;
+            return null;
+        }
+        m_inProgress.add(start);
+
+        int cycles = 0;
+        Cost rest = Cost.NONE;
+        int i = start;
+        while (i >= 0)
+        {
+            Integer loopBranch = getLoopBranches().get(i);
+            Cost loop = loopBranch == null ? null : costOfCountedLoop(i, loopBranch);
+            if (loop != null)
+            {
+                rest = loop;
+                break;
+            }
+
+            AsmStatement s = m_listing.get(i);
+            int next = m_listing.nextInstruction(i);
+            if (s.isReturn())
+            {
+                cycles += JUMP_CYCLES;
+                break;
+            }
+            if (s.isComputedJump())
+            {
+                cycles += JUMP_CYCLES;
+                rest = m_followComputedJumps ? costOfComputedJump(s) : Cost.NONE;
+                break;
+            }
+            if (s.isEndOfFlow() && !s.isJump())
+            {
+                // Writes PCL with no known targets.
+                cycles += JUMP_CYCLES;
+                rest = new Cost(0, Cost.UNBOUNDED);
+                break;
+            }
+            if (s.isUnconditionalJump())
+            {
+                cycles += JUMP_CYCLES;
+                int target = findTarget(s);
+                if (target < 0)
+                {
+                    // Leaves the listing, for example a return line "GOTO isrExit".
+                    break;
+                }
+                rest = costFrom(target);
+                break;
+            }
+            if (s.isConditionalBranch())
+            {
+                int target = findTarget(s);
+                Cost taken = target < 0 ? Cost.NONE.plus(JUMP_CYCLES) : plus(costFrom(target), JUMP_CYCLES);
+                Cost notTaken = plus(next < 0 ? Cost.NONE : costFrom(next), 1);
+                rest = either(taken, notTaken);
+                break;
+            }
+            if (s.isSkip() && next >= 0)
+            {
+                int skipped = m_listing.nextInstruction(next);
+                int skipCycles = 1 + m_listing.get(next).getSize() / AsmStatement.WORD_SIZE;
+                Cost skip = plus(skipped < 0 ? Cost.NONE : costFrom(skipped), skipCycles);
+                Cost noSkip = plus(costFrom(next), 1);
+                rest = either(skip, noSkip);
+                break;
+            }
+            cycles += cycles(s);
+            i = next;
+        }
+
+        m_inProgress.remove(start);
+        if (rest == null)
+        {
+            rest = new Cost(0, Cost.UNBOUNDED);
+        }
+        Cost cost = rest.plus(cycles);
+        m_costs.put(start, cost);
+        return cost;
+    }
+
+    /**
+     * @param s an instruction that does not jump.
+     * @return the cycles it takes.
+     */
+    private static int cycles(final AsmStatement s)
+    {
+        return TWO_CYCLE_INSTRUCTIONS.contains(s.getMnemonic()) ? JUMP_CYCLES : 1;
+    }
+
+    /**
+     * @return the position of the branch back of each counted loop, by the
+     *         position of the start of the loop.
+     */
+    private Map<Integer, Integer> getLoopBranches()
+    {
+        if (m_loopBranches == null)
+        {
+            m_loopBranches = new HashMap<Integer, Integer>();
+            for (int i = 0; i < m_listing.size(); i++)
+            {
+                AsmStatement s = m_listing.get(i);
+                int start = s.getLoopIterations() > 0 ? findTarget(s) : -1;
+                if (start >= 0)
+                {
+                    m_loopBranches.put(start, i);
+                }
+            }
+        }
+        return m_loopBranches;
+    }
+
+    /**
+     * Find the cost of a counted loop and the code after it. Each time round runs
+     * the body and the skip. Every time but the last the skip falls through to
+     * the branch back, and the last time it skips the branch.
+     *
+     * @param start position of the first instruction of the loop.
+     * @param branch position of the branch back.
+     * @return the cost, or null if the body is not straight-line code ending in a skip.
+     */
+    private Cost costOfCountedLoop(final int start, final int branch)
+    {
+        int skip = m_listing.previousInstruction(branch);
+        if (skip < 0 || !m_listing.get(skip).isSkip())
+        {
+            return null;
+        }
+        int body = 0;
+        for (int i = start; i != skip; i = m_listing.nextInstruction(i))
+        {
+            AsmStatement s = i < 0 ? null : m_listing.get(i);
+            if (s == null || s.isSkip() || s.isJump() || s.isEndOfFlow() || s.isComputedJump())
+            {
+                return null;
+            }
+            body += cycles(s);
+        }
+
+        int iterations = m_listing.get(branch).getLoopIterations();
+        int skipCycles = 1 + m_listing.get(branch).getSize() / AsmStatement.WORD_SIZE;
+        int cycles = iterations * body + (iterations - 1) * (1 + JUMP_CYCLES) + skipCycles;
+        int next = m_listing.nextInstruction(branch);
+        Cost rest = next < 0 ? Cost.NONE : costFrom(next);
+        return rest == null ? new Cost(0, Cost.UNBOUNDED).plus(cycles) : rest.plus(cycles);
+    }
+
+    /**
+     * @param jump a computed jump.
+     * @return the cost from wherever it goes.
+     */
+    private Cost costOfComputedJump(final AsmStatement jump)
+    {
+        List<Integer> targets = findComputedJumpTargets(jump);
+        if (targets.isEmpty())
+        {
+            return new Cost(0, Cost.UNBOUNDED);
+        }
+        Cost cost = costFrom(targets.get(0));
+        for (int target : targets.subList(1, targets.size()))
+        {
+            cost = either(cost, costFrom(target));
+        }
+        return cost;
+    }
+
+    /**
+     * @param jump a computed jump.
+     * @return the positions of the instructions it may go to. A label at a table
+     *         of fixed instructions gives every entry of the table.
+     */
+    private List<Integer> findComputedJumpTargets(final AsmStatement jump)
+    {
+        List<Integer> targets = new ArrayList<Integer>();
+        for (String label : jump.getTargets())
+        {
+            int index = m_listing.findLabelledInstruction(label);
+            if (index >= 0 && m_listing.get(index).isFixed())
+            {
+                for (int i = index; i >= 0 && m_listing.get(i).isFixed(); i = m_listing.nextInstruction(i))
+                {
+                    targets.add(i);
+                }
+            }
+            else if (index >= 0)
+            {
+                targets.add(index);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * @param jump a jump or branch.
+     * @return the position of its target instruction, or -1 if not in the listing.
+     */
+    private int findTarget(final AsmStatement jump)
+    {
+        String label = jump.getTarget();
+        return label == null ? -1 : m_listing.findLabelledInstruction(label);
+    }
+
+    /**
+     * @param cost a cost, or null for a path that loops.
+     * @param cycles cycles to add.
+     * @return the cost with the cycles added, or null.
+     */
+    private static Cost plus(final Cost cost, final int cycles)
+    {
+        return cost == null ? null : cost.plus(cycles);
+    }
+
+    /**
+     * @param a cost of one path, or null for a path that loops.
+     * @param b cost of the other path, or null.
+     * @return the cost of taking either path. A loop makes the worst case unbounded.
+     */
+    private static Cost either(final Cost a, final Cost b)
+    {
+        if (a == null && b == null)
+        {
+            return null;
+        }
+        if (a == null || b == null)
+        {
+            Cost path = a == null ? b : a;
+            return new Cost(path.getBest(), Cost.UNBOUNDED);
+        }
+        return a.either(b);
+    }
+
+    /** @return true if any path analysed so far can loop. */
+    public boolean hasLoop()
+    {
+        return m_looped;
+    }
+}
@@ -0,0 +1,603 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+import java.util.logging.Logger;
+
+import uk.me.m0rjc.picstategenerator.model.Node;
+import uk.me.m0rjc.picstategenerator.model.RomLocation;
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.model.Transition;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.visitor.IModel;
+import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
+import uk.me.m0rjc.picstategenerator.visitor.INode;
+
+/**
+ * Choose for each node with entry code whether the code is copied into every
+ * transition to the node or shared by a block the transitions jump to. The
+ * model is visited once to estimate the words and cycles of each node's entry
+ * code and to count the transitions that enter it, then each node is decided
+ * by the {@link OptimisationProfile}.
+ *
+ * <p>Unless the profile is {@link OptimisationProfile#SIZE} entry code no
+ * bigger than a jump, such as a single CLRF, is always copied. Entry code of at
+ * least {@link #MIN_NEVER_COPIED_WORDS} words, such as clearing a large Numbers
+ * field, is never copied. A node whose shared block will follow the last
+ * transition of the node rendered before it is entered from that transition
+ * without a jump.</p>
+ *
+ * <p>The estimates are of the inline code of {@link Pic18AsmBuilder} before
+ * peephole optimisation. A variable not in ACCESS RAM is counted as needing a
+ * BANKSEL on each use.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public final class EntryCodePlanner implements IModelVisitor
+{
+    /** Words and cycles of a GOTO to shared entry code. */
+    private static final int GOTO_COST = 2;
+
+    /** Entry code this size or larger is never copied. */
+    public static final int MIN_NEVER_COPIED_WORDS = 6;
+
+    /** Estimate for one node. */
+    private static final class NodeCost
+    {
+        /** Words of entry code. */
+        private int m_words;
+        /** Cycles of entry code. */
+        private int m_cycles;
+        /** True once one copy of the entry code has been measured. */
+        private boolean m_measured;
+        /** Transitions that enter the node through its entry code. */
+        private int m_entries;
+        /** True if the entry code contains a gosub, so is left as it is. */
+        private boolean m_hasGosub;
+        /** True if one transition may fall through into the shared entry code. */
+        private boolean m_fallThrough;
+    }
+
+    /** Entry code being rendered. */
+    private static final class EntryRegion
+    {
+        /** Estimate being added to, or null if this is not the first copy. */
+        private final NodeCost m_cost;
+        /** Depth of the code block stack at the start. */
+        private final int m_depth;
+        /** True for shared entry code, which ends at its transition to the node. */
+        private final boolean m_shared;
+
+        /**
+         * @param cost estimate being added to, or null.
+         * @param depth depth of the code block stack at the start.
+         * @param shared true for shared entry code.
+         */
+        private EntryRegion(final NodeCost cost, final int depth, final boolean shared)
+        {
+            m_cost = cost;
+            m_depth = depth;
+            m_shared = shared;
+        }
+    }
+
+    private final Logger m_log = Logger.getLogger(EntryCodePlanner.class.getName());
+
+    /** What to favour. */
+    private final OptimisationProfile m_profile;
+
+    /** Words and cycles to set the current node and return. */
+    private final int m_goToNodeCost;
+
+    /** Words and cycles to go to the root node, which is a jump to the init method. */
+    private static final int GO_TO_ROOT_COST = GOTO_COST;
+
+    /** Estimates by node name, in the order the nodes are first seen. */
+    private final Map<String, NodeCost> m_costs = new LinkedHashMap<String, NodeCost>();
+
+    /** Entry code being rendered, innermost last. */
+    private final Stack<EntryRegion> m_regions = new Stack<EntryRegion>();
+
+    /** Names of nodes whose step code or shared entry code has been rendered. */
+    private final Set<String> m_renderedNodes = new HashSet<String>();
+
+    /** Depth of the code block stack. */
+    private int m_depth;
+
+    /** Node whose entry code the last transition of the current node renders, or null. */
+    private String m_lastEntered;
+
+    /**
+     * @param profile what to favour.
+     * @param stateBytes bytes of the variable holding the current node.
+     */
+    public EntryCodePlanner(final OptimisationProfile profile, final int stateBytes)
+    {
+        m_profile = profile;
+        m_goToNodeCost = getGoToNodeCost(stateBytes);
+    }
+
+    /**
+     * @param stateBytes bytes of the variable holding the current node.
+     * @return words and cycles to set the current node and return.
+     */
+    public static int getGoToNodeCost(final int stateBytes)
+    {
+        // A MOVLW and MOVWF for each byte of the state, then a RETURN.
+        return 2 * stateBytes + 1;
+    }
+
+    /**
+     * Choose how each node's entry code is rendered.
+     *
+     * @param model the model, which is changed.
+     */
+    public void plan(final StateModel model)
+    {
+        m_costs.clear();
+        m_renderedNodes.clear();
+        model.accept(this);
+
+        int shared = 0;
+        int copied = 0;
+        for (Map.Entry<String, NodeCost> e : m_costs.entrySet())
+        {
+            NodeCost cost = e.getValue();
+            Node node = model.getNode(e.getKey());
+            if (node == null || cost.m_hasGosub || !cost.m_measured || cost.m_words == 0)
+            {
+                continue;
+            }
+            boolean toRoot = node == model.getInitialState() || node.isScriptEndPoint();
+            boolean useShared = isSharedBetter(cost, toRoot ? GO_TO_ROOT_COST : m_goToNodeCost);
+            node.setUseSharedEntryCode(useShared);
+            if (useShared)
+            {
+                shared++;
+            }
+            else
+            {
+                copied++;
+            }
+        }
+        m_log.info(String.format("Model %s: %d nodes share entry code, %d copy it (%s profile).",
+                model.getModelName(), shared, copied, m_profile.getName()));
+    }
+
+    /**
+     * @param cost estimate for a node.
+     * @param goToNodeCost words and cycles to go to the node once its entry code is done.
+     * @return true if the node should use shared entry code.
+     */
+    private boolean isSharedBetter(final NodeCost cost, final int goToNodeCost)
+    {
+        if (cost.m_entries < 2)
+        {
+            return false;
+        }
+        if (cost.m_words >= MIN_NEVER_COPIED_WORDS)
+        {
+            return true;
+        }
+        if (cost.m_words <= GOTO_COST && m_profile != OptimisationProfile.SIZE)
+        {
+            return false;
+        }
+
+        int jumps = cost.m_fallThrough ? cost.m_entries - 1 : cost.m_entries;
+        int copiedWords = cost.m_entries * (cost.m_words + goToNodeCost);
+        int sharedWords = cost.m_words + goToNodeCost + jumps * GOTO_COST;
+        switch (m_profile)
+        {
+        case SIZE:
+            return sharedWords < copiedWords;
+        case SPEED:
+            return false;
+        default:
+            // Each entry runs the entry code either way, plus a jump if shared.
+            int cycles = cost.m_entries * (cost.m_cycles + goToNodeCost);
+            return sharedWords + cycles + jumps * GOTO_COST < copiedWords + cycles;
+        }
+    }
+
+    /**
+     * @param name name of a node.
+     * @return its estimate.
+     */
+    private NodeCost getCost(final String name)
+    {
+        NodeCost cost = m_costs.get(name);
+        if (cost == null)
+        {
+            cost = new NodeCost();
+            m_costs.put(name, cost);
+        }
+        return cost;
+    }
+
+    /**
+     * Start measuring a copy of a node's entry code.
+     *
+     * @param name name of the node.
+     * @param shared true for shared entry code.
+     */
+    private void startRegion(final String name, final boolean shared)
+    {
+        NodeCost cost = getCost(name);
+        m_regions.push(new EntryRegion(cost.m_measured ? null : cost, m_depth, shared));
+        cost.m_measured = true;
+    }
+
+    /**
+     * Count an instruction towards the entry code being measured.
+     *
+     * @param words words of program memory.
+     * @param cycles instruction cycles.
+     */
+    private void count(final int words, final int cycles)
+    {
+        if (!m_regions.isEmpty() && m_regions.peek().m_cost != null)
+        {
+            m_regions.peek().m_cost.m_words += words;
+            m_regions.peek().m_cost.m_cycles += cycles;
+        }
+    }
+
+    /**
+     * Count a BANKSEL if the variable needs one.
+     *
+     * @param variable a variable.
+     */
+    private void countBankSel(final Variable variable)
+    {
+        if (!variable.isAccess())
+        {
+            count(1, 1);
+        }
+    }
+
+    /**
+     * A transition enters a node through its entry code.
+     *
+     * @param name name of the node.
+     */
+    private void entered(final String name)
+    {
+        getCost(name).m_entries++;
+        if (m_regions.isEmpty())
+        {
+            m_lastEntered = name;
+        }
+    }
+
+    /** The current transition goes to a node. Shared entry code ends here. */
+    private void leaving()
+    {
+        if (!m_regions.isEmpty() && m_regions.peek().m_shared && m_regions.peek().m_depth == m_depth)
+        {
+            m_regions.pop();
+        }
+    }
+
+    @Override
+    public void visitStartModel(final IModel model)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitDeclareExternalSymbol(final Variable variable)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitDeclareExternalSymbol(final RomLocation name)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitDeclareGlobalSymbol(final String name)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitStartAccessVariables(final boolean modelDefinesAccessVariables)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitCreateVariableDefinition(final Variable v)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitStartBankedVariables(final int bankNumber, final boolean modelDefinesVariablesInThisBank)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitStartCode()
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void startSharedEntryCode(final INode node)
+    {
+        m_renderedNodes.add(node.getStateName());
+        startRegion(node.getStateName(), true);
+    }
+
+    @Override
+    public void startNode(final INode node)
+    {
+        m_renderedNodes.add(node.getStateName());
+        m_lastEntered = null;
+    }
+
+    @Override
+    public void visitTransition(final Transition transition)
+    {
+        m_lastEntered = null;
+        m_depth++;
+    }
+
+    @Override
+    public void startInputSwitch(final Variable variable, final int[] lowValues, final int[] highValues)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void startSwitchCase(final int low, final int high)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void endSwitchCase(final int low, final int high)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void endInputSwitch()
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitTransitionPreconditionGE(final Variable variable, final int value)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitTransitionPreconditionEQ(final Variable variable, final int value)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitTransitionPreconditionLE(final Variable variable, final int value)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitTransitionPreconditionRange(final Variable variable, final int low, final int high)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitTransitionPreconditionCountdown(final Variable counter)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitTransitionPreconditionFlags(final Variable flags, final int byteOffset,
+            final int mask, final int expected)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitCommandCopyVariableToIndexedVariable(final Variable source, final Variable output,
+            final Variable indexer)
+    {
+        // LFSR, MOVF indexer, MOVFF to PLUSW0
+        countBankSel(indexer);
+        count(5, 5);
+    }
+
+    @Override
+    public void visitCommandCopyVariable(final Variable input, final Variable output)
+    {
+        int bytes = Math.min(input.getSize(), output.getSize());
+        if (Pic18AsmBuilder.isCopyLoopBetter(m_profile, bytes))
+        {
+            count(Pic18AsmBuilder.COPY_LOOP_WORDS, Pic18AsmBuilder.getCopyLoopCycles(bytes));
+            return;
+        }
+        count(2 * bytes, 2 * bytes);
+    }
+
+    @Override
+    public void visitCommandClearVariable(final Variable variable)
+    {
+        if (Pic18AsmBuilder.isClearLoopBetter(m_profile, variable.getSize()))
+        {
+            count(Pic18AsmBuilder.CLEAR_LOOP_WORDS, Pic18AsmBuilder.getClearLoopCycles(variable.getSize()));
+            return;
+        }
+        countBankSel(variable);
+        count(variable.getSize(), variable.getSize());
+    }
+
+    @Override
+    public void visitCommandClearIndexedVariable(final Variable variable, final Variable indexer)
+    {
+        // LFSR, MOVF indexer, CLRF PLUSW0
+        countBankSel(indexer);
+        count(4, 4);
+    }
+
+    @Override
+    public void visitCommandIncrementVariable(final Variable variable)
+    {
+        countBankSel(variable);
+        count(2 * variable.getSize() - 1, 2 * variable.getSize() - 1);
+    }
+
+    @Override
+    public void visitCommandLoadCounter(final Variable counter, final int count)
+    {
+        // CLRF, or MOVLW and MOVWF
+        countBankSel(counter);
+        int words = count == 0 ? 1 : 2;
+        count(words, words);
+    }
+
+    @Override
+    public void visitCommandStartIndexedStore(final Variable output, final Variable indexer)
+    {
+        // LFSR if the builder keeps a pointer
+        count(2, 2);
+    }
+
+    @Override
+    public void visitCommandStoreNextIndexed(final Variable source, final Variable output,
+            final Variable indexer, final boolean terminate)
+    {
+        visitCommandCopyVariableToIndexedVariable(source, output, indexer);
+        visitCommandIncrementVariable(indexer);
+        if (terminate)
+        {
+            visitCommandClearIndexedVariable(output, indexer);
+        }
+    }
+
+    @Override
+    public void visitCommandEndIndexedStore(final Variable output, final Variable indexer)
+    {
+        visitCommandClearIndexedVariable(output, indexer);
+    }
+
+    @Override
+    public void visitCommandSetFlags(final Variable flags, final int byteOffset,
+            final int setMask, final int clearMask)
+    {
+        // BSF or BCF per flag, or MOVLW and IORWF or ANDWF for three or more
+        countBankSel(flags);
+        int words = flagWords(setMask) + flagWords(clearMask);
+        count(words, words);
+    }
+
+    /**
+     * @param mask flags changed together.
+     * @return words used to change them.
+     */
+    private int flagWords(final int mask)
+    {
+        int bits = Integer.bitCount(mask);
+        return bits >= 3 ? 2 : bits;
+    }
+
+    @Override
+    public void visitCommandMethodCall(final RomLocation method)
+    {
+        count(2, 2);
+    }
+
+    @Override
+    public void visitTransitionGoToSharedEntryCode(final INode node)
+    {
+        entered(node.getStateName());
+        leaving();
+    }
+
+    @Override
+    public void visitTransitionGoToNode(final INode node)
+    {
+        leaving();
+    }
+
+    @Override
+    public void startInlineEntryCode(final INode node)
+    {
+        entered(node.getStateName());
+        startRegion(node.getStateName(), false);
+    }
+
+    @Override
+    public void endInlineEntryCode(final INode node)
+    {
+        m_regions.pop();
+    }
+
+    @Override
+    public void endTransition(final Transition transition)
+    {
+        m_depth--;
+    }
+
+    @Override
+    public void endNode(final Node node)
+    {
+        if (m_lastEntered != null && !m_renderedNodes.contains(m_lastEntered))
+        {
+            getCost(m_lastEntered).m_fallThrough = true;
+        }
+    }
+
+    @Override
+    public void finished()
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void push()
+    {
+        if (!m_regions.isEmpty() && m_regions.peek().m_cost != null)
+        {
+            m_regions.peek().m_cost.m_hasGosub = true;
+        }
+        m_depth++;
+    }
+
+    @Override
+    public void saveReturnOnSubroutineStack()
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void exitCodeBlock(final int levels)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void pop()
+    {
+        m_depth--;
+    }
+
+    @Override
+    public void visitTransitionReturnFromSubroutineStack()
+    {
+        leaving();
+    }
+}
@@ -0,0 +1,327 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.me.m0rjc.picstategenerator.model.Variable;
+
+/**
+ * An input switch being rendered by {@link Pic18AsmBuilder}. Holds the case
+ * ranges, the way the switch is dispatched and the labels used by a jump table,
+ * decision tree or XOR chain. Case ranges do not overlap.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+class InputSwitch
+{
+    /** Percentage used when comparing covered values to table range. */
+    private static final int PERCENT = 100;
+
+    /**
+     * Most cases in an XOR chain. Each branch must reach past the rest of the chain,
+     * so this keeps them within the range of a conditional branch.
+     */
+    private static final int MAX_XOR_CHAIN_CASES = 16;
+
+    /** The ways to dispatch an input switch. */
+    enum Dispatch
+    {
+        /** Each case tests its range in turn, as normal transitions do. */
+        CHAIN,
+        /** A balanced tree of comparisons selects the case. */
+        TREE,
+        /**
+         * The variable is loaded into W once, then exclusive-ORed with the difference
+         * between each case value and the last, branching if the result is zero.
+         */
+        XOR_CHAIN,
+        /** A table of GOTO with one entry for every value in the range. */
+        DENSE_TABLE,
+        /**
+         * A byte table for every value in the range selects an entry in a table
+         * of GOTO with one entry for each case.
+         */
+        SPARSE_TABLE,
+        /** A table of ranges searched in turn by the table interpreter. */
+        RANGE_TABLE
+    }
+
+    /** Variable being switched on. */
+    private final Variable m_variable;
+
+    /** Lowest value of each case, in the order the cases are rendered. */
+    private final int[] m_lowValues;
+
+    /** Lowest value of each case, in ascending order. */
+    private final int[] m_sortedLowValues;
+
+    /** Highest value of each case, in the same order as {@link #m_sortedLowValues}. */
+    private final int[] m_sortedHighValues;
+
+    /** Depth of the code block stack outside the switch. */
+    private final int m_blockDepth;
+
+    /** Dispatch method. */
+    private Dispatch m_dispatch = Dispatch.CHAIN;
+
+    /** Label for each case, keyed by its lowest value, when dispatched. */
+    private final Map<Integer, String> m_caseLabels = new HashMap<Integer, String>();
+
+    /** Label at the end of the switch. */
+    private String m_endLabel;
+
+    /** True while a case is being rendered. */
+    private boolean m_inCase;
+
+    /** Lowest value of the case currently being rendered. */
+    private int m_currentLow;
+
+    /** Highest value of the case currently being rendered. */
+    private int m_currentHigh;
+
+    /**
+     * @param variable the variable being switched on.
+     * @param lowValues the lowest value of each case.
+     * @param highValues the highest value of each case.
+     * @param blockDepth depth of the code block stack outside the switch.
+     */
+    public InputSwitch(final Variable variable, final int[] lowValues, final int[] highValues,
+            final int blockDepth)
+    {
+        m_variable = variable;
+        m_lowValues = lowValues.clone();
+        m_sortedLowValues = lowValues.clone();
+        Arrays.sort(m_sortedLowValues);
+        m_sortedHighValues = new int[m_sortedLowValues.length];
+        for (int i = 0; i < lowValues.length; i++)
+        {
+            m_sortedHighValues[Arrays.binarySearch(m_sortedLowValues, lowValues[i])] = highValues[i];
+        }
+        m_blockDepth = blockDepth;
+    }
+
+    /**
+     * Choose how to dispatch this switch. A jump table is preferred if the switch
+     * has enough cases, then a decision tree, then an XOR chain if every case is a
+     * single value.
+     *
+     * @param tableMinimumCases minimum amount of cases to use a table. 0 to never use a table.
+     * @param densityPercent minimum percentage of the value range that must be covered by
+     *            cases to use a dense table rather than a sparse one.
+     * @param treeMinimumCases minimum amount of cases to use a decision tree. 0 to never
+     *            use a tree.
+     * @param xorChainMinimumCases minimum amount of cases to use an XOR chain. 0 to never
+     *            use an XOR chain.
+     */
+    public void chooseDispatch(final int tableMinimumCases, final int densityPercent,
+            final int treeMinimumCases, final int xorChainMinimumCases)
+    {
+        int cases = getCaseCount();
+        if (m_variable.getSize() != 1)
+        {
+            m_dispatch = Dispatch.CHAIN;
+        }
+        else if (tableMinimumCases > 0 && cases >= tableMinimumCases)
+        {
+            m_dispatch = getCoveredValueCount() * PERCENT >= densityPercent * getSpan()
+                    ? Dispatch.DENSE_TABLE : Dispatch.SPARSE_TABLE;
+        }
+        else if (treeMinimumCases > 0 && cases >= treeMinimumCases)
+        {
+            m_dispatch = Dispatch.TREE;
+        }
+        else if (xorChainMinimumCases > 0 && cases >= xorChainMinimumCases
+                && cases <= MAX_XOR_CHAIN_CASES && getCoveredValueCount() == cases)
+        {
+            m_dispatch = Dispatch.XOR_CHAIN;
+        }
+        else
+        {
+            m_dispatch = Dispatch.CHAIN;
+        }
+    }
+
+    /** Dispatch this switch by a range table, as {@link Pic18TableBuilder} does. */
+    public void useRangeTable()
+    {
+        m_dispatch = Dispatch.RANGE_TABLE;
+    }
+
+    /** @return the dispatch method. */
+    public Dispatch getDispatch()
+    {
+        return m_dispatch;
+    }
+
+    /** @return true if a jump table is used. */
+    public boolean isTable()
+    {
+        return m_dispatch == Dispatch.DENSE_TABLE || m_dispatch == Dispatch.SPARSE_TABLE;
+    }
+
+    /** @return true if the switch dispatches to its cases rather than testing each in turn. */
+    public boolean isDispatched()
+    {
+        return m_dispatch != Dispatch.CHAIN;
+    }
+
+    /** @return the variable being switched on. */
+    public Variable getVariable()
+    {
+        return m_variable;
+    }
+
+    /** @return the number of cases. */
+    public int getCaseCount()
+    {
+        return m_sortedLowValues.length;
+    }
+
+    /** @return the lowest value of each case in the order the cases are rendered. */
+    public int[] getLowValues()
+    {
+        return m_lowValues;
+    }
+
+    /** @return the lowest value of each case in ascending order. */
+    public int[] getSortedLowValues()
+    {
+        return m_sortedLowValues;
+    }
+
+    /** @return the highest value of each case, in the order of {@link #getSortedLowValues()}. */
+    public int[] getSortedHighValues()
+    {
+        return m_sortedHighValues;
+    }
+
+    /** @return the lowest case value. */
+    public int getLowValue()
+    {
+        return m_sortedLowValues[0];
+    }
+
+    /** @return the highest case value. */
+    public int getHighValue()
+    {
+        return m_sortedHighValues[m_sortedHighValues.length - 1];
+    }
+
+    /** @return the number of values from lowest to highest inclusive. */
+    public int getSpan()
+    {
+        return getHighValue() - getLowValue() + 1;
+    }
+
+    /** @return the number of values that select a case. */
+    public int getCoveredValueCount()
+    {
+        int count = 0;
+        for (int i = 0; i < m_sortedLowValues.length; i++)
+        {
+            count += m_sortedHighValues[i] - m_sortedLowValues[i] + 1;
+        }
+        return count;
+    }
+
+    /**
+     * @param low lowest value of the case.
+     * @param label label for the case code.
+     */
+    public void setCaseLabel(final int low, final String label)
+    {
+        m_caseLabels.put(low, label);
+    }
+
+    /**
+     * @param low lowest value of a case.
+     * @return the label for the case.
+     */
+    public String getCaseLabel(final int low)
+    {
+        return m_caseLabels.get(low);
+    }
+
+    /**
+     * @param value a value in the range of the switch.
+     * @return the position of the case containing the value in the sorted order,
+     *         or -1 if the value is not in a case.
+     */
+    public int findCase(final int value)
+    {
+        for (int i = 0; i < m_sortedLowValues.length; i++)
+        {
+            if (value >= m_sortedLowValues[i] && value <= m_sortedHighValues[i])
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the label at the end of the switch. */
+    public String getEndLabel()
+    {
+        return m_endLabel;
+    }
+
+    /** @param endLabel the label at the end of the switch. */
+    public void setEndLabel(final String endLabel)
+    {
+        m_endLabel = endLabel;
+    }
+
+    /**
+     * @param low lowest value of the case being rendered.
+     * @param high highest value of the case being rendered.
+     */
+    public void startCase(final int low, final int high)
+    {
+        m_inCase = true;
+        m_currentLow = low;
+        m_currentHigh = high;
+    }
+
+    /** The current case has been rendered. */
+    public void endCase()
+    {
+        m_inCase = false;
+    }
+
+    /**
+     * Is a precondition that accepts the given range of the variable already decided by
+     * the dispatch? This is true for a test of the switch variable made directly by a
+     * transition in the current case, if every value of the case is in the range.
+     *
+     * @param variable variable being tested.
+     * @param low lowest value accepted by the precondition.
+     * @param high highest value accepted by the precondition.
+     * @param blockDepth current depth of the code block stack.
+     * @return true if the test can be left out.
+     */
+    public boolean isDecidedByDispatch(final Variable variable, final int low, final int high,
+            final int blockDepth)
+    {
+        return isDispatched() && m_inCase && low <= m_currentLow && high >= m_currentHigh
+                && blockDepth == m_blockDepth + 1 && m_variable.equals(variable);
+    }
+
+    /**
+     * @return a description of the dispatch for comments.
+     */
+    public String describeDispatch()
+    {
+        switch (m_dispatch)
+        {
+        case TREE:
+            return "decision tree";
+        case XOR_CHAIN:
+            return "XOR chain";
+        case RANGE_TABLE:
+            return "range table";
+        default:
+            return "jump table";
+        }
+    }
+}
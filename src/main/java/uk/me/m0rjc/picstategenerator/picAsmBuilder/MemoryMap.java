@@ -0,0 +1,294 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import uk.me.m0rjc.picstategenerator.model.Variable;
+
+/**
+ * The program memory used by each node and the RAM used by each variable of a
+ * generated module. Code is counted towards the regions marked in the listing by
+ * {@link PicAssemblyWriter#startRegion(String)}, so it is counted after
+ * optimisation. Written as XML for other tools to read.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+final class MemoryMap
+{
+    /** Kinds of region of code. */
+    private enum RegionKind
+    {
+        /** Code that does not belong to a node. */
+        CODE,
+        /** The step code of a node. */
+        STEP,
+        /** The shared entry code of a node. */
+        SHARED_ENTRY,
+        /** A copy of a node's entry code in a transition from another node. */
+        INLINE_ENTRY
+    }
+
+    /** A region of code. */
+    private static final class Region
+    {
+        /** Kind of region. */
+        private final RegionKind m_kind;
+        /** Node the code belongs to, or the name of other code. */
+        private final String m_name;
+        /** For inline entry code, the node containing the copy. */
+        private final String m_in;
+        /** Program words counted. */
+        private int m_words;
+
+        /**
+         * @param kind kind of region.
+         * @param name node the code belongs to, or the name of other code.
+         * @param in for inline entry code, the node containing the copy.
+         */
+        private Region(final RegionKind kind, final String name, final String in)
+        {
+            m_kind = kind;
+            m_name = name;
+            m_in = in;
+        }
+    }
+
+    /** Name used for banked variables in ACCESS RAM. */
+    private static final String ACCESS_BANK_NAME = "access";
+
+    /** Regions of code, identified by position. */
+    private final List<Region> m_regions = new ArrayList<Region>();
+
+    /** Bytes used by each variable, by bank. */
+    private final Map<String, Map<String, Integer>> m_banks = new LinkedHashMap<String, Map<String, Integer>>();
+
+    /** Program words in the module. */
+    private int m_romWords;
+
+    /** Program words in no region. */
+    private int m_otherWords;
+
+    /**
+     * @param name name of code that does not belong to a node.
+     * @return identifier of its region.
+     */
+    public String addCode(final String name)
+    {
+        return addRegion(new Region(RegionKind.CODE, name, null));
+    }
+
+    /**
+     * @param node name of a node.
+     * @return identifier of the region for its step code.
+     */
+    public String addStepCode(final String node)
+    {
+        return addRegion(new Region(RegionKind.STEP, node, null));
+    }
+
+    /**
+     * @param node name of a node.
+     * @return identifier of the region for its shared entry code.
+     */
+    public String addSharedEntryCode(final String node)
+    {
+        return addRegion(new Region(RegionKind.SHARED_ENTRY, node, null));
+    }
+
+    /**
+     * @param node name of the node whose entry code is copied.
+     * @param in name of the node containing the copy.
+     * @return identifier of the region for the copy.
+     */
+    public String addInlineEntryCode(final String node, final String in)
+    {
+        return addRegion(new Region(RegionKind.INLINE_ENTRY, node, in));
+    }
+
+    /**
+     * @param region a region.
+     * @return its identifier.
+     */
+    private String addRegion(final Region region)
+    {
+        m_regions.add(region);
+        return Integer.toString(m_regions.size() - 1);
+    }
+
+    /**
+     * @param v a variable with storage in the module.
+     */
+    public void addVariable(final Variable v)
+    {
+        String bank = v.isAccess() ? ACCESS_BANK_NAME : Integer.toString(v.getBank());
+        Map<String, Integer> variables = m_banks.get(bank);
+        if (variables == null)
+        {
+            variables = new LinkedHashMap<String, Integer>();
+            m_banks.put(bank, variables);
+        }
+        variables.put(v.getName(), v.getSize());
+    }
+
+    /**
+     * Count the program words in each region of the listing. Code in a region
+     * nested in another is only counted towards the inner region.
+     *
+     * @param statements the listing.
+     */
+    public void countCode(final List<AsmStatement> statements)
+    {
+        Stack<Region> open = new Stack<Region>();
+        for (AsmStatement s : statements)
+        {
+            switch (s.getKind())
+            {
+            case REGION_START:
+                open.push(m_regions.get(Integer.parseInt(s.getText())));
+                break;
+            case REGION_END:
+                open.pop();
+                break;
+            default:
+                int words = s.getSize() / AsmStatement.WORD_SIZE;
+                m_romWords += words;
+                if (open.isEmpty())
+                {
+                    m_otherWords += words;
+                }
+                else
+                {
+                    open.peek().m_words += words;
+                }
+                break;
+            }
+        }
+    }
+
+    /** @return program words in the module. */
+    public int getRomWords()
+    {
+        return m_romWords;
+    }
+
+    /** @return bytes of RAM declared by the module. */
+    public int getRamBytes()
+    {
+        int bytes = 0;
+        for (Map<String, Integer> variables : m_banks.values())
+        {
+            bytes += sum(variables);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return program words used by each node, counting its step code, its shared
+     *         entry code and every copy of its entry code, in the order the nodes
+     *         were rendered.
+     */
+    public Map<String, Integer> getNodeWords()
+    {
+        Map<String, Integer> nodes = new LinkedHashMap<String, Integer>();
+        for (Region region : m_regions)
+        {
+            if (region.m_kind != RegionKind.CODE)
+            {
+                Integer words = nodes.get(region.m_name);
+                nodes.put(region.m_name, (words == null ? 0 : words) + region.m_words);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Write the map.
+     *
+     * @param modelName name of the model.
+     * @param out writer for the map file.
+     */
+    public void write(final String modelName, final XmlWriter out)
+    {
+        out.startElement("MemoryMap", "model", modelName,
+                "romWords", m_romWords, "ramBytes", getRamBytes());
+
+        out.startElement("Rom", "words", m_romWords);
+        for (Region region : m_regions)
+        {
+            if (region.m_kind == RegionKind.CODE)
+            {
+                out.emptyElement("Code", "name", region.m_name, "words", region.m_words);
+            }
+        }
+        if (m_otherWords > 0)
+        {
+            out.emptyElement("Code", "name", "other", "words", m_otherWords);
+        }
+        for (Map.Entry<String, Integer> node : getNodeWords().entrySet())
+        {
+            out.startElement("Node", "name", node.getKey(), "words", node.getValue());
+            for (Region region : m_regions)
+            {
+                if (region.m_name.equals(node.getKey()))
+                {
+                    writeNodeRegion(region, out);
+                }
+            }
+            out.endElement();
+        }
+        out.endElement();
+
+        out.startElement("Ram", "bytes", getRamBytes());
+        for (Map.Entry<String, Map<String, Integer>> bank : m_banks.entrySet())
+        {
+            out.startElement("Bank", "name", bank.getKey(), "bytes", sum(bank.getValue()));
+            for (Map.Entry<String, Integer> variable : bank.getValue().entrySet())
+            {
+                out.emptyElement("Variable", "name", variable.getKey(), "bytes", variable.getValue());
+            }
+            out.endElement();
+        }
+        out.endElement();
+
+        out.endElement();
+    }
+
+    /**
+     * @param region a region of a node's code.
+     * @param out writer for the map file.
+     */
+    private static void writeNodeRegion(final Region region, final XmlWriter out)
+    {
+        switch (region.m_kind)
+        {
+        case STEP:
+            out.emptyElement("StepCode", "words", region.m_words);
+            break;
+        case SHARED_ENTRY:
+            out.emptyElement("SharedEntryCode", "words", region.m_words);
+            break;
+        case INLINE_ENTRY:
+            out.emptyElement("InlineEntryCode", "in", region.m_in, "words", region.m_words);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * @param values some numbers.
+     * @return their total.
+     */
+    private static int sum(final Map<String, Integer> values)
+    {
+        int total = 0;
+        for (int value : values.values())
+        {
+            total += value;
+        }
+        return total;
+    }
+}
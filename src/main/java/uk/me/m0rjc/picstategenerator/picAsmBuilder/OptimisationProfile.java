@@ -0,0 +1,50 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+/**
+ * What the {@link Pic18AsmBuilder} favours where it has a choice between
+ * smaller and faster code.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public enum OptimisationProfile
+{
+    /** Fewest words of program memory. */
+    SIZE("size"),
+    /** Fewest instruction cycles. */
+    SPEED("speed"),
+    /** Fewest words plus instruction cycles. */
+    BALANCED("balanced");
+
+    /** Name used in the XML definition file. */
+    private final String m_name;
+
+    /**
+     * @param name name used in the XML definition file.
+     */
+    private OptimisationProfile(final String name)
+    {
+        m_name = name;
+    }
+
+    /** @return the name used in the XML definition file. */
+    public String getName()
+    {
+        return m_name;
+    }
+
+    /**
+     * @param name a name used in the XML definition file.
+     * @return the profile, or null if there is none with that name.
+     */
+    public static OptimisationProfile forName(final String name)
+    {
+        for (OptimisationProfile profile : values())
+        {
+            if (profile.m_name.equals(name))
+            {
+                return profile;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+/**
+ * The changes made by one pass of a {@link PeepholeRule}, and the instructions
+ * and bytes of program memory they removed. A rule makes its changes through
+ * this so that each rule is credited with exactly what it did.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+final class PeepholeChanges
+{
+    /** The listing being changed. */
+    private final AsmListing m_listing;
+
+    /** Number of changes made. */
+    private int m_count;
+
+    /** Instructions removed, less instructions added. */
+    private int m_instructionsRemoved;
+
+    /** Bytes of program memory removed, less bytes added. */
+    private int m_bytesRemoved;
+
+    /**
+     * @param listing the listing being changed.
+     */
+    public PeepholeChanges(final AsmListing listing)
+    {
+        m_listing = listing;
+    }
+
+    /**
+     * Count a change made without removing code, such as retargeting a jump.
+     */
+    public void change()
+    {
+        m_count++;
+    }
+
+    /**
+     * Remove a statement from the listing.
+     *
+     * @param index position of the statement to remove.
+     */
+    public void remove(final int index)
+    {
+        AsmStatement s = m_listing.get(index);
+        m_listing.remove(index);
+        if (s.getSize() > 0)
+        {
+            m_instructionsRemoved++;
+            m_bytesRemoved += s.getSize();
+        }
+    }
+
+    /**
+     * Replace a statement in the listing.
+     *
+     * @param index position of the statement.
+     * @param statement the statement to replace it with.
+     */
+    public void replace(final int index, final AsmStatement statement)
+    {
+        AsmStatement s = m_listing.get(index);
+        m_listing.set(index, statement);
+        m_bytesRemoved += s.getSize() - statement.getSize();
+        if (s.getSize() > 0 && statement.getSize() == 0)
+        {
+            m_instructionsRemoved++;
+        }
+        else if (s.getSize() == 0 && statement.getSize() > 0)
+        {
+            m_instructionsRemoved--;
+        }
+    }
+
+    /** @return the number of changes made. */
+    public int getCount()
+    {
+        return m_count;
+    }
+
+    /** @return the instructions removed, less any added. */
+    public int getInstructionsRemoved()
+    {
+        return m_instructionsRemoved;
+    }
+
+    /** @return the bytes of program memory removed, less any added. */
+    public int getBytesRemoved()
+    {
+        return m_bytesRemoved;
+    }
+}
@@ -0,0 +1,112 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Apply a set of {@link PeepholeRule}s to the listing of an assembler file before
+ * it is written, repeating them until none makes a change. Reports how many
+ * instructions and bytes each rule removed, as counted by the rule itself.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public class PeepholeOptimiser
+{
+    /** Limit on passes in case rules undo each other. */
+    private static final int MAX_PASSES = 20;
+
+    /** Logging. */
+    private final Logger m_log = Logger.getLogger(PeepholeOptimiser.class.getName());
+
+    /** Rules to apply, in order. */
+    private final Set<PeepholeRule> m_rules;
+
+    /** What to favour where a rule would make code smaller but slower. */
+    private final OptimisationProfile m_profile;
+
+    /** Instructions removed by each rule. */
+    private final Map<PeepholeRule, Integer> m_instructionsRemoved =
+            new EnumMap<PeepholeRule, Integer>(PeepholeRule.class);
+
+    /** Bytes removed by each rule. */
+    private final Map<PeepholeRule, Integer> m_bytesRemoved =
+            new EnumMap<PeepholeRule, Integer>(PeepholeRule.class);
+
+    /**
+     * @param rules the rules to apply.
+     * @param profile what to favour where a rule would make code smaller but slower.
+     */
+    public PeepholeOptimiser(final Set<PeepholeRule> rules, final OptimisationProfile profile)
+    {
+        m_rules = rules.isEmpty() ? EnumSet.noneOf(PeepholeRule.class) : EnumSet.copyOf(rules);
+        m_profile = profile;
+        for (PeepholeRule rule : PeepholeRule.values())
+        {
+            m_instructionsRemoved.put(rule, 0);
+            m_bytesRemoved.put(rule, 0);
+        }
+    }
+
+    /**
+     * Optimise the statements of an assembler file, then log the report.
+     *
+     * @param statements the statements, which are changed in place.
+     */
+    void optimise(final List<AsmStatement> statements)
+    {
+        if (m_rules.isEmpty())
+        {
+            return;
+        }
+
+        AsmListing listing = new AsmListing(statements);
+        int originalSize = listing.getSize();
+        boolean changed = true;
+        for (int pass = 0; changed && pass < MAX_PASSES; pass++)
+        {
+            changed = false;
+            for (PeepholeRule rule : m_rules)
+            {
+                PeepholeChanges changes = rule.apply(listing, m_profile);
+                if (changes.getCount() > 0)
+                {
+                    changed = true;
+                }
+                m_instructionsRemoved.put(rule,
+                        m_instructionsRemoved.get(rule) + changes.getInstructionsRemoved());
+                m_bytesRemoved.put(rule, m_bytesRemoved.get(rule) + changes.getBytesRemoved());
+            }
+
+        }
+
+        for (PeepholeRule rule : m_rules)
+        {
+            m_log.info(String.format("Peephole rule %s removed %d instructions, %d bytes",
+                    rule.getName(), m_instructionsRemoved.get(rule), m_bytesRemoved.get(rule)));
+        }
+        m_log.info(String.format("Peephole optimisation reduced code from %d to %d bytes",
+                originalSize, listing.getSize()));
+    }
+
+    /**
+     * @param rule a rule.
+     * @return the number of instructions it removed.
+     */
+    public int getInstructionsRemoved(final PeepholeRule rule)
+    {
+        return m_instructionsRemoved.get(rule);
+    }
+
+    /**
+     * @param rule a rule.
+     * @return the number of bytes of program memory it removed.
+     */
+    public int getBytesRemoved(final PeepholeRule rule)
+    {
+        return m_bytesRemoved.get(rule);
+    }
+}
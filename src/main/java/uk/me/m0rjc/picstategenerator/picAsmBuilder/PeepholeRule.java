@@ -0,0 +1,685 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The rules applied by the {@link PeepholeOptimiser} to the generated assembler.
+ * Each rule makes one pass over the listing and reports the changes it made and
+ * the instructions and bytes of program memory they removed.
+ * No rule changes an instruction marked as fixed, other than retargeting a GOTO,
+ * or changes which instruction a skip instruction skips.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public enum PeepholeRule
+{
+    /**
+     * Remove a BANKSEL immediately followed by another, and a BANKSEL of the symbol
+     * selected earlier in the same straight-line code.
+     */
+    BANKSEL("bankSel")
+    {
+        @Override
+        PeepholeChanges apply(final AsmListing listing, final OptimisationProfile profile)
+        {
+            PeepholeChanges changes = new PeepholeChanges(listing);
+            String selected = null;
+            int previous = -1;
+            int i = listing.nextInstruction(-1);
+            while (i >= 0)
+            {
+                AsmStatement s = listing.get(i);
+                boolean entered = previous < 0 || listing.hasLabelBetween(previous, i);
+                if (entered)
+                {
+                    selected = null;
+                }
+
+                if ("BANKSEL".equals(s.getMnemonic()))
+                {
+                    String symbol = s.getOperands()[0];
+                    boolean skipped = listing.isSkipped(i);
+                    if (symbol.equals(selected) && !skipped)
+                    {
+                        // Already selected.
+                        changes.remove(i);
+                        changes.change();
+                        i = listing.nextInstruction(previous);
+                        continue;
+                    }
+                    if (!entered && !skipped && "BANKSEL".equals(listing.get(previous).getMnemonic())
+                            && !listing.isSkipped(previous))
+                    {
+                        // Overridden before it is used.
+                        changes.remove(previous);
+                        changes.change();
+                        i--;
+                    }
+                    selected = skipped ? null : symbol;
+                }
+                else if (changesBank(s) || s.isEndOfFlow())
+                {
+                    selected = null;
+                }
+                previous = i;
+                i = listing.nextInstruction(i);
+            }
+            return changes;
+        }
+    },
+
+    /**
+     * Retarget a jump to a label that only jumps on, and replace a jump to a RETURN
+     * with the RETURN. A branch is only retargeted if the new target is in range.
+     */
+    JUMP_THREADING("jumpThreading")
+    {
+        @Override
+        PeepholeChanges apply(final AsmListing listing, final OptimisationProfile profile)
+        {
+            PeepholeChanges changes = new PeepholeChanges(listing);
+            for (int i = 0; i < listing.size(); i++)
+            {
+                AsmStatement s = listing.get(i);
+                String target = s.getTarget();
+                if (target == null)
+                {
+                    continue;
+                }
+                String destination = findDestination(listing, target);
+                int index = listing.findLabelledInstruction(destination);
+                AsmStatement instruction = index >= 0 ? listing.get(index) : null;
+                if (instruction != null && instruction.isReturn() && s.isUnconditionalJump() && !s.isFixed())
+                {
+                    changes.replace(i, s.replace(instruction.getText(), instruction.getArgs()));
+                    changes.change();
+                }
+                else if (!destination.equals(target) && listing.canReach(i, s.getBranchRange(), destination))
+                {
+                    changes.replace(i, s.replace(s.getMnemonic(), destination));
+                    changes.change();
+                }
+            }
+            return changes;
+        }
+
+        /**
+         * Follow a chain of labels that only jump on.
+         *
+         * @return the label at the end of the chain.
+         */
+        private String findDestination(final AsmListing listing, final String target)
+        {
+            Set<String> visited = new HashSet<String>();
+            String label = target;
+            while (visited.add(label))
+            {
+                int index = listing.findLabelledInstruction(label);
+                String next = index >= 0 && listing.get(index).isUnconditionalJump()
+                        ? listing.get(index).getTarget() : null;
+                if (next == null)
+                {
+                    break;
+                }
+                label = next;
+            }
+            return label;
+        }
+    },
+
+    /**
+     * Remove a jump to the next instruction. If it follows a skip that changes no
+     * register then the skip is removed too.
+     */
+    GOTO_NEXT("gotoNext")
+    {
+        @Override
+        PeepholeChanges apply(final AsmListing listing, final OptimisationProfile profile)
+        {
+            PeepholeChanges changes = new PeepholeChanges(listing);
+            for (int i = 0; i < listing.size(); i++)
+            {
+                AsmStatement s = listing.get(i);
+                String target = s.getTarget();
+                if (target == null || s.isFixed() || !isLabelBeforeNextInstruction(listing, i, target))
+                {
+                    continue;
+                }
+                int previous = listing.previousInstruction(i);
+                if (previous >= 0 && listing.get(previous).isSkip())
+                {
+                    AsmStatement skip = listing.get(previous);
+                    if (skip.isPureSkip() && !skip.isFixed() && !listing.hasLabelBetween(previous, i)
+                            && !listing.isSkipped(previous))
+                    {
+                        changes.remove(i);
+                        changes.remove(previous);
+                        changes.change();
+                        i = previous - 1;
+                    }
+                    continue;
+                }
+                changes.remove(i);
+                changes.change();
+                i--;
+            }
+            return changes;
+        }
+
+        /**
+         * @return true if the label is between the statement and the next instruction.
+         */
+        private boolean isLabelBeforeNextInstruction(final AsmListing listing, final int index,
+                final String label)
+        {
+            for (int i = index + 1; i < listing.size() && !listing.get(i).isInstruction(); i++)
+            {
+                AsmStatement s = listing.get(i);
+                if (s.getKind() == AsmStatement.Kind.SECTION)
+                {
+                    return false;
+                }
+                if (s.getKind() == AsmStatement.Kind.LABEL && s.getText().equals(label))
+                {
+                    return listing.nextInstruction(index) >= 0;
+                }
+            }
+            return false;
+        }
+    },
+
+    /**
+     * Remove instructions that follow a jump or return and are not labelled by a
+     * referenced label, so cannot be reached.
+     */
+    DEAD_CODE("deadCode")
+    {
+        @Override
+        PeepholeChanges apply(final AsmListing listing, final OptimisationProfile profile)
+        {
+            PeepholeChanges changes = new PeepholeChanges(listing);
+            Set<String> referenced = listing.getReferencedSymbols();
+            for (int i = 0; i < listing.size(); i++)
+            {
+                AsmStatement s = listing.get(i);
+                if (!s.isEndOfFlow() || listing.isSkipped(i))
+                {
+                    continue;
+                }
+                int j = i + 1;
+                while (j < listing.size())
+                {
+                    AsmStatement next = listing.get(j);
+                    if (next.getKind() == AsmStatement.Kind.SECTION
+                            || (next.getKind() == AsmStatement.Kind.LABEL && referenced.contains(next.getText()))
+                            || (next.isInstruction() && (next.isFixed() || next.getSize() == 0)))
+                    {
+                        break;
+                    }
+                    if (next.isInstruction())
+                    {
+                        changes.remove(j);
+                        changes.change();
+                    }
+                    else
+                    {
+                        j++;
+                    }
+                }
+            }
+            return changes;
+        }
+    },
+
+    /**
+     * Replace a block of straight-line code ending in a return that repeats the end
+     * of an earlier block with a GOTO to the earlier block, where the profile finds
+     * it worthwhile.
+     */
+    DUPLICATE_RETURN("duplicateReturn")
+    {
+        @Override
+        PeepholeChanges apply(final AsmListing listing, final OptimisationProfile profile)
+        {
+            return mergeTails(listing, profile, true);
+        }
+    },
+
+    /**
+     * Replace a block of straight-line code ending in a GOTO or BRA that repeats the
+     * end of an earlier block with a GOTO to the earlier block, where the profile
+     * finds it worthwhile. A repeated block that is only jumped to is removed, and
+     * the jumps sent to the earlier block.
+     */
+    CROSS_JUMP("crossJump")
+    {
+        @Override
+        PeepholeChanges apply(final AsmListing listing, final OptimisationProfile profile)
+        {
+            return mergeTails(listing, profile, false);
+        }
+    },
+
+    /**
+     * Replace a GOTO with a BRA, and a skip on a STATUS bit over a GOTO with a
+     * conditional branch, where the target is in range.
+     */
+    SHORT_BRANCH("shortBranch")
+    {
+        @Override
+        PeepholeChanges apply(final AsmListing listing, final OptimisationProfile profile)
+        {
+            PeepholeChanges changes = new PeepholeChanges(listing);
+            for (int i = 0; i < listing.size(); i++)
+            {
+                AsmStatement s = listing.get(i);
+                if (!s.isUnconditionalJump() || s.isFixed())
+                {
+                    continue;
+                }
+                String target = s.getTarget();
+                if (target == null)
+                {
+                    continue;
+                }
+                int previous = listing.previousInstruction(i);
+
+                String branch = previous >= 0 ? getStatusBranch(listing.get(previous)) : null;
+                if (branch != null && !listing.get(previous).isFixed()
+                        && !listing.hasLabelBetween(previous, i) && !listing.isSkipped(previous)
+                        && listing.canReach(previous, AsmStatement.CONDITIONAL_BRANCH_RANGE, target))
+                {
+                    changes.replace(previous, listing.get(previous).replace(branch, target));
+                    changes.remove(i);
+                    changes.change();
+                    i--;
+                }
+                else if ("GOTO".equals(s.getMnemonic())
+                        && listing.canReach(i, AsmStatement.BRA_RANGE, target))
+                {
+                    changes.replace(i, s.replace("BRA", target));
+                    changes.change();
+                }
+            }
+            return changes;
+        }
+
+        /**
+         * @return the conditional branch taken when the skip does not skip, or null if the
+         *         skip does not test a STATUS bit that has a branch.
+         */
+        private String getStatusBranch(final AsmStatement skip)
+        {
+            String[] operands = skip.getOperands();
+            if (!skip.isPureSkip() || operands.length < 2 || !"STATUS".equals(operands[0]))
+            {
+                return null;
+            }
+            String bit = operands[1];
+            if (!"Z".equals(bit) && !"C".equals(bit) && !"N".equals(bit) && !"OV".equals(bit))
+            {
+                return null;
+            }
+            // BTFSC skips the GOTO if the bit is clear, so the GOTO is taken if it is set.
+            return "BTFSC".equals(skip.getMnemonic()) ? "B" + bit : "BN" + bit;
+        }
+    };
+
+    /** Bytes used by a GOTO. */
+    private static final int GOTO_SIZE = 4;
+
+    /** Instruction cycles taken by a GOTO. */
+    private static final int GOTO_CYCLES = 2;
+
+    /** Name used in the XML definition file. */
+    private final String m_name;
+
+    /**
+     * @param name name used in the XML definition file.
+     */
+    private PeepholeRule(final String name)
+    {
+        m_name = name;
+    }
+
+    /** @return the name used in the XML definition file. */
+    public String getName()
+    {
+        return m_name;
+    }
+
+    /**
+     * @param name a name used in the XML definition file.
+     * @return the rule, or null if there is none with that name.
+     */
+    public static PeepholeRule forName(final String name)
+    {
+        for (PeepholeRule rule : values())
+        {
+            if (rule.m_name.equals(name))
+            {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Make one pass over the listing.
+     *
+     * @param listing the listing to change.
+     * @param profile what to favour where a change makes code smaller but slower.
+     * @return the changes made and the code they removed.
+     */
+    abstract PeepholeChanges apply(AsmListing listing, OptimisationProfile profile);
+
+    /**
+     * Replace the end of each block of straight-line code that repeats the end of an
+     * earlier block with a GOTO to the earlier block.
+     *
+     * @param listing the listing to change.
+     * @param profile what to favour.
+     * @param returns true for blocks ending in a return, false for blocks ending in
+     *            a GOTO or BRA.
+     * @return the changes made and the code they removed.
+     */
+    private static PeepholeChanges mergeTails(final AsmListing listing, final OptimisationProfile profile,
+            final boolean returns)
+    {
+        PeepholeChanges changes = new PeepholeChanges(listing);
+        // Earlier blocks by their last instruction, as only those can share a tail.
+        Map<String, List<List<Integer>>> blocksByEnd = new HashMap<String, List<List<Integer>>>();
+        for (int i = 0; i < listing.size(); i++)
+        {
+            if (!isBlockEnd(listing.get(i), returns))
+            {
+                continue;
+            }
+            List<Integer> block = findBlock(listing, i);
+            String endKey = listing.get(i).getKey();
+            List<List<Integer>> blocks = blocksByEnd.get(endKey);
+            if (blocks == null)
+            {
+                blocks = new ArrayList<List<Integer>>();
+                blocksByEnd.put(endKey, blocks);
+            }
+            int bestLength = 0;
+            List<Integer> bestBlock = null;
+            for (List<Integer> earlier : blocks)
+            {
+                int length = commonTailSize(listing, earlier, block);
+                if (length > bestLength)
+                {
+                    bestLength = length;
+                    bestBlock = earlier;
+                }
+            }
+            if (bestBlock == null)
+            {
+                blocks.add(block);
+                continue;
+            }
+
+            int bytes = tailBytes(listing, block, bestLength);
+            int sizeBefore = listing.size();
+            int labelIndex = bestBlock.get(bestBlock.size() - bestLength);
+            String label = listing.labelInstruction(labelIndex);
+            // A new label before the duplicate block moves it on.
+            int shift = listing.size() - sizeBefore;
+            int start = block.get(block.size() - bestLength) + shift;
+            int end = block.get(block.size() - 1) + shift;
+            List<Integer> jumps = fallsInto(listing, start) ? null : findJumpsTo(listing, start, end, label);
+            if (!isMergeBetter(profile, bytes, jumps != null))
+            {
+                if (shift > 0)
+                {
+                    listing.remove(labelIndex);
+                }
+                blocks.add(block);
+                continue;
+            }
+
+            if (jumps != null)
+            {
+                for (int j : jumps)
+                {
+                    changes.replace(j, listing.get(j).replace(listing.get(j).getMnemonic(), label));
+                }
+                for (int j = end; j >= start; j--)
+                {
+                    if (listing.get(j).isInstruction())
+                    {
+                        changes.remove(j);
+                    }
+                }
+            }
+            else
+            {
+                changes.replace(start, listing.get(start).replace("GOTO", label));
+                for (int j = end; j > start; j--)
+                {
+                    if (listing.get(j).isInstruction())
+                    {
+                        changes.remove(j);
+                    }
+                }
+            }
+            changes.change();
+            // Only the new label moves the earlier blocks. Carry on from the GOTO, or from
+            // what followed a removed tail, which may itself end a block.
+
+            if (shift > 0)
+            {
+                moveBlocks(blocksByEnd, labelIndex, shift);
+            }
+            i = start - 1;
+        }
+        return changes;
+    }
+
+    /**
+     * Move the positions of the blocks at or after the given position.
+     */
+    private static void moveBlocks(final Map<String, List<List<Integer>>> blocksByEnd, final int from,
+            final int shift)
+    {
+        for (List<List<Integer>> blocks : blocksByEnd.values())
+        {
+            for (List<Integer> block : blocks)
+            {
+                for (int j = 0; j < block.size(); j++)
+                {
+                    if (block.get(j) >= from)
+                    {
+                        block.set(j, block.get(j) + shift);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the statement ends a block that may be merged.
+     */
+    private static boolean isBlockEnd(final AsmStatement s, final boolean returns)
+    {
+        if (s.isFixed())
+        {
+            return false;
+        }
+        if (returns)
+        {
+            return s.isReturn();
+        }
+        return s.isUnconditionalJump() && s.getTarget() != null && s.getLoopIterations() == 0;
+    }
+
+    /**
+     * @return the positions of the instructions of the straight-line code ending
+     *         at the given return or jump.
+     */
+    private static List<Integer> findBlock(final AsmListing listing, final int end)
+    {
+        List<Integer> block = new ArrayList<Integer>();
+        block.add(end);
+        int i = end;
+        while (true)
+        {
+            int previous = listing.previousInstruction(i);
+            if (previous < 0 || listing.hasLabelBetween(previous, i))
+            {
+                break;
+            }
+            AsmStatement s = listing.get(previous);
+            if (s.isSkip())
+            {
+                // The instruction after a skip cannot be replaced by a GOTO.
+                block.remove(0);
+                break;
+            }
+            if (s.isFixed() || s.isEndOfFlow() || s.getSize() == 0)
+            {
+                break;
+            }
+            block.add(0, previous);
+            i = previous;
+        }
+        return block;
+    }
+
+    /**
+     * @return the number of instructions at the end of the two blocks that are the same.
+     */
+    private static int commonTailSize(final AsmListing listing, final List<Integer> a, final List<Integer> b)
+    {
+        int length = 0;
+        while (length < a.size() && length < b.size()
+                && listing.get(a.get(a.size() - 1 - length)).getKey()
+                        .equals(listing.get(b.get(b.size() - 1 - length)).getKey()))
+        {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * @return the bytes used by the given number of instructions at the end of the block.
+     */
+    private static int tailBytes(final AsmListing listing, final List<Integer> block, final int length)
+    {
+        int bytes = 0;
+        for (int i = block.size() - length; i < block.size(); i++)
+        {
+            bytes += listing.get(block.get(i)).getSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return true if the instruction may be reached from the one before it, rather
+     *         than only by jumps to a label on it.
+     */
+    private static boolean fallsInto(final AsmListing listing, final int index)
+    {
+        int previous = listing.previousInstruction(index);
+        return previous >= 0 && (!listing.get(previous).isEndOfFlow() || listing.isSkipped(previous));
+    }
+
+    /**
+     * Find the jumps to a repeated tail that is only jumped to, so that they can be
+     * sent to the earlier copy and the tail removed.
+     *
+     * @param listing the listing.
+     * @param start position of the first instruction of the tail.
+     * @param end position of the last instruction of the tail.
+     * @param label the label on the earlier copy.
+     * @return the positions of the jumps, or null if a label on the tail is used other
+     *         than by a jump that can be sent to the earlier copy.
+     */
+    private static List<Integer> findJumpsTo(final AsmListing listing, final int start, final int end,
+            final String label)
+    {
+        Set<String> labels = new HashSet<String>();
+        for (int i = start - 1; i >= 0 && !listing.get(i).isInstruction(); i--)
+        {
+            AsmStatement s = listing.get(i);
+            if (s.getKind() == AsmStatement.Kind.SECTION)
+            {
+                break;
+            }
+            if (s.getKind() == AsmStatement.Kind.LABEL)
+            {
+                labels.add(s.getText());
+            }
+        }
+
+        List<Integer> jumps = new ArrayList<Integer>();
+        for (int i = 0; i < listing.size(); i++)
+        {
+            AsmStatement s = listing.get(i);
+            Set<String> symbols = AsmListing.getSymbols(s);
+            symbols.retainAll(labels);
+            if (symbols.isEmpty())
+            {
+                continue;
+            }
+            if ((i >= start && i <= end) || s.isComputedJump() || !labels.contains(s.getTarget())
+                    || (s.isFixed() && !"GOTO".equals(s.getMnemonic()))
+                    || !listing.canReach(i, s.getBranchRange(), label))
+            {
+                return null;
+            }
+            jumps.add(i);
+        }
+        return jumps;
+    }
+
+    /**
+     * Is it worth replacing a repeated tail with a GOTO to an earlier copy? The GOTO
+     * costs two words and two cycles each time the tail is run, so saves code only if
+     * the tail is longer, and the speed profile refuses it. A tail that is only jumped
+     * to needs no GOTO if the jumps are sent to the earlier copy instead.
+     *
+     * @param profile what to favour.
+     * @param tailBytes bytes of the repeated tail.
+     * @param jumpsMoved true if the jumps to the tail are sent to the earlier copy.
+     * @return true to replace the tail.
+     */
+    private static boolean isMergeBetter(final OptimisationProfile profile, final int tailBytes,
+            final boolean jumpsMoved)
+    {
+        int savedWords = (jumpsMoved ? tailBytes : tailBytes - GOTO_SIZE) / AsmStatement.WORD_SIZE;
+        int addedCycles = jumpsMoved ? 0 : GOTO_CYCLES;
+
+        if (savedWords <= 0)
+        {
+            return false;
+        }
+        return profile != OptimisationProfile.SPEED || addedCycles == 0;
+    }
+
+    /**
+     * @return true if the instruction may change the selected bank.
+     */
+    private static boolean changesBank(final AsmStatement s)
+    {
+        String mnemonic = s.getMnemonic();
+        if ("CALL".equals(mnemonic) || "RCALL".equals(mnemonic) || "MOVLB".equals(mnemonic))
+        {
+            return true;
+        }
+        for (String operand : s.getOperands())
+        {
+            if ("BSR".equals(operand))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,19 +1,27 @@
 package uk.me.m0rjc.picstategenerator.picAsmBuilder;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import uk.me.m0rjc.picstategenerator.model.Node;
 import uk.me.m0rjc.picstategenerator.model.RomLocation;
+import uk.me.m0rjc.picstategenerator.model.StateModel;
 import uk.me.m0rjc.picstategenerator.model.SymbolOwnership;
 import uk.me.m0rjc.picstategenerator.model.Transition;
 import uk.me.m0rjc.picstategenerator.model.Variable;
 import uk.me.m0rjc.picstategenerator.visitor.IModel;
 import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
 import uk.me.m0rjc.picstategenerator.visitor.INode;
+import uk.me.m0rjc.picstategenerator.visitor.ISubroutineCosts;
 
 /**
  * Build assembly source code for the PIC18. Outputs .asm, .inc and .h for use
@@ -21,12 +29,52 @@ import uk.me.m0rjc.picstategenerator.visitor.INode;
  * 
  * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
  */
-public class Pic18AsmBuilder implements IModelVisitor
+public class Pic18AsmBuilder implements IModelVisitor, ISubroutineCosts
 {
     /** Maximum ASCII value to represent as a character in assembler. */
     private static final int MAX_PRINTABLE_ASCII = 126;
     /** Minium ASCII value to represent as a character in assembler. */
     private static final int MIN_PRINTABLE_ASCII = 32;
+    /** Default for {@link #setJumpTableMinimumCases(int)}. */
+    public static final int DEFAULT_JUMP_TABLE_MINIMUM_CASES = 8;
+    /** Default for {@link #setJumpTableDensity(int)}. */
+    public static final int DEFAULT_JUMP_TABLE_DENSITY = 50;
+    /** Default for {@link #setDecisionTreeMinimumCases(int)}. */
+    public static final int DEFAULT_DECISION_TREE_MINIMUM_CASES = 4;
+    /** Default for {@link #setXorChainMinimumCases(int)}. */
+    public static final int DEFAULT_XOR_CHAIN_MINIMUM_CASES = 2;
+    /** Size of a GOTO instruction in a jump table in bytes. */
+    private static final int JUMP_TABLE_ENTRY_SIZE = 4;
+    /** Amount of bytes per DB line in a jump table index. */
+    private static final int DB_BYTES_PER_LINE = 16;
+    /** Number of distinct byte values. */
+    private static final int BYTE_VALUES = 256;
+    /** Largest value of a byte. */
+    private static final int BYTE_MASK = 0xFF;
+    /** Number of flags held in a byte. */
+    private static final int BITS_PER_BYTE = 8;
+    /** Fewest flags to change at once by loading a mask into W rather than one BSF or BCF each. */
+    private static final int MIN_FLAGS_FOR_MASK = 3;
+    /** Words of a loop that clears a variable through FSR0: LFSR, MOVLW, CLRF, DECFSZ and BRA. */
+    static final int CLEAR_LOOP_WORDS = 6;
+    /** Most bytes a loop counted down in W can clear. */
+    private static final int MAX_CLEAR_LOOP_BYTES = 255;
+    /**
+     * Words of a loop that copies a variable through FSR0: MOVLW, MOVWF, DECF, LFSR,
+     * MOVFF, LFSR, MOVFF, DECFSZ and BRA.
+     */
+    static final int COPY_LOOP_WORDS = 13;
+    /** Most bytes a loop indexing FSR0 by W can copy, as PLUSW0 takes W as signed. */
+    private static final int MAX_COPY_LOOP_BYTES = 128;
+
+    /** Value of {@link #m_currentBank} when the selected bank is not known. */
+    private static final int UNKNOWN_BANK = -1;
+    /** Most nodes that can be numbered by a single byte state number. */
+    private static final int MAX_BYTE_STATES = 256;
+    /** Most nodes that the state table can hold, as its offset is 16 bits. */
+    private static final int MAX_STATES = 65536 / JUMP_TABLE_ENTRY_SIZE;
+    /** Label of the table of GOTO to the step code of each node by state number. */
+    private static final String STATE_TABLE_LABEL = "tbl_states";
 
     /** Logging. */
     private final Logger m_log = Logger.getLogger(Pic18AsmBuilder.class.getName());
@@ -46,23 +94,30 @@ public class Pic18AsmBuilder implements IModelVisitor
     /** Does this model requires the subroutine stack? */
     private boolean m_requiresSubroutineStack;
 
+    /**
+     * Number of returns the subroutine stack holds, a power of two so that its index wraps
+     * with a mask. A subroutine left without returning leaves its return behind,
+     * to be overwritten when the stack wraps.
+     */
+    private int m_subroutineStackSlots;
+
     /** Have we yet output our own GLOBALs? */
     private boolean m_hasOutputEntryPointGlobal;
 
     /** Variable that holds the state pointer. */
     private Variable m_statePointer;
 
-    /** Variable that holds the subroutine stack. (Currently only 1 level deep) */
+    /** Variable that holds the subroutine stack. */
     private Variable m_subroutineStack;
 
-    /** Name of the model's initial state. */
-    private INode m_rootState;
-
     /**
-     * Number of RAM banks found in the model. If 1 or less then we don't need
-     * to be so paranoid about BANKSEL
+     * Variable that holds the offset in the subroutine stack of the next return,
+     * or null if the stack holds a single return.
      */
-    private int m_numberOfBanksUsed = 0;
+    private Variable m_subroutineStackIndex;
+
+    /** Name of the model's initial state. */
+    private INode m_rootState;
 
     /** Include files. */
     private List<String> m_includes = new ArrayList<String>();
@@ -76,8 +131,30 @@ public class Pic18AsmBuilder implements IModelVisitor
     /** True to generate a large ROM model. */
     private boolean m_largeRomModel;
 
-    /** Bank currently BANKSEL if known. */
-    private int m_currentBank = -1;
+    /** Bank currently BANKSEL if known, otherwise {@link #UNKNOWN_BANK}. */
+    private int m_currentBank = UNKNOWN_BANK;
+
+    /**
+     * False if the code being written cannot be reached, because the previous
+     * instruction was an unconditional jump or return.
+     */
+    private boolean m_reachable = true;
+
+    /**
+     * The bank selected at each jump to an internal label that has not yet been
+     * written, merged over all such jumps. {@link #UNKNOWN_BANK} if they differ or
+     * if the label may be entered from outside the current node.
+     */
+    private Map<String, Integer> m_labelEntryBanks = new HashMap<String, Integer>();
+
+    /** What is known about the content of W. */
+    private WorkingRegister m_workingRegister = WorkingRegister.UNKNOWN;
+
+    /**
+     * What is known about W at each jump to an internal label that has not yet been
+     * written, merged over all such jumps, in the same way as {@link #m_labelEntryBanks}.
+     */
+    private Map<String, WorkingRegister> m_labelEntryWorkingRegisters = new HashMap<String, WorkingRegister>();
 
     /** Counter for creating transition label names. */
     private int m_internalLabelCounter = 0;
@@ -107,6 +184,72 @@ public class Pic18AsmBuilder implements IModelVisitor
      */
     private String m_currentNodeName;
 
+    /** Minimum number of cases in an input switch to use a jump table. */
+    private int m_jumpTableMinimumCases = DEFAULT_JUMP_TABLE_MINIMUM_CASES;
+
+    /** Percentage of its range an input switch must use for a dense jump table. */
+    private int m_jumpTableDensity = DEFAULT_JUMP_TABLE_DENSITY;
+
+    /** Minimum number of cases in an input switch to use a decision tree. */
+    private int m_decisionTreeMinimumCases = DEFAULT_DECISION_TREE_MINIMUM_CASES;
+
+    /** Minimum number of cases in an input switch to use an XOR chain. */
+    private int m_xorChainMinimumCases = DEFAULT_XOR_CHAIN_MINIMUM_CASES;
+
+    /** The input switch currently being rendered, or null. */
+    private InputSwitch m_inputSwitch;
+
+    /** Peephole rules applied to the assembler before it is written. */
+    private Set<PeepholeRule> m_peepholeRules = EnumSet.allOf(PeepholeRule.class);
+
+    /** FSR kept pointing into the array being stored to, or 0 to index each store. */
+    private int m_storageFsr;
+
+    /** True to hold the current node as a state number instead of a pointer. */
+    private boolean m_stateIndex;
+
+    /** Bytes of the variable holding the current node. */
+    private int m_stateSize;
+
+    /** State number of each node that has been gone to, in order of number. */
+    private Map<String, Integer> m_stateNumbers = new LinkedHashMap<String, Integer>();
+
+    /** What to favour where there is a choice between smaller and faster code. */
+    private OptimisationProfile m_optimisationProfile = OptimisationProfile.BALANCED;
+
+    /** Most instruction cycles the step method may take, or 0 for no limit. */
+    private int m_cycleBudget;
+
+    /** Step code labels of all nodes, which the step method may go to. */
+    private List<String> m_stepLabels = new ArrayList<String>();
+
+    /** Labels saved on the subroutine stack, which a return from subroutine may go to. */
+    private List<String> m_subroutineReturnLabels = new ArrayList<String>();
+
+    /** Labels to report the instruction cycles of, with a description of the code. */
+    private Map<String, String> m_cycleReportLabels = new LinkedHashMap<String, String>();
+
+    /** Instruction cycles of each form of clear or copy of more than one byte, by description. */
+    private Map<String, Integer> m_blockOperations = new LinkedHashMap<String, Integer>();
+
+    /** Program memory used by each node and RAM used by each variable. */
+    private MemoryMap m_memoryMap = new MemoryMap();
+
+    /** True if a region of the memory map has been started outside any transition. */
+    private boolean m_regionStarted;
+
+    /** Node whose code is being written, for the memory map. */
+    private String m_regionNodeName;
+
+    /** Most program words the module may use, or 0 for no limit. */
+    private int m_romLimit;
+
+    /** Most bytes of RAM the module may declare, or 0 for no limit. */
+    private int m_ramLimit;
+
+    /** Most program words each node may use, or 0 for no limit. */
+    private int m_nodeRomLimit;
+
     /**
      * Processor name for the LIST directive. If null then no LIST directive
      * will be output.
@@ -124,6 +267,296 @@ public class Pic18AsmBuilder implements IModelVisitor
         m_largeRomModel = largeRomModel;
     }
 
+    /** @return true if 3 byte pointers are used. */
+    protected boolean isLargeRomModel()
+    {
+        return m_largeRomModel;
+    }
+
+    /**
+     * Minimum number of cases a run of transitions on the input must have before
+     * it is dispatched through a jump table. Smaller runs test each value in turn.
+     * 
+     * @param minimumCases minimum number of cases, or 0 to never use a jump table.
+     */
+    public void setJumpTableMinimumCases(final int minimumCases)
+    {
+        m_jumpTableMinimumCases = minimumCases;
+    }
+
+    /**
+     * Percentage of the range of values covered by a jump table that must be
+     * cases for the table to hold a GOTO for every value in the range. Below this
+     * a byte table selects the GOTO instead, which is smaller for sparse cases.
+     * 
+     * @param densityPercent percentage from 0 to 100.
+     */
+    public void setJumpTableDensity(final int densityPercent)
+    {
+        m_jumpTableDensity = densityPercent;
+    }
+
+    /**
+     * Minimum number of cases a run of transitions on the input must have before
+     * it is dispatched through a balanced tree of comparisons, if it is not large
+     * enough for a jump table. The tree tests O(log n) ranges to find the case
+     * rather than testing each range in turn.
+     * 
+     * @param minimumCases minimum number of cases, or 0 to never use a decision tree.
+     */
+    public void setDecisionTreeMinimumCases(final int minimumCases)
+    {
+        m_decisionTreeMinimumCases = minimumCases;
+    }
+
+    /**
+     * Minimum number of cases a run of transitions testing the input for single values
+     * must have before it is dispatched through an XOR chain, if it is too small for a
+     * jump table or decision tree. The input is loaded into W once and each further
+     * value costs an XORLW and a branch, rather than a MOVLW, compare and GOTO.
+     * 
+     * @param minimumCases minimum number of cases, or 0 to never use an XOR chain.
+     */
+    public void setXorChainMinimumCases(final int minimumCases)
+    {
+        m_xorChainMinimumCases = minimumCases;
+    }
+
+    /**
+     * Peephole rules to apply to the generated assembler before it is written. All
+     * rules are applied by default.
+     * 
+     * @param rules the rules, or an empty set for none.
+     */
+    public void setPeepholeRules(final Set<PeepholeRule> rules)
+    {
+        m_peepholeRules = rules;
+    }
+
+    /**
+     * Reserve FSR1 or FSR2 to point at the next member of the array being stored
+     * to by a sequence such as a Numbers field. The FSR is set up in the field's
+     * entry code, each value is stored through POSTINC and the terminator is
+     * written through INDF, in place of indexing FSR0 by the counter for each
+     * store. Methods called by the model, and any code sharing the step method's
+     * context, must not change the FSR.
+     * 
+     * @param fsr 1 or 2 to reserve that FSR, or 0 to index each store. The default is 0.
+     */
+    public void setStorageFsr(final int fsr)
+    {
+        if (fsr < 0 || fsr > 2)
+        {
+            throw new IllegalArgumentException("Storage FSR must be 1, 2 or 0 for none: " + fsr);
+        }
+        m_storageFsr = fsr;
+    }
+
+    /**
+     * Hold the current node as a state number, dispatched by the step method
+     * through a table of GOTO, in place of a pointer to its step code. The state
+     * number takes one byte if the model has at most 256 nodes with transitions,
+     * otherwise two. It is exported, with a constant for the number of each node,
+     * so that application code can read and log it cheaply.
+     * 
+     * @param stateIndex true to use a state number. The default is false.
+     */
+    public void setStateIndex(final boolean stateIndex)
+    {
+        m_stateIndex = stateIndex;
+    }
+
+    /** @return true if the current node is held as a state number. */
+    protected boolean isStateIndex()
+    {
+        return m_stateIndex;
+    }
+
+    /**
+     * What to favour where there is a choice between smaller and faster code.
+     * Defaults to {@link OptimisationProfile#BALANCED}.
+     * 
+     * @param profile the profile.
+     */
+    public void setOptimisationProfile(final OptimisationProfile profile)
+    {
+        m_optimisationProfile = profile;
+    }
+
+    /** @return what to favour where there is a choice between smaller and faster code. */
+    public OptimisationProfile getOptimisationProfile()
+    {
+        return m_optimisationProfile;
+    }
+
+    /**
+     * Choose for each node whether its entry code is copied into each transition
+     * to it or shared, using the optimisation profile. Call before the model is
+     * visited.
+     * 
+     * @param model the model to be built, which is changed.
+     */
+    public void planEntryCode(final StateModel model)
+    {
+        new EntryCodePlanner(m_optimisationProfile, getStateSize(model)).plan(model);
+    }
+
+    @Override
+    public int getGoToNodeCost(final IModel model)
+    {
+        return EntryCodePlanner.getGoToNodeCost(getStateSize(model));
+    }
+
+    @Override
+    public int getReturnSize()
+    {
+        return getSubroutineReturnSize(1);
+    }
+
+    /**
+     * The size profile counts only the words saved. The speed profile shares
+     * nothing, as each call costs cycles. The balanced profile counts the cycles
+     * against the words.
+     */
+    @Override
+    public int getSharingBenefit(final int words, final int cycles)
+    {
+        switch (m_optimisationProfile)
+        {
+        case SIZE:
+            return words;
+        case SPEED:
+            return 0;
+        default:
+            return words - cycles;
+        }
+    }
+
+    /**
+     * Most instruction cycles the step method may take in the worst case, from
+     * entry to return, not counting methods it calls. If the step method is called
+     * for each byte received then this is the instruction clock rate divided by
+     * the bytes received per second. Generation fails if the budget is exceeded.
+     * 
+     * @param cycles the budget, or 0 for no limit.
+     */
+    public void setCycleBudget(final int cycles)
+    {
+        m_cycleBudget = cycles;
+    }
+
+    /**
+     * Most program words the generated module may use after optimisation.
+     * Generation fails if the limit is exceeded.
+     * 
+     * @param words the limit, or 0 for no limit.
+     */
+    public void setRomLimit(final int words)
+    {
+        m_romLimit = words;
+    }
+
+    /**
+     * Most bytes of RAM the generated module may declare, in all banks.
+     * Generation fails if the limit is exceeded.
+     * 
+     * @param bytes the limit, or 0 for no limit.
+     */
+    public void setRamLimit(final int bytes)
+    {
+        m_ramLimit = bytes;
+    }
+
+    /**
+     * Most program words any one node may use, counting its step code, shared entry
+     * code and each copy of its entry code in transitions to it. Generation fails if
+     * the limit is exceeded.
+     * 
+     * @param words the limit, or 0 for no limit.
+     */
+    public void setNodeRomLimit(final int words)
+    {
+        m_nodeRomLimit = words;
+    }
+
+    /**
+     * Bytes of RAM needed by the builder for its own variables, the state pointer
+     * and, if the model needs it, the subroutine stack. These are placed in ACCESS
+     * RAM if the model has any ACCESS variables.
+     * 
+     * @param model the model to be built.
+     * @return the number of bytes.
+     */
+    public int getInternalAccessBytes(final IModel model)
+    {
+        int stateSize = getStateSize(model);
+        if (!model.requiresSubroutineStack())
+        {
+            return stateSize;
+        }
+        int slots = getSubroutineStackSlots(model);
+        int stackSize = slots * getSubroutineReturnSize(slots);
+        return slots > 1 ? stateSize + stackSize + 1 : stateSize + stackSize;
+    }
+
+    /**
+     * @param model the model to be built.
+     * @return number of returns the subroutine stack holds, the depth of the model's stack
+     *         rounded up to a power of two.
+     */
+    private static int getSubroutineStackSlots(final IModel model)
+    {
+        int slots = 1;
+        while (slots < model.getSubroutineStackDepth())
+        {
+            slots *= 2;
+        }
+        return slots;
+    }
+
+    /**
+     * @param slots number of returns the subroutine stack holds.
+     * @return bytes for each return in the subroutine stack. A stack of more than
+     *         one return pads a large ROM pointer to four bytes so that its index
+     *         wraps with a mask.
+     */
+    private int getSubroutineReturnSize(final int slots)
+    {
+        if (!m_largeRomModel)
+        {
+            return 2;
+        }
+        return slots > 1 ? 4 : 3;
+    }
+
+    /**
+     * @param model the model to be built.
+     * @return bytes of the variable holding the current node.
+     */
+    private int getStateSize(final IModel model)
+    {
+        if (!isStateIndex())
+        {
+            return m_largeRomModel ? 3 : 2;
+        }
+
+        int resumable = 0;
+        for (Node node : model.getNodes())
+        {
+            if (node.hasTransitions())
+            {
+                resumable++;
+            }
+        }
+        if (resumable > MAX_STATES)
+        {
+            throw new IllegalStateException(String.format(
+                    "Model %s has %d nodes, more than the %d a state number can select.",
+                    model.getModelName(), resumable, MAX_STATES));
+        }
+        return resumable <= MAX_BYTE_STATES ? 1 : 2;
+    }
+
     /**
      * Base name for output files. Defaults to the model name. For example if
      * the base name is "gps" then output files would be "gps.asm", "gps.inc",
@@ -159,9 +592,20 @@ public class Pic18AsmBuilder implements IModelVisitor
     @Override
     public void visitStartModel(final IModel model)
     {
+        for (Variable v : model.getVariables())
+        {
+            if (v.isAwaitingBank() && v.isMustDeclareStorage())
+            {
+                throw new IllegalStateException("Variable " + v.getName()
+                        + " has an automatic location that has not been allocated");
+            }
+        }
+
         m_modelName = model.getModelName();
         m_rootState = model.getInitialState();
         m_requiresSubroutineStack = model.requiresSubroutineStack();
+        m_subroutineStackSlots = getSubroutineStackSlots(model);
+        m_stateSize = getStateSize(model);
 
         if (m_fileBaseName == null)
         {
@@ -260,10 +704,61 @@ public class Pic18AsmBuilder implements IModelVisitor
         }
     }
 
+    /** @return writer for the assembly .asm file. */
+    protected PicAssemblyWriter getAssembler()
+    {
+        return m_assembler;
+    }
+
+    /** @return program memory used by each node and RAM used by each variable. */
+    protected MemoryMap getMemoryMap()
+    {
+        return m_memoryMap;
+    }
+
+    /** @return variable that holds the state pointer. */
+    protected Variable getStatePointer()
+    {
+        return m_statePointer;
+    }
+
+    /** @return variable that holds the subroutine stack, or null if the model does not need it. */
+    protected Variable getSubroutineStack()
+    {
+        return m_subroutineStack;
+    }
+
+    /**
+     * @return variable that holds the index of the subroutine stack, or null if the
+     *         stack holds a single return.
+     */
+    protected Variable getSubroutineStackIndex()
+    {
+        return m_subroutineStackIndex;
+    }
+
+    /** @return bytes for each return in the subroutine stack. */
+    protected int getSubroutineReturnSize()
+    {
+        return getSubroutineReturnSize(m_subroutineStackSlots);
+    }
+
+    /** @return mask that wraps the index of the subroutine stack. */
+    protected int getSubroutineStackMask()
+    {
+        return m_subroutineStackSlots * getSubroutineReturnSize() - 1;
+    }
+
+    /** @return the model's initial state. */
+    protected INode getRootState()
+    {
+        return m_rootState;
+    }
+
     /**
      * @return the public name of the initialise method in the resultant assembler module.
      */
-    private String getInitMethodName()
+    protected String getInitMethodName()
     {
         return m_modelName + "Init";
     }
@@ -271,7 +766,7 @@ public class Pic18AsmBuilder implements IModelVisitor
     /**
      * @return the public name of the step method in the resultant assembler module.
      */
-    private String getStepMethodName()
+    protected String getStepMethodName()
     {
         return m_modelName + "Step";
     }
@@ -282,7 +777,7 @@ public class Pic18AsmBuilder implements IModelVisitor
      * @param nodeName node to write a label or GOTO command for
      * @return the name of the label that will be used for the shared entry code for that node.
      */
-    private String getNodeEntryLabel(final String nodeName)
+    protected String getNodeEntryLabel(final String nodeName)
     {
         return "enter_" + nodeName;
     }
@@ -294,7 +789,7 @@ public class Pic18AsmBuilder implements IModelVisitor
      *            the name of the node.
      * @return the name of the step label
      */
-    private String getNodeStepLabel(final String nodeName)
+    protected String getNodeStepLabel(final String nodeName)
     {
         return "step_" + nodeName;
     }
@@ -303,6 +798,7 @@ public class Pic18AsmBuilder implements IModelVisitor
     public void visitCreateVariableDefinition(final Variable v)
     {
         m_assembler.ramResourceAllocation(v.getName(), v.getSize());
+        m_memoryMap.addVariable(v);
         if(v.isMustExport())
         {
             if(v.hasFlags())
@@ -387,7 +883,6 @@ public class Pic18AsmBuilder implements IModelVisitor
     {
         if (modelDefinesVariablesInThisBank)
         {
-            m_numberOfBanksUsed++;
             String ramSectionName = getRamSectionName(bankNumber);
 
             m_assembler.blankLine();
@@ -428,19 +923,32 @@ public class Pic18AsmBuilder implements IModelVisitor
      * @param bankNumber
      *            bank number to store them.
      */
-    private void buildInternalPointers(final int bankNumber)
+    protected void buildInternalPointers(final int bankNumber)
     {
-        if (m_statePointer == null)
+        if (m_statePointer == null && isStateIndex())
+        {
+            m_statePointer = new Variable(m_modelName + "State", SymbolOwnership.GLOBAL,
+                    bankNumber, m_stateSize);
+            m_assembler.opCode("GLOBAL", m_statePointer.getName());
+            visitCreateVariableDefinition(m_statePointer);
+        }
+        else if (m_statePointer == null)
         {
             m_statePointer = new Variable("_statePtr", SymbolOwnership.INTERNAL,
-                    bankNumber, m_largeRomModel ? 3 : 2);
+                    bankNumber, m_stateSize);
             visitCreateVariableDefinition(m_statePointer);
         }
         if (m_subroutineStack == null && m_requiresSubroutineStack)
         {
             m_subroutineStack = new Variable("_subReturn", SymbolOwnership.INTERNAL,
-                    bankNumber, m_largeRomModel ? 3 : 2);
+                    bankNumber, m_subroutineStackSlots * getSubroutineReturnSize());
             visitCreateVariableDefinition(m_subroutineStack);
+            if (m_subroutineStackSlots > 1)
+            {
+                m_subroutineStackIndex = new Variable("_subIndex", SymbolOwnership.INTERNAL,
+                        bankNumber, 1);
+                visitCreateVariableDefinition(m_subroutineStackIndex);
+            }
         }
     }
 
@@ -460,24 +968,29 @@ public class Pic18AsmBuilder implements IModelVisitor
     }
 
     /** Output the method that initialises the state machine. */
-    private void writeInitMethod()
+    protected void writeInitMethod()
     {
-        clearBankSel();
         m_assembler.blankLine();
         m_assembler.startBlockComment();
         m_assembler.writeBlockCommentLine("State model initialisation.");
         m_assembler.endBlockComment();
 
-        m_assembler.writeLabel(getInitMethodName());
-        clearBankSel();
-        setPointer(m_statePointer, getNodeStepLabel(m_rootState.getStateName()));
+        startRegion(m_memoryMap.addCode(getInitMethodName()));
+        writeEntryLabel(getInitMethodName());
+        setState(m_rootState.getStateName());
+        if (m_subroutineStackIndex != null)
+        {
+            banksel(m_subroutineStackIndex);
+            m_assembler.opCode("CLRF", m_subroutineStackIndex.getName(), access(m_subroutineStackIndex));
+            variableWritten(m_subroutineStackIndex);
+        }
         m_assembler.opCode("RETURN");
+        setUnreachable();
     }
 
     /** Output the method that processes the current state. */
-    private void writeProcessStateMethod()
+    protected void writeProcessStateMethod()
     {
-        clearBankSel();
         m_assembler.blankLine();
         m_assembler.startBlockComment();
         m_assembler.writeBlockCommentLine("State model entry point.");
@@ -485,39 +998,147 @@ public class Pic18AsmBuilder implements IModelVisitor
                 .writeBlockCommentLine("This method executes the code for the current state.");
         m_assembler.endBlockComment();
 
-        m_assembler.writeLabel(getStepMethodName());
-        gotoPointer(m_statePointer);
-
+        startRegion(m_memoryMap.addCode(getStepMethodName()));
+        writeEntryLabel(getStepMethodName());
+        m_cycleReportLabels.put(getStepMethodName(), "Dispatch to the current node");
+        if (isStateIndex())
+        {
+            gotoStateTable();
+        }
+        else
+        {
+            gotoPointer(m_statePointer, m_stepLabels);
+        }
     }
 
-    @Override
-    public void startSharedEntryCode(final INode node)
+    /**
+     * Write instructions to go to the entry of the state table selected by the
+     * state number.
+     */
+    private void gotoStateTable()
     {
-        assert m_codeBlockStack.empty() : "Code block stack not cleared by previous node";
+        banksel(m_statePointer);
+        if (m_stateSize == 1)
+        {
+            loadVariable(m_statePointer);
+            gotoTableEntry(STATE_TABLE_LABEL);
+            return;
+        }
 
-        m_currentNodeName = null; // Do not allow matching
-        clearBankSel();
-        m_assembler.blankLine();
-        m_assembler.startBlockComment();
-        m_assembler.writeBlockCommentLine("Node " + node.getStateName() + " entry code.");
-        m_assembler.endBlockComment();
-        m_assembler.writeLabel(getNodeEntryLabel(node.getStateName()));
+        // PRODH:PRODL := number * entry size. PCLATH holds the high byte's part
+        // until it is set for the jump.
+        m_assembler.opCode("MOVF", offset(m_statePointer, 1), "W", access(m_statePointer));
+        m_assembler.opCode("MULLW", formatInt(JUMP_TABLE_ENTRY_SIZE));
+        m_assembler.opCode("MOVFF", "PRODL", "PCLATH");
+        m_assembler.opCode("MOVF", m_statePointer.getName(), "W", access(m_statePointer));
+        m_assembler.opCode("MULLW", formatInt(JUMP_TABLE_ENTRY_SIZE));
+        m_assembler.opCode("MOVF", "PCLATH", "W", "A");
+        m_assembler.opCode("ADDWF", "PRODH", "F", "A");
+        forgetWorkingRegister();
+        gotoTableOffset(STATE_TABLE_LABEL);
     }
 
-    @Override
-    public void startNode(final INode node)
+    /** Write the table of GOTO to the step code of each node by state number. */
+    private void writeStateTable()
     {
-        assert m_codeBlockStack.empty() : "Code block stack not cleared by previous node";
-
-        clearBankSel();
+        startRegion(m_memoryMap.addCode(STATE_TABLE_LABEL));
         m_assembler.blankLine();
         m_assembler.startBlockComment();
-        m_assembler.writeBlockCommentLine("Node " + node.getStateName()
-                + " step code.");
+        m_assembler.writeBlockCommentLine("Step code of each node by state number.");
         m_assembler.endBlockComment();
-        m_assembler.writeLabel(getNodeStepLabel(node.getStateName()));
-        m_currentNodeName = node.getStateName();
-        m_nodeHasSubroutineCalls = false;
+        m_assembler.writeLabel(STATE_TABLE_LABEL);
+        for (String stateName : m_stateNumbers.keySet())
+        {
+            m_assembler.fixedOpCode("GOTO", getNodeStepLabel(stateName));
+        }
+    }
+
+    /** Write a constant for the state number of each node to the headers. */
+    private void writeStateNumberHeaders()
+    {
+        m_asmHeader.blankLine();
+        m_asmHeader.blockComment("State numbers held in " + m_statePointer.getName());
+        m_cHeader.blankLine();
+        m_cHeader.blockComment("State numbers held in " + m_statePointer.getName());
+        for (Map.Entry<String, Integer> e : m_stateNumbers.entrySet())
+        {
+            String constant = (m_modelName + "_STATE_" + e.getKey()).toUpperCase();
+            m_asmHeader.writePreprocessor("#define " + constant + " (" + e.getValue() + ")");
+            m_cHeader.writePreprocessor("#define " + constant + " (" + e.getValue() + ")");
+        }
+    }
+
+    /**
+     * Write instructions to make the given node the current node.
+     * 
+     * @param stateName name of the node.
+     */
+    private void setState(final String stateName)
+    {
+        if (!isStateIndex())
+        {
+            setPointer(m_statePointer, getNodeStepLabel(stateName));
+            return;
+        }
+
+        Integer number = m_stateNumbers.get(stateName);
+        if (number == null)
+        {
+            number = m_stateNumbers.size();
+            m_stateNumbers.put(stateName, number);
+        }
+        banksel(m_statePointer);
+        for (int i = 0; i < m_stateSize; i++)
+        {
+            int value = (number >> (8 * i)) & 0xFF;
+            if (value == 0)
+            {
+                m_assembler.opCode("CLRF", offset(m_statePointer, i), access(m_statePointer));
+            }
+            else
+            {
+                loadLiteral(formatInt(value));
+                m_assembler.opCode("MOVWF", offset(m_statePointer, i), access(m_statePointer));
+            }
+        }
+        variableWritten(m_statePointer);
+    }
+
+    @Override
+    public void startSharedEntryCode(final INode node)
+    {
+        assert m_codeBlockStack.empty() : "Code block stack not cleared by previous node";
+
+        m_currentNodeName = null; // Do not allow matching
+        m_regionNodeName = node.getStateName();
+        startRegion(m_memoryMap.addSharedEntryCode(node.getStateName()));
+        m_assembler.blankLine();
+        m_assembler.startBlockComment();
+        m_assembler.writeBlockCommentLine("Node " + node.getStateName() + " entry code.");
+        m_assembler.endBlockComment();
+        writeEntryLabel(getNodeEntryLabel(node.getStateName()));
+        m_cycleReportLabels.put(getNodeEntryLabel(node.getStateName()),
+                "Node " + node.getStateName() + " entry code");
+    }
+
+    @Override
+    public void startNode(final INode node)
+    {
+        assert m_codeBlockStack.empty() : "Code block stack not cleared by previous node";
+
+        m_assembler.blankLine();
+        m_assembler.startBlockComment();
+        m_assembler.writeBlockCommentLine("Node " + node.getStateName()
+                + " step code.");
+        m_assembler.endBlockComment();
+        m_regionNodeName = node.getStateName();
+        startRegion(m_memoryMap.addStepCode(node.getStateName()));
+        writeEntryLabel(getNodeStepLabel(node.getStateName()));
+        m_stepLabels.add(getNodeStepLabel(node.getStateName()));
+        m_cycleReportLabels.put(getNodeStepLabel(node.getStateName()),
+                "Node " + node.getStateName() + " step code");
+        m_currentNodeName = node.getStateName();
+        m_nodeHasSubroutineCalls = false;
     }
 
     @Override
@@ -525,26 +1146,401 @@ public class Pic18AsmBuilder implements IModelVisitor
     {
         push();
         m_assembler.writeComment("-- Start of transition --");
+    }
+
 
-        // At the moment we don't cleverly work out routes through the
-        // conditions, so if more than 1 bank is used we are paranoid and
-        // banksel after any branch.
-        if (m_numberOfBanksUsed > 1)
+    @Override
+    public void startInputSwitch(final Variable variable, final int[] lowValues, final int[] highValues)
+    {
+        m_inputSwitch = new InputSwitch(variable, lowValues, highValues, m_codeBlockStack.size());
+        m_inputSwitch.chooseDispatch(m_jumpTableMinimumCases, m_jumpTableDensity,
+                m_decisionTreeMinimumCases, m_xorChainMinimumCases);
+        if (m_inputSwitch.isTable())
         {
-            clearBankSel();
+            writeJumpTable(m_inputSwitch);
+        }
+        else if (m_inputSwitch.getDispatch() == InputSwitch.Dispatch.XOR_CHAIN)
+        {
+            writeXorChain(m_inputSwitch);
+        }
+        else if (m_inputSwitch.isDispatched())
+        {
+            writeDecisionTree(m_inputSwitch);
         }
     }
 
+    @Override
+    public void startSwitchCase(final int low, final int high)
+    {
+        if (m_inputSwitch.isDispatched())
+        {
+            writeInternalLabel(m_inputSwitch.getCaseLabel(low));
+        }
+        m_inputSwitch.startCase(low, high);
+    }
+
+    @Override
+    public void endSwitchCase(final int low, final int high)
+    {
+        if (m_inputSwitch.isDispatched() && m_reachable)
+        {
+            gotoLabel(m_inputSwitch.getEndLabel());
+        }
+        m_inputSwitch.endCase();
+    }
+
+    @Override
+    public void endInputSwitch()
+    {
+        if (m_inputSwitch.isDispatched())
+        {
+            writeInternalLabel(m_inputSwitch.getEndLabel());
+        }
+        m_inputSwitch = null;
+    }
+
+    /**
+     * Allocate the end label and a label for each case of a dispatched switch.
+     * 
+     * @param inputSwitch the switch.
+     */
+    private void allocateSwitchLabels(final InputSwitch inputSwitch)
+    {
+        inputSwitch.setEndLabel(getNextInternalLabel());
+        for (int low : inputSwitch.getSortedLowValues())
+        {
+            inputSwitch.setCaseLabel(low, getNextInternalLabel());
+        }
+    }
+
+    /**
+     * Write the dispatch code and jump table for an input switch. The switch
+     * variable is range checked, then used to index a table of GOTO. A sparse
+     * switch first reads a byte table to find its entry in the GOTO table.
+     * 
+     * <p>The dispatch uses PRODH:PRODL and, for a sparse table, TBLPTR and TABLAT.</p>
+     * 
+     * @param inputSwitch the switch to write.
+     */
+    private void writeJumpTable(final InputSwitch inputSwitch)
+    {
+        Variable variable = inputSwitch.getVariable();
+        int low = inputSwitch.getLowValue();
+        int span = inputSwitch.getSpan();
+        boolean sparse = inputSwitch.getDispatch() == InputSwitch.Dispatch.SPARSE_TABLE;
+
+        String defaultLabel = getNextInternalLabel();
+        String indexLabel = sparse ? getNextInternalLabel() : null;
+        String tableLabel = getNextInternalLabel();
+        allocateSwitchLabels(inputSwitch);
+
+        m_assembler.writeComment(String.format(" Jump table (%s) on %s, %d cases from %s to %s",
+                sparse ? "sparse" : "dense", variable.getName(), inputSwitch.getCaseCount(),
+                formatByte(low), formatByte(inputSwitch.getHighValue())));
+
+        // W := variable - low, leaving for the default case if out of range.
+        banksel(variable);
+        if (low == 0)
+        {
+            loadVariable(variable);
+        }
+        else
+        {
+            loadLiteral(formatInt(low));
+            m_assembler.opCode("SUBWF", variable.getName(), "W", access(variable));
+            forgetWorkingRegister();
+            branchToLabel("BNC", defaultLabel);
+        }
+        if (span < BYTE_VALUES)
+        {
+            m_assembler.opCode("SUBLW", formatInt(span - 1));
+            forgetWorkingRegister();
+            branchToLabel("BNC", defaultLabel);
+            m_assembler.opCode("SUBLW", formatInt(span - 1));
+        }
+
+        if (sparse)
+        {
+            readTableByte(indexLabel);
+        }
+        int dispatchBank = m_currentBank;
+        gotoTableEntry(tableLabel);
+
+        writeInternalLabel(defaultLabel);
+        gotoLabel(inputSwitch.getEndLabel());
+
+        if (sparse)
+        {
+            writeSparseJumpTable(inputSwitch, indexLabel, tableLabel, dispatchBank);
+        }
+        else
+        {
+            m_assembler.writeLabel(tableLabel);
+            int[] lowValues = inputSwitch.getSortedLowValues();
+            for (int value = low; value < low + span; value++)
+            {
+                int caseIndex = inputSwitch.findCase(value);
+                writeTableEntry(caseIndex >= 0
+                        ? inputSwitch.getCaseLabel(lowValues[caseIndex]) : inputSwitch.getEndLabel(),
+                        dispatchBank);
+            }
+        }
+    }
+
+    /**
+     * Write the tables for a sparse input switch. The byte table holds 0 for values
+     * that are not cases, otherwise the position of the case in the GOTO table.
+     * 
+     * @param inputSwitch the switch.
+     * @param indexLabel label for the byte table.
+     * @param tableLabel label for the GOTO table.
+     * @param dispatchBank bank selected when the table is entered.
+     */
+    private void writeSparseJumpTable(final InputSwitch inputSwitch, final String indexLabel,
+            final String tableLabel, final int dispatchBank)
+    {
+        int[] lowValues = inputSwitch.getSortedLowValues();
+        int[] highValues = inputSwitch.getSortedHighValues();
+        int low = inputSwitch.getLowValue();
+        int span = inputSwitch.getSpan();
+
+        int[] index = new int[span];
+        for (int i = 0; i < lowValues.length; i++)
+        {
+            for (int value = lowValues[i]; value <= highValues[i]; value++)
+            {
+                index[value - low] = i + 1;
+            }
+        }
+
+        m_assembler.writeLabel(indexLabel);
+        for (int start = 0; start < span; start += DB_BYTES_PER_LINE)
+        {
+            int end = Math.min(span, start + DB_BYTES_PER_LINE);
+            String[] bytes = new String[end - start];
+            for (int i = start; i < end; i++)
+            {
+                bytes[i - start] = formatInt(index[i]);
+            }
+            m_assembler.fixedOpCode("DB", bytes);
+        }
+
+        m_assembler.writeLabel(tableLabel);
+        writeTableEntry(inputSwitch.getEndLabel(), dispatchBank);
+        for (int caseLow : lowValues)
+        {
+            writeTableEntry(inputSwitch.getCaseLabel(caseLow), dispatchBank);
+        }
+    }
+
+    /**
+     * Write an XOR chain that goes to the case equal to the switch variable, or to the
+     * end of the switch if there is none. W holds the variable exclusive-ORed with the
+     * value last tested, so the next value is tested by exclusive-ORing with the
+     * difference and branching if zero. If W already follows the variable it is not
+     * loaded again.
+     * 
+     * <p>The values are tested in the order the cases are rendered. The first case follows
+     * the chain. The others are reached through a GOTO after the chain so that every branch
+     * stays in range whatever the size of the cases.</p>
+     * 
+     * @param inputSwitch the switch to write.
+     */
+    private void writeXorChain(final InputSwitch inputSwitch)
+    {
+        Variable variable = inputSwitch.getVariable();
+        int[] values = inputSwitch.getLowValues();
+
+        allocateSwitchLabels(inputSwitch);
+        String[] trampolines = new String[values.length];
+        for (int i = 1; i < values.length; i++)
+        {
+            trampolines[i] = getNextInternalLabel();
+        }
+
+        m_assembler.writeComment(String.format(" XOR chain on %s, %d cases from %s to %s",
+                variable.getName(), inputSwitch.getCaseCount(),
+                formatByte(inputSwitch.getLowValue()), formatByte(inputSwitch.getHighValue())));
+        banksel(variable);
+        if (!m_workingRegister.follows(variable))
+        {
+            loadVariable(variable);
+        }
+        for (int i = 0; i < values.length; i++)
+        {
+            // XORLW sets Z even if the difference is 0.
+            m_assembler.opCode("XORLW", formatInt(m_workingRegister.getXorValue() ^ values[i]));
+            m_workingRegister = WorkingRegister.variable(variable, values[i]);
+            WorkingRegister notEqual = m_workingRegister;
+            m_workingRegister = notEqual.withLiteral(formatInt(0));
+            branchToLabel("BZ", i == 0 ? inputSwitch.getCaseLabel(values[0]) : trampolines[i]);
+            m_workingRegister = notEqual;
+        }
+        gotoLabel(inputSwitch.getEndLabel());
+
+        for (int i = 1; i < values.length; i++)
+        {
+            writeInternalLabel(trampolines[i]);
+            gotoLabel(inputSwitch.getCaseLabel(values[i]));
+        }
+    }
+
+    /**
+     * Write a balanced tree of comparisons that goes to the case holding the value of
+     * the switch variable, or to the end of the switch if there is none. Each level
+     * halves the cases using the lowest value of the middle case as the pivot. The
+     * range known from the comparisons above a leaf means that a leaf only tests the
+     * bounds of its case that are not already implied.
+     * 
+     * @param inputSwitch the switch to write.
+     */
+    private void writeDecisionTree(final InputSwitch inputSwitch)
+    {
+        Variable variable = inputSwitch.getVariable();
+        allocateSwitchLabels(inputSwitch);
+
+        m_assembler.writeComment(String.format(" Decision tree on %s, %d cases from %s to %s",
+                variable.getName(), inputSwitch.getCaseCount(),
+                formatByte(inputSwitch.getLowValue()), formatByte(inputSwitch.getHighValue())));
+        banksel(variable);
+        writeDecisionTreeNode(inputSwitch, 0, inputSwitch.getCaseCount() - 1, 0, BYTE_VALUES - 1);
+    }
+
+    /**
+     * Write one node of a decision tree covering the given cases.
+     * 
+     * @param inputSwitch the switch being written.
+     * @param first position of the first case in sorted order.
+     * @param last position of the last case in sorted order.
+     * @param knownLow the variable is known to be at least this value.
+     * @param knownHigh the variable is known to be at most this value.
+     */
+    private void writeDecisionTreeNode(final InputSwitch inputSwitch, final int first,
+            final int last, final int knownLow, final int knownHigh)
+    {
+        Variable variable = inputSwitch.getVariable();
+        int[] lowValues = inputSwitch.getSortedLowValues();
+        int[] highValues = inputSwitch.getSortedHighValues();
+
+        if (first == last)
+        {
+            int low = lowValues[first];
+            int high = highValues[first];
+            boolean testLow = low > knownLow;
+            boolean testHigh = high < knownHigh;
+            if (testLow && testHigh && low == high)
+            {
+                loadLiteral(formatInt(low));
+                m_assembler.opCode("CPFSEQ", variable.getName(), access(variable));
+                branchToLabel("GOTO", inputSwitch.getEndLabel());
+            }
+            else
+            {
+                if (testLow)
+                {
+                    loadLiteral(formatInt(low - 1));
+                    m_assembler.opCode("CPFSGT", variable.getName(), access(variable));
+                    branchToLabel("GOTO", inputSwitch.getEndLabel());
+                }
+                if (testHigh)
+                {
+                    loadLiteral(formatInt(high + 1));
+                    m_assembler.opCode("CPFSLT", variable.getName(), access(variable));
+                    branchToLabel("GOTO", inputSwitch.getEndLabel());
+                }
+            }
+            gotoLabel(inputSwitch.getCaseLabel(low));
+            return;
+        }
+
+        int middle = (first + last + 1) / 2;
+        int pivot = lowValues[middle];
+        String rightLabel = getNextInternalLabel();
+        loadLiteral(formatInt(pivot));
+        m_assembler.opCode("CPFSLT", variable.getName(), access(variable));
+        branchToLabel("GOTO", rightLabel);
+        writeDecisionTreeNode(inputSwitch, first, middle - 1, knownLow, pivot - 1);
+        writeInternalLabel(rightLabel);
+        writeDecisionTreeNode(inputSwitch, middle, last, pivot, knownHigh);
+    }
+
+    /**
+     * Write instructions to read the byte at the given table plus the offset in W.
+     * The result is left in W.
+     * 
+     * @param tableLabel label of a table of bytes.
+     */
+    private void readTableByte(final String tableLabel)
+    {
+        m_assembler.opCode("ADDLW", "LOW(" + tableLabel + ")");
+        m_assembler.opCode("MOVWF", "TBLPTRL", "A");
+        m_assembler.opCode("CLRF", "TBLPTRH", "A");
+        loadLiteral("HIGH(" + tableLabel + ")");
+        m_assembler.opCode("ADDWFC", "TBLPTRH", "F", "A");
+        m_assembler.opCode("CLRF", "TBLPTRU", "A");
+        if (m_largeRomModel)
+        {
+            loadLiteral("UPPER(" + tableLabel + ")");
+            m_assembler.opCode("ADDWFC", "TBLPTRU", "F", "A");
+        }
+        m_assembler.opCode("TBLRD*");
+        m_assembler.opCode("MOVF", "TABLAT", "W", "A");
+        forgetWorkingRegister();
+    }
+
+    /**
+     * Write instructions to go to the entry in a table of GOTO indexed by W.
+     * 
+     * @param tableLabel label of a table of GOTO instructions.
+     */
+    protected void gotoTableEntry(final String tableLabel)
+    {
+        m_assembler.opCode("MULLW", formatInt(JUMP_TABLE_ENTRY_SIZE));
+        gotoTableOffset(tableLabel);
+    }
+
+    /**
+     * Write instructions to go to the entry in a table of GOTO at the byte offset
+     * held in PRODH:PRODL.
+     * 
+     * @param tableLabel label of a table of GOTO instructions.
+     */
+    private void gotoTableOffset(final String tableLabel)
+    {
+        loadLiteral("LOW(" + tableLabel + ")");
+        m_assembler.opCode("ADDWF", "PRODL", "F", "A");
+        loadLiteral("HIGH(" + tableLabel + ")");
+        m_assembler.opCode("ADDWFC", "PRODH", "W", "A");
+        forgetWorkingRegister();
+        m_assembler.opCode("MOVWF", "PCLATH", "A");
+        m_assembler.opCode("CLRF", "PCLATU", "A");
+        if (m_largeRomModel)
+        {
+            loadLiteral("UPPER(" + tableLabel + ")");
+            m_assembler.opCode("ADDWFC", "PCLATU", "F", "A");
+        }
+        m_assembler.opCode("MOVF", "PRODL", "W", "A");
+        forgetWorkingRegister();
+        m_assembler.computedJump(Collections.singletonList(tableLabel), "MOVWF", "PCL", "A");
+        setUnreachable();
+    }
 
     @Override
     public void visitTransitionPreconditionGE(final Variable variable, final int value)
     {
+        if (isDecidedByInputSwitch(variable, value, BYTE_VALUES - 1))
+        {
+            m_assembler.writeComment(String.format(" Precondition %s >= %s (by %s)",
+                    variable.getName(), formatByte(value), m_inputSwitch.describeDispatch()));
+            return;
+        }
+
         m_assembler.writeComment(String.format(" Precondition %s >= %s",
                 variable.getName(), formatByte(value)));
         if (value != 0)
         {
             banksel(variable);
-            m_assembler.opCode("MOVLW", formatInt(value - 1));
+            loadLiteral(formatInt(value - 1));
             m_assembler.opCode("CPFSGT", variable.getName(), access(variable));
             exitCodeBlock(0);
         }
@@ -553,42 +1549,137 @@ public class Pic18AsmBuilder implements IModelVisitor
     @Override
     public void visitTransitionPreconditionEQ(final Variable variable, final int value)
     {
+        if (isDecidedByInputSwitch(variable, value, value))
+        {
+            m_assembler.writeComment(String.format(" Precondition %s == %s (by %s)",
+                    variable.getName(), formatByte(value), m_inputSwitch.describeDispatch()));
+            return;
+        }
+
         m_assembler.writeComment(String.format(" Precondition %s == %s",
                 variable.getName(), formatByte(value)));
         banksel(variable);
-        m_assembler.opCode("MOVLW", formatInt(value));
-        m_assembler.opCode("CPFSEQ", variable.getName(), access(variable));
+        if (value == 0)
+        {
+            m_assembler.opCode("TSTFSZ", variable.getName(), access(variable));
+        }
+        else
+        {
+            loadLiteral(formatInt(value));
+            m_assembler.opCode("CPFSEQ", variable.getName(), access(variable));
+        }
         exitCodeBlock(0);
     }
 
     @Override
     public void visitTransitionPreconditionLE(final Variable variable, final int value)
     {
+        if (isDecidedByInputSwitch(variable, 0, value))
+        {
+            m_assembler.writeComment(String.format(" Precondition %s <= %s (by %s)",
+                    variable.getName(), formatByte(value), m_inputSwitch.describeDispatch()));
+            return;
+        }
+
         m_assembler.writeComment(String.format(" Precondition %s <= %s",
                 variable.getName(), formatByte(value)));
         if (value < 255)
         {
             banksel(variable);
-            m_assembler.opCode("MOVLW", formatInt(value + 1));
+            loadLiteral(formatInt(value + 1));
             m_assembler.opCode("CPFSLT", variable.getName(), access(variable));
             exitCodeBlock(0);
         }
     }
 
     @Override
-    public void visitTransitionPreconditionFlag(final Variable flag, final int bit, final boolean expectedValue)
+    public void visitTransitionPreconditionRange(final Variable variable, final int low, final int high)
     {
-        m_assembler.writeComment(String.format(
-                " Precondition Flag %s:%d == %b", flag.getName(), bit,
-                expectedValue));
-        int offset = bit / 8;
-        int bitInByte = bit % 8;
-        String opCode = expectedValue ? "BTFSS" : "BTFSC";
-        banksel(flag);
-        m_assembler.opCode(opCode, offset(flag, offset), Integer.toString(bitInByte), access(flag));
+        if (low == 0 || high == BYTE_VALUES - 1
+                || isDecidedByInputSwitch(variable, low, BYTE_VALUES - 1)
+                || isDecidedByInputSwitch(variable, 0, high))
+        {
+            // At most one bound needs a test.
+            visitTransitionPreconditionGE(variable, low);
+            visitTransitionPreconditionLE(variable, high);
+            return;
+        }
+
+        m_assembler.writeComment(String.format(" Precondition %s in %s..%s",
+                variable.getName(), formatByte(low), formatByte(high)));
+        // W := variable - low, then carry is set if W > high - low as unsigned.
+        banksel(variable);
+        loadVariable(variable);
+        m_assembler.opCode("ADDLW", formatInt(BYTE_VALUES - low));
+        m_assembler.opCode("ADDLW", formatInt(BYTE_VALUES - 1 - (high - low)));
+        forgetWorkingRegister();
+        m_assembler.opCode("BTFSC", "STATUS", "C", "A");
         exitCodeBlock(0);
     }
 
+    /**
+     * Is a precondition accepting the given range already decided by the dispatch of the
+     * input switch being rendered?
+     * 
+     * @param variable variable being tested.
+     * @param low lowest value accepted.
+     * @param high highest value accepted.
+     * @return true if the test can be left out.
+     */
+    private boolean isDecidedByInputSwitch(final Variable variable, final int low, final int high)
+    {
+        return m_inputSwitch != null
+                && m_inputSwitch.isDecidedByDispatch(variable, low, high, m_codeBlockStack.size());
+    }
+
+    @Override
+    public void visitTransitionPreconditionCountdown(final Variable counter)
+    {
+        m_assembler.writeComment(String.format(" Precondition --%s != 0", counter.getName()));
+        banksel(counter);
+        m_assembler.opCode("DCFSNZ", counter.getName(), "F", access(counter));
+        variableWritten(counter);
+        exitCodeBlock(0);
+    }
+
+    @Override
+    public void visitTransitionPreconditionFlags(final Variable flags, final int byteOffset,
+            final int mask, final int expected)
+    {
+        m_assembler.writeComment(String.format(
+                " Precondition Flags %s[%d] & %s == %s", flags.getName(), byteOffset,
+                formatBits(mask), formatBits(expected)));
+        banksel(flags);
+        int bits = Integer.bitCount(mask);
+        if (bits == 1 || (bits == 2 && expected != 0))
+        {
+            // A skip and GOTO for each bit is no larger than the mask test.
+            for (int bit = 0; bit < BITS_PER_BYTE; bit++)
+            {
+                int bitMask = 1 << bit;
+                if ((mask & bitMask) != 0)
+                {
+                    String opCode = (expected & bitMask) != 0 ? "BTFSS" : "BTFSC";
+                    m_assembler.opCode(opCode, offset(flags, byteOffset),
+                            Integer.toString(bit), access(flags));
+                    exitCodeBlock(0);
+                }
+            }
+        }
+        else
+        {
+            m_assembler.opCode("MOVF", offset(flags, byteOffset), "W", access(flags));
+            m_assembler.opCode("ANDLW", formatBits(mask));
+            if (expected != 0)
+            {
+                m_assembler.opCode("XORLW", formatBits(expected));
+            }
+            forgetWorkingRegister();
+            m_assembler.opCode("BTFSS", "STATUS", "Z", "A");
+            exitCodeBlock(0);
+        }
+    }
+
     @Override
     public void visitCommandCopyVariableToIndexedVariable(final Variable source,
             final Variable output, final Variable indexer)
@@ -603,43 +1694,258 @@ public class Pic18AsmBuilder implements IModelVisitor
                 output.getName(), indexer.getName(), source.getName()));
         m_assembler.opCode("LFSR", "FSR0", output.getName());
         banksel(indexer);
-        m_assembler.opCode("MOVF", indexer.getName(), "W", access(indexer));
+        loadVariable(indexer);
         m_assembler.opCode("MOVFF", source.getName(), "PLUSW0");
+        variableWritten(output);
     }
 
     @Override
     public void visitCommandCopyVariable(final Variable input, final Variable output)
     {
+        int bytes = Math.min(input.getSize(), output.getSize());
+        if (isCopyLoopBetter(m_optimisationProfile, bytes))
+        {
+            writeCopyLoop(input, output, bytes);
+            return;
+        }
+
         m_assembler.writeComment(String.format(" Command %s := %s",
                 output.getName(), input.getName()));
-        for (int i = 0; i < input.getSize() && i < output.getSize(); i++)
+        for (int i = 0; i < bytes; i++)
         {
             m_assembler.opCode("MOVFF", offset(input, i), offset(output, i));
         }
+        addBlockOperation(bytes, String.format("%s := %s, %d bytes by MOVFF", output.getName(),
+                input.getName(), bytes), 2 * bytes);
+        variableWritten(output);
+    }
+
+    /**
+     * Copy a variable in a loop, counting the bytes down in PRODL. FSR0 is the only
+     * FSR the generated code may take, so it is loaded with each address in turn and
+     * indexed by W. Each byte passes through PRODH.
+     * 
+     * @param input the variable to copy from.
+     * @param output the variable to copy to.
+     * @param bytes bytes to copy.
+     */
+    private void writeCopyLoop(final Variable input, final Variable output, final int bytes)
+    {
+        String loop = getNextInternalLabel();
+        m_assembler.writeComment(String.format(" Command %s := %s, %d bytes in a loop",
+                output.getName(), input.getName(), bytes));
+        loadLiteral(formatInt(bytes));
+        m_assembler.opCode("MOVWF", "PRODL", "A");
+        m_assembler.writeLabel(loop);
+        m_assembler.opCode("DECF", "PRODL", "W", "A");
+        m_assembler.opCode("LFSR", "FSR0", input.getName());
+        m_assembler.opCode("MOVFF", "PLUSW0", "PRODH");
+        m_assembler.opCode("LFSR", "FSR0", output.getName());
+        m_assembler.opCode("MOVFF", "PRODH", "PLUSW0");
+        m_assembler.opCode("DECFSZ", "PRODL", "F", "A");
+        m_assembler.loopBranch(bytes, "BRA", loop);
+        m_workingRegister = WorkingRegister.literal(formatInt(0));
+        addBlockOperation(bytes, String.format("%s := %s, %d bytes in a loop", output.getName(),
+                input.getName(), bytes), getCopyLoopCycles(bytes));
+        variableWritten(output);
+    }
+
+    /**
+     * Should a variable be copied in a loop rather than by a MOVFF for each byte?
+     * 
+     * @param profile what to favour.
+     * @param bytes bytes to copy.
+     * @return true to copy in a loop.
+     */
+    static boolean isCopyLoopBetter(final OptimisationProfile profile, final int bytes)
+    {
+        if (bytes > MAX_COPY_LOOP_BYTES)
+        {
+            return false;
+        }
+        int loopCycles = getCopyLoopCycles(bytes);
+        switch (profile)
+        {
+        case SIZE:
+            return COPY_LOOP_WORDS < 2 * bytes;
+        case SPEED:
+            return loopCycles < 2 * bytes;
+        default:
+            return COPY_LOOP_WORDS + loopCycles < 4 * bytes;
+        }
+    }
+
+    /**
+     * @param bytes bytes to copy.
+     * @return instruction cycles to copy them in a loop. The MOVLW and MOVWF take two.
+     *         Each time round takes twelve but the last, which skips the branch back,
+     *         takes eleven.
+     */
+    static int getCopyLoopCycles(final int bytes)
+    {
+        return 12 * bytes + 1;
     }
 
     @Override
     public void visitCommandClearVariable(final Variable variable)
     {
+        if (isClearLoopBetter(m_optimisationProfile, variable.getSize()))
+        {
+            writeClearLoop(variable);
+            return;
+        }
+
         m_assembler.writeComment(String.format(" Command %s := 0",
                 variable.getName()));
         banksel(variable);
         for (int i = 0; i < variable.getSize(); i++)
         {
-            m_assembler.opCode("CLRF", offset(variable, i), access(variable));
+            m_assembler.opCode("CLRF", offset(variable, i), access(variable));
+        }
+        addBlockOperation(variable.getSize(), String.format("%s := 0, %d bytes by CLRF",
+                variable.getName(), variable.getSize()), variable.getSize());
+        variableWritten(variable);
+    }
+
+    /**
+     * Clear a variable in a loop through FSR0, counting the bytes down in W.
+     * 
+     * @param variable the variable to clear.
+     */
+    private void writeClearLoop(final Variable variable)
+    {
+        int bytes = variable.getSize();
+        String loop = getNextInternalLabel();
+        m_assembler.writeComment(String.format(" Command %s := 0, %d bytes in a loop",
+                variable.getName(), bytes));
+        m_assembler.opCode("LFSR", "FSR0", variable.getName());
+        loadLiteral(formatInt(bytes));
+        m_assembler.writeLabel(loop);
+        m_assembler.opCode("CLRF", "POSTINC0", "A");
+        m_assembler.opCode("DECFSZ", "WREG", "F", "A");
+        m_assembler.loopBranch(bytes, "BRA", loop);
+        m_workingRegister = WorkingRegister.literal(formatInt(0));
+        addBlockOperation(bytes, String.format("%s := 0, %d bytes in a loop", variable.getName(),
+                bytes), getClearLoopCycles(bytes));
+        variableWritten(variable);
+    }
+
+    /**
+     * Should a variable be cleared in a loop rather than by a CLRF for each byte?
+     * Each is judged by the profile. Any BANKSEL before the CLRFs is not counted.
+     * 
+     * @param profile what to favour.
+     * @param bytes size of the variable.
+     * @return true to clear it in a loop.
+     */
+    static boolean isClearLoopBetter(final OptimisationProfile profile, final int bytes)
+    {
+        if (bytes > MAX_CLEAR_LOOP_BYTES)
+        {
+            return false;
+        }
+        int loopCycles = getClearLoopCycles(bytes);
+        switch (profile)
+        {
+        case SIZE:
+            return CLEAR_LOOP_WORDS < bytes;
+        case SPEED:
+            return loopCycles < bytes;
+        default:
+            return CLEAR_LOOP_WORDS + loopCycles < 2 * bytes;
+        }
+    }
+
+    /**
+     * @param bytes size of the variable.
+     * @return instruction cycles to clear it in a loop. The LFSR and MOVLW take three.
+     *         Each time round takes four but the last, which skips the branch back,
+     *         takes three.
+     */
+    static int getClearLoopCycles(final int bytes)
+    {
+        return 4 * bytes + 2;
+    }
+
+    /**
+     * Note the form and cost of a clear or copy for the cycle report.
+     * 
+     * @param bytes bytes cleared or copied. A single byte is not reported.
+     * @param description what is done and how.
+     * @param cycles instruction cycles it takes.
+     */
+    private void addBlockOperation(final int bytes, final String description, final int cycles)
+    {
+        if (bytes > 1)
+        {
+            m_blockOperations.put(description, cycles);
+        }
+    }
+
+    @Override
+    public void visitCommandClearIndexedVariable(final Variable variable, final Variable indexer)
+    {
+        m_assembler.writeComment(String.format(" Command %s[%s] := 0",
+                variable.getName(), indexer.getName()));
+        m_assembler.opCode("LFSR", "FSR0", variable.getName());
+        banksel(indexer);
+        loadVariable(indexer);
+        m_assembler.opCode("CLRF", "PLUSW0", "A");
+        variableWritten(variable);
+    }
+
+    @Override
+    public void visitCommandStartIndexedStore(final Variable output, final Variable indexer)
+    {
+        if (m_storageFsr != 0)
+        {
+            m_assembler.writeComment(String.format(" Command FSR%d := %s[%s]",
+                    m_storageFsr, output.getName(), indexer.getName()));
+            m_assembler.opCode("LFSR", "FSR" + m_storageFsr, output.getName());
+        }
+    }
+
+    @Override
+    public void visitCommandStoreNextIndexed(final Variable source, final Variable output,
+            final Variable indexer, final boolean terminate)
+    {
+        if (m_storageFsr == 0)
+        {
+            visitCommandCopyVariableToIndexedVariable(source, output, indexer);
+            visitCommandIncrementVariable(indexer);
+            if (terminate)
+            {
+                visitCommandClearIndexedVariable(output, indexer);
+            }
+            return;
         }
+
+        m_assembler.writeComment(String.format(" Command %s[%s] := %s through FSR%d",
+                output.getName(), indexer.getName(), source.getName(), m_storageFsr));
+        m_assembler.opCode("MOVFF", source.getName(), "POSTINC" + m_storageFsr);
+        visitCommandIncrementVariable(indexer);
+        if (terminate)
+        {
+            m_assembler.writeComment(String.format(" Command %s[%s] := 0 through FSR%d",
+                    output.getName(), indexer.getName(), m_storageFsr));
+            m_assembler.opCode("CLRF", "INDF" + m_storageFsr, "A");
+        }
+        variableWritten(output);
     }
 
     @Override
-    public void visitCommandClearIndexedVariable(final Variable variable, final Variable indexer)
+    public void visitCommandEndIndexedStore(final Variable output, final Variable indexer)
     {
-        m_assembler.writeComment(String.format(" Command %s[%s] := 0",
-                variable.getName(), indexer.getName()));
-        m_assembler.opCode("LFSR", "FSR0", variable.getName());
-        banksel(indexer);
-        m_assembler.opCode("MOVF", indexer.getName(), "W", access(indexer));
-        m_assembler.opCode("CLRF", "PLUSW0", "A");
+        if (m_storageFsr == 0)
+        {
+            visitCommandClearIndexedVariable(output, indexer);
+            return;
+        }
 
+        m_assembler.writeComment(String.format(" Command %s[%s] := 0 through FSR%d",
+                output.getName(), indexer.getName(), m_storageFsr));
+        m_assembler.opCode("CLRF", "INDF" + m_storageFsr, "A");
+        variableWritten(output);
     }
 
     @Override
@@ -655,19 +1961,80 @@ public class Pic18AsmBuilder implements IModelVisitor
             m_assembler.opCode("INCF", offset(variable, i), "F",
                     access(variable));
         }
+        variableWritten(variable);
+    }
+
+    @Override
+    public void visitCommandLoadCounter(final Variable counter, final int count)
+    {
+        m_assembler.writeComment(String.format(" Command %s := %d", counter.getName(), count));
+        banksel(counter);
+        if (count == 0)
+        {
+            m_assembler.opCode("CLRF", counter.getName(), access(counter));
+        }
+        else
+        {
+            loadLiteral(formatInt(count));
+            m_assembler.opCode("MOVWF", counter.getName(), access(counter));
+        }
+        variableWritten(counter);
     }
 
     @Override
-    public void visitCommandSetFlag(final Variable flags, final int bit, final boolean newValue)
+    public void visitCommandSetFlags(final Variable flags, final int byteOffset,
+            final int setMask, final int clearMask)
     {
-        m_assembler.writeComment(String.format(" Command %s:%d := %b",
-                flags.getName(), bit, newValue));
-        int offset = bit / 8;
-        int bitInByte = bit % 8;
-        String opCode = newValue ? "BSF" : "BCF";
+        m_assembler.writeComment(String.format(" Command %s[%d] := | %s & ~%s",
+                flags.getName(), byteOffset, formatBits(setMask), formatBits(clearMask)));
         banksel(flags);
-        m_assembler.opCode(opCode, offset(flags, offset),
-                Integer.toString(bitInByte), access(flags));
+        writeFlags(flags, byteOffset, setMask, "BSF", "IORWF", setMask);
+        writeFlags(flags, byteOffset, clearMask, "BCF", "ANDWF", ~clearMask & BYTE_MASK);
+        variableWritten(flags);
+    }
+
+    /**
+     * Set or clear the flags in the mask. A single instruction per flag is used
+     * unless there are enough flags that loading a mask into W is smaller.
+     * 
+     * @param flags variable holding the flags. The caller selects the bank.
+     * @param byteOffset byte of the variable holding the flags.
+     * @param mask flags to change.
+     * @param bitOpCode BSF or BCF to change one flag.
+     * @param maskOpCode IORWF or ANDWF to change the flags using W.
+     * @param literal mask for the maskOpCode.
+     */
+    private void writeFlags(final Variable flags, final int byteOffset, final int mask,
+            final String bitOpCode, final String maskOpCode, final int literal)
+    {
+        if (Integer.bitCount(mask) >= MIN_FLAGS_FOR_MASK)
+        {
+            loadLiteral(formatBits(literal));
+            m_assembler.opCode(maskOpCode, offset(flags, byteOffset), "F", access(flags));
+        }
+        else
+        {
+            for (int bit = 0; bit < BITS_PER_BYTE; bit++)
+            {
+                if ((mask & (1 << bit)) != 0)
+                {
+                    m_assembler.opCode(bitOpCode, offset(flags, byteOffset),
+                            Integer.toString(bit), access(flags));
+                }
+            }
+        }
+    }
+
+    /**
+     * Format a mask of bits for assembler.
+     * 
+     * @param bits value to format
+     * @return the formatted value, as a binary constant.
+     */
+    private String formatBits(final int bits)
+    {
+        String binary = Integer.toBinaryString(bits | (BYTE_MASK + 1));
+        return "B'" + binary.substring(1) + "'";
     }
 
     @Override
@@ -675,6 +2042,9 @@ public class Pic18AsmBuilder implements IModelVisitor
     {
         m_assembler.writeComment(" Command CALL " + method.getName());
         m_assembler.opCode("CALL", method.getName());
+        // The method may select another bank and change W or any variable.
+        clearBankSel();
+        forgetWorkingRegister();
     }
 
     @Override
@@ -683,6 +2053,7 @@ public class Pic18AsmBuilder implements IModelVisitor
         String stateName = node.getStateName();
         m_assembler.writeComment(" Transition GOTO (Shared) " + stateName);
         m_assembler.opCode("GOTO", getNodeEntryLabel(stateName));
+        setUnreachable();
     }
 
     @Override
@@ -693,13 +2064,19 @@ public class Pic18AsmBuilder implements IModelVisitor
         if (m_nodeHasSubroutineCalls || !stateName.equals(m_currentNodeName))
         {
             m_assembler.writeComment(" Transition GOTO " + stateName);
-            setPointer(m_statePointer, getNodeStepLabel(stateName));
+            setState(stateName);
         }
         else
         {
             m_assembler.writeComment(" Transition GOTO SELF");
         }
 
+        writeReturn();
+    }
+
+    /** Write the code to return control from the step method. */
+    protected void writeReturn()
+    {
         if (m_returnCode != null && m_returnCode.size() > 0)
         {
             for (String returnStatement : m_returnCode)
@@ -711,13 +2088,79 @@ public class Pic18AsmBuilder implements IModelVisitor
         {
             m_assembler.opCode("RETURN");
         }
+        setUnreachable();
+    }
+
+    @Override
+    public void startInlineEntryCode(final INode node)
+    {
+        m_assembler.startRegion(m_memoryMap.addInlineEntryCode(node.getStateName(), m_regionNodeName));
+    }
+
+    @Override
+    public void endInlineEntryCode(final INode node)
+    {
+        m_assembler.endRegion();
+    }
+
+    /**
+     * Count the code that follows towards the given region of the memory map,
+     * ending the previous region.
+     * 
+     * @param region identifier of the region.
+     */
+    protected void startRegion(final String region)
+    {
+        if (m_regionStarted)
+        {
+            m_assembler.endRegion();
+        }
+        m_assembler.startRegion(region);
+        m_regionStarted = true;
     }
 
     @Override
     public void visitTransitionReturnFromSubroutineStack()
     {
         m_assembler.writeComment(" Return from subroutine");
-        gotoPointer(m_subroutineStack);
+        if (m_subroutineStackIndex == null)
+        {
+            gotoPointer(m_subroutineStack, m_subroutineReturnLabels);
+            return;
+        }
+
+        // Step the index back, then read the return through FSR0.
+        banksel(m_subroutineStackIndex);
+        m_assembler.opCode("MOVF", m_subroutineStackIndex.getName(), "W", access(m_subroutineStackIndex));
+        m_assembler.opCode("ADDLW", formatInt(BYTE_VALUES - getSubroutineReturnSize()));
+        m_assembler.opCode("ANDLW", formatBits(getSubroutineStackMask()));
+        m_assembler.opCode("MOVWF", m_subroutineStackIndex.getName(), access(m_subroutineStackIndex));
+        variableWritten(m_subroutineStackIndex);
+        pointAtSubroutineReturn();
+        m_assembler.opCode("MOVF", "POSTINC0", "W", "A");
+        forgetWorkingRegister();
+        m_assembler.opCode("MOVFF", "POSTINC0", "PCLATH");
+        if (m_largeRomModel)
+        {
+            m_assembler.opCode("MOVFF", "INDF0", "PCLATU");
+        }
+        else
+        {
+            m_assembler.opCode("CLRF", "PCLATU", "A");
+        }
+        m_assembler.computedJump(m_subroutineReturnLabels, "MOVWF", "PCL", "A");
+        setUnreachable();
+    }
+
+    /**
+     * Write instructions to point FSR0 at the return in the subroutine stack
+     * selected by W, which holds the index. The stack lies within one bank, so
+     * adding the index cannot carry into FSR0H.
+     */
+    private void pointAtSubroutineReturn()
+    {
+        m_assembler.opCode("LFSR", "FSR0", m_subroutineStack.getName());
+        m_assembler.opCode("ADDWF", "FSR0L", "F", "A");
     }
 
     @Override
@@ -754,17 +2197,56 @@ public class Pic18AsmBuilder implements IModelVisitor
         m_assembler
                 .writeComment(" Prepare for Gosub. Subroutine will return to "
                         + label);
-        setPointer(m_subroutineStack, label);
+        if (m_subroutineStackIndex == null)
+        {
+            setPointer(m_subroutineStack, label);
+        }
+        else
+        {
+            pushSubroutineReturn(label);
+        }
+        m_subroutineReturnLabels.add(label);
+        // The subroutine returns with an unknown bank and W.
+        m_labelEntryBanks.put(label, UNKNOWN_BANK);
+        m_labelEntryWorkingRegisters.put(label, WorkingRegister.UNKNOWN);
         m_nodeHasSubroutineCalls = true;
     }
 
+    /**
+     * Write instructions to store the label in the subroutine stack at its index
+     * and step the index on, wrapping at the end of the stack.
+     *
+     * @param label ASM label to return to.
+     */
+    private void pushSubroutineReturn(final String label)
+    {
+        banksel(m_subroutineStackIndex);
+        m_assembler.opCode("MOVF", m_subroutineStackIndex.getName(), "W", access(m_subroutineStackIndex));
+        pointAtSubroutineReturn();
+        m_assembler.opCode("ADDLW", formatInt(getSubroutineReturnSize()));
+        m_assembler.opCode("ANDLW", formatBits(getSubroutineStackMask()));
+        m_assembler.opCode("MOVWF", m_subroutineStackIndex.getName(), access(m_subroutineStackIndex));
+        variableWritten(m_subroutineStackIndex);
+        forgetWorkingRegister();
+
+        loadLiteral("LOW(" + label + ")");
+        m_assembler.opCode("MOVWF", "POSTINC0", "A");
+        loadLiteral("HIGH(" + label + ")");
+        if (m_largeRomModel)
+        {
+            m_assembler.opCode("MOVWF", "POSTINC0", "A");
+            loadLiteral("UPPER(" + label + ")");
+        }
+        m_assembler.opCode("MOVWF", "INDF0", "A");
+    }
+
     @Override
     public void exitCodeBlock(final int levels)
     {
         String name = m_codeBlockStack.elementAt(m_codeBlockStack.size() - 1 - levels);
         // m_assembler.writeComment(String.format(" Break from code block (%d levels)",
         // levels));
-        m_assembler.opCode("GOTO", name);
+        branchToLabel("GOTO", name);
     }
 
     @Override
@@ -772,7 +2254,7 @@ public class Pic18AsmBuilder implements IModelVisitor
     {
         String label = m_codeBlockStack.pop();
         m_assembler.unindent();
-        m_assembler.writeLabel(label);
+        writeInternalLabel(label);
     }
 
     @Override
@@ -780,13 +2262,30 @@ public class Pic18AsmBuilder implements IModelVisitor
     {
         assert m_codeBlockStack.empty() : "Node " + m_currentNodeName
                 + " did not leave code block stack empty";
+        assert m_labelEntryBanks.isEmpty() : "Node " + m_currentNodeName
+                + " jumped to labels it did not write " + m_labelEntryBanks.keySet();
+        assert m_labelEntryWorkingRegisters.isEmpty() : "Node " + m_currentNodeName
+                + " jumped to labels it did not write " + m_labelEntryWorkingRegisters.keySet();
     }
 
     @Override
     public void finished()
     {
+        if (isStateIndex())
+        {
+            writeStateTable();
+            writeStateNumberHeaders();
+        }
+        if (m_regionStarted)
+        {
+            m_assembler.endRegion();
+        }
+        new PeepholeOptimiser(m_peepholeRules, m_optimisationProfile).optimise(m_assembler.getStatements());
+        int worstCase = writeCycleAnalysis();
         m_assembler.blankLine();
         m_assembler.writeEndMarker();
+        m_memoryMap.countCode(m_assembler.getStatements());
+        writeMemoryMap();
 
         m_cHeader.blankLine();
         m_cHeader.write("#endif\n");
@@ -796,6 +2295,166 @@ public class Pic18AsmBuilder implements IModelVisitor
         m_assembler.safeClose();
         m_cHeader.safeClose();
         m_asmHeader.safeClose();
+
+        List<String> overruns = findMemoryOverruns();
+        if (m_cycleBudget > 0 && worstCase > m_cycleBudget)
+        {
+            overruns.add(String.format("%s may take %s instruction cycles, over the budget of %d."
+                    + " See the cycle analysis at the end of the assembler file.",
+                    getStepMethodName(), formatCycles(worstCase), m_cycleBudget));
+        }
+        if (!overruns.isEmpty())
+        {
+            StringBuilder sb = new StringBuilder();
+            for (String overrun : overruns)
+            {
+                sb.append(sb.length() > 0 ? " " : "").append(overrun);
+            }
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+
+    /** Write the memory map file and log the totals. */
+    private void writeMemoryMap()
+    {
+        XmlWriter map = new XmlWriter(m_fileBaseName + ".map.xml");
+        m_memoryMap.write(m_modelName, map);
+        map.safeClose();
+        m_log.info(String.format("%s uses %d words of program memory and %d bytes of RAM", m_modelName,
+                m_memoryMap.getRomWords(), m_memoryMap.getRamBytes()));
+    }
+
+    /**
+     * @return a description of each memory limit exceeded.
+     */
+    private List<String> findMemoryOverruns()
+    {
+        List<String> overruns = new ArrayList<String>();
+        if (m_romLimit > 0 && m_memoryMap.getRomWords() > m_romLimit)
+        {
+            overruns.add(String.format("%s uses %d words of program memory, over the limit of %d.",
+                    m_modelName, m_memoryMap.getRomWords(), m_romLimit));
+        }
+        if (m_ramLimit > 0 && m_memoryMap.getRamBytes() > m_ramLimit)
+        {
+            overruns.add(String.format("%s uses %d bytes of RAM, over the limit of %d.",
+                    m_modelName, m_memoryMap.getRamBytes(), m_ramLimit));
+        }
+        if (m_nodeRomLimit > 0)
+        {
+            for (Map.Entry<String, Integer> node : m_memoryMap.getNodeWords().entrySet())
+            {
+                if (node.getValue() > m_nodeRomLimit)
+                {
+                    overruns.add(String.format("Node %s uses %d words of program memory, over the limit of %d.",
+                            node.getKey(), node.getValue(), m_nodeRomLimit));
+                }
+            }
+        }
+        return overruns;
+    }
+
+    /**
+     * Report the instruction cycles from the given label to the end of the code.
+     * 
+     * @param label a label that will be in the listing.
+     * @param description description of the code for the report.
+     */
+    protected void addCycleReport(final String label, final String description)
+    {
+        m_cycleReportLabels.put(label, description);
+    }
+
+    /**
+     * Find the best and worst case instruction cycles of the dispatch in the step
+     * method, and from the step and entry code of each node to return. Comment
+     * each in the listing and write a summary table.
+     * 
+     * @return worst case cycles of the step method, or
+     *         {@link CycleAnalyser.Cost#UNBOUNDED} if it may loop.
+     */
+    private int writeCycleAnalysis()
+    {
+        AsmListing listing = new AsmListing(m_assembler.getStatements());
+        CycleAnalyser toDispatch = new CycleAnalyser(listing, false);
+        CycleAnalyser toReturn = new CycleAnalyser(listing, true);
+
+        Map<String, CycleAnalyser.Cost> costs = new LinkedHashMap<String, CycleAnalyser.Cost>();
+        for (String label : m_cycleReportLabels.keySet())
+        {
+            CycleAnalyser analyser = label.equals(getStepMethodName()) ? toDispatch : toReturn;
+            CycleAnalyser.Cost cost = analyser.analyse(label);
+            if (cost != null)
+            {
+                costs.put(label, cost);
+            }
+        }
+        CycleAnalyser.Cost step = toReturn.analyse(getStepMethodName());
+
+        for (Map.Entry<String, CycleAnalyser.Cost> entry : costs.entrySet())
+        {
+            listing.insert(listing.findLabel(entry.getKey()), m_assembler.createComment(String.format(
+                    "Cycles: best %d, worst %s", entry.getValue().getBest(),
+                    formatCycles(entry.getValue().getWorst()))));
+        }
+
+        m_assembler.blankLine();
+        m_assembler.startBlockComment();
+        m_assembler.writeBlockCommentLine("Instruction cycles to return, best and worst case.");
+        m_assembler.writeBlockCommentLine("Methods called by the state machine are not included.");
+        m_assembler.writeBlockCommentLine("");
+        m_assembler.writeBlockCommentLine(String.format("%7s %7s  %s", "Best", "Worst", "Code"));
+        for (Map.Entry<String, CycleAnalyser.Cost> entry : costs.entrySet())
+        {
+            writeCycleReportLine(entry.getValue(), m_cycleReportLabels.get(entry.getKey()));
+        }
+        writeCycleReportLine(step, getStepMethodName() + " in total");
+        if (m_cycleBudget > 0)
+        {
+            m_assembler.writeBlockCommentLine(String.format("%7s %7d  %s", "", m_cycleBudget, "Budget"));
+        }
+        if (!m_blockOperations.isEmpty())
+        {
+            m_assembler.writeBlockCommentLine("");
+            m_assembler.writeBlockCommentLine("Clears and copies of more than one byte, each time done.");
+            m_assembler.writeBlockCommentLine("");
+            m_assembler.writeBlockCommentLine(String.format("%7s %7s  %s", "Cycles", "", "Operation"));
+            for (Map.Entry<String, Integer> entry : m_blockOperations.entrySet())
+            {
+                m_assembler.writeBlockCommentLine(String.format("%7d %7s  %s", entry.getValue(), "",
+                        entry.getKey()));
+            }
+        }
+        m_assembler.endBlockComment();
+
+        m_log.info(String.format("%s takes from %d to %s instruction cycles", getStepMethodName(),
+                step.getBest(), formatCycles(step.getWorst())));
+        if (toReturn.hasLoop())
+        {
+            m_log.warning(getStepMethodName() + " may loop, so its worst case is unbounded");
+        }
+        return step.getWorst();
+    }
+
+    /**
+     * Write a line of the cycle analysis table.
+     * 
+     * @param cost the cycles.
+     * @param description description of the code.
+     */
+    private void writeCycleReportLine(final CycleAnalyser.Cost cost, final String description)
+    {
+        m_assembler.writeBlockCommentLine(String.format("%7d %7s  %s", cost.getBest(),
+                formatCycles(cost.getWorst()), description));
+    }
+
+    /**
+     * @param cycles instruction cycles or {@link CycleAnalyser.Cost#UNBOUNDED}.
+     * @return the cycles for output.
+     */
+    private static String formatCycles(final int cycles)
+    {
+        return cycles == CycleAnalyser.Cost.UNBOUNDED ? "loop" : Integer.toString(cycles);
     }
 
     /**
@@ -803,8 +2462,9 @@ public class Pic18AsmBuilder implements IModelVisitor
      * pointer.
      * 
      * @param pointer pointer variable to go to.
+     * @param targets labels the pointer may hold, which may be added to later.
      */
-    private void gotoPointer(final Variable pointer)
+    private void gotoPointer(final Variable pointer, final List<String> targets)
     {
         banksel(pointer);
 
@@ -819,7 +2479,10 @@ public class Pic18AsmBuilder implements IModelVisitor
 
         m_assembler.opCode("MOVFF", offset(pointer, 1), "PCLATH");
         m_assembler.opCode("MOVF", pointer.getName(), "W", access(pointer));
-        m_assembler.opCode("MOVWF", "PCL", "A");
+        forgetWorkingRegister();
+        m_assembler.computedJump(targets, "MOVWF", "PCL", "A");
+
+        setUnreachable();
     }
 
     /**
@@ -829,20 +2492,68 @@ public class Pic18AsmBuilder implements IModelVisitor
      * @param pointer pointer variable to populate.
      * @param label ASM label to read from.
      */
-    private void setPointer(final Variable pointer, final String label)
+    protected void setPointer(final Variable pointer, final String label)
     {
         banksel(pointer);
         if (m_largeRomModel)
         {
-            m_assembler.opCode("MOVLW", "UPPER(" + label + ")");
+            loadLiteral("UPPER(" + label + ")");
             m_assembler.opCode("MOVWF", offset(pointer, 2), access(pointer));
         }
 
-        m_assembler.opCode("MOVLW", "HIGH(" + label + ")");
+        loadLiteral("HIGH(" + label + ")");
         m_assembler.opCode("MOVWF", offset(pointer, 1), access(pointer));
 
-        m_assembler.opCode("MOVLW", "LOW(" + label + ")");
+        loadLiteral("LOW(" + label + ")");
         m_assembler.opCode("MOVWF", offset(pointer, 0), access(pointer));
+        variableWritten(pointer);
+    }
+
+    /**
+     * Write a MOVLW unless W is known to hold the literal already.
+     * 
+     * @param literal MOVLW operand, for example ".10" or "HIGH(label)".
+     */
+    private void loadLiteral(final String literal)
+    {
+        if (!m_workingRegister.holdsLiteral(literal))
+        {
+            m_assembler.opCode("MOVLW", literal);
+            m_workingRegister = WorkingRegister.literal(literal);
+        }
+    }
+
+    /**
+     * Write a MOVF to copy a single byte variable into W unless W is known to hold it
+     * already. The caller selects the bank.
+     * 
+     * @param variable the variable to load.
+     */
+    private void loadVariable(final Variable variable)
+    {
+        if (!m_workingRegister.follows(variable) || m_workingRegister.getXorValue() != 0)
+        {
+            m_assembler.opCode("MOVF", variable.getName(), "W", access(variable));
+            m_workingRegister = WorkingRegister.variable(variable, 0);
+        }
+    }
+
+    /**
+     * An instruction has changed W to a value that is not tracked.
+     */
+    private void forgetWorkingRegister()
+    {
+        m_workingRegister = WorkingRegister.UNKNOWN;
+    }
+
+    /**
+     * A variable has been written, so W may no longer follow it.
+     * 
+     * @param variable the variable written.
+     */
+    private void variableWritten(final Variable variable)
+    {
+        m_workingRegister = m_workingRegister.withoutVariable(variable);
     }
 
     /**
@@ -868,7 +2579,133 @@ public class Pic18AsmBuilder implements IModelVisitor
      */
     private void clearBankSel()
     {
-        m_currentBank = -1;
+        m_currentBank = UNKNOWN_BANK;
+    }
+
+    /**
+     * Write a label that is entered from outside the code being written, such as
+     * a node's step code. The bank is unknown there.
+     * 
+     * @param label the label.
+     */
+    protected void writeEntryLabel(final String label)
+    {
+        m_assembler.writeLabel(label);
+        m_reachable = true;
+        clearBankSel();
+        forgetWorkingRegister();
+    }
+
+    /**
+     * Write an internal label that is only jumped to from earlier in the current
+     * node. The bank selected after it, and the content of W, are known if they are
+     * the same on every route to it.
+     * 
+     * @param label the label.
+     */
+    private void writeInternalLabel(final String label)
+    {
+        Integer entryBank = m_labelEntryBanks.remove(label);
+        WorkingRegister entryWorkingRegister = m_labelEntryWorkingRegisters.remove(label);
+        if (entryBank != null)
+        {
+            m_currentBank = m_reachable ? mergeBanks(entryBank, m_currentBank) : entryBank;
+            m_workingRegister = m_reachable
+                    ? entryWorkingRegister.merge(m_workingRegister) : entryWorkingRegister;
+            m_reachable = true;
+        }
+        else if (!m_reachable)
+        {
+            clearBankSel();
+            forgetWorkingRegister();
+        }
+        m_assembler.writeLabel(label);
+    }
+
+    /**
+     * Write a branch or skipped GOTO to an internal label, after which the code
+     * continues.
+     * 
+     * @param opCode the jump instruction, for example "BNC", or "GOTO" after a skip.
+     * @param label an internal label later in the node.
+     */
+    private void branchToLabel(final String opCode, final String label)
+    {
+        m_assembler.opCode(opCode, label);
+        recordJump(label, m_currentBank, m_workingRegister);
+    }
+
+    /**
+     * Write an unconditional GOTO to an internal label.
+     * 
+     * @param label an internal label later in the node.
+     */
+    private void gotoLabel(final String label)
+    {
+        branchToLabel("GOTO", label);
+        setUnreachable();
+    }
+
+    /**
+     * Write an entry of a jump table, which is entered with the given bank and an
+     * unknown W. The table follows a computed jump, so the entry is recorded even
+     * though the code before it cannot fall through.
+     * 
+     * @param label an internal label later in the node.
+     * @param bank bank selected on entering the table.
+     */
+    private void writeTableEntry(final String label, final int bank)
+    {
+        m_assembler.fixedOpCode("GOTO", label);
+        recordEntry(label, bank, WorkingRegister.UNKNOWN);
+    }
+
+    /**
+     * Record that the given internal label is jumped to with the given bank and W.
+     * Nothing is recorded if the jump cannot be reached.
+     * 
+     * @param label the label.
+     * @param bank the bank selected at the jump.
+     * @param workingRegister what is known about W at the jump.
+     */
+    private void recordJump(final String label, final int bank, final WorkingRegister workingRegister)
+    {
+        if (m_reachable)
+        {
+            recordEntry(label, bank, workingRegister);
+        }
+    }
+
+    /**
+     * Record a route into the given internal label with the given bank and W.
+     * 
+     * @param label the label.
+     * @param bank the bank selected on the route.
+     * @param workingRegister what is known about W on the route.
+     */
+    private void recordEntry(final String label, final int bank, final WorkingRegister workingRegister)
+    {
+        Integer entryBank = m_labelEntryBanks.get(label);
+        m_labelEntryBanks.put(label, entryBank == null ? bank : mergeBanks(entryBank, bank));
+        WorkingRegister entryWorkingRegister = m_labelEntryWorkingRegisters.get(label);
+        m_labelEntryWorkingRegisters.put(label, entryWorkingRegister == null
+                ? workingRegister : entryWorkingRegister.merge(workingRegister));
+    }
+
+    /**
+     * The code that follows cannot be reached except by a jump to a label.
+     */
+    protected void setUnreachable()
+    {
+        m_reachable = false;
+    }
+
+    /**
+     * @return the bank known at the meeting of two routes with the given banks.
+     */
+    private static int mergeBanks(final int bank1, final int bank2)
+    {
+        return bank1 == bank2 ? bank1 : UNKNOWN_BANK;
     }
 
     /**
@@ -879,7 +2716,7 @@ public class Pic18AsmBuilder implements IModelVisitor
      * @param offset the fixed offset.
      * @return assembler constant, for example "(v + .2)"
      */
-    private String offset(final Variable v, final int offset)
+    protected String offset(final Variable v, final int offset)
     {
         if (offset != 0)
         {
@@ -912,7 +2749,7 @@ public class Pic18AsmBuilder implements IModelVisitor
      * @param x the integer
      * @return an MPASM integer, for example ".10"
      */
-    private String formatInt(final int x)
+    protected String formatInt(final int x)
     {
         return "." + x;
     }
@@ -923,7 +2760,7 @@ public class Pic18AsmBuilder implements IModelVisitor
      * @param x value to format
      * @return an MPASM hex constant or character constant, for example 'a' or 0x32.
      */
-    private String formatByte(final int x)
+    protected String formatByte(final int x)
     {
         if (x >= MIN_PRINTABLE_ASCII && x <= MAX_PRINTABLE_ASCII)
         {
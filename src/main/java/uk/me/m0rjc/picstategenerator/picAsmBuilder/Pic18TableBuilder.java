@@ -0,0 +1,1287 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Stack;
+
+import uk.me.m0rjc.picstategenerator.model.Node;
+import uk.me.m0rjc.picstategenerator.model.RomLocation;
+import uk.me.m0rjc.picstategenerator.model.SymbolOwnership;
+import uk.me.m0rjc.picstategenerator.model.Transition;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.visitor.IModel;
+import uk.me.m0rjc.picstategenerator.visitor.INode;
+
+/**
+ * Build assembly source code for the PIC18 in which each node is a table of
+ * operations in program memory, run by a small fixed interpreter. The tables
+ * are read with TBLRD*+, so the step code takes more cycles than the inline
+ * code of {@link Pic18AsmBuilder} but a large model takes much less program
+ * memory.
+ *
+ * <p>Every operation is two bytes, an op-code and an operand, followed by
+ * two byte RAM addresses and table pointers. Table pointers are two bytes, or
+ * four in the large ROM model. Each operation is written as its own DB line so
+ * is never padded. RAM is accessed through FSR0 so variables may be in any bank.
+ * The interpreter also uses TBLPTR, TABLAT, PRODH:PRODL and W.</p>
+ *
+ * <p>A transition with preconditions first loads the fail pointer with the table
+ * address to continue from if a precondition is false. An input switch is a table
+ * of ranges searched in turn, or, under the speed profile or where it takes fewer
+ * bytes, a table of pointers indexed by the class of the input. The classes divide the byte values into runs
+ * that every transition of the model treats alike, and are looked up in a table of
+ * 256 bytes written once if any switch uses it.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public class Pic18TableBuilder extends Pic18AsmBuilder
+{
+    /** Operations of the table interpreter, numbered in order. */
+    private enum Op
+    {
+        /** Set the fail pointer. Operands: pointer. */
+        FAIL_TO,
+        /** Continue if the variable equals the operand, else fail. Operands: variable. */
+        EQ,
+        /** Continue if the variable is at least the operand, else fail. Operands: variable. */
+        GE,
+        /** Continue if the variable is at most the operand, else fail. Operands: variable. */
+        LE,
+        /** Continue if any bit of the operand mask is set, else fail. Operands: variable. */
+        FLAG_SET,
+        /** Continue if no bit of the operand mask is set, else fail. Operands: variable. */
+        FLAG_CLEAR,
+        /** Decrement the variable and continue unless it reaches zero, else fail. Operands: variable. */
+        COUNTDOWN,
+        /** Clear the operand number of bytes. Operands: variable. */
+        CLEAR,
+        /** Load the variable with the operand. Operands: variable. */
+        LOAD,
+        /** Increment a variable of the operand number of bytes. Operands: variable. */
+        INCREMENT,
+        /** Set the bits of the operand mask. Operands: variable. */
+        SET_BITS,
+        /** AND the variable with the operand mask. Operands: variable. */
+        AND_BITS,
+        /** Copy a byte. Operands: source, destination. */
+        COPY,
+        /** Copy a byte to an indexed byte. Operands: index, source, destination. */
+        COPY_INDEXED,
+        /** Clear an indexed byte. Operands: index, variable. */
+        CLEAR_INDEXED,
+        /** Call a method through its call stub. Operands: pointer to the stub. */
+        CALL,
+        /** Set the state pointer and return. Operands: pointer. */
+        GOTO_NODE,
+        /** Return without changing the state pointer. */
+        STAY,
+        /** Continue from another table address. Operands: pointer. */
+        JUMP,
+        /** Set the subroutine return pointer. Operands: pointer. */
+        SAVE_RETURN,
+        /** Continue from the subroutine return pointer. */
+        RETURN_SUB,
+        /**
+         * Search the operand number of ranges, each low, high and pointer, for the
+         * variable and continue from the pointer of the range found, otherwise from
+         * the default pointer after the ranges. Operands: variable.
+         */
+        SWITCH,
+        /**
+         * Continue from the pointer for the input class of the variable. Operands:
+         * variable, then a pointer for each input class.
+         */
+        SWITCH_CLASS;
+
+        /** @return label of the interpreter code for the operation. */
+        private String getLabel()
+        {
+            return "tbl_op_" + name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /** Label of the interpreter loop. */
+    private static final String NEXT_LABEL = "tbl_next";
+
+    /** Label of the code to continue from the fail pointer. */
+    private static final String FAIL_LABEL = "tbl_fail";
+
+    /** Label of the code to continue after a method call. */
+    private static final String RESUME_LABEL = "tbl_resume";
+
+    /** Labels of the subroutines that read operands. */
+    private static final String READ_ADDRESS_LABEL = "tbl_readAddress";
+    private static final String READ_POINTER_LABEL = "tbl_readPointer";
+
+    /** Labels of the code in the search of a range table. */
+    private static final String SWITCH_CASE_LABEL = "tbl_switchCase";
+    private static final String SWITCH_HIGH_LABEL = "tbl_switchHigh";
+    private static final String SWITCH_MISS_LABEL = "tbl_switchMiss";
+
+    /** Label of the table of GOTO for each operation. */
+    private static final String OPS_LABEL = "tbl_ops";
+
+    /** Label of the table of the input class of each byte value. */
+    private static final String CLASSES_LABEL = "tbl_classes";
+
+    /** Bytes of the class table written on each DB line. */
+    private static final int CLASSES_PER_LINE = 16;
+
+    /** Bits in a byte. */
+    private static final int BITS_PER_BYTE = 8;
+
+    /** Number of distinct byte values. */
+    private static final int BYTE_VALUES = 256;
+
+    /** Mask of a byte. */
+    private static final int BYTE_MASK = 0xFF;
+
+    /** Highest value of a byte. */
+    private static final int MAX_BYTE = 255;
+
+    /** Table address to continue from if a precondition is false. */
+    private Variable m_failPointer;
+
+    /** Table address to continue from after a method call. */
+    private Variable m_resumePointer;
+
+    /** Labels of the code blocks being written. */
+    private Stack<String> m_codeBlockStack = new Stack<String>();
+
+    /** Label the fail pointer was last set to, or null if not known. */
+    private String m_failLabel;
+
+    /** Counter for internal labels. */
+    private int m_internalLabelCounter;
+
+    /** Methods called, each through a stub that resumes the interpreter. */
+    private Set<String> m_calledMethods = new LinkedHashSet<String>();
+
+    /** Labels of the call stubs, for the computed jump to them. */
+    private List<String> m_callStubLabels = new ArrayList<String>();
+
+    /** Input switch being rendered, or null. */
+    private InputSwitch m_inputSwitch;
+
+    /** Name of the node being rendered, or null for shared entry code. */
+    private String m_currentNodeName;
+
+    /** True if the current node contains a gosub. */
+    private boolean m_nodeHasSubroutineCalls;
+
+    /** True if the table being written can be reached at this point. */
+    private boolean m_tableReachable;
+
+    /** Labels that table pointers have been written for. */
+    private Set<String> m_referencedLabels = new HashSet<String>();
+
+    /** Input class of each byte value. */
+    private int[] m_inputClasses;
+
+    /** Number of input classes. */
+    private int m_inputClassCount;
+
+    /** True if a switch has been written that uses the class table. */
+    private boolean m_usesInputClasses;
+
+    /** The tables hold pointers to each other, so the current node is always a pointer. */
+    @Override
+    protected boolean isStateIndex()
+    {
+        return false;
+    }
+
+    /**
+     * The interpreter indexes each store, so no FSR can be reserved for it.
+     *
+     * @param fsr 0, as any other FSR is refused.
+     */
+    @Override
+    public void setStorageFsr(final int fsr)
+    {
+        if (fsr != 0)
+        {
+            throw new IllegalArgumentException("The table backend indexes each store, so cannot use FSR"
+                    + fsr + " for storage.");
+        }
+    }
+
+    @Override
+    public int getInternalAccessBytes(final IModel model)
+    {
+        return super.getInternalAccessBytes(model) + 2 * getPointerSize();
+    }
+
+    @Override
+    protected void buildInternalPointers(final int bankNumber)
+    {
+        super.buildInternalPointers(bankNumber);
+        if (m_failPointer == null)
+        {
+            m_failPointer = new Variable("_tblFail", SymbolOwnership.INTERNAL,
+                    bankNumber, getPointerSize());
+            visitCreateVariableDefinition(m_failPointer);
+            m_resumePointer = new Variable("_tblResume", SymbolOwnership.INTERNAL,
+                    bankNumber, getPointerSize());
+            visitCreateVariableDefinition(m_resumePointer);
+        }
+    }
+
+    @Override
+    public void visitStartModel(final IModel model)
+    {
+        super.visitStartModel(model);
+        m_inputClasses = model.getInputClasses();
+        m_inputClassCount = m_inputClasses[BYTE_VALUES - 1] + 1;
+    }
+
+    /** @return bytes in a pointer held in RAM. */
+    private int getPointerSize()
+    {
+        return isLargeRomModel() ? 3 : 2;
+    }
+
+    /** @return bytes in a pointer in the tables. */
+    private int getTablePointerSize()
+    {
+        return isLargeRomModel() ? 4 : 2;
+    }
+
+    /**
+     * Output the step method, which is the interpreter. It runs the table of the
+     * current node until an operation returns.
+     */
+    @Override
+    protected void writeProcessStateMethod()
+    {
+        PicAssemblyWriter asm = getAssembler();
+        asm.blankLine();
+        asm.startBlockComment();
+        asm.writeBlockCommentLine("State model entry point.");
+        asm.writeBlockCommentLine("This method runs the table for the current state.");
+        asm.endBlockComment();
+
+        startRegion(getMemoryMap().addCode(getStepMethodName()));
+        writeEntryLabel(getStepMethodName());
+        addCycleReport(getStepMethodName(), "Dispatch the first operation of the current node");
+        loadTablePointer(getStatePointer());
+        if (!isLargeRomModel())
+        {
+            asm.opCode("CLRF", "TBLPTRU", "A");
+        }
+
+        writeEntryLabel(NEXT_LABEL);
+        asm.opCode("TBLRD*+");
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("TBLRD*+");
+        gotoTableEntry(OPS_LABEL);
+
+        writeEntryLabel(OPS_LABEL);
+        for (Op op : Op.values())
+        {
+            asm.fixedOpCode("GOTO", op.getLabel());
+        }
+
+        writeFlowOperations();
+        writeTestOperations();
+        writeCommandOperations();
+        writeSwitchOperation();
+        writeClassSwitchOperation();
+        writeOperandReaders();
+    }
+
+    /** Write the operations that change where the interpreter reads from. */
+    private void writeFlowOperations()
+    {
+        PicAssemblyWriter asm = getAssembler();
+
+        writeEntryLabel(FAIL_LABEL);
+        loadTablePointer(m_failPointer);
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.FAIL_TO.getLabel());
+        readPointer();
+        storePointer(m_failPointer);
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.JUMP.getLabel());
+        readPointer();
+        asm.opCode("MOVFF", "PRODL", "TBLPTRL");
+        asm.opCode("MOVFF", "PRODH", "TBLPTRH");
+        if (isLargeRomModel())
+        {
+            asm.opCode("MOVWF", "TBLPTRU", "A");
+        }
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.GOTO_NODE.getLabel());
+        readPointer();
+        storePointer(getStatePointer());
+        writeEntryLabel(Op.STAY.getLabel());
+        writeReturn();
+
+        if (getSubroutineStackIndex() != null)
+        {
+            writeSubroutineStackOperations();
+        }
+        else if (getSubroutineStack() != null)
+        {
+            writeEntryLabel(Op.SAVE_RETURN.getLabel());
+            readPointer();
+            storePointer(getSubroutineStack());
+            asm.opCode("GOTO", NEXT_LABEL);
+
+            writeEntryLabel(Op.RETURN_SUB.getLabel());
+            loadTablePointer(getSubroutineStack());
+            asm.opCode("GOTO", NEXT_LABEL);
+        }
+        else
+        {
+            writeEntryLabel(Op.SAVE_RETURN.getLabel());
+            writeEntryLabel(Op.RETURN_SUB.getLabel());
+            asm.opCode("GOTO", NEXT_LABEL);
+        }
+
+        // The method is called from a stub so the call can be to any address.
+        writeEntryLabel(Op.CALL.getLabel());
+        readPointer();
+        asm.opCode("MOVFF", "TBLPTRL", m_resumePointer.getName());
+        asm.opCode("MOVFF", "TBLPTRH", offset(m_resumePointer, 1));
+        if (isLargeRomModel())
+        {
+            asm.opCode("MOVFF", "TBLPTRU", offset(m_resumePointer, 2));
+            asm.opCode("MOVWF", "PCLATU", "A");
+        }
+        else
+        {
+            asm.opCode("CLRF", "PCLATU", "A");
+        }
+        asm.opCode("MOVFF", "PRODH", "PCLATH");
+        asm.opCode("MOVF", "PRODL", "W", "A");
+        asm.computedJump(m_callStubLabels, "MOVWF", "PCL", "A");
+        setUnreachable();
+
+        writeEntryLabel(RESUME_LABEL);
+        loadTablePointer(m_resumePointer);
+        asm.opCode("GOTO", NEXT_LABEL);
+    }
+
+    /** Write the operations that test a variable. The operand is in TABLAT. */
+    private void writeTestOperations()
+    {
+        PicAssemblyWriter asm = getAssembler();
+
+        writeEntryLabel(Op.EQ.getLabel());
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("CPFSEQ", "INDF0", "A");
+        asm.opCode("GOTO", FAIL_LABEL);
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.GE.getLabel());
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("CPFSLT", "INDF0", "A");
+        asm.opCode("GOTO", NEXT_LABEL);
+        asm.opCode("GOTO", FAIL_LABEL);
+
+        writeEntryLabel(Op.LE.getLabel());
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("CPFSGT", "INDF0", "A");
+        asm.opCode("GOTO", NEXT_LABEL);
+        asm.opCode("GOTO", FAIL_LABEL);
+
+        writeEntryLabel(Op.FLAG_SET.getLabel());
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("ANDWF", "INDF0", "W", "A");
+        asm.opCode("BTFSC", "STATUS", "Z", "A");
+        asm.opCode("GOTO", FAIL_LABEL);
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.FLAG_CLEAR.getLabel());
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("ANDWF", "INDF0", "W", "A");
+        asm.opCode("BTFSS", "STATUS", "Z", "A");
+        asm.opCode("GOTO", FAIL_LABEL);
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.COUNTDOWN.getLabel());
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("DECFSZ", "INDF0", "F", "A");
+        asm.opCode("GOTO", NEXT_LABEL);
+        asm.opCode("GOTO", FAIL_LABEL);
+    }
+
+    /** Write the operations that change variables. The operand is in TABLAT. */
+    private void writeCommandOperations()
+    {
+        PicAssemblyWriter asm = getAssembler();
+
+        writeEntryLabel(Op.CLEAR.getLabel());
+        asm.opCode("MOVFF", "TABLAT", "PRODL");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        writeEntryLabel("tbl_clearLoop");
+        asm.opCode("CLRF", "POSTINC0", "A");
+        asm.opCode("DECFSZ", "PRODL", "F", "A");
+        asm.opCode("GOTO", "tbl_clearLoop");
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.LOAD.getLabel());
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("MOVWF", "INDF0", "A");
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.INCREMENT.getLabel());
+        asm.opCode("MOVFF", "TABLAT", "PRODL");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        writeEntryLabel("tbl_incrementLoop");
+        asm.opCode("INCF", "INDF0", "F", "A");
+        asm.opCode("BTFSS", "STATUS", "C", "A");
+        asm.opCode("GOTO", NEXT_LABEL);
+        asm.opCode("MOVF", "POSTINC0", "W", "A");
+        asm.opCode("DECFSZ", "PRODL", "F", "A");
+        asm.opCode("GOTO", "tbl_incrementLoop");
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.SET_BITS.getLabel());
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("IORWF", "INDF0", "F", "A");
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.AND_BITS.getLabel());
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("ANDWF", "INDF0", "F", "A");
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.COPY.getLabel());
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("MOVFF", "INDF0", "PRODH");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("MOVFF", "PRODH", "INDF0");
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.COPY_INDEXED.getLabel());
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("MOVF", "INDF0", "W", "A");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("MOVFF", "INDF0", "PRODH");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("MOVFF", "PRODH", "PLUSW0");
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.CLEAR_INDEXED.getLabel());
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("MOVF", "INDF0", "W", "A");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("CLRF", "PLUSW0", "A");
+        asm.opCode("GOTO", NEXT_LABEL);
+    }
+
+    /**
+     * Write the search of a range table. The ranges are tested in turn, PRODH
+     * counting those left, while FSR0 points to the variable.
+     */
+    private void writeSwitchOperation()
+    {
+        PicAssemblyWriter asm = getAssembler();
+
+        writeEntryLabel(Op.SWITCH.getLabel());
+        asm.opCode("MOVFF", "TABLAT", "PRODH");
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        writeEntryLabel(SWITCH_CASE_LABEL);
+        asm.opCode("TBLRD*+");
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("TBLRD*+");
+        asm.opCode("CPFSLT", "INDF0", "A");
+        asm.opCode("GOTO", SWITCH_HIGH_LABEL);
+        writeEntryLabel(SWITCH_MISS_LABEL);
+        asm.opCode("MOVLW", formatInt(getTablePointerSize()));
+        asm.opCode("ADDWF", "TBLPTRL", "F", "A");
+        asm.opCode("MOVLW", formatInt(0));
+        asm.opCode("ADDWFC", "TBLPTRH", "F", "A");
+        asm.opCode("ADDWFC", "TBLPTRU", "F", "A");
+        asm.opCode("DECFSZ", "PRODH", "F", "A");
+        asm.opCode("GOTO", SWITCH_CASE_LABEL);
+        asm.opCode("GOTO", Op.JUMP.getLabel());
+        writeEntryLabel(SWITCH_HIGH_LABEL);
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("CPFSGT", "INDF0", "A");
+        asm.opCode("GOTO", Op.JUMP.getLabel());
+        asm.opCode("GOTO", SWITCH_MISS_LABEL);
+    }
+
+    /**
+     * Write the switch on input class. The class of the variable is read from the
+     * class table, TBLPTR being saved in PRODH:PRODL and FSR0L, then multiplied by
+     * the size of a pointer to find the pointer to continue from.
+     */
+    private void writeClassSwitchOperation()
+    {
+        PicAssemblyWriter asm = getAssembler();
+
+        writeEntryLabel(Op.SWITCH_CLASS.getLabel());
+        asm.opCode("RCALL", READ_ADDRESS_LABEL);
+        asm.opCode("MOVF", "INDF0", "W", "A");
+        asm.opCode("MOVFF", "TBLPTRL", "PRODL");
+        asm.opCode("MOVFF", "TBLPTRH", "PRODH");
+        if (isLargeRomModel())
+        {
+            asm.opCode("MOVFF", "TBLPTRU", "FSR0L");
+        }
+        asm.opCode("ADDLW", "LOW(" + CLASSES_LABEL + ")");
+        asm.opCode("MOVWF", "TBLPTRL", "A");
+        asm.opCode("MOVLW", "HIGH(" + CLASSES_LABEL + ")");
+        asm.opCode("MOVWF", "TBLPTRH", "A");
+        if (isLargeRomModel())
+        {
+            asm.opCode("MOVLW", "UPPER(" + CLASSES_LABEL + ")");
+            asm.opCode("MOVWF", "TBLPTRU", "A");
+        }
+        asm.opCode("CLRF", "WREG", "A");
+        asm.opCode("ADDWFC", "TBLPTRH", "F", "A");
+        if (isLargeRomModel())
+        {
+            asm.opCode("ADDWFC", "TBLPTRU", "F", "A");
+        }
+        asm.opCode("TBLRD*");
+        asm.opCode("MOVFF", "PRODL", "TBLPTRL");
+        asm.opCode("MOVFF", "PRODH", "TBLPTRH");
+        if (isLargeRomModel())
+        {
+            asm.opCode("MOVFF", "FSR0L", "TBLPTRU");
+        }
+        asm.opCode("MOVF", "TABLAT", "W", "A");
+        asm.opCode("MULLW", formatInt(getTablePointerSize()));
+        asm.opCode("MOVF", "PRODL", "W", "A");
+        asm.opCode("ADDWF", "TBLPTRL", "F", "A");
+        asm.opCode("MOVF", "PRODH", "W", "A");
+        asm.opCode("ADDWFC", "TBLPTRH", "F", "A");
+        if (isLargeRomModel())
+        {
+            asm.opCode("CLRF", "WREG", "A");
+            asm.opCode("ADDWFC", "TBLPTRU", "F", "A");
+        }
+        asm.opCode("GOTO", Op.JUMP.getLabel());
+    }
+
+    /**
+     * Write the operations that push and pop returns on a subroutine stack of more
+     * than one return. The stack is indexed through FSR0. It lies within one bank,
+     * so adding the index cannot carry into FSR0H.
+     */
+    private void writeSubroutineStackOperations()
+    {
+        PicAssemblyWriter asm = getAssembler();
+        Variable index = getSubroutineStackIndex();
+
+        writeEntryLabel(Op.SAVE_RETURN.getLabel());
+        readPointer();
+        if (isLargeRomModel())
+        {
+            asm.opCode("MOVWF", "TABLAT", "A");
+        }
+        asm.opCode("LFSR", "FSR0", getSubroutineStack().getName());
+        asm.opCode("MOVFF", index.getName(), "WREG");
+        asm.opCode("ADDWF", "FSR0L", "F", "A");
+        asm.opCode("MOVFF", "PRODL", "POSTINC0");
+        if (isLargeRomModel())
+        {
+            asm.opCode("MOVFF", "PRODH", "POSTINC0");
+            asm.opCode("MOVFF", "TABLAT", "INDF0");
+        }
+        else
+        {
+            asm.opCode("MOVFF", "PRODH", "INDF0");
+        }
+        asm.opCode("ADDLW", formatInt(getSubroutineReturnSize()));
+        asm.opCode("ANDLW", formatInt(getSubroutineStackMask()));
+        asm.opCode("MOVFF", "WREG", index.getName());
+        asm.opCode("GOTO", NEXT_LABEL);
+
+        writeEntryLabel(Op.RETURN_SUB.getLabel());
+        asm.opCode("MOVFF", index.getName(), "WREG");
+        asm.opCode("ADDLW", formatInt(BYTE_VALUES - getSubroutineReturnSize()));
+        asm.opCode("ANDLW", formatInt(getSubroutineStackMask()));
+        asm.opCode("MOVFF", "WREG", index.getName());
+        asm.opCode("LFSR", "FSR0", getSubroutineStack().getName());
+        asm.opCode("ADDWF", "FSR0L", "F", "A");
+        asm.opCode("MOVFF", "POSTINC0", "TBLPTRL");
+        if (isLargeRomModel())
+        {
+            asm.opCode("MOVFF", "POSTINC0", "TBLPTRH");
+            asm.opCode("MOVFF", "INDF0", "TBLPTRU");
+        }
+        else
+        {
+            asm.opCode("MOVFF", "INDF0", "TBLPTRH");
+        }
+        asm.opCode("GOTO", NEXT_LABEL);
+    }
+
+    /** Write the subroutines that read RAM addresses and table pointers. */
+    private void writeOperandReaders()
+    {
+        PicAssemblyWriter asm = getAssembler();
+
+        // Leaves W unchanged.
+        writeEntryLabel(READ_ADDRESS_LABEL);
+        asm.opCode("TBLRD*+");
+        asm.opCode("MOVFF", "TABLAT", "FSR0L");
+        asm.opCode("TBLRD*+");
+        asm.opCode("MOVFF", "TABLAT", "FSR0H");
+        asm.opCode("RETURN");
+
+        // Reads into PRODH:PRODL, the upper byte into W.
+        writeEntryLabel(READ_POINTER_LABEL);
+        asm.opCode("TBLRD*+");
+        asm.opCode("MOVFF", "TABLAT", "PRODL");
+        asm.opCode("TBLRD*+");
+        asm.opCode("MOVFF", "TABLAT", "PRODH");
+        if (isLargeRomModel())
+        {
+            asm.opCode("TBLRD*+");
+            asm.opCode("MOVF", "TABLAT", "W", "A");
+            asm.opCode("TBLRD*+");
+        }
+        asm.opCode("RETURN");
+        setUnreachable();
+    }
+
+    /** Write a call to read a table pointer into PRODH:PRODL and, in the large model, W. */
+    private void readPointer()
+    {
+        getAssembler().opCode("RCALL", READ_POINTER_LABEL);
+    }
+
+    /**
+     * Write instructions to store the pointer read by {@link #readPointer()}.
+     *
+     * @param pointer pointer variable.
+     */
+    private void storePointer(final Variable pointer)
+    {
+        PicAssemblyWriter asm = getAssembler();
+        asm.opCode("MOVFF", "PRODL", pointer.getName());
+        asm.opCode("MOVFF", "PRODH", offset(pointer, 1));
+        if (isLargeRomModel())
+        {
+            asm.opCode("MOVFF", "WREG", offset(pointer, 2));
+        }
+    }
+
+    /**
+     * Write instructions to load TBLPTR from a pointer variable.
+     *
+     * @param pointer pointer variable.
+     */
+    private void loadTablePointer(final Variable pointer)
+    {
+        PicAssemblyWriter asm = getAssembler();
+        asm.opCode("MOVFF", pointer.getName(), "TBLPTRL");
+        asm.opCode("MOVFF", offset(pointer, 1), "TBLPTRH");
+        if (isLargeRomModel())
+        {
+            asm.opCode("MOVFF", offset(pointer, 2), "TBLPTRU");
+        }
+    }
+
+    @Override
+    public void startSharedEntryCode(final INode node)
+    {
+        assert m_codeBlockStack.empty() : "Code block stack not cleared by previous node";
+
+        m_currentNodeName = null;
+        startRegion(getMemoryMap().addSharedEntryCode(node.getStateName()));
+        getAssembler().blankLine();
+        getAssembler().writeComment(" Node " + node.getStateName() + " entry table.");
+        startTable(getNodeEntryLabel(node.getStateName()));
+    }
+
+    @Override
+    public void startNode(final INode node)
+    {
+        assert m_codeBlockStack.empty() : "Code block stack not cleared by previous node";
+
+        startRegion(getMemoryMap().addStepCode(node.getStateName()));
+        getAssembler().blankLine();
+        getAssembler().writeComment(" Node " + node.getStateName() + " step table.");
+        startTable(getNodeStepLabel(node.getStateName()));
+        m_currentNodeName = node.getStateName();
+        m_nodeHasSubroutineCalls = false;
+    }
+
+    @Override
+    public void visitTransition(final Transition transition)
+    {
+        push();
+        getAssembler().writeComment("-- Start of transition --");
+    }
+
+    @Override
+    public void startInputSwitch(final Variable variable, final int[] lowValues, final int[] highValues)
+    {
+        m_inputSwitch = new InputSwitch(variable, lowValues, highValues, m_codeBlockStack.size());
+        if (variable.getSize() != 1)
+        {
+            return;
+        }
+        m_inputSwitch.useRangeTable();
+        m_inputSwitch.setEndLabel(getNextInternalLabel());
+        for (int low : m_inputSwitch.getSortedLowValues())
+        {
+            m_inputSwitch.setCaseLabel(low, getNextInternalLabel());
+        }
+
+        String[] classTargets = getClassTargets();
+        if (classTargets != null)
+        {
+            getAssembler().writeComment(" Switch on " + variable.getName() + " by input class");
+            writeOp(Op.SWITCH_CLASS, 0, address(variable, 0));
+            for (String target : classTargets)
+            {
+                List<String> entry = pointer(target);
+                getAssembler().fixedOpCode("DB", entry.toArray(new String[entry.size()]));
+            }
+            m_usesInputClasses = true;
+            m_tableReachable = false;
+            return;
+        }
+
+        getAssembler().writeComment(" Switch on " + variable.getName());
+        int[] lows = m_inputSwitch.getSortedLowValues();
+        int[] highs = m_inputSwitch.getSortedHighValues();
+        writeOp(Op.SWITCH, lows.length, address(variable, 0));
+        for (int i = 0; i < lows.length; i++)
+        {
+            List<String> entry = new ArrayList<String>();
+            entry.add(formatInt(lows[i]));
+            entry.add(formatInt(highs[i]));
+            entry.addAll(pointer(m_inputSwitch.getCaseLabel(lows[i])));
+            getAssembler().fixedOpCode("DB", entry.toArray(new String[entry.size()]));
+        }
+        List<String> defaultEntry = pointer(m_inputSwitch.getEndLabel());
+        getAssembler().fixedOpCode("DB", defaultEntry.toArray(new String[defaultEntry.size()]));
+        m_tableReachable = false;
+    }
+
+    /**
+     * Decide whether the current switch should index its cases by input class,
+     * which it does under the speed profile, as the time does not depend on the
+     * number of cases, and otherwise if the pointer for each class takes no more
+     * bytes than the ranges. Every value of a class must lead to the same case.
+     *
+     * @return the label to continue from for each class, or null to search the ranges.
+     */
+    private String[] getClassTargets()
+    {
+        int pointerSize = getTablePointerSize();
+        int rangeBytes = m_inputSwitch.getCaseCount() * (2 + pointerSize) + pointerSize;
+        if (m_inputClasses == null
+                || (getOptimisationProfile() != OptimisationProfile.SPEED
+                        && m_inputClassCount * pointerSize > rangeBytes))
+        {
+            return null;
+        }
+
+        String[] targets = new String[m_inputClassCount];
+        for (int value = 0; value < BYTE_VALUES; value++)
+        {
+            int found = m_inputSwitch.findCase(value);
+            String target = found < 0 ? m_inputSwitch.getEndLabel()
+                    : m_inputSwitch.getCaseLabel(m_inputSwitch.getSortedLowValues()[found]);
+            int inputClass = m_inputClasses[value];
+            if (targets[inputClass] == null)
+            {
+                targets[inputClass] = target;
+            }
+            else if (!targets[inputClass].equals(target))
+            {
+                return null;
+            }
+        }
+        return targets;
+    }
+
+    @Override
+    public void startSwitchCase(final int low, final int high)
+    {
+        if (m_inputSwitch.isDispatched())
+        {
+            writeTableLabel(m_inputSwitch.getCaseLabel(low));
+        }
+        m_inputSwitch.startCase(low, high);
+    }
+
+    @Override
+    public void endSwitchCase(final int low, final int high)
+    {
+        if (m_inputSwitch.isDispatched() && m_tableReachable)
+        {
+            writeOp(Op.JUMP, 0, pointer(m_inputSwitch.getEndLabel()));
+            m_tableReachable = false;
+        }
+        m_inputSwitch.endCase();
+    }
+
+    @Override
+    public void endInputSwitch()
+    {
+        if (m_inputSwitch.isDispatched())
+        {
+            writeTableLabel(m_inputSwitch.getEndLabel());
+        }
+        m_inputSwitch = null;
+    }
+
+    @Override
+    public void visitTransitionPreconditionGE(final Variable variable, final int value)
+    {
+        if (!isDecidedByInputSwitch(variable, value, MAX_BYTE) && value != 0)
+        {
+            getAssembler().writeComment(String.format(" Precondition %s >= %s",
+                    variable.getName(), formatByte(value)));
+            writeTest(Op.GE, value, variable, 0);
+        }
+    }
+
+    @Override
+    public void visitTransitionPreconditionEQ(final Variable variable, final int value)
+    {
+        if (!isDecidedByInputSwitch(variable, value, value))
+        {
+            getAssembler().writeComment(String.format(" Precondition %s == %s",
+                    variable.getName(), formatByte(value)));
+            writeTest(Op.EQ, value, variable, 0);
+        }
+    }
+
+    @Override
+    public void visitTransitionPreconditionLE(final Variable variable, final int value)
+    {
+        if (!isDecidedByInputSwitch(variable, 0, value) && value < MAX_BYTE)
+        {
+            getAssembler().writeComment(String.format(" Precondition %s <= %s",
+                    variable.getName(), formatByte(value)));
+            writeTest(Op.LE, value, variable, 0);
+        }
+    }
+
+    @Override
+    public void visitTransitionPreconditionCountdown(final Variable counter)
+    {
+        getAssembler().writeComment(String.format(" Precondition --%s != 0", counter.getName()));
+        writeTest(Op.COUNTDOWN, 0, counter, 0);
+    }
+
+    /**
+     * The interpreter has no range test, as a second operand would cost a table byte
+     * in every test. The bounds are tested separately.
+     */
+    @Override
+    public void visitTransitionPreconditionRange(final Variable variable, final int low, final int high)
+    {
+        visitTransitionPreconditionGE(variable, low);
+        visitTransitionPreconditionLE(variable, high);
+    }
+
+    @Override
+    public void visitTransitionPreconditionFlags(final Variable flags, final int byteOffset,
+            final int mask, final int expected)
+    {
+        getAssembler().writeComment(String.format(
+                " Precondition Flags %s[%d] & 0x%02x == 0x%02x", flags.getName(), byteOffset,
+                mask, expected));
+        // One test covers all flags expected clear. A set test passes if any flag in its
+        // operand is set, so each flag expected set needs its own.
+        int clear = mask & ~expected;
+        if (clear != 0)
+        {
+            writeTest(Op.FLAG_CLEAR, clear, flags, byteOffset);
+        }
+        for (int bit = 0; bit < BITS_PER_BYTE; bit++)
+        {
+            if ((expected & (1 << bit)) != 0)
+            {
+                writeTest(Op.FLAG_SET, 1 << bit, flags, byteOffset);
+            }
+        }
+    }
+
+    /**
+     * Is a precondition accepting the given range already decided by the range
+     * table of the input switch being rendered?
+     *
+     * @param variable variable being tested.
+     * @param low lowest value accepted.
+     * @param high highest value accepted.
+     * @return true if the test can be left out.
+     */
+    private boolean isDecidedByInputSwitch(final Variable variable, final int low, final int high)
+    {
+        return m_inputSwitch != null
+                && m_inputSwitch.isDecidedByDispatch(variable, low, high, m_codeBlockStack.size());
+    }
+
+    /**
+     * Write a test that fails to the end of the innermost code block.
+     *
+     * @param op the test.
+     * @param operand value or mask to test against.
+     * @param variable variable to test.
+     * @param offset byte of the variable to test.
+     */
+    private void writeTest(final Op op, final int operand, final Variable variable, final int offset)
+    {
+        exitCodeBlockOnFail(m_codeBlockStack.peek());
+        writeOp(op, operand, address(variable, offset));
+    }
+
+    /**
+     * Make sure the fail pointer holds the given label.
+     *
+     * @param label table label to continue from if a test fails.
+     */
+    private void exitCodeBlockOnFail(final String label)
+    {
+        if (!label.equals(m_failLabel))
+        {
+            writeOp(Op.FAIL_TO, 0, pointer(label));
+            m_failLabel = label;
+        }
+    }
+
+    @Override
+    public void visitCommandCopyVariableToIndexedVariable(final Variable source,
+            final Variable output, final Variable indexer)
+    {
+        getAssembler().writeComment(String.format(" Command %s[%s] := %s",
+                output.getName(), indexer.getName(), source.getName()));
+        List<String> operands = new ArrayList<String>(address(indexer, 0));
+        operands.addAll(address(source, 0));
+        operands.addAll(address(output, 0));
+        writeOp(Op.COPY_INDEXED, 0, operands);
+    }
+
+    @Override
+    public void visitCommandCopyVariable(final Variable input, final Variable output)
+    {
+        getAssembler().writeComment(String.format(" Command %s := %s",
+                output.getName(), input.getName()));
+        for (int i = 0; i < input.getSize() && i < output.getSize(); i++)
+        {
+            List<String> operands = new ArrayList<String>(address(input, i));
+            operands.addAll(address(output, i));
+            writeOp(Op.COPY, 0, operands);
+        }
+    }
+
+    @Override
+    public void visitCommandClearVariable(final Variable variable)
+    {
+        getAssembler().writeComment(String.format(" Command %s := 0", variable.getName()));
+        writeOp(Op.CLEAR, variable.getSize(), address(variable, 0));
+    }
+
+    @Override
+    public void visitCommandClearIndexedVariable(final Variable variable, final Variable indexer)
+    {
+        getAssembler().writeComment(String.format(" Command %s[%s] := 0",
+                variable.getName(), indexer.getName()));
+        List<String> operands = new ArrayList<String>(address(indexer, 0));
+        operands.addAll(address(variable, 0));
+        writeOp(Op.CLEAR_INDEXED, 0, operands);
+    }
+
+    @Override
+    public void visitCommandIncrementVariable(final Variable variable)
+    {
+        getAssembler().writeComment(String.format(" Command %s++", variable.getName()));
+        writeOp(Op.INCREMENT, variable.getSize(), address(variable, 0));
+    }
+
+    @Override
+    public void visitCommandStartIndexedStore(final Variable output, final Variable indexer)
+    {
+        // The interpreter indexes each store, so keeps no pointer.
+    }
+
+    @Override
+    public void visitCommandStoreNextIndexed(final Variable source, final Variable output,
+            final Variable indexer, final boolean terminate)
+    {
+        visitCommandCopyVariableToIndexedVariable(source, output, indexer);
+        visitCommandIncrementVariable(indexer);
+        if (terminate)
+        {
+            visitCommandClearIndexedVariable(output, indexer);
+        }
+    }
+
+    @Override
+    public void visitCommandEndIndexedStore(final Variable output, final Variable indexer)
+    {
+        visitCommandClearIndexedVariable(output, indexer);
+    }
+
+    @Override
+    public void visitCommandLoadCounter(final Variable counter, final int count)
+    {
+        getAssembler().writeComment(String.format(" Command %s := %d", counter.getName(), count));
+        writeOp(Op.LOAD, count, address(counter, 0));
+    }
+
+    @Override
+    public void visitCommandSetFlags(final Variable flags, final int byteOffset,
+            final int setMask, final int clearMask)
+    {
+        getAssembler().writeComment(String.format(" Command %s[%d] := | 0x%02x & ~0x%02x",
+                flags.getName(), byteOffset, setMask, clearMask));
+        if (setMask != 0)
+        {
+            writeOp(Op.SET_BITS, setMask, address(flags, byteOffset));
+        }
+        if (clearMask != 0)
+        {
+            writeOp(Op.AND_BITS, ~clearMask & BYTE_MASK, address(flags, byteOffset));
+        }
+    }
+
+    @Override
+    public void visitCommandMethodCall(final RomLocation method)
+    {
+        getAssembler().writeComment(" Command CALL " + method.getName());
+        m_calledMethods.add(method.getName());
+        writeOp(Op.CALL, 0, pointer(getCallStubLabel(method.getName())));
+    }
+
+    /**
+     * @param method name of a method.
+     * @return label of the stub that calls it.
+     */
+    private String getCallStubLabel(final String method)
+    {
+        return "tbl_call_" + method;
+    }
+
+    @Override
+    public void visitTransitionGoToSharedEntryCode(final INode node)
+    {
+        String stateName = node.getStateName();
+        getAssembler().writeComment(" Transition GOTO (Shared) " + stateName);
+        writeOp(Op.JUMP, 0, pointer(getNodeEntryLabel(stateName)));
+        m_tableReachable = false;
+    }
+
+    @Override
+    public void visitTransitionGoToNode(final INode node)
+    {
+        String stateName = node.getStateName();
+        if (m_nodeHasSubroutineCalls || !stateName.equals(m_currentNodeName))
+        {
+            getAssembler().writeComment(" Transition GOTO " + stateName);
+            writeOp(Op.GOTO_NODE, 0, pointer(getNodeStepLabel(stateName)));
+        }
+        else
+        {
+            getAssembler().writeComment(" Transition GOTO SELF");
+            writeOp(Op.STAY, 0);
+        }
+        m_tableReachable = false;
+    }
+
+    @Override
+    public void visitTransitionReturnFromSubroutineStack()
+    {
+        getAssembler().writeComment(" Return from subroutine");
+        writeOp(Op.RETURN_SUB, 0);
+        m_tableReachable = false;
+    }
+
+    @Override
+    public void push()
+    {
+        m_codeBlockStack.push(getNextInternalLabel());
+        getAssembler().indent();
+    }
+
+    /** @return a new label in the tables. */
+    private String getNextInternalLabel()
+    {
+        return "tbl_" + m_internalLabelCounter++;
+    }
+
+    @Override
+    public void saveReturnOnSubroutineStack()
+    {
+        String label = m_codeBlockStack.peek();
+        getAssembler().writeComment(" Prepare for Gosub. Subroutine will return to " + label);
+        writeOp(Op.SAVE_RETURN, 0, pointer(label));
+        m_nodeHasSubroutineCalls = true;
+    }
+
+    @Override
+    public void exitCodeBlock(final int levels)
+    {
+        String label = m_codeBlockStack.elementAt(m_codeBlockStack.size() - 1 - levels);
+        writeOp(Op.JUMP, 0, pointer(label));
+        m_tableReachable = false;
+    }
+
+    @Override
+    public void pop()
+    {
+        String label = m_codeBlockStack.pop();
+        getAssembler().unindent();
+        writeTableLabel(label);
+    }
+
+    @Override
+    public void endNode(final Node node)
+    {
+        assert m_codeBlockStack.empty() : "Node " + m_currentNodeName
+                + " did not leave code block stack empty";
+    }
+
+    @Override
+    public void finished()
+    {
+        if (m_usesInputClasses)
+        {
+            writeInputClasses();
+        }
+        if (!m_calledMethods.isEmpty())
+        {
+            startRegion(getMemoryMap().addCode("callStubs"));
+            getAssembler().blankLine();
+            getAssembler().writeComment(" Method calls from the tables.");
+            for (String method : m_calledMethods)
+            {
+                String label = getCallStubLabel(method);
+                m_callStubLabels.add(label);
+                writeEntryLabel(label);
+                getAssembler().opCode("CALL", method);
+                getAssembler().opCode("GOTO", RESUME_LABEL);
+            }
+        }
+        super.finished();
+    }
+
+    /**
+     * Write the table of the input class of each byte value.
+     */
+    private void writeInputClasses()
+    {
+        startRegion(getMemoryMap().addCode("inputClasses"));
+        getAssembler().blankLine();
+        getAssembler().writeComment(" Input class of each byte value.");
+        getAssembler().writeLabel(CLASSES_LABEL);
+        for (int start = 0; start < BYTE_VALUES; start += CLASSES_PER_LINE)
+        {
+            String[] bytes = new String[CLASSES_PER_LINE];
+            for (int i = 0; i < CLASSES_PER_LINE; i++)
+            {
+                bytes[i] = formatInt(m_inputClasses[start + i]);
+            }
+            getAssembler().fixedOpCode("DB", bytes);
+        }
+    }
+
+    /**
+     * Start the table of a node.
+     *
+     * @param label label of the table.
+     */
+    private void startTable(final String label)
+    {
+        getAssembler().writeLabel(label);
+        m_failLabel = null;
+        m_tableReachable = true;
+    }
+
+    /**
+     * Write a label in the tables if a pointer to it has been written. The fail
+     * pointer is not known after it.
+     *
+     * @param label the label.
+     */
+    private void writeTableLabel(final String label)
+    {
+        if (m_referencedLabels.contains(label))
+        {
+            getAssembler().writeLabel(label);
+            m_failLabel = null;
+            m_tableReachable = true;
+        }
+    }
+
+    /**
+     * Write an operation to the tables.
+     *
+     * @param op the operation.
+     * @param operand the operand byte.
+     * @param operands bytes that follow.
+     */
+    private void writeOp(final Op op, final int operand, final List<String> operands)
+    {
+        String[] bytes = new String[operands.size() + 2];
+        bytes[0] = formatInt(op.ordinal());
+        bytes[1] = formatInt(operand);
+        for (int i = 0; i < operands.size(); i++)
+        {
+            bytes[i + 2] = operands.get(i);
+        }
+        getAssembler().fixedOpCode("DB", bytes);
+    }
+
+    /**
+     * Write an operation with no bytes following.
+     *
+     * @param op the operation.
+     * @param operand the operand byte.
+     */
+    private void writeOp(final Op op, final int operand)
+    {
+        writeOp(op, operand, new ArrayList<String>());
+    }
+
+    /**
+     * @param variable a variable.
+     * @param offset byte of the variable.
+     * @return the bytes of its RAM address.
+     */
+    private List<String> address(final Variable variable, final int offset)
+    {
+        List<String> bytes = new ArrayList<String>();
+        bytes.add("LOW(" + offset(variable, offset) + ")");
+        bytes.add("HIGH(" + offset(variable, offset) + ")");
+        return bytes;
+    }
+
+    /**
+     * @param label a label in program memory.
+     * @return the bytes of a table pointer to it.
+     */
+    private List<String> pointer(final String label)
+    {
+        m_referencedLabels.add(label);
+        List<String> bytes = new ArrayList<String>();
+        bytes.add("LOW(" + label + ")");
+        bytes.add("HIGH(" + label + ")");
+        if (isLargeRomModel())
+        {
+            bytes.add("UPPER(" + label + ")");
+            bytes.add(formatInt(0));
+        }
+        return bytes;
+    }
+}
@@ -1,10 +1,20 @@
 package uk.me.m0rjc.picstategenerator.picAsmBuilder;
 
-/** Methods to write assembler for PIC microcontrollers. */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Methods to write assembler for PIC microcontrollers. The file is held in memory
+ * as a list of statements, so that it can be optimised, and written when closed.
+ */
 class PicAssemblyWriter extends GeneratedFileWriter
 {
-    /** Label to output on the next command. */
-    private String m_currentLabel;
+    /** The file so far. */
+    private final List<AsmStatement> m_statements = new ArrayList<AsmStatement>();
+    /** True while the statements are being written to the file. */
+    private boolean m_writingFile;
     /** Indentation for lines that have no additional indent. */
     private static final int INITIAL_INDENT = 14;
     /**
@@ -59,11 +69,7 @@ class PicAssemblyWriter extends GeneratedFileWriter
      */
     public void writeLabel(final String label)
     {
-        if (m_currentLabel != null)
-        {
-            write(m_currentLabel + ":\n");
-        }
-        m_currentLabel = label;
+        m_statements.add(AsmStatement.label(label));
     }
 
     /**
@@ -77,22 +83,114 @@ class PicAssemblyWriter extends GeneratedFileWriter
      */
     public void opCode(final String opCode, final String... args)
     {
-        if (m_currentLabel != null)
+        m_statements.add(AsmStatement.instruction(opCode, args, getCharacterIndent(), false));
+    }
+
+    /**
+     * Write a line of assembler that must keep its size and position, such as an
+     * entry in a computed jump table.
+     * 
+     * @param opCode
+     *            op-code to write.
+     * @param args
+     *            assembler arguments to write.
+     */
+    public void fixedOpCode(final String opCode, final String... args)
+    {
+        m_statements.add(AsmStatement.instruction(opCode, args, getCharacterIndent(), true));
+    }
+
+    /**
+     * Write an instruction that writes PCL, with the labels it may go to.
+     * 
+     * @param targets
+     *            labels the jump may go to. The collection may be added to until
+     *            the file is complete.
+     * @param opCode
+     *            op-code to write.
+     * @param args
+     *            assembler arguments to write.
+     */
+    public void computedJump(final Collection<String> targets, final String opCode, final String... args)
+    {
+        m_statements.add(AsmStatement.computedJump(opCode, args, getCharacterIndent(), targets));
+    }
+
+    /**
+     * Write the branch back to the start of a counted loop, which must follow the
+     * skip that leaves the loop.
+     * 
+     * @param iterations
+     *            times round the loop.
+     * @param opCode
+     *            op-code to write.
+     * @param args
+     *            assembler arguments to write.
+     */
+    public void loopBranch(final int iterations, final String opCode, final String... args)
+    {
+        m_statements.add(AsmStatement.loopBranch(opCode, args, getCharacterIndent(), iterations));
+    }
+
+    /**
+     * Count the following code towards a region of the memory map.
+     * 
+     * @param region
+     *            identifier of the region.
+     */
+    public void startRegion(final String region)
+    {
+        m_statements.add(AsmStatement.regionStart(region));
+    }
+
+    /**
+     * End the innermost region of the memory map.
+     */
+    public void endRegion()
+    {
+        m_statements.add(AsmStatement.regionEnd());
+    }
+
+    /**
+     * @param comment
+     *            text of a comment.
+     * @return a comment line at the outermost indent, to add to the statements.
+     */
+    AsmStatement createComment(final String comment)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = INITIAL_INDENT; i > 0; i--)
+        {
+            sb.append(' ');
+        }
+        return AsmStatement.text(sb.append("; ").append(comment).append('\n').toString());
+    }
+
+    /**
+     * Write an instruction to the file.
+     * 
+     * @param instruction the instruction.
+     * @param label label to write on the same line, or null.
+     */
+    private void writeInstruction(final AsmStatement instruction, final String label)
+    {
+        if (label != null)
         {
-            int characterIndent = getCharacterIndent() - 1;
-            String format = String.format("%%-%ds ", characterIndent);
-            write(String.format(format, m_currentLabel + ":"));
+            String format = String.format("%%-%ds ", instruction.getIndent() - 1);
+            write(String.format(format, label + ":"));
         }
         else
         {
-            writeIndent();
+            for (int i = instruction.getIndent(); i > 0; i--)
+            {
+                write(" ");
+            }
         }
-        m_currentLabel = null;
 
-        write(String.format("%-8s ", opCode));
+        write(String.format("%-8s ", instruction.getText()));
 
         boolean comma = false;
-        for (String arg : args)
+        for (String arg : instruction.getArgs())
         {
             if (arg != null)
             {
@@ -117,7 +215,7 @@ class PicAssemblyWriter extends GeneratedFileWriter
      */
     public void writeSection(final String linkerName, final String sectionType)
     {
-        write(String.format("%-12s  %s\n", linkerName, sectionType));
+        m_statements.add(AsmStatement.section(String.format("%-12s  %s\n", linkerName, sectionType)));
     }
 
     /**
@@ -141,6 +239,65 @@ class PicAssemblyWriter extends GeneratedFileWriter
         write(String.format("%-20s   res .%d\n", name, size));
     }
 
+    @Override
+    public void write(final String text)
+    {
+        if (m_writingFile)
+        {
+            super.write(text);
+        }
+        else
+        {
+            m_statements.add(AsmStatement.text(text));
+        }
+    }
+
+    /**
+     * @return the statements written so far, which may be changed before the
+     *         file is closed.
+     */
+    List<AsmStatement> getStatements()
+    {
+        return m_statements;
+    }
+
+    /**
+     * Write the statements to the file and close it.
+     * 
+     * @throws IOException on error closing the file.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        m_writingFile = true;
+        String label = null;
+        for (AsmStatement s : m_statements)
+        {
+            switch (s.getKind())
+            {
+            case LABEL:
+                if (label != null)
+                {
+                    write(label + ":\n");
+                }
+                label = s.getText();
+                break;
+            case INSTRUCTION:
+                writeInstruction(s, label);
+                label = null;
+                break;
+            case REGION_START:
+            case REGION_END:
+                break;
+            default:
+                write(s.getText());
+                break;
+            }
+        }
+        m_statements.clear();
+        super.close();
+    }
+
     @Override
     protected void writeIndent()
     {
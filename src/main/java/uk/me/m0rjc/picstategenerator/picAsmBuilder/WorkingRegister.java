@@ -0,0 +1,126 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import uk.me.m0rjc.picstategenerator.model.Variable;
+
+/**
+ * What {@link Pic18AsmBuilder} knows about the content of W at a point in the
+ * generated code. W may be known to hold a literal, given as the MOVLW operand
+ * that loaded it, and may be known to hold a variable exclusive-ORed with a
+ * constant. Both may be known at once, for example after a test finds a variable
+ * equal to a value. Instances are immutable.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+final class WorkingRegister
+{
+    /** Nothing is known about W. */
+    public static final WorkingRegister UNKNOWN = new WorkingRegister(null, null, 0);
+
+    /** MOVLW operand of the literal in W, or null if not known. */
+    private final String m_literal;
+
+    /** Variable that W is derived from, or null if none. */
+    private final Variable m_variable;
+
+    /** W holds {@link #m_variable} exclusive-ORed with this value. */
+    private final int m_xorValue;
+
+    /**
+     * @param literal MOVLW operand of the literal in W, or null if not known.
+     * @param variable variable that W is derived from, or null if none.
+     * @param xorValue value the variable is exclusive-ORed with.
+     */
+    private WorkingRegister(final String literal, final Variable variable, final int xorValue)
+    {
+        m_literal = literal;
+        m_variable = variable;
+        m_xorValue = xorValue;
+    }
+
+    /**
+     * @param literal MOVLW operand, for example ".10" or "HIGH(label)".
+     * @return W holding the literal.
+     */
+    public static WorkingRegister literal(final String literal)
+    {
+        return new WorkingRegister(literal, null, 0);
+    }
+
+    /**
+     * @param variable a single byte variable.
+     * @param xorValue value the variable is exclusive-ORed with, 0 for a plain copy.
+     * @return W holding the variable exclusive-ORed with the value.
+     */
+    public static WorkingRegister variable(final Variable variable, final int xorValue)
+    {
+        return new WorkingRegister(null, variable, xorValue);
+    }
+
+    /**
+     * @param literal MOVLW operand of a literal also known to be in W.
+     * @return this knowledge with the literal added.
+     */
+    public WorkingRegister withLiteral(final String literal)
+    {
+        return new WorkingRegister(literal, m_variable, m_xorValue);
+    }
+
+    /**
+     * The given variable has been written, so W no longer follows it.
+     *
+     * @param variable the variable written.
+     * @return the remaining knowledge.
+     */
+    public WorkingRegister withoutVariable(final Variable variable)
+    {
+        if (m_variable != null && m_variable.equals(variable))
+        {
+            return m_literal == null ? UNKNOWN : literal(m_literal);
+        }
+        return this;
+    }
+
+    /**
+     * @param literal MOVLW operand.
+     * @return true if W is known to hold the literal.
+     */
+    public boolean holdsLiteral(final String literal)
+    {
+        return literal.equals(m_literal);
+    }
+
+    /**
+     * @param variable a variable.
+     * @return true if W is known to hold the variable exclusive-ORed with a value.
+     * @see #getXorValue()
+     */
+    public boolean follows(final Variable variable)
+    {
+        return m_variable != null && m_variable.equals(variable);
+    }
+
+    /**
+     * @return the value the followed variable is exclusive-ORed with.
+     * @see #follows(Variable)
+     */
+    public int getXorValue()
+    {
+        return m_xorValue;
+    }
+
+    /**
+     * @param other what is known about W on another route to the same code.
+     * @return what is known about W where the two routes meet.
+     */
+    public WorkingRegister merge(final WorkingRegister other)
+    {
+        String literal = m_literal != null && m_literal.equals(other.m_literal) ? m_literal : null;
+        boolean sameVariable = m_variable != null && m_variable.equals(other.m_variable)
+                && m_xorValue == other.m_xorValue;
+        if (literal == null && !sameVariable)
+        {
+            return UNKNOWN;
+        }
+        return new WorkingRegister(literal, sameVariable ? m_variable : null, sameVariable ? m_xorValue : 0);
+    }
+}
@@ -0,0 +1,130 @@
+package uk.me.m0rjc.picstategenerator.picAsmBuilder;
+
+import java.util.Stack;
+
+/**
+ * Methods to support writing a simple XML file.
+ */
+class XmlWriter extends GeneratedFileWriter
+{
+    /** Elements started and not yet ended. */
+    private final Stack<String> m_openElements = new Stack<String>();
+
+    /**
+     * Write to the given filename.
+     *
+     * @param fileName
+     *            file to write to.
+     */
+    public XmlWriter(final String fileName)
+    {
+        super(fileName);
+    }
+
+    @Override
+    public void writeComment(final String string)
+    {
+        writeIndent();
+        write("<!-- ");
+        write(escape(string));
+        write(" -->\n");
+    }
+
+    @Override
+    public void endBlockComment()
+    {
+        writeln("-->");
+    }
+
+    @Override
+    public void writeBlockCommentLine(final String line)
+    {
+        write("  ");
+        writeln(escape(line));
+    }
+
+    @Override
+    public void startBlockComment()
+    {
+        writeln("<!--");
+    }
+
+    @Override
+    protected void writeIndent()
+    {
+        int indent = getIndent();
+        for (int i = 0; i < indent; i++)
+        {
+            write("\t");
+        }
+    }
+
+    /**
+     * Start an element that will have content.
+     *
+     * @param name
+     *            element name.
+     * @param attributes
+     *            attribute names and values in pairs.
+     */
+    public void startElement(final String name, final Object... attributes)
+    {
+        writeTag(name, attributes, ">");
+        m_openElements.push(name);
+        indent();
+    }
+
+    /**
+     * Write an element with no content.
+     *
+     * @param name
+     *            element name.
+     * @param attributes
+     *            attribute names and values in pairs.
+     */
+    public void emptyElement(final String name, final Object... attributes)
+    {
+        writeTag(name, attributes, "/>");
+    }
+
+    /** End the element last started. */
+    public void endElement()
+    {
+        unindent();
+        writeIndent();
+        writeln("</" + m_openElements.pop() + ">");
+    }
+
+    /**
+     * Write a start tag.
+     *
+     * @param name
+     *            element name.
+     * @param attributes
+     *            attribute names and values in pairs.
+     * @param end
+     *            end of the tag.
+     */
+    private void writeTag(final String name, final Object[] attributes, final String end)
+    {
+        writeIndent();
+        StringBuilder sb = new StringBuilder("<").append(name);
+        for (int i = 0; i + 1 < attributes.length; i += 2)
+        {
+            sb.append(' ').append(attributes[i]).append("=\"")
+                    .append(escape(String.valueOf(attributes[i + 1]))).append('"');
+        }
+        writeln(sb.append(end).toString());
+    }
+
+    /**
+     * @param text
+     *            text to write.
+     * @return the text with XML special characters escaped.
+     */
+    private static String escape(final String text)
+    {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("--", "- -");
+    }
+}
@@ -0,0 +1,189 @@
+package uk.me.m0rjc.picstategenerator.ramAllocator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+
+/**
+ * Choose RAM banks for the variables of a model that were declared with an
+ * automatic location.
+ *
+ * <p>The variables are ranked by the amount of static references that need their
+ * bank to be selected. The most referenced are placed in ACCESS RAM while there is
+ * room, so never need a BANKSEL. The rest are packed into banks, each going to the
+ * bank holding the variables it is most often used with in the same transition.
+ * If none share a transition it goes into a bank already in use if there is room,
+ * so that as few banks as possible are used.</p>
+ *
+ * <p>Variables with a fixed location take up room in their bank. ACCESS variables
+ * declared elsewhere, such as SFRs, only take room in ACCESS RAM if this module
+ * declares their storage.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public class BankAllocator
+{
+    /** Logging. */
+    private final Logger m_log = Logger.getLogger(BankAllocator.class.getName());
+
+    /** RAM layout of the target processor. */
+    private final ProcessorRam m_ram;
+
+    /** Bytes of ACCESS RAM needed by the builder for its own variables. */
+    private final int m_reservedAccessBytes;
+
+    /** Bytes still free in ACCESS RAM. */
+    private int m_accessFree;
+
+    /** Bytes still free in each bank. */
+    private int[] m_bankFree;
+
+    /** Variables in each bank. */
+    private List<List<Variable>> m_bankContents;
+
+    /**
+     * @param ram RAM layout of the target processor.
+     * @param reservedAccessBytes bytes of ACCESS RAM needed by the builder for its own variables.
+     */
+    public BankAllocator(final ProcessorRam ram, final int reservedAccessBytes)
+    {
+        m_ram = ram;
+        m_reservedAccessBytes = reservedAccessBytes;
+    }
+
+    /**
+     * @param model the model.
+     * @return true if the model has variables with an automatic location.
+     */
+    public static boolean hasAutoVariables(final StateModel model)
+    {
+        for (Variable v : model.getVariables())
+        {
+            if (v.isAutoBank())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Allocate banks to all variables in the model with an automatic location.
+     * Any previous allocation is replaced.
+     *
+     * @param model a complete model.
+     * @throws IllegalStateException if the variables do not fit.
+     */
+    public void allocate(final StateModel model)
+    {
+        final VariableUsageCounter usage = new VariableUsageCounter();
+        model.accept(usage);
+
+        List<Variable> autoVariables = new ArrayList<Variable>();
+        m_accessFree = m_ram.getAccessSize() - m_reservedAccessBytes;
+        m_bankFree = new int[m_ram.getBankCount()];
+        m_bankContents = new ArrayList<List<Variable>>();
+        for (int bank = 0; bank < m_bankFree.length; bank++)
+        {
+            m_bankFree[bank] = m_ram.getBankSize(bank);
+            m_bankContents.add(new ArrayList<Variable>());
+        }
+
+        for (Variable v : model.getVariables())
+        {
+            if (v.isAutoBank())
+            {
+                autoVariables.add(v);
+            }
+            else if (v.isAccess())
+            {
+                if (v.isMustDeclareStorage())
+                {
+                    m_accessFree -= v.getSize();
+                }
+            }
+            else if (v.getBank() < m_bankFree.length)
+            {
+                m_bankFree[v.getBank()] -= v.getSize();
+                m_bankContents.get(v.getBank()).add(v);
+            }
+        }
+
+        Collections.sort(autoVariables, new Comparator<Variable>()
+        {
+            @Override
+            public int compare(final Variable a, final Variable b)
+            {
+                int result = usage.getReferences(b) - usage.getReferences(a);
+                return result != 0 ? result : a.getName().compareTo(b.getName());
+            }
+        });
+
+        for (Variable v : autoVariables)
+        {
+            int references = usage.getReferences(v);
+            if (references > 0 && v.getSize() <= m_accessFree)
+            {
+                v.allocateBank(Variable.ACCESS_BANK);
+                m_accessFree -= v.getSize();
+                m_log.info(String.format("Variable %s (%d references) allocated to ACCESS RAM",
+                        v.getName(), references));
+            }
+            else
+            {
+                int bank = chooseBank(v, usage);
+                v.allocateBank(bank);
+                m_bankFree[bank] -= v.getSize();
+                m_bankContents.get(bank).add(v);
+                m_log.info(String.format("Variable %s (%d references) allocated to bank %d",
+                        v.getName(), references, bank));
+            }
+        }
+    }
+
+    /**
+     * Choose the bank for a variable that does not go in ACCESS RAM.
+     *
+     * @param v the variable.
+     * @param usage usage counts for the model.
+     * @return the bank with room that shares the most transitions with the variable,
+     *         preferring banks already in use then lower banks.
+     * @throws IllegalStateException if no bank has room.
+     */
+    private int chooseBank(final Variable v, final VariableUsageCounter usage)
+    {
+        int bestBank = -1;
+        int bestAffinity = -1;
+        boolean bestInUse = false;
+        for (int bank = 0; bank < m_bankFree.length; bank++)
+        {
+            if (m_bankFree[bank] < v.getSize())
+            {
+                continue;
+            }
+            int affinity = 0;
+            for (Variable other : m_bankContents.get(bank))
+            {
+                affinity += usage.getCoAccess(v, other);
+            }
+            boolean inUse = !m_bankContents.get(bank).isEmpty();
+            if (affinity > bestAffinity || (affinity == bestAffinity && inUse && !bestInUse))
+            {
+                bestBank = bank;
+                bestAffinity = affinity;
+                bestInUse = inUse;
+            }
+        }
+        if (bestBank < 0)
+        {
+            throw new IllegalStateException("No RAM bank has room for variable " + v.getName()
+                    + " of " + v.getSize() + " bytes");
+        }
+        return bestBank;
+    }
+}
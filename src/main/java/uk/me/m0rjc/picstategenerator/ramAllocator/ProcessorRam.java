@@ -0,0 +1,120 @@
+package uk.me.m0rjc.picstategenerator.ramAllocator;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The general purpose RAM of a PIC18 processor, as used by the {@link BankAllocator}.
+ *
+ * <p>The lower part of bank 0 is the ACCESS RAM. The remainder of bank 0 and
+ * the following banks are available for banked variables. Banks used for special
+ * purposes such as USB buffers, or only partly populated, are left out.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public final class ProcessorRam
+{
+    /** Size of a RAM bank in bytes. */
+    private static final int BANK_SIZE = 256;
+
+    /** Common size of ACCESS RAM on newer parts. */
+    private static final int ACCESS_96 = 96;
+
+    /** Size of ACCESS RAM on older parts. */
+    private static final int ACCESS_128 = 128;
+
+    /** Known processors keyed on upper case name without the PIC prefix. */
+    private static final Map<String, ProcessorRam> PROCESSORS = new HashMap<String, ProcessorRam>();
+
+    static
+    {
+        // Bank 2 on the K50 parts is USB RAM.
+        register(ACCESS_96, 1, "18F13K50", "18LF13K50");
+        register(ACCESS_96, 2, "18F14K50", "18LF14K50", "18F14K22", "18LF14K22");
+        // Banks 4 to 7 are USB RAM.
+        register(ACCESS_96, 4, "18F2455", "18F2550", "18F4455", "18F4550");
+        register(ACCESS_128, 6, "18F252", "18F452", "18F2520", "18F4520");
+        register(ACCESS_128, 15, "18F2620", "18F4620");
+        register(ACCESS_96, 6, "18F25K20", "18F45K20", "18F25K22", "18F45K22");
+        register(ACCESS_96, 15, "18F26K20", "18F46K20", "18F26K22", "18F46K22");
+    }
+
+    /** Bytes of ACCESS RAM. */
+    private final int m_accessSize;
+
+    /** Bytes available for banked variables in each bank. */
+    private final int[] m_bankSizes;
+
+    /**
+     * @param accessSize bytes of ACCESS RAM, all in the lower part of bank 0.
+     * @param bankCount number of banks available for variables, starting at bank 0.
+     */
+    public ProcessorRam(final int accessSize, final int bankCount)
+    {
+        m_accessSize = accessSize;
+        m_bankSizes = new int[bankCount];
+        for (int bank = 0; bank < bankCount; bank++)
+        {
+            m_bankSizes[bank] = BANK_SIZE;
+        }
+        m_bankSizes[0] -= accessSize;
+    }
+
+    /**
+     * Add processors with the same RAM layout to the table.
+     *
+     * @param accessSize bytes of ACCESS RAM.
+     * @param bankCount number of banks available for variables.
+     * @param names processor names.
+     */
+    private static void register(final int accessSize, final int bankCount, final String... names)
+    {
+        ProcessorRam ram = new ProcessorRam(accessSize, bankCount);
+        for (String name : names)
+        {
+            PROCESSORS.put(name, ram);
+        }
+    }
+
+    /**
+     * Look up the RAM layout of a processor.
+     *
+     * @param processor processor name, for example "18F14K50" or "PIC18F14K50".
+     * @return the RAM layout, or null if the processor is not known.
+     */
+    public static ProcessorRam forProcessor(final String processor)
+    {
+        if (processor == null)
+        {
+            return null;
+        }
+        String name = processor.toUpperCase(Locale.ENGLISH);
+        if (name.startsWith("PIC"))
+        {
+            name = name.substring(3);
+        }
+        return PROCESSORS.get(name);
+    }
+
+    /** @return bytes of ACCESS RAM. */
+    public int getAccessSize()
+    {
+        return m_accessSize;
+    }
+
+    /** @return number of banks available for variables, starting at bank 0. */
+    public int getBankCount()
+    {
+        return m_bankSizes.length;
+    }
+
+    /**
+     * @param bank bank number.
+     * @return bytes available for banked variables in the bank.
+     */
+    public int getBankSize(final int bank)
+    {
+        return m_bankSizes[bank];
+    }
+}
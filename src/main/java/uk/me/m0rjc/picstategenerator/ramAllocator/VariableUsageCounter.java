@@ -0,0 +1,365 @@
+package uk.me.m0rjc.picstategenerator.ramAllocator;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import uk.me.m0rjc.picstategenerator.model.Node;
+import uk.me.m0rjc.picstategenerator.model.RomLocation;
+import uk.me.m0rjc.picstategenerator.model.Transition;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.visitor.IModel;
+import uk.me.m0rjc.picstategenerator.visitor.IModelVisitor;
+import uk.me.m0rjc.picstategenerator.visitor.INode;
+
+/**
+ * Visitor that counts the static references to each variable that need its bank
+ * to be selected, and how often pairs of variables are used in the same block of
+ * code. A block is a transition, including any entry code inlined into it, or the
+ * shared entry code of a node.
+ *
+ * <p>Copies are made with MOVFF and indexed storage is reached through FSR0, so
+ * these do not count as references to the variables being copied or indexed.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+class VariableUsageCounter implements IModelVisitor
+{
+    /** References to each variable, keyed on name. */
+    private final Map<String, Integer> m_references = new HashMap<String, Integer>();
+
+    /** Blocks using each pair of variables, keyed on the names joined by {@link #pairKey(String, String)}. */
+    private final Map<String, Integer> m_coAccess = new HashMap<String, Integer>();
+
+    /** Names of variables used in the current block. */
+    private final Set<String> m_currentBlock = new LinkedHashSet<String>();
+
+    /**
+     * @param variable a variable.
+     * @return the amount of references to it.
+     */
+    public int getReferences(final Variable variable)
+    {
+        Integer count = m_references.get(variable.getName());
+        return count == null ? 0 : count.intValue();
+    }
+
+    /**
+     * @param a a variable.
+     * @param b another variable.
+     * @return the amount of blocks of code that use both.
+     */
+    public int getCoAccess(final Variable a, final Variable b)
+    {
+        Integer count = m_coAccess.get(pairKey(a.getName(), b.getName()));
+        return count == null ? 0 : count.intValue();
+    }
+
+    /**
+     * @return a key for the unordered pair of names.
+     */
+    private static String pairKey(final String a, final String b)
+    {
+        return a.compareTo(b) < 0 ? a + " " + b : b + " " + a;
+    }
+
+    /**
+     * Count a reference to the variable in the current block.
+     *
+     * @param variable the variable referenced.
+     */
+    private void reference(final Variable variable)
+    {
+        Integer count = m_references.get(variable.getName());
+        m_references.put(variable.getName(), count == null ? 1 : count + 1);
+        m_currentBlock.add(variable.getName());
+    }
+
+    /**
+     * End the current block, counting each pair of variables used in it.
+     */
+    private void endBlock()
+    {
+        String[] names = m_currentBlock.toArray(new String[m_currentBlock.size()]);
+        for (int i = 0; i < names.length; i++)
+        {
+            for (int j = i + 1; j < names.length; j++)
+            {
+                String key = pairKey(names[i], names[j]);
+                Integer count = m_coAccess.get(key);
+                m_coAccess.put(key, count == null ? 1 : count + 1);
+            }
+        }
+        m_currentBlock.clear();
+    }
+
+    @Override
+    public void visitStartModel(final IModel model)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitDeclareExternalSymbol(final Variable variable)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitDeclareExternalSymbol(final RomLocation name)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitDeclareGlobalSymbol(final String name)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitStartAccessVariables(final boolean modelDefinesAccessVariables)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitCreateVariableDefinition(final Variable v)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitStartBankedVariables(final int bankNumber, final boolean modelDefinesVariablesInThisBank)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitStartCode()
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void startSharedEntryCode(final INode node)
+    {
+        endBlock();
+    }
+
+    @Override
+    public void startNode(final INode node)
+    {
+        endBlock();
+    }
+
+    @Override
+    public void visitTransition(final Transition transition)
+    {
+        endBlock();
+    }
+
+    @Override
+    public void startInputSwitch(final Variable variable, final int[] lowValues, final int[] highValues)
+    {
+        reference(variable);
+        endBlock();
+    }
+
+    @Override
+    public void startSwitchCase(final int low, final int high)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void endSwitchCase(final int low, final int high)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void endInputSwitch()
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitTransitionPreconditionGE(final Variable variable, final int value)
+    {
+        reference(variable);
+    }
+
+    @Override
+    public void visitTransitionPreconditionEQ(final Variable variable, final int value)
+    {
+        reference(variable);
+    }
+
+    @Override
+    public void visitTransitionPreconditionLE(final Variable variable, final int value)
+    {
+        reference(variable);
+    }
+
+    @Override
+    public void visitTransitionPreconditionRange(final Variable variable, final int low, final int high)
+    {
+        reference(variable);
+    }
+
+    @Override
+    public void visitTransitionPreconditionCountdown(final Variable counter)
+    {
+        reference(counter);
+    }
+
+    @Override
+    public void visitTransitionPreconditionFlags(final Variable flags, final int byteOffset,
+            final int mask, final int expected)
+    {
+        reference(flags);
+    }
+
+    @Override
+    public void visitCommandCopyVariableToIndexedVariable(final Variable source, final Variable output,
+            final Variable indexer)
+    {
+        reference(indexer);
+    }
+
+    @Override
+    public void visitCommandCopyVariable(final Variable input, final Variable output)
+    {
+        // Copied with MOVFF
+    }
+
+    @Override
+    public void visitCommandClearVariable(final Variable variable)
+    {
+        reference(variable);
+    }
+
+    @Override
+    public void visitCommandClearIndexedVariable(final Variable variable, final Variable indexer)
+    {
+        reference(indexer);
+    }
+
+    @Override
+    public void visitCommandIncrementVariable(final Variable variable)
+    {
+        reference(variable);
+    }
+
+    @Override
+    public void visitCommandLoadCounter(final Variable counter, final int count)
+    {
+        reference(counter);
+    }
+
+    @Override
+    public void visitCommandStartIndexedStore(final Variable output, final Variable indexer)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitCommandStoreNextIndexed(final Variable source, final Variable output,
+            final Variable indexer, final boolean terminate)
+    {
+        reference(indexer);
+    }
+
+    @Override
+    public void visitCommandEndIndexedStore(final Variable output, final Variable indexer)
+    {
+        reference(indexer);
+    }
+
+    @Override
+    public void visitCommandSetFlags(final Variable flags, final int byteOffset,
+            final int setMask, final int clearMask)
+    {
+        reference(flags);
+    }
+
+    @Override
+    public void visitCommandMethodCall(final RomLocation method)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitTransitionGoToSharedEntryCode(final INode node)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitTransitionGoToNode(final INode node)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void startInlineEntryCode(final INode node)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void endInlineEntryCode(final INode node)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void endTransition(final Transition transition)
+    {
+        endBlock();
+    }
+
+    @Override
+    public void endNode(final Node node)
+    {
+        endBlock();
+    }
+
+    @Override
+    public void finished()
+    {
+        endBlock();
+    }
+
+    @Override
+    public void push()
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void saveReturnOnSubroutineStack()
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void exitCodeBlock(final int levels)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void pop()
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void visitTransitionReturnFromSubroutineStack()
+    {
+        // Nothing to do
+    }
+}
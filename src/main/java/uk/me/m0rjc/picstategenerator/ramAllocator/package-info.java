@@ -0,0 +1,8 @@
+/**
+ * Allocation of RAM banks to model variables declared with an automatic location.
+ * 
+ * {@link uk.me.m0rjc.picstategenerator.ramAllocator.BankAllocator BankAllocator}
+ * places the most used variables in ACCESS RAM and packs the rest into banks using
+ * the sizes given by {@link uk.me.m0rjc.picstategenerator.ramAllocator.ProcessorRam ProcessorRam}.
+ */
+package uk.me.m0rjc.picstategenerator.ramAllocator;
@@ -12,11 +12,6 @@ public class SimulatedNode
 		m_name = name;
 	}
 	
-	void addTransition(SimulatedAction t)
-	{
-		m_stepCode.addAction(t);
-	}
-	
 	/**
 	 * Declare shared entry code for this node.
 	 */
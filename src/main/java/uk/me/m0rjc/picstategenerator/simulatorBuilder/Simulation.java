@@ -3,6 +3,7 @@ package uk.me.m0rjc.picstategenerator.simulatorBuilder;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 
@@ -16,7 +17,12 @@ public class Simulation
 {
 	private SimulatedNode m_currentState;
 	private SimulatedVariable m_inputVariable;
-	private SubroutineReturnPointer m_subroutineReturnInfo;
+	/** Returns saved by gosubs, the most recent first. */
+	private LinkedList<SubroutineReturnPointer> m_subroutineStack = new LinkedList<SubroutineReturnPointer>();
+	/** Most returns the subroutine stack holds. */
+	private int m_subroutineStackDepth = 1;
+	/** Names of the nodes that run inside a subroutine. */
+	private Set<String> m_subroutineNodes = new HashSet<String>();
 	
 	private Set<String> m_assemblerSymbols = new HashSet<String>();
 	private Map<String, SimulatedNode> m_nodes = new HashMap<String, SimulatedNode>();
@@ -61,6 +67,12 @@ public class Simulation
 		{
 			throw new SimulationException("No state with name " + name);
 		}
+		if(!m_subroutineStack.isEmpty() && !m_subroutineNodes.contains(name))
+		{
+			// Processing has been abandoned in a subroutine.
+			Log.finest("Simulation abandoning subroutines: " + m_subroutineStack.size());
+			m_subroutineStack.clear();
+		}
 	}
 	
 	/** Feed the given string as UTF8 into the state engine */
@@ -88,16 +100,34 @@ public class Simulation
 		m_currentState.step();
 	}
 
+	/**
+	 * Set the most returns the subroutine stack holds, as found by the model.
+	 */
+	public void setSubroutineStackDepth(int depth)
+	{
+		m_subroutineStackDepth = Math.max(depth, 1);
+	}
+
+	/**
+	 * Note a node that runs inside a subroutine. Entering any other node abandons
+	 * the subroutines that have not returned.
+	 */
+	public void addSubroutineNode(String name)
+	{
+		m_subroutineNodes.add(name);
+	}
+
 	/**
 	 * Save the given location to the subroutine stack
 	 */
-	public void saveLocationToSubroutineStack(String name, int id)
+	public void saveLocationToSubroutineStack(String name, int id) throws SimulationException
 	{
-		// The subroutine stack is only one deep. This just overwrites.
-		// Normally it would be an error unless processing has been abandoned in a
-		// subroutine.
-		// TODO: Have the root node clear the stack so we can detect the error.
-		m_subroutineReturnInfo = new SubroutineReturnPointer(name, id);
+		if(m_subroutineStack.size() >= m_subroutineStackDepth)
+		{
+			throw new SimulationException("Subroutine stack overflow. It holds " + m_subroutineStackDepth
+					+ " returns.");
+		}
+		m_subroutineStack.addFirst(new SubroutineReturnPointer(name, id));
 	}
 
 	
@@ -106,16 +136,14 @@ public class Simulation
 	 */
 	public void returnFromSubroutine() throws SimulationException
 	{
-		if(m_subroutineReturnInfo == null)
+		if(m_subroutineStack.isEmpty())
 		{
 			throw new SimulationException("Attempted to return when not in a subroutine");
 		}
 		
-		SimulatedNode node = getNode(m_subroutineReturnInfo.getStateName());
-		int instructionId = m_subroutineReturnInfo.getInstructionId();
-		m_subroutineReturnInfo = null; // To detect multiple returns.
-		
-		node.stepFromInstructionId(instructionId);
+		SubroutineReturnPointer pointer = m_subroutineStack.removeFirst();
+		SimulatedNode node = getNode(pointer.getStateName());
+		node.stepFromInstructionId(pointer.getInstructionId());
 	}
 
 	/**
@@ -40,11 +40,18 @@ public class SimulatorBuilder implements IModelVisitor
 	{
 	    for(Variable variable : model.getVariables())
 	    {
-	        if(variable.isImplicitlyImported())
+	        // The simulator does not use banks, so variables with an automatic location
+	        // are created whether or not they have been allocated.
+	        if(variable.isImplicitlyImported() || variable.isAwaitingBank())
 	        {
 	            createSimulatedVariable(variable);
 	        }
 	    }
+	    m_simulation.setSubroutineStackDepth(model.getSubroutineStackDepth());
+	    for(Node node : model.getSubroutineStackDepths().keySet())
+	    {
+	        m_simulation.addSubroutineNode(node.getStateName());
+	    }
 	}
 
 	/**
@@ -179,10 +186,34 @@ public class SimulatorBuilder implements IModelVisitor
 	 */
 	public void visitTransition(Transition transition)
 	{
+		// push() adds the transition's block to the block being built.
 		push();
-		m_currentNode.addTransition(getCurrentInstructionBlock());
 	}
 	
+	@Override
+	public void startInputSwitch(Variable variable, int[] lowValues, int[] highValues)
+	{
+		// Nothing to do. Each case is simulated by its own preconditions.
+	}
+
+	@Override
+	public void startSwitchCase(int low, int high)
+	{
+		// Nothing to do
+	}
+
+	@Override
+	public void endSwitchCase(int low, int high)
+	{
+		// Nothing to do
+	}
+
+	@Override
+	public void endInputSwitch()
+	{
+		// Nothing to do
+	}
+
 	/**
 	 * Return the instruction block currently being worked on.
 	 * @return
@@ -255,20 +286,65 @@ public class SimulatorBuilder implements IModelVisitor
 		});		
 	}
 
-	/** Encode a precondition checking that the given flag has the given value */
-	public void visitTransitionPreconditionFlag(Variable flag, final int bit, final boolean expectedValue)
+	/** Encode a transition precondition for an inclusive range. */
+	public void visitTransitionPreconditionRange(Variable variable, final int low, final int high)
+	{
+		final String name = variable.getName();
+		final Simulation simulation = m_simulation;
+		
+		addAction(new SimulatedAction() {
+			@Override
+			public ActionResult run() throws SimulationException
+			{
+				byte actualValue = simulation.getVariable(name).getValue();
+				Log.fine(String.format("    Condition: %s in %s..%s, value=%s",
+					name, Log.formatByte((byte)low), Log.formatByte((byte)high), Log.formatByte(actualValue)));
+
+				int value = actualValue & 0xFF;
+				if(value >= low && value <= high)
+					return ActionResult.CONTINUE_TO_NEXT_ACTION;
+				return ActionResult.POP;
+			}
+		});		
+	}
+
+	/** Encode a precondition that decrements the counter and passes unless it reaches zero */
+	public void visitTransitionPreconditionCountdown(Variable counter)
+	{
+		final String name = counter.getName();
+		final Simulation simulation = m_simulation;
+		
+		addAction(new SimulatedAction() {
+			@Override
+			public ActionResult run() throws SimulationException
+			{
+				SimulatedVariable v = simulation.getVariable(name);
+				byte newValue = (byte)(v.getValue() - 1);
+				Log.fine(String.format("    Condition: --%s != 0. newValue=%d", name, newValue));
+				v.setValue(newValue);
+
+				if(newValue != 0)
+					return ActionResult.CONTINUE_TO_NEXT_ACTION;
+				return ActionResult.POP;
+			}
+		});				
+	}
+		
+	/** Encode a precondition checking that flags held in one byte have the given values */
+	public void visitTransitionPreconditionFlags(Variable flags, final int byteOffset, final int mask, final int expected)
 	{
-		final String name = flag.getName();
+		final String name = flags.getName();
 		final Simulation simulation = m_simulation;
 		
 		addAction(new SimulatedAction() {
 			@Override
 			public ActionResult run() throws SimulationException
 			{
-				boolean actualValue = simulation.getVariable(name).getBit(bit);
-				Log.fine(String.format("    Condition: %s:%d = %b. value=%b", name, bit, expectedValue, actualValue));
+				int actualValue = simulation.getVariable(name).getValue(byteOffset) & mask;
+				Log.fine(String.format("    Condition: %s[%d] & 0x%02x = 0x%02x. value=0x%02x",
+						name, byteOffset, mask, expected, actualValue));
 				
-				if(actualValue == expectedValue)
+				if(actualValue == expected)
 					return ActionResult.CONTINUE_TO_NEXT_ACTION;
 				return ActionResult.POP;
 			}
@@ -306,6 +382,7 @@ public class SimulatorBuilder implements IModelVisitor
 	{
 		final String sourceName = input.getName();
 		final String outputName = output.getName();
+		final int size = Math.min(input.getSize(), output.getSize());
 		
 		final Simulation simulation = m_simulation;
 
@@ -319,7 +396,10 @@ public class SimulatorBuilder implements IModelVisitor
 				byte value = sourceVar.getValue();
 				Log.fine(String.format("    Command: %s := %s. value=%s", outputName, sourceName, Log.formatByte(value)));
 				
-				outVar.setValue(value);
+				for(int i = 0; i < size; i++)
+				{
+					outVar.setValue(i, sourceVar.getValue(i));
+				}
 				return ActionResult.CONTINUE_TO_NEXT_ACTION;
 			}
 		});
@@ -390,8 +470,48 @@ public class SimulatorBuilder implements IModelVisitor
 		});		
 	}
 
-	/** Encode a command to set or clear a flag. If bit is more than 7 then more than one byte is used. */
-	public void visitCommandSetFlag(Variable flags, final int bit, final boolean newValue)
+	/** Encode a command to load a single byte counter */
+	public void visitCommandLoadCounter(Variable counter, final int count)
+	{
+		final String variableName = counter.getName();
+		final Simulation simulation = m_simulation;
+	
+		addAction(new SimulatedAction() {
+			@Override
+			public ActionResult run() throws SimulationException
+			{
+				Log.fine(String.format("    Command: %s := %d", variableName, count));
+				simulation.getVariable(variableName).setValue((byte)count);
+				return ActionResult.CONTINUE_TO_NEXT_ACTION;
+			}
+		});		
+	}
+
+	/** The simulator always indexes, so there is nothing to set up. */
+	public void visitCommandStartIndexedStore(Variable output, Variable indexer)
+	{
+	}
+
+	/** Encode storing the next value of a sequence as an indexed store and increment. */
+	public
+ void visitCommandStoreNextIndexed(Variable source, Variable output, Variable indexer, boolean terminate)
+	{
+		visitCommandCopyVariableToIndexedVariable(source, output, indexer);
+		visitCommandIncrementVariable(indexer);
+		if(terminate)
+		{
+			visitCommandClearIndexedVariable(output, indexer);
+		}
+	}
+
+	/** Encode terminating a sequence of values stored by indexing. */
+	public void visitCommandEndIndexedStore(Variable output, Variable indexer)
+	{
+		visitCommandClearIndexedVariable(output, indexer);
+	}
+
+	/** Encode a command to set and clear flags held in one byte. */
+	public void visitCommandSetFlags(Variable flags, final int byteOffset, final int setMask, final int clearMask)
 	{
 		final String variableName = flags.getName();
 		final Simulation simulation = m_simulation;
@@ -401,8 +521,10 @@ public class SimulatorBuilder implements IModelVisitor
 			public ActionResult run() throws SimulationException
 			{
 				SimulatedVariable v = simulation.getVariable(variableName);
-				Log.fine(String.format("    Command: %s:%d = %b", variableName, bit, newValue));
-				v.setBit(bit, newValue);
+				Log.fine(String.format("    Command: %s[%d] |= 0x%02x, &= ~0x%02x",
+						variableName, byteOffset, setMask, clearMask));
+				int value = (v.getValue(byteOffset) | setMask) & ~clearMask;
+				v.setValue(byteOffset, (byte)value);
 				return ActionResult.CONTINUE_TO_NEXT_ACTION;
 			}
 		});		
@@ -457,6 +579,18 @@ public class SimulatorBuilder implements IModelVisitor
 		});				
 	}
 	
+	@Override
+	public void startInlineEntryCode(INode node)
+	{
+		// The commands are simulated as part of the transition.
+	}
+
+	@Override
+	public void endInlineEntryCode(INode node)
+	{
+		// Nothing to do
+	}
+	
 	@Override
 	public void push()
 	{
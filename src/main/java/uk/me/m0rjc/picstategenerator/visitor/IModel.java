@@ -1,6 +1,7 @@
 package uk.me.m0rjc.picstategenerator.visitor;
 
 import java.util.Collection;
+import java.util.Map;
 
 import uk.me.m0rjc.picstategenerator.model.Node;
 import uk.me.m0rjc.picstategenerator.model.Variable;
@@ -35,6 +36,24 @@ public interface IModel
     /** @return does this model require a stack for subroutines? */
     boolean requiresSubroutineStack();
 
+    /** @return the most returns the subroutine stack must hold at once. */
+    int getSubroutineStackDepth();
+
+    /**
+     * @return the most returns the subroutine stack holds as each node runs, for
+     *         the nodes that run inside a subroutine.
+     */
+    Map<Node, Integer> getSubroutineStackDepths();
+
     /** @return all defined variables. */
     Collection<Variable> getVariables();
+
+    /** @return all nodes, each once. */
+    Collection<Node> getNodes();
+
+    /**
+     * @return the class of each value of the input variable, numbered from zero.
+     *         Every transition treats values of the same class alike.
+     */
+    int[] getInputClasses();
 }
@@ -88,7 +88,45 @@ public interface IModelVisitor
 	 * @param rangeTransition
 	 */
 	void visitTransition(Transition transition);
-	
+
+	/**
+	 * Start a run of transitions on the current Node that each accept a single range
+	 * of values of the input variable. No two distinct ranges overlap. Each distinct
+	 * range is then visited as a {@link #startSwitchCase(int, int)},
+	 * {@link #endSwitchCase(int, int)} pair containing the transitions for that range.
+	 * The run ends with {@link #endInputSwitch()}.
+	 *
+	 * <p>Each transition still visits its own preconditions. A visitor that dispatches
+	 * on the value may leave out the tests already decided by the dispatch. A visitor
+	 * that does not can ignore these calls.</p>
+	 *
+	 * <p>Control continues after {@link #endInputSwitch()} if no case is taken.</p>
+	 *
+	 * @param variable the variable being switched on, normally the input variable.
+	 * @param lowValues the lowest value of each case, in the order the cases will be visited.
+	 * @param highValues the highest value of each case, in the same order.
+	 */
+	void startInputSwitch(Variable variable, int[] lowValues, int[] highValues);
+
+	/**
+	 * Start the transitions that apply when the switch variable holds a value in the given range.
+	 * @param low the lowest value of the case.
+	 * @param high the highest value of the case.
+	 */
+	void startSwitchCase(int low, int high);
+
+	/**
+	 * End of the transitions for the given range.
+	 * @param low the lowest value of the case.
+	 * @param high the highest value of the case.
+	 */
+	void endSwitchCase(int low, int high);
+
+	/**
+	 * End of a run of transitions started by {@link #startInputSwitch(Variable, int[], int[])}.
+	 */
+	void endInputSwitch();
+
 	/** 
 	 * Encode a transition precondition for Greater or Equals. 
 	 * If variable &gt;= value then continue, otherwise if possible {@link #pop()} or
@@ -110,13 +148,27 @@ public interface IModelVisitor
 	 */
 	void visitTransitionPreconditionLE(Variable variable, int value);
 
+	/**
+	 * Encode a transition precondition for an inclusive range.
+	 * If low &lt;= variable &lt;= high then continue, otherwise if possible {@link #pop()} or
+	 * continue to the next transition.
+	 */
+	void visitTransitionPreconditionRange(Variable variable, int low, int high);
+
+	/**
+	 * Encode a precondition that counts down: counter := counter - 1, then
+	 * if counter != 0 continue, otherwise if possible {@link #pop()} or
+	 * continue to the next transition. The counter is changed either way.
+	 */
+	void visitTransitionPreconditionCountdown(Variable counter);
+
 	/** 
-	 * Encode a precondition checking that the given flag has the given value
+	 * Encode a precondition checking that flags held in one byte have the given values.
 	 *
-	 * If flag:bit == expectedValue then continue, otherwise if possible {@link #pop()} or
+	 * If (flags[byteOffset] &amp; mask) == expected then continue, otherwise if possible {@link #pop()} or
 	 * continue to the next transition.
 	 */
-	void visitTransitionPreconditionFlag(Variable flag, int bit, boolean expectedValue);
+	void visitTransitionPreconditionFlags(Variable flags, int byteOffset, int mask, int expected);
 		
 	/** Encode storing the input at the given variable+indexed offset location. */
 	void visitCommandCopyVariableToIndexedVariable(Variable source, Variable output, Variable indexer);
@@ -133,8 +185,34 @@ public interface IModelVisitor
 	/** Encode incrementing a variable's value */
 	void visitCommandIncrementVariable(Variable variable);	
 
-	/** Encode a command to set or clear a flag. If bit is more than 7 then more than one byte is used. */
-	void visitCommandSetFlag(Variable flags, int bit, boolean newValue);
+	/**
+	 * Encode the start of storing a sequence of values in output. The indexer has just
+	 * been cleared. From here until the next start of an indexed store, output is only
+	 * written by {@link #visitCommandStoreNextIndexed(Variable, Variable, Variable, boolean)}
+	 * with the same indexer, so a builder may keep a pointer to output[indexer].
+	 */
+	void visitCommandStartIndexedStore(Variable output, Variable indexer);
+
+	/**
+	 * Encode storing the next value of a sequence started by
+	 * {@link #visitCommandStartIndexedStore(Variable, Variable)}: output[indexer] := source,
+	 * then indexer++, then if terminate output[indexer] := 0.
+	 */
+	void visitCommandStoreNextIndexed(Variable source, Variable output, Variable indexer, boolean terminate);
+
+	/**
+	 * Encode the end of a sequence started by
+	 * {@link #visitCommandStartIndexedStore(Variable, Variable)}: output[indexer] := 0.
+	 */
+	void visitCommandEndIndexedStore(Variable output, Variable indexer);
+	/** Encode a command to load a single byte counter: counter := count. */
+	void visitCommandLoadCounter(Variable counter, int count);
+
+	/**
+	 * Encode a command to set and clear flags held in one byte:
+	 * flags[byteOffset] := (flags[byteOffset] | setMask) &amp; ~clearMask.
+	 */
+	void visitCommandSetFlags(Variable flags, int byteOffset, int setMask, int clearMask);
 
 	/** Encode a CALL to the given method */
 	void visitCommandMethodCall(RomLocation method);
@@ -145,6 +223,23 @@ public interface IModelVisitor
 	/** Encode a "Go to named node and return control" in the transition */
 	void visitTransitionGoToNode(INode node);
 	
+	/**
+	 * Start rendering a copy of a node's entry commands within a transition, for a
+	 * node that does not use shared entry code. Will be followed by visitCommand*
+	 * and then {@link #endInlineEntryCode(INode)}. The visitTransitionGoTo* that
+	 * follows the entry commands is not part of the entry code.
+	 * 
+	 * @param node the node whose entry commands are being rendered.
+	 */
+	void startInlineEntryCode(INode node);
+	
+	/**
+	 * End of a copy of a node's entry commands.
+	 * 
+	 * @param node the node whose entry commands were rendered.
+	 */
+	void endInlineEntryCode(INode node);
+	
 	/** End of the transition */
 	void endTransition(Transition transition);
 	
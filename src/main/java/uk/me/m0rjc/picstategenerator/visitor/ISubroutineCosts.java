@@ -0,0 +1,24 @@
+package uk.me.m0rjc.picstategenerator.visitor;
+
+/**
+ * Costs given by a builder to decide whether repeated sub-graphs of a model are
+ * better shared as subroutines.
+ */
+public interface ISubroutineCosts
+{
+    /**
+     * @param model the model to be built.
+     * @return words, and instruction cycles, to set the current node and return.
+     */
+    int getGoToNodeCost(IModel model);
+
+    /** @return bytes of a return held on a subroutine stack of one return. */
+    int getReturnSize();
+
+    /**
+     * @param words estimated words of program memory saved by sharing.
+     * @param cycles instruction cycles added to the steps that make the calls.
+     * @return how much better sharing is, or 0 or less if it is not better.
+     */
+    int getSharingBenefit(int words, int cycles);
+}
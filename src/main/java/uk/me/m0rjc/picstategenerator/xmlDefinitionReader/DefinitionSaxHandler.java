@@ -3,6 +3,8 @@ package uk.me.m0rjc.picstategenerator.xmlDefinitionReader;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+
 /**
  * Outer-most SAX handler that reads the StateGeneratorRun element
  *
@@ -13,6 +15,18 @@ class DefinitionSaxHandler extends ChainedSaxHandler
 	private ModelSaxHandler m_modelHandler = new ModelSaxHandler();
 	private UnitTestSaxHandler m_testHandler = new UnitTestSaxHandler();
 	
+	/** The model read, or null if none has been */
+	public StateModel getModel()
+	{
+		return m_modelHandler.getModel();
+	}
+	
+	/** Number of unit tests in the definition that failed */
+	public int getFailedTestCount()
+	{
+		return m_testHandler.getFailedTestCount();
+	}
+	
 	@Override
 	protected void onStartElement(String uri, String localName, String qName,
 			Attributes attributes) throws SAXException
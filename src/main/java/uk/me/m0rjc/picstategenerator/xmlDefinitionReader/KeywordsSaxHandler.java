@@ -0,0 +1,89 @@
+package uk.me.m0rjc.picstategenerator.xmlDefinitionReader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import uk.me.m0rjc.picstategenerator.model.Command;
+import uk.me.m0rjc.picstategenerator.model.CompositeCommand;
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+
+/**
+ * Handler for the ScriptKeywords element, a set of keywords each with optional
+ * commands to perform when it is read.
+ *
+ * @author Richard Corfield <m0rjc@raynet-uk.net>
+ */
+class KeywordsSaxHandler extends ChainedSaxHandler implements CommandListSaxHandler.Callback
+{
+	private final CommandListSaxHandler m_commandHandler;
+	private final Callback m_callback;
+
+	/** Command for each keyword read so far, or null for none. */
+	private Map<String, Command> m_keywords;
+	private String m_currentWord;
+	private CompositeCommand m_currentCommands;
+
+	public KeywordsSaxHandler(StateModel model, Callback callback)
+	{
+		m_callback = callback;
+		m_commandHandler = new CommandListSaxHandler(model, this);
+	}
+
+	public interface Callback
+	{
+		void onKeywords(Map<String, Command> keywords) throws SAXException;
+	}
+
+	@Override
+	protected void onStartElement(String uri, String localName, String qName,
+			Attributes attributes) throws SAXException
+	{
+		if(isHandlingOuterElement())
+		{
+			m_keywords = new LinkedHashMap<String, Command>();
+		}
+		else if("Keyword".equals(localName))
+		{
+			m_currentWord = getString(attributes, "word");
+			m_currentCommands = null;
+			if(m_keywords.containsKey(m_currentWord))
+			{
+				throw new SAXException("Keyword " + m_currentWord + " is given twice.");
+			}
+		}
+		else if("Commands".equals(localName))
+		{
+			setChild(m_commandHandler);
+			m_commandHandler.startElement(uri, localName, qName, attributes);
+		}
+	}
+
+	@Override
+	protected void onEndElement(String uri, String localName, String qName)
+			throws SAXException
+	{
+		if(isHandlingOuterElement())
+		{
+			if (m_callback != null)
+				m_callback.onKeywords(m_keywords);
+			m_keywords = null;
+		}
+		else if("Keyword".equals(localName))
+		{
+			m_keywords.put(m_currentWord, m_currentCommands);
+		}
+	}
+
+	@Override
+	public void onNewCommand(Command command) throws SAXException
+	{
+		if(m_currentCommands == null)
+		{
+			m_currentCommands = new CompositeCommand();
+		}
+		m_currentCommands.add(command);
+	}
+}
@@ -47,14 +47,17 @@ class ModelSaxHandler extends ChainedSaxHandler
 	/**
 	 * Start of the model
 	 * @param attributes
+	 * @throws SAXException if shareSubroutines is not a boolean
 	 */
-	private void onStartModel(Attributes attributes)
+	private void onStartModel(Attributes attributes) throws SAXException
 	{
 		String modelName = attributes.getValue("name");
 		m_rootName = attributes.getValue("root");
 		m_inputVariableName = attributes.getValue("inputVariable");
 		m_model = new StateModel(modelName);
 		
+		m_model.setShareSubroutines(getBoolean(attributes, "shareSubroutines", true));
+		
 		m_symbolHandler = new SymbolSaxHandler(m_model);
 		m_nodeHandler = new NodeSaxHandler(m_model);
 	}
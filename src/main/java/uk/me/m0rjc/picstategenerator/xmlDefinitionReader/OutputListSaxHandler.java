@@ -8,6 +8,7 @@ import org.xml.sax.SAXException;
 
 import uk.me.m0rjc.picstategenerator.model.StateModel;
 import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
 
 /**
  * SAX handler for the state:OutputList element.
@@ -35,7 +36,19 @@ class OutputListSaxHandler extends ChainedSaxHandler
 		}
 		else if("Pic18".equals(localName))
 		{
-			m_picOutputHandler.setBuilder(new Pic18AsmBuilder());
+			String backend = attributes.getValue("backend");
+			if(backend == null || "inline".equals(backend))
+			{
+				m_picOutputHandler.setBuilder(new Pic18AsmBuilder());
+			}
+			else if("table".equals(backend))
+			{
+				m_picOutputHandler.setBuilder(new Pic18TableBuilder());
+			}
+			else
+			{
+				throw new SAXException("Pic18 backend " + backend + " not recognised.");
+			}
 			setChild(m_picOutputHandler);
 			m_picOutputHandler.startElement(uri, localName, qName, attributes);
 		}
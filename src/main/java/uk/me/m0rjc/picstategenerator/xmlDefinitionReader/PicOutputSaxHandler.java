@@ -1,11 +1,17 @@
 package uk.me.m0rjc.picstategenerator.xmlDefinitionReader;
 
+import java.util.EnumSet;
+import java.util.Set;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
 import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.OptimisationProfile;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.PeepholeRule;
 import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.ramAllocator.BankAllocator;
+import uk.me.m0rjc.picstategenerator.ramAllocator.ProcessorRam;
 
 /**
  * Sax handler to call a PIC Assembly builder.
@@ -17,6 +23,8 @@ class PicOutputSaxHandler extends ChainedSaxHandler
 {
 	private final StateModel m_model;
 	private Pic18AsmBuilder m_builder;
+	/** Processor named by the output, or null. */
+	private String m_processor;
 	
 	public PicOutputSaxHandler(StateModel model)
 	{
@@ -56,12 +64,55 @@ class PicOutputSaxHandler extends ChainedSaxHandler
 	{
 		String processor = attributes.getValue("processor");
 		if(processor != null) m_builder.setProcessor(processor);
+		m_processor = processor;
 		
 		String outputBaseName = attributes.getValue("outputBaseName");
 		if(outputBaseName != null) m_builder.setFileBaseName(outputBaseName);
 		
 		boolean largeModel = getBoolean(attributes, "largeRomModel", false);
 		m_builder.setLargeRomModel(largeModel);		
+		m_builder.setStateIndex(getBoolean(attributes, "stateIndex", false));
+		
+		m_builder.setJumpTableMinimumCases(getInt(attributes, "jumpTableMinimumCases",
+				Pic18AsmBuilder.DEFAULT_JUMP_TABLE_MINIMUM_CASES));
+		m_builder.setJumpTableDensity(getInt(attributes, "jumpTableDensity",
+				Pic18AsmBuilder.DEFAULT_JUMP_TABLE_DENSITY));
+		m_builder.setDecisionTreeMinimumCases(getInt(attributes, "decisionTreeMinimumCases",
+				Pic18AsmBuilder.DEFAULT_DECISION_TREE_MINIMUM_CASES));
+		m_builder.setXorChainMinimumCases(getInt(attributes, "xorChainMinimumCases",
+				Pic18AsmBuilder.DEFAULT_XOR_CHAIN_MINIMUM_CASES));
+
+		String profileName = attributes.getValue("profile");
+		if(profileName != null)
+		{
+			OptimisationProfile profile = OptimisationProfile.forName(profileName);
+			if(profile == null)
+			{
+				throw new SAXException("Unrecognised optimisation profile: " + profileName);
+			}
+			m_builder.setOptimisationProfile(profile);
+		}
+
+		String storageFsr = attributes.getValue("storageFsr");
+		if(storageFsr != null)
+		{
+			try
+			{
+				m_builder.setStorageFsr(readStorageFsr(storageFsr));
+			}
+			catch(IllegalArgumentException e)
+			{
+				throw new SAXException(e.getMessage(), e);
+			}
+		}
+
+		String peephole = attributes.getValue("peephole");
+		if(peephole != null) m_builder.setPeepholeRules(readPeepholeRules(peephole));
+		
+		m_builder.setCycleBudget(getInt(attributes, "cyclesPerByte", 0));
+		m_builder.setRomLimit(getInt(attributes, "romLimit", 0));
+		m_builder.setRamLimit(getInt(attributes, "ramLimit", 0));
+		m_builder.setNodeRomLimit(getInt(attributes, "nodeRomLimit", 0));
 	}
 
 	@Override
@@ -77,7 +128,85 @@ class PicOutputSaxHandler extends ChainedSaxHandler
 		}
 		else if(isHandlingOuterElement())
 		{
-			m_model.accept(m_builder);
+			try
+			{
+				m_model.shareSubroutines(m_builder);
+				m_builder.planEntryCode(m_model);
+				if(BankAllocator.hasAutoVariables(m_model))
+				{
+					allocateBanks();
+				}
+				m_model.accept(m_builder);
+			}
+			catch(IllegalStateException e)
+			{
+				throw new SAXException(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Read the FSR to keep pointing into the array being stored to.
+	 * @param name "none", "fsr1" or "fsr2".
+	 * @return 0 for none, otherwise the FSR number.
+	 * @throws SAXException if the name is not recognised.
+	 */
+	private int readStorageFsr(String name) throws SAXException
+	{
+		if("none".equals(name)) return 0;
+		if("fsr1".equals(name)) return 1;
+		if("fsr2".equals(name)) return 2;
+		throw new SAXException("Unrecognised storage FSR: " + name);
+	}
+
+	/**
+	 * Read the peephole rules to apply from a list of rule names.
+	 * @param names rule names separated by white space, "all" or "none".
+	 * @return the rules.
+	 * @throws SAXException if a name is not recognised.
+	 */
+	private Set<PeepholeRule> readPeepholeRules(String names) throws SAXException
+	{
+		Set<PeepholeRule> rules = EnumSet.noneOf(PeepholeRule.class);
+		for(String name : names.trim().split("\\s+"))
+		{
+			if("all".equals(name))
+			{
+				rules.addAll(EnumSet.allOf(PeepholeRule.class));
+			}
+			else if(name.length() > 0 && !"none".equals(name))
+			{
+				PeepholeRule rule = PeepholeRule.forName(name);
+				if(rule == null)
+				{
+					throw new SAXException("Unrecognised peephole rule: " + name);
+				}
+				rules.add(rule);
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * Choose banks for variables with an automatic location using the RAM layout of the
+	 * output's processor.
+	 * @throws SAXException if the processor is not known or the variables do not fit.
+	 */
+	private void allocateBanks() throws SAXException
+	{
+		ProcessorRam ram = ProcessorRam.forProcessor(m_processor);
+		if(ram == null)
+		{
+			throw new SAXException("RAM layout of processor " + m_processor
+					+ " is not known, so cannot allocate automatic variables");
+		}
+		try
+		{
+			new BankAllocator(ram, m_builder.getInternalAccessBytes(m_model)).allocate(m_model);
+		}
+		catch(IllegalStateException e)
+		{
+			throw new SAXException(e.getMessage(), e);
 		}
 	}
 }
@@ -1,5 +1,7 @@
 package uk.me.m0rjc.picstategenerator.xmlDefinitionReader;
 
+import java.util.Map;
+
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
@@ -19,7 +21,8 @@ import uk.me.m0rjc.picstategenerator.model.Variable;
  * @author Richard Corfield <m0rjc@raynet-uk.net>
  */
 class ScriptSaxHandler extends ChainedSaxHandler
-	implements TransitionSaxHandler.Callback, CommandListSaxHandler.Callback, ConditionListSaxHandler.Callback
+	implements TransitionSaxHandler.Callback, CommandListSaxHandler.Callback, ConditionListSaxHandler.Callback,
+		KeywordsSaxHandler.Callback
 {
 	private static final String STEP_RETURN = "Return";
 	private static final String STEP_GO_SUB = "GoSub";
@@ -27,6 +30,7 @@ class ScriptSaxHandler extends ChainedSaxHandler
 	private static final String STEP_NUMBERS = "Numbers";
 	private static final String STEP_CHOICES = "Choices";
 	private static final String STEP_LITERAL = "Literal";
+	private static final String STEP_KEYWORDS = "Keywords";
 	private static final String STEP_COMMANDS = "Commands";
 	private static final String STEP_GUARD_CONDITION = "GuardCondition";
 	private final StateModel m_model;
@@ -37,6 +41,7 @@ class ScriptSaxHandler extends ChainedSaxHandler
 	private Node m_nextNode;
 	
 	private final TransitionSaxHandler m_choicesHandler;
+	private final KeywordsSaxHandler m_keywordsHandler;
 
 	public ScriptSaxHandler(StateModel model)
 	{
@@ -44,6 +49,7 @@ class ScriptSaxHandler extends ChainedSaxHandler
 		m_choicesHandler = new TransitionSaxHandler(model, this);
 		m_commandHandler = new CommandListSaxHandler(model, this);
 		m_conditionHandler = new ConditionListSaxHandler(model, this);
+		m_keywordsHandler = new KeywordsSaxHandler(model, this);
 	}
 
 	@Override
@@ -67,6 +73,11 @@ class ScriptSaxHandler extends ChainedSaxHandler
 		{
 			startReadingText();
 		}
+		else if(STEP_KEYWORDS.equals(localName))
+		{
+			setChild(m_keywordsHandler);
+			m_keywordsHandler.startElement(uri, localName, qName, attributes);
+		}
 		else if(STEP_CHOICES.equals(localName) || STEP_SKIP_TO.equals(localName))
 		{
 			onStartChoices(uri, localName, qName, attributes);
@@ -99,10 +110,11 @@ class ScriptSaxHandler extends ChainedSaxHandler
 		int min = getInt(attributes, "min");
 		int max = getInt(attributes, "max");
 		String store = attributes.getValue("store");
+		boolean clear = getBoolean(attributes, "clear", true);
 		
 		Variable storage = store != null ? m_model.getVariable(store) : null;
 		
-		m_currentNode = m_currentNode.addNumbers(min, max, storage);
+		m_currentNode = m_currentNode.addNumbers(min, max, storage, clear);
 	}
 
 	@Override
@@ -162,6 +174,19 @@ class ScriptSaxHandler extends ChainedSaxHandler
 	{
 		m_currentNode.addTransition(t);
 	}
+
+	@Override
+	public void onKeywords(Map<String, Command> keywords) throws SAXException
+	{
+		try
+		{
+			m_currentNode = m_currentNode.addKeywords(keywords);
+		}
+		catch(IllegalArgumentException e)
+		{
+			throw new SAXException(e.getMessage(), e);
+		}
+	}
 	
 	
 }
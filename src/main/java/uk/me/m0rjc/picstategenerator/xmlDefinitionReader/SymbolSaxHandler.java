@@ -83,6 +83,10 @@ class SymbolSaxHandler extends ChainedSaxHandler
 		}
 
 		int page = readPage(loc);
+		if(page == Variable.AUTO_BANK && !ownership.isMustDeclareStorage())
+		{
+			throw new SAXException("Symbol " + name + " must be declared by this module to have an automatic location");
+		}
 
 		m_variable = new Variable(name, ownership, page, size);
 		m_model.addVariable(m_variable);
@@ -106,13 +110,18 @@ class SymbolSaxHandler extends ChainedSaxHandler
 
 	/**
 	 * Determine the numeric page from a loc declaration.
-	 * ACCESS and ROM return -1.
+	 * ACCESS and ROM return -1. AUTO returns {@link Variable#AUTO_BANK}.
 	 * @param loc
 	 * @return
 	 * @throws SAXException
 	 */
 	private int readPage(String loc) throws SAXException
 	{
+		if("auto".equals(loc))
+		{
+			return Variable.AUTO_BANK;
+		}
+
 		if(loc.startsWith("page"))
 		{
 			try
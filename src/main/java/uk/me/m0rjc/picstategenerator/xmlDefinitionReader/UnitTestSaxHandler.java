@@ -40,6 +40,14 @@ class UnitTestSaxHandler extends ChainedSaxHandler
         m_model = model;
     }
 
+    /**
+     * @return the number of tests run that failed.
+     */
+    public int getFailedTestCount()
+    {
+        return m_tests - m_passed;
+    }
+
     @Override
     protected void onStartElement(String uri, String localName, String qName,
             Attributes attributes) throws SAXException
@@ -16,6 +16,8 @@ import javax.xml.validation.Validator;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+
 /**
  * Entry point for the handler of the XML definition file.
  *
@@ -25,6 +27,9 @@ public class XmlDefinitionLoader
 {
 	private static final Logger s_log = Logger.getLogger(XmlDefinitionLoader.class.getName());
 
+	/** Handler of the last definition read, or null */
+	private DefinitionSaxHandler m_handler;
+
 	/**
 	 * Load the given file and process it.
 	 *
@@ -68,6 +73,7 @@ public class XmlDefinitionLoader
 
 		// prepare SAX handler and SAX result receiving validate data:
 		DefinitionSaxHandler handler = new DefinitionSaxHandler();
+		m_handler = handler;
 		SAXResult sax = new SAXResult(handler);
 
 		// at last send valid data to out SAX handler:
@@ -75,6 +81,25 @@ public class XmlDefinitionLoader
 		validator.validate(source, sax);
 	}
 
+	/**
+	 * Return the model of the last definition read.
+	 * @return the model, or null if none has been read.
+	 */
+	public StateModel getModel()
+	{
+		return m_handler == null ? null : m_handler.getModel();
+	}
+
+	/**
+	 * Return the number of unit tests in the last definition read that failed.
+	 * The failures are logged as they are found.
+	 * @return the number of failed tests.
+	 */
+	public int getFailedTestCount()
+	{
+		return m_handler == null ? 0 : m_handler.getFailedTestCount();
+	}
+
 	/**
 	 * Return the Schema for the XML definition file.
 	 * @return
@@ -0,0 +1,199 @@
+package uk.me.m0rjc.picstategenerator.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.SimulatorBuilder;
+
+/**
+ * Simplification of the preconditions of a transition, and the testing of
+ * shared leading preconditions once for a group of transitions.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestPreconditionNormalise
+{
+	private Variable m_input;
+	private Variable m_other;
+	private Variable m_counter;
+	private Variable m_flags;
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_input = new Variable("pnIn", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1);
+		m_other = new Variable("pnOther", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1);
+		m_counter = new Variable("pnCount", SymbolOwnership.INTERNAL, Variable.ACCESS_BANK, 1);
+		m_flags = new Variable("pnFlags", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1)
+				.addFlag("A");
+	}
+
+	@Test
+	public void testBounds_mergedIntoRange()
+	{
+		assertNormalised("RangePrecondition pnIn 48..57",
+				VariableValuePrecondition.createGE(m_input, '0'),
+				VariableValuePrecondition.createLE(m_input, '9'));
+	}
+
+	@Test
+	public void testImpliedBound_removed()
+	{
+		assertNormalised("RangePrecondition pnIn 48..53",
+				Precondition.range(m_input, '0', '9'),
+				VariableValuePrecondition.createLE(m_input, '5'));
+		assertNormalised("VariableValuePrecondition pnIn 48..255",
+				VariableValuePrecondition.createGE(m_input, '0'),
+				VariableValuePrecondition.createGE(m_input, ' '));
+	}
+
+	@Test
+	public void testEqualsWithBounds_leavesEquals()
+	{
+		assertNormalised("VariableValuePrecondition pnIn 53..53",
+				VariableValuePrecondition.createGE(m_input, '0'),
+				Precondition.equals(m_input, '5'),
+				VariableValuePrecondition.createLE(m_input, '9'));
+	}
+
+	/**
+	 * Nothing passes both, so there is no narrower test to make. Both are kept
+	 * and the transition is never taken.
+	 */
+	@Test
+	public void testContradictoryBounds_bothKept()
+	{
+		assertNormalised("VariableValuePrecondition pnIn 53..255, VariableValuePrecondition pnIn 0..51",
+				VariableValuePrecondition.createGE(m_input, '5'),
+				VariableValuePrecondition.createLE(m_input, '3'));
+		assertNormalised("VariableValuePrecondition pnIn 53..53, VariableValuePrecondition pnIn 0..51",
+				Precondition.equals(m_input, '5'),
+				VariableValuePrecondition.createLE(m_input, '3'));
+	}
+
+	@Test
+	public void testVacuousBounds_removed()
+	{
+		assertNormalised("",
+				VariableValuePrecondition.createGE(m_input, 0),
+				VariableValuePrecondition.createLE(m_input, 255));
+		assertNormalised("", new RangePrecondition(m_input, 0, 255));
+		assertNormalised("VariableValuePrecondition pnIn 0..9",
+				VariableValuePrecondition.createGE(m_input, 0),
+				VariableValuePrecondition.createLE(m_input, 9));
+	}
+
+	@Test
+	public void testDifferentVariables_notMerged()
+	{
+		assertNormalised("VariableValuePrecondition pnIn 1..255, VariableValuePrecondition pnOther 0..2",
+				VariableValuePrecondition.createGE(m_input, 1),
+				VariableValuePrecondition.createLE(m_other, 2));
+	}
+
+	/**
+	 * A later bound merges into the earlier test of the same variable, and the
+	 * result keeps the order in which tests first appeared.
+	 */
+	@Test
+	public void testMerge_keepsFirstOrder()
+	{
+		assertNormalised("RangePrecondition pnIn 48..57, FlagCheckPrecondition, VariableValuePrecondition pnOther 7..7",
+				new CompositePrecondition(VariableValuePrecondition.createGE(m_input, '0'),
+						Precondition.checkFlag(m_flags, "A", true)),
+				Precondition.equals(m_other, 7),
+				VariableValuePrecondition.createLE(m_input, '9'));
+	}
+
+	/**
+	 * A countdown changes its counter whether or not it passes, so no test is
+	 * moved ahead of it.
+	 */
+	@Test
+	public void testCountdown_stopsMerge()
+	{
+		assertNormalised("RangePrecondition pnIn 48..57, CountdownPrecondition, VariableValuePrecondition pnIn 0..53",
+				Precondition.range(m_input, '0', '9'),
+				Precondition.countdown(m_counter),
+				VariableValuePrecondition.createLE(m_input, '5'));
+		assertNormalised("CountdownPrecondition, RangePrecondition pnIn 48..53",
+				Precondition.countdown(m_counter),
+				Precondition.range(m_input, '0', '9'),
+				VariableValuePrecondition.createLE(m_input, '5'));
+	}
+
+	/**
+	 * Two transitions that start with the same test share one test of it. A
+	 * third with the same test but a countdown is left out of the group.
+	 */
+	@Test
+	public void testSharedPrefix_testedOnceBesideCountdown() throws Exception
+	{
+		StateModel model = new StateModel("pn");
+		model.setShareSubroutines(false);
+		model.addVariable(m_input);
+		model.setInputVariable(m_input);
+		model.addVariable(m_other);
+		model.addVariable(m_counter);
+		Node root = model.getInitialState();
+		root.addTransition(new Transition().whenEqual(m_other, 1)
+				.when(VariableValuePrecondition.createLE(m_counter, 3))
+				.goTo(model.createNamedNode("low")));
+		root.addTransition(new Transition().whenEqual(m_other, 1)
+				.when(VariableValuePrecondition.createGE(m_counter, 5))
+				.goTo(model.createNamedNode("high")));
+		root.addTransition(new Transition().when(Precondition.countdown(m_counter))
+				.whenEqual(m_other, 1)
+				.goTo(model.createNamedNode("counted")));
+
+		final List<String> tests = new ArrayList<String>();
+		SimulatorBuilder builder = new SimulatorBuilder()
+		{
+			@Override
+			public void visitTransitionPreconditionEQ(Variable variable, int expectedValue)
+			{
+				tests.add(variable.getName() + " == " + expectedValue);
+				super.visitTransitionPreconditionEQ(variable, expectedValue);
+			}
+
+			@Override
+			public void visitTransitionPreconditionCountdown(Variable counter)
+			{
+				tests.add("countdown " + counter.getName());
+				super.visitTransitionPreconditionCountdown(counter);
+			}
+		};
+		model.accept(builder);
+		Assert.assertEquals(Arrays.asList("pnOther == 1", "countdown pnCount", "pnOther == 1"), tests);
+	}
+
+	private void assertNormalised(String expected, Precondition... preconditions)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(Precondition p : Precondition.normalise(Arrays.asList(preconditions)))
+		{
+			if(sb.length() > 0)
+			{
+				sb.append(", ");
+			}
+			sb.append(p.getClass().getSimpleName());
+			if(p instanceof VariableValuePrecondition || p instanceof RangePrecondition)
+			{
+				int[] range = {0, RangePrecondition.MAX_BYTE_VALUE};
+				p.narrowRange(p.getVariable(), range);
+				sb.append(' ').append(p.getVariable().getName())
+					.append(' ').append(range[0]).append("..").append(range[1]);
+			}
+		}
+		Assert.assertEquals(expected, sb.toString());
+	}
+}
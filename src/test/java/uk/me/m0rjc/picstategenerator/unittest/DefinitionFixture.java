@@ -0,0 +1,325 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.Assert;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.ramAllocator.BankAllocator;
+import uk.me.m0rjc.picstategenerator.ramAllocator.ProcessorRam;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.Simulation;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.SimulatorBuilder;
+import uk.me.m0rjc.picstategenerator.xmlDefinitionReader.XmlDefinitionLoader;
+
+/**
+ * A model definition from the test resources, loaded so that tests can generate
+ * code for it with different builder settings and run the definition's unit
+ * tests on that code as well as on the simulator.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public class DefinitionFixture
+{
+	/** Processor the code is generated for. */
+	public static final String PROCESSOR = "18F14K50";
+
+	/** Most instruction cycles the initialisation routine may take. */
+	private static final long MAX_INIT_CYCLES = 1000;
+
+	/** Most instruction cycles one step may take. */
+	private static final long MAX_STEP_CYCLES = 100000;
+
+	private final StateModel m_model;
+	private final Document m_definition;
+	private ProcessorRam m_ram = ProcessorRam.forProcessor(PROCESSOR);
+	private Document m_memoryMap;
+	private String m_cHeader;
+
+	/**
+	 * Load a definition, which runs its unit tests on the simulator.
+	 * @param resourceName name of the definition relative to this class.
+	 * @throws Exception if the definition cannot be read.
+	 */
+	public DefinitionFixture(String resourceName) throws Exception
+	{
+		XmlDefinitionLoader loader = new XmlDefinitionLoader();
+		loader.loadAndProcessDefinition(open(resourceName));
+		Assert.assertEquals("Unit tests failed on the simulator", 0, loader.getFailedTestCount());
+		m_model = loader.getModel();
+		m_definition = parse(open(resourceName));
+	}
+
+	/** @return the model, which has been optimised and shared by the last generation. */
+	public StateModel getModel()
+	{
+		return m_model;
+	}
+
+	/** @return the memory map written by the last successful generation. */
+	public Document getMemoryMap()
+	{
+		return m_memoryMap;
+	}
+
+	/** @return the C header written by the last successful generation. */
+	public String getCHeader()
+	{
+		return m_cHeader;
+	}
+
+	/**
+	 * @param ram RAM layout to allocate automatic variables in, in place of the
+	 *        processor's own.
+	 */
+	public void setProcessorRam(ProcessorRam ram)
+	{
+		m_ram = ram;
+	}
+
+	/**
+	 * Generate code for the model in the same way as the Output element does.
+	 * @param builder the builder, with its settings.
+	 * @return the assembler listing.
+	 * @throws Exception if the output cannot be written or read.
+	 */
+	public String generate(Pic18AsmBuilder builder) throws Exception
+	{
+		File directory = File.createTempFile("picstategenerator", "");
+		directory.delete();
+		directory.mkdir();
+		try
+		{
+			String baseName = new File(directory, m_model.getModelName()).getPath();
+			builder.setProcessor(PROCESSOR);
+			builder.setFileBaseName(baseName);
+			m_model.shareSubroutines(builder);
+			builder.planEntryCode(m_model);
+			if(BankAllocator.hasAutoVariables(m_model))
+			{
+				new BankAllocator(m_ram, builder.getInternalAccessBytes(m_model)).allocate(m_model);
+			}
+			m_model.accept(builder);
+			m_memoryMap = parse(new FileInputStream(baseName + ".map.xml"));
+			m_cHeader = read(new File(baseName + ".h"));
+			return read(new File(baseName + ".asm"));
+		}
+		finally
+		{
+			for(File f : directory.listFiles())
+			{
+				f.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Run the definition's unit tests on generated code.
+	 * @param listing the assembler listing.
+	 * @return the most instruction cycles taken by one step.
+	 */
+	public long assertUnitTestsPass(String listing)
+	{
+		String modelName = m_model.getModelName();
+		String input = m_model.getInputVariable().getName();
+		long maxStep = 0;
+		NodeList tests = m_definition.getElementsByTagNameNS("*", "Test");
+		for(int i = 0; i < tests.getLength(); i++)
+		{
+			Pic18Emulator emulator = new Pic18Emulator(listing);
+			emulator.call(modelName + "Init", MAX_INIT_CYCLES);
+			String description = "Test " + (i + 1);
+			for(Node n = tests.item(i).getFirstChild(); n != null; n = n.getNextSibling())
+			{
+				if(!(n instanceof Element))
+				{
+					continue;
+				}
+				Element e = (Element)n;
+				String name = e.getLocalName();
+				if("Description".equals(name))
+				{
+					description = e.getTextContent().trim();
+				}
+				else if("Input".equals(name))
+				{
+					for(char c : e.getTextContent().toCharArray())
+					{
+						emulator.setByte(input, 0, c);
+						maxStep = Math.max(maxStep, emulator.call(modelName + "Step", MAX_STEP_CYCLES));
+					}
+				}
+				else if("AssertEquals".equals(name))
+				{
+					assertEquals(emulator, description, e);
+				}
+				else if("AssertFlag".equals(name))
+				{
+					assertFlag(emulator, description, e);
+				}
+			}
+		}
+		return maxStep;
+	}
+
+	/**
+	 * Generate code and run the definition's unit tests on it.
+	 * @param builder the builder, with its settings.
+	 * @return the assembler listing.
+	 * @throws Exception if the output cannot be written or read.
+	 */
+	public String assertGeneratedCodePasses(Pic18AsmBuilder builder) throws Exception
+	{
+		String listing = generate(builder);
+		assertUnitTestsPass(listing);
+		return listing;
+	}
+
+	/**
+	 * Give generated code and the simulator the same random input, and check that
+	 * they agree on every byte of every variable after each character.
+	 * @param listing the assembler listing.
+	 * @param alphabet characters to choose the input from.
+	 * @param length number of characters of input.
+	 * @param seed seed of the random input, so that a failure can be repeated.
+	 * @throws Exception if the simulator fails.
+	 */
+	public void assertMatchesSimulator(String listing, String alphabet, int length, long seed) throws Exception
+	{
+		String modelName = m_model.getModelName();
+		String input = m_model.getInputVariable().getName();
+		SimulatorBuilder simulatorBuilder = new SimulatorBuilder();
+		m_model.accept(simulatorBuilder);
+		Simulation simulation = simulatorBuilder.getSimulation();
+		simulation.setInputVariable(input);
+		Pic18Emulator emulator = new Pic18Emulator(listing);
+		emulator.call(modelName + "Init", MAX_INIT_CYCLES);
+
+		Random random = new Random(seed);
+		StringBuilder history = new StringBuilder();
+		for(int i = 0; i < length; i++)
+		{
+			char c = alphabet.charAt(random.nextInt(alphabet.length()));
+			history.append(c);
+			simulation.acceptInput(String.valueOf(c));
+			emulator.setByte(input, 0, c);
+			emulator.call(modelName + "Step", MAX_STEP_CYCLES);
+			for(Variable v : m_model.getVariables())
+			{
+				byte[] bytes = new byte[v.getSize()];
+				for(int b = 0; b < bytes.length; b++)
+				{
+					bytes[b] = (byte)emulator.getByte(v.getName(), b);
+				}
+				try
+				{
+					simulation.assertBytes(v.getName(), bytes);
+				}
+				catch(Exception e)
+				{
+					Assert.fail("After input " + history + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param listing an assembler listing.
+	 * @param text text to look for.
+	 * @return the number of times the text appears in the listing.
+	 */
+	public static int count(String listing, String text)
+	{
+		int count = 0;
+		for(int i = listing.indexOf(text); i >= 0; i = listing.indexOf(text, i + 1))
+		{
+			count++;
+		}
+		return count;
+	}
+
+	private void assertEquals(Pic18Emulator emulator, String description, Element assertion)
+	{
+		String variable = assertion.getAttribute("variable");
+		String expected = assertion.getAttribute("string");
+		if(assertion.hasAttribute("numbers"))
+		{
+			StringBuilder sb = new StringBuilder();
+			for(String number : assertion.getAttribute("numbers").trim().split("\\s+"))
+			{
+				sb.append((char)Integer.parseInt(number));
+			}
+			expected = sb.toString();
+		}
+		for(int i = 0; i < expected.length(); i++)
+		{
+			Assert.assertEquals(description + ": " + variable + "[" + i + "]",
+					(int)expected.charAt(i), emulator.getByte(variable, i));
+		}
+	}
+
+	private void assertFlag(Pic18Emulator emulator, String description, Element assertion)
+	{
+		String variable = assertion.getAttribute("variable");
+		String flag = assertion.getAttribute("flag");
+		int bit = m_model.getVariable(variable).getBit(flag);
+		boolean actual = (emulator.getByte(variable, bit / 8) & (1 << (bit % 8))) != 0;
+		Assert.assertEquals(description + ": " + variable + "." + flag,
+				Boolean.parseBoolean(assertion.getAttribute("value")), actual);
+	}
+
+	private InputStream open(String resourceName)
+	{
+		InputStream in = getClass().getResourceAsStream(resourceName);
+		Assert.assertNotNull("Missing resource " + resourceName, in);
+		return in;
+	}
+
+	private static Document parse(InputStream in) throws Exception
+	{
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		try
+		{
+			return factory.newDocumentBuilder().parse(in);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static String read(File file) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				sb.append(line).append('\n');
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return sb.toString();
+	}
+}
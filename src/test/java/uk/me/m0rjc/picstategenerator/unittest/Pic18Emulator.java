@@ -0,0 +1,1143 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A small PIC18 emulator for the assembler written by the generator, so that
+ * tests can run the generated code rather than the simulator. It reads the
+ * listing itself, so only understands what the generator writes: RES in UDATA
+ * and UDATA_ACS sections, instructions and DB in one CODE section, EXTERN and
+ * the MPASM expressions used in operands.
+ *
+ * <p>Banked sections are placed at the bank their name ends in, otherwise at the
+ * next free bank. Each access of a banked file register checks that BSR selects
+ * its bank. Calls to external methods are counted and return at once.</p>
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+public class Pic18Emulator
+{
+	/** Address the code is placed at, so that pointers need more than one byte. */
+	private static final int CODE_BASE = 0x10F0;
+
+	/** Address given to external methods, which cannot be reached. */
+	private static final int EXTERNAL_BASE = 0x7FF0000;
+
+	/** Return address that ends a call from the test. */
+	private static final int RETURN_SENTINEL = 0xFFFFFE;
+
+	/** Size of the data memory. */
+	private static final int RAM_SIZE = 4096;
+
+	/** Size of a bank of data memory. */
+	private static final int BANK_SIZE = 256;
+
+	/** First address of the SFR in the access bank. */
+	private static final int ACCESS_SFR = 0xF60;
+
+	/** Last address of general purpose RAM in the access bank. */
+	private static final int ACCESS_RAM_END = 0x60;
+
+	private static final int STATUS = 0xFD8;
+	private static final int WREG = 0xFE8;
+	private static final int BSR = 0xFE0;
+	private static final int PCL = 0xFF9;
+	private static final int PCLATH = 0xFFA;
+	private static final int PCLATU = 0xFFB;
+	private static final int PRODL = 0xFF3;
+	private static final int PRODH = 0xFF4;
+	private static final int TABLAT = 0xFF5;
+	private static final int TBLPTRL = 0xFF6;
+
+	private static final int CARRY = 0;
+	private static final int DIGIT_CARRY = 1;
+	private static final int ZERO = 2;
+	private static final int OVERFLOW = 3;
+	private static final int NEGATIVE = 4;
+
+	/** Indirect registers: address, FSR and mode, 0 INDF, 1 POSTINC, 2 POSTDEC, 3 PREINC, 4 PLUSW. */
+	private static final int[][] INDIRECT_REGISTERS = {
+		{0xFEF, 0, 0}, {0xFEE, 0, 1}, {0xFED, 0, 2}, {0xFEC, 0, 3}, {0xFEB, 0, 4},
+		{0xFE7, 1, 0}, {0xFE6, 1, 1}, {0xFE5, 1, 2}, {0xFE4, 1, 3}, {0xFE3, 1, 4},
+		{0xFDF, 2, 0}, {0xFDE, 2, 1}, {0xFDD, 2, 2}, {0xFDC, 2, 3}, {0xFDB, 2, 4}};
+
+	/** Address of the low byte of each FSR. */
+	private static final int[] FSR_LOW = {0xFE9, 0xFE1, 0xFD9};
+
+	/** Special function registers the generated code uses. */
+	private static final String[][] SFR = {
+		{"PCL", "FF9"}, {"PCLATH", "FFA"}, {"PCLATU", "FFB"}, {"WREG", "FE8"}, {"STATUS", "FD8"},
+		{"BSR", "FE0"}, {"INDF0", "FEF"}, {"POSTINC0", "FEE"}, {"POSTDEC0", "FED"}, {"PREINC0", "FEC"},
+		{"PLUSW0", "FEB"}, {"FSR0H", "FEA"}, {"FSR0L", "FE9"}, {"INDF1", "FE7"}, {"POSTINC1", "FE6"},
+		{"POSTDEC1", "FE5"}, {"PREINC1", "FE4"}, {"PLUSW1", "FE3"}, {"FSR1H", "FE2"}, {"FSR1L", "FE1"},
+		{"INDF2", "FDF"}, {"POSTINC2", "FDE"}, {"POSTDEC2", "FDD"}, {"PREINC2", "FDC"}, {"PLUSW2", "FDB"},
+		{"FSR2H", "FDA"}, {"FSR2L", "FD9"}, {"PRODL", "FF3"}, {"PRODH", "FF4"}, {"TABLAT", "FF5"},
+		{"TBLPTRL", "FF6"}, {"TBLPTRH", "FF7"}, {"TBLPTRU", "FF8"}};
+
+	/** Instructions that read a file register and write W or the register. */
+	private static final Set<String> FILE_OPERATIONS = new HashSet<String>(Arrays.asList(
+			"MOVF", "INCF", "DECF", "ADDWF", "ADDWFC", "SUBWF", "SUBWFB", "SUBFWB", "XORWF", "ANDWF",
+			"IORWF", "COMF", "RLNCF", "RRNCF", "RLCF", "RRCF", "SWAPF", "DECFSZ", "INCFSZ", "DCFSNZ",
+			"INFSNZ"));
+
+	/** Conditional branches. */
+	private static final Set<String> BRANCHES = new HashSet<String>(Arrays.asList(
+			"BZ", "BNZ", "BC", "BNC", "BN", "BNN", "BOV", "BNOV"));
+
+	/** One instruction of the listing. */
+	private static final class Instruction
+	{
+		private String m_opCode;
+		private String[] m_operands;
+		private int m_address;
+		private int m_words;
+		private String m_text;
+	}
+
+	private final Map<String, Integer> m_symbols = new HashMap<String, Integer>();
+	private final Set<String> m_externals = new HashSet<String>();
+	private final Map<Integer, Instruction> m_instructions = new HashMap<Integer, Instruction>();
+	private final Map<Integer, Integer> m_romBytes = new HashMap<Integer, Integer>();
+	private final Map<String, Integer> m_externalCalls = new HashMap<String, Integer>();
+	private final Stack<Integer> m_stack = new Stack<Integer>();
+	private final int[] m_ram = new int[RAM_SIZE];
+	private int m_pc;
+	private int m_w;
+	private long m_cycles;
+	private boolean m_pcWritten;
+	private int m_romEnd = CODE_BASE;
+
+	/**
+	 * Load a listing.
+	 * @param listing assembler source written by the generator.
+	 * @throws IllegalArgumentException if the listing cannot be read.
+	 */
+	public Pic18Emulator(String listing)
+	{
+		for(String[] sfr : SFR)
+		{
+			m_symbols.put(sfr[0], Integer.parseInt(sfr[1], 16));
+		}
+		String[] constants = {"C", "DC", "Z", "OV", "N"};
+		for(int i = 0; i < constants.length; i++)
+		{
+			m_symbols.put(constants[i], i);
+		}
+		m_symbols.put("W", 0);
+		m_symbols.put("F", 1);
+		m_symbols.put("FSR0", 0);
+		m_symbols.put("FSR1", 1);
+		m_symbols.put("FSR2", 2);
+		try
+		{
+			load(listing);
+		}
+		catch(IOException e)
+		{
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Call a routine and run until it returns.
+	 * @param label label of the routine.
+	 * @param maxCycles most instruction cycles it may take.
+	 * @return the instruction cycles taken.
+	 * @throws IllegalStateException if the code goes wrong or takes too long.
+	 */
+	public long call(String label, long maxCycles)
+	{
+		long start = m_cycles;
+		m_stack.push(RETURN_SENTINEL);
+		m_pc = getSymbol(label);
+		while(m_pc != RETURN_SENTINEL)
+		{
+			step();
+			if(m_cycles - start > maxCycles)
+			{
+				throw new IllegalStateException("Call to " + label + " took more than " + maxCycles
+						+ " cycles, at " + Integer.toHexString(m_pc));
+			}
+		}
+		return m_cycles - start;
+	}
+
+	/**
+	 * @param name a variable.
+	 * @param offset byte of the variable.
+	 * @return the value of the byte.
+	 */
+	public int getByte(String name, int offset)
+	{
+		return m_ram[getSymbol(name) + offset];
+	}
+
+	/**
+	 * @param name a variable.
+	 * @param offset byte of the variable.
+	 * @param value new value of the byte.
+	 */
+	public void setByte(String name, int offset, int value)
+	{
+		m_ram[getSymbol(name) + offset] = value & 0xFF;
+	}
+
+	/**
+	 * @param name an external method.
+	 * @return number of times it has been called.
+	 */
+	public int getCallCount(String name)
+	{
+		Integer count = m_externalCalls.get(name);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * @return bytes of program memory used by the code and tables.
+	 */
+	public int getRomSize()
+	{
+		return m_romEnd - CODE_BASE;
+	}
+
+	/**
+	 * @param name a label or variable.
+	 * @return its address.
+	 */
+	private int getSymbol(String name)
+	{
+		Integer value = m_symbols.get(name);
+		if(value == null)
+		{
+			throw new IllegalStateException("Symbol not defined: " + name);
+		}
+		return value;
+	}
+
+	/**
+	 * Read the listing, placing variables and code.
+	 */
+	private void load(String listing) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new StringReader(listing));
+		List<Instruction> code = new ArrayList<Instruction>();
+		String section = null;
+		int ramAddress = 0;
+		int nextBank = 1;
+		int romAddress = CODE_BASE;
+		String line;
+		while((line = reader.readLine()) != null)
+		{
+			String text = stripComment(line);
+			if(text.trim().length() == 0 || text.startsWith("#"))
+			{
+				continue;
+			}
+			boolean labelled = !Character.isWhitespace(text.charAt(0));
+			String rest = text.trim();
+			String first = rest.split("\\s+")[0];
+			if(labelled && first.endsWith(":"))
+			{
+				m_symbols.put(first.substring(0, first.length() - 1), romAddress);
+				rest = rest.substring(first.length()).trim();
+				if(rest.length() == 0)
+				{
+					continue;
+				}
+			}
+			else if(labelled)
+			{
+				String[] tokens = rest.split("\\s+");
+				if(tokens.length > 2 && "res".equals(tokens[1]))
+				{
+					m_symbols.put(tokens[0], ramAddress);
+					ramAddress += (int) evaluate(tokens[2]);
+				}
+				else if(tokens.length > 1 && "UDATA_ACS".equals(tokens[1]))
+				{
+					ramAddress = 0;
+				}
+				else if(tokens.length > 1 && "UDATA".equals(tokens[1]))
+				{
+					Matcher m = Pattern.compile("Bank(\\d+)$").matcher(tokens[0]);
+					ramAddress = m.find() ? Integer.parseInt(m.group(1)) * BANK_SIZE : nextBank++ * BANK_SIZE;
+					if(ramAddress == 0)
+					{
+						ramAddress = ACCESS_RAM_END;
+					}
+				}
+				else if(tokens.length > 1 && "CODE".equals(tokens[1]))
+				{
+					section = tokens[1];
+				}
+				else
+				{
+					throw new IllegalArgumentException("Cannot read line: " + line);
+				}
+				continue;
+			}
+
+			String[] parts = rest.split("\\s+", 2);
+			String opCode = parts[0].toUpperCase();
+			String[] operands = splitOperands(parts.length > 1 ? parts[1].trim() : "");
+			if("LIST".equals(opCode) || "GLOBAL".equals(opCode) || "END".equals(opCode))
+			{
+				continue;
+			}
+			if("EXTERN".equals(opCode))
+			{
+				m_externals.addAll(Arrays.asList(operands));
+				continue;
+			}
+			if(!"CODE".equals(section))
+			{
+				throw new IllegalArgumentException("Instruction outside code: " + line);
+			}
+			Instruction instruction = new Instruction();
+			instruction.m_opCode = opCode;
+			instruction.m_operands = operands;
+			instruction.m_address = romAddress;
+			instruction.m_text = line.trim();
+			code.add(instruction);
+			if("DB".equals(opCode))
+			{
+				// Each DB line is padded to a whole word.
+				romAddress += operands.length + (operands.length & 1);
+			}
+			else
+			{
+				boolean twoWords = "GOTO".equals(opCode) || "CALL".equals(opCode)
+						|| "MOVFF".equals(opCode) || "LFSR".equals(opCode);
+				instruction.m_words = twoWords ? 2 : 1;
+				romAddress += 2 * instruction.m_words;
+			}
+		}
+		m_romEnd = romAddress;
+
+		// Operands may refer to labels further on, so are evaluated once all are placed.
+		for(Instruction instruction : code)
+		{
+			if("DB".equals(instruction.m_opCode))
+			{
+				for(int i = 0; i < instruction.m_operands.length; i++)
+				{
+					m_romBytes.put(instruction.m_address + i, (int) evaluate(instruction.m_operands[i]) & 0xFF);
+				}
+			}
+			else
+			{
+				m_instructions.put(instruction.m_address, instruction);
+			}
+		}
+		checkBranchRanges();
+	}
+
+	/**
+	 * Check that each relative branch reaches its target.
+	 */
+	private void checkBranchRanges()
+	{
+		for(Instruction instruction : m_instructions.values())
+		{
+			boolean relativeCall = "BRA".equals(instruction.m_opCode) || "RCALL".equals(instruction.m_opCode);
+			if(relativeCall || BRANCHES.contains(instruction.m_opCode))
+			{
+				int offset = ((int) evaluate(instruction.m_operands[0]) - instruction.m_address - 2) / 2;
+				int limit = relativeCall ? 1024 : 128;
+				if(offset < -limit || offset >= limit)
+				{
+					throw new IllegalArgumentException("Branch out of range: " + instruction.m_text);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the line without its comment.
+	 */
+	private static String stripComment(String line)
+	{
+		boolean quoted = false;
+		for(int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if(c == '\'')
+			{
+				quoted = !quoted;
+			}
+			else if(c == ';' && !quoted)
+			{
+				return line.substring(0, i);
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * @return the operands, split at commas outside brackets and quotes.
+	 */
+	private static String[] splitOperands(String text)
+	{
+		List<String> operands = new ArrayList<String>();
+		int depth = 0;
+		boolean quoted = false;
+		StringBuilder current = new StringBuilder();
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if(c == '\'')
+			{
+				quoted = !quoted;
+			}
+			else if(!quoted && c == '(')
+			{
+				depth++;
+			}
+			else if(!quoted && c == ')')
+			{
+				depth--;
+			}
+			else if(!quoted && depth == 0 && c == ',')
+			{
+				operands.add(current.toString().trim());
+				current.setLength(0);
+				continue;
+			}
+			current.append(c);
+		}
+		if(current.toString().trim().length() > 0)
+		{
+			operands.add(current.toString().trim());
+		}
+		return operands.toArray(new String[operands.size()]);
+	}
+
+	/**
+	 * @param expression an MPASM expression. Numbers without a prefix are hexadecimal.
+	 * @return its value.
+	 */
+	private long evaluate(String expression)
+	{
+		return new Expression(expression).evaluate();
+	}
+
+	/**
+	 * Recursive descent evaluation of an MPASM expression.
+	 */
+	private final class Expression
+	{
+		private final String m_text;
+		private int m_position;
+
+		private Expression(String text)
+		{
+			m_text = text;
+		}
+
+		private long evaluate()
+		{
+			long value = parseOr();
+			skipSpaces();
+			if(m_position != m_text.length())
+			{
+				throw new IllegalArgumentException("Cannot evaluate " + m_text);
+			}
+			return value;
+		}
+
+		private void skipSpaces()
+		{
+			while(m_position < m_text.length() && m_text.charAt(m_position) == ' ')
+			{
+				m_position++;
+			}
+		}
+
+		private boolean accept(String operator)
+		{
+			skipSpaces();
+			if(m_text.startsWith(operator, m_position))
+			{
+				m_position += operator.length();
+				return true;
+			}
+			return false;
+		}
+
+		private long parseOr()
+		{
+			long value = parseAnd();
+			while(accept("|"))
+			{
+				value |= parseAnd();
+			}
+			return value;
+		}
+
+		private long parseAnd()
+		{
+			long value = parseShift();
+			while(accept("&"))
+			{
+				value &= parseShift();
+			}
+			return value;
+		}
+
+		private long parseShift()
+		{
+			long value = parseSum();
+			while(true)
+			{
+				if(accept("<<"))
+				{
+					value <<= parseSum();
+				}
+				else if(accept(">>"))
+				{
+					value >>= parseSum();
+				}
+				else
+				{
+					return value;
+				}
+			}
+		}
+
+		private long parseSum()
+		{
+			long value = parseProduct();
+			while(true)
+			{
+				if(accept("+"))
+				{
+					value += parseProduct();
+				}
+				else if(accept("-"))
+				{
+					value -= parseProduct();
+				}
+				else
+				{
+					return value;
+				}
+			}
+		}
+
+		private long parseProduct()
+		{
+			long value = parseUnary();
+			while(true)
+			{
+				if(accept("*"))
+				{
+					value *= parseUnary();
+				}
+				else if(accept("/"))
+				{
+					value /= parseUnary();
+				}
+				else
+				{
+					return value;
+				}
+			}
+		}
+
+		private long parseUnary()
+		{
+			if(accept("-"))
+			{
+				return -parseUnary();
+			}
+			if(accept("~"))
+			{
+				return ~parseUnary();
+			}
+			if(accept("("))
+			{
+				long value = parseOr();
+				expect(')');
+				return value;
+			}
+			char c = m_text.charAt(m_position);
+			if(c == '\'')
+			{
+				m_position += 3;
+				return m_text.charAt(m_position - 2);
+			}
+			if(c == '.')
+			{
+				m_position++;
+				return Long.parseLong(readWhile("0123456789"));
+			}
+			if(accept("0x") || accept("0X"))
+			{
+				return Long.parseLong(readWhile("0123456789abcdefABCDEF"), 16);
+			}
+			if((c == 'B' || c == 'b' || c == 'H' || c == 'h') && m_text.startsWith("'", m_position + 1))
+			{
+				m_position += 2;
+				long value = Long.parseLong(readWhile("0123456789abcdefABCDEF"), c == 'B' || c == 'b' ? 2 : 16);
+				expect('\'');
+				return value;
+			}
+			if(Character.isDigit(c))
+			{
+				return Long.parseLong(readWhile("0123456789abcdefABCDEF"), 16);
+			}
+
+			String name = readWhile(null);
+			if(name.length() == 0)
+			{
+				throw new IllegalArgumentException("Cannot evaluate " + m_text);
+			}
+			if(accept("("))
+			{
+				long value = parseOr();
+				expect(')');
+				if("LOW".equalsIgnoreCase(name))
+				{
+					return value & 0xFF;
+				}
+				if("HIGH".equalsIgnoreCase(name))
+				{
+					return (value >> 8) & 0xFF;
+				}
+				if("UPPER".equalsIgnoreCase(name))
+				{
+					return (value >> 16) & 0xFF;
+				}
+				throw new IllegalArgumentException("Unknown function " + name);
+			}
+			Integer value = m_symbols.get(name);
+			if(value != null)
+			{
+				return value;
+			}
+			if(m_externals.contains(name))
+			{
+				return EXTERNAL_BASE + 2 * (Math.abs(name.hashCode()) % 0xFFFF);
+			}
+			throw new IllegalArgumentException("Unknown symbol " + name + " in " + m_text);
+		}
+
+		/**
+		 * Read characters from the given set, or symbol characters if null.
+		 */
+		private String readWhile(String characters)
+		{
+			int start = m_position;
+			while(m_position < m_text.length())
+			{
+				char c = m_text.charAt(m_position);
+				boolean ok = characters == null ? Character.isLetterOrDigit(c) || c == '_'
+						: characters.indexOf(c) >= 0;
+				if(!ok)
+				{
+					break;
+				}
+				m_position++;
+			}
+			return m_text.substring(start, m_position);
+		}
+
+		private void expect(char c)
+		{
+			if(m_position >= m_text.length() || m_text.charAt(m_position) != c)
+			{
+				throw new IllegalArgumentException("Expected " + c + " in " + m_text);
+			}
+			m_position++;
+		}
+	}
+
+	/**
+	 * @return the address an FSR points to.
+	 */
+	private int getFsr(int fsr)
+	{
+		return (m_ram[FSR_LOW[fsr]] | (m_ram[FSR_LOW[fsr] + 1] << 8)) & 0xFFF;
+	}
+
+	private void setFsr(int fsr, int value)
+	{
+		m_ram[FSR_LOW[fsr]] = value & 0xFF;
+		m_ram[FSR_LOW[fsr] + 1] = (value >> 8) & 0x0F;
+	}
+
+	/**
+	 * @return the address an indirect register accesses, updating its FSR, or -1
+	 *         if the address is not an indirect register.
+	 */
+	private int resolveIndirect(int address)
+	{
+		for(int[] register : INDIRECT_REGISTERS)
+		{
+			if(register[0] == address)
+			{
+				int fsr = getFsr(register[1]);
+				switch(register[2])
+				{
+				case 0:
+					return fsr;
+				case 1:
+					setFsr(register[1], fsr + 1);
+					return fsr;
+				case 2:
+					setFsr(register[1], fsr - 1);
+					return fsr;
+				case 3:
+					setFsr(register[1], fsr + 1);
+					return (fsr + 1) & 0xFFF;
+				default:
+					return (fsr + (byte) m_w) & 0xFFF;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private int read(int address)
+	{
+		int indirect = resolveIndirect(address);
+		if(indirect >= 0)
+		{
+			return m_ram[indirect];
+		}
+		if(address == WREG)
+		{
+			return m_w;
+		}
+		return m_ram[address];
+	}
+
+	private void write(int address, int value)
+	{
+		int indirect = resolveIndirect(address);
+		int target = indirect >= 0 ? indirect : address;
+		if(target == WREG)
+		{
+			m_w = value & 0xFF;
+		}
+		else if(target == PCL)
+		{
+			m_pc = (m_ram[PCLATU] << 16) | (m_ram[PCLATH] << 8) | (value & 0xFF);
+			m_pcWritten = true;
+		}
+		else
+		{
+			m_ram[target] = value & 0xFF;
+		}
+	}
+
+	/**
+	 * Find the file register an instruction addresses, checking the bank.
+	 * @param operand the register.
+	 * @param accessFlag "A" or "BANKED", or null to choose by the address.
+	 */
+	private int getFileAddress(Instruction instruction, String operand, String accessFlag)
+	{
+		int address = (int) evaluate(operand);
+		if(address < 0 || address >= RAM_SIZE)
+		{
+			throw new IllegalStateException("Not a file register: " + instruction.m_text);
+		}
+		boolean inAccessBank = address < ACCESS_RAM_END || address >= ACCESS_SFR;
+		boolean access = accessFlag == null ? inAccessBank : "A".equals(accessFlag) || "0".equals(accessFlag);
+		if(access)
+		{
+			if(!inAccessBank)
+			{
+				throw new IllegalStateException("Banked register accessed through the access bank: "
+						+ instruction.m_text);
+			}
+			return address;
+		}
+		int bank = m_ram[BSR] & 0x0F;
+		if(address / BANK_SIZE != bank)
+		{
+			throw new IllegalStateException("BSR selects bank " + bank + " for " + instruction.m_text);
+		}
+		return address;
+	}
+
+	private boolean getFlag(int bit)
+	{
+		return (m_ram[STATUS] & (1 << bit)) != 0;
+	}
+
+	private void setFlag(int bit, boolean value)
+	{
+		if(value)
+		{
+			m_ram[STATUS] |= 1 << bit;
+		}
+		else
+		{
+			m_ram[STATUS] &= ~(1 << bit);
+		}
+	}
+
+	private int setZeroNegative(int result)
+	{
+		setFlag(ZERO, (result & 0xFF) == 0);
+		setFlag(NEGATIVE, (result & 0x80) != 0);
+		return result & 0xFF;
+	}
+
+	private int add(int a, int b, int carry)
+	{
+		int result = a + b + carry;
+		setFlag(CARRY, result > 0xFF);
+		setFlag(DIGIT_CARRY, (a & 0xF) + (b & 0xF) + carry > 0xF);
+		setFlag(OVERFLOW, ((a ^ result) & (b ^ result) & 0x80) != 0);
+		return setZeroNegative(result);
+	}
+
+	/** a - b - borrow. Carry is set if there is no borrow. */
+	private int subtract(int a, int b, int borrow)
+	{
+		return add(a, ~b & 0xFF, 1 - borrow);
+	}
+
+	/**
+	 * Run one instruction.
+	 */
+	private void step()
+	{
+		Instruction instruction = m_instructions.get(m_pc);
+		if(instruction == null)
+		{
+			throw new IllegalStateException("No instruction at " + Integer.toHexString(m_pc));
+		}
+		String op = instruction.m_opCode;
+		String[] operands = instruction.m_operands;
+		int next = m_pc + 2 * instruction.m_words;
+		int nextPc = next;
+		int cycles = 1;
+		boolean skip = false;
+		m_pcWritten = false;
+
+		if("MOVLW".equals(op))
+		{
+			m_w = literal(operands);
+		}
+		else if("MOVLB".equals(op))
+		{
+			m_ram[BSR] = literal(operands) & 0x0F;
+		}
+		else if("BANKSEL".equals(op))
+		{
+			m_ram[BSR] = (int) (evaluate(operands[0]) >> 8) & 0x0F;
+		}
+		else if("ADDLW".equals(op))
+		{
+			m_w = add(m_w, literal(operands), 0);
+		}
+		else if("SUBLW".equals(op))
+		{
+			m_w = subtract(literal(operands), m_w, 0);
+		}
+		else if("XORLW".equals(op))
+		{
+			m_w = setZeroNegative(m_w ^ literal(operands));
+		}
+		else if("ANDLW".equals(op))
+		{
+			m_w = setZeroNegative(m_w & literal(operands));
+		}
+		else if("IORLW".equals(op))
+		{
+			m_w = setZeroNegative(m_w | literal(operands));
+		}
+		else if("MULLW".equals(op))
+		{
+			int product = m_w * literal(operands);
+			m_ram[PRODL] = product & 0xFF;
+			m_ram[PRODH] = product >> 8;
+		}
+		else if("RETLW".equals(op))
+		{
+			m_w = literal(operands);
+			nextPc = m_stack.pop();
+			cycles = 2;
+		}
+		else if("MOVWF".equals(op))
+		{
+			write(getFileAddress(instruction, operands[0], operand(operands, 1)), m_w);
+		}
+		else if("CLRF".equals(op))
+		{
+			write(getFileAddress(instruction, operands[0], operand(operands, 1)), 0);
+			setFlag(ZERO, true);
+		}
+		else if("SETF".equals(op))
+		{
+			write(getFileAddress(instruction, operands[0], operand(operands, 1)), 0xFF);
+		}
+		else if("MOVFF".equals(op))
+		{
+			write((int) evaluate(operands[1]), read((int) evaluate(operands[0])));
+			cycles = 2;
+		}
+		else if("LFSR".equals(op))
+		{
+			setFsr((int) evaluate(operands[0]), (int) evaluate(operands[1]));
+			cycles = 2;
+		}
+		else if(FILE_OPERATIONS.contains(op))
+		{
+			skip = fileOperation(instruction);
+		}
+		else if("CPFSEQ".equals(op) || "CPFSGT".equals(op) || "CPFSLT".equals(op) || "TSTFSZ".equals(op))
+		{
+			int value = read(getFileAddress(instruction, operands[0], operand(operands, 1)));
+			skip = "CPFSEQ".equals(op) ? value == m_w
+					: "CPFSGT".equals(op) ? value > m_w
+					: "CPFSLT".equals(op) ? value < m_w : value == 0;
+		}
+		else if("BTFSS".equals(op) || "BTFSC".equals(op))
+		{
+			int value = read(getFileAddress(instruction, operands[0], operand(operands, 2)));
+			boolean set = (value & (1 << evaluate(operands[1]))) != 0;
+			skip = "BTFSS".equals(op) == set;
+		}
+		else if("BSF".equals(op) || "BCF".equals(op) || "BTG".equals(op))
+		{
+			int address = getFileAddress(instruction, operands[0], operand(operands, 2));
+			int bit = 1 << evaluate(operands[1]);
+			int value = read(address);
+			write(address, "BSF".equals(op) ? value | bit : "BCF".equals(op) ? value & ~bit : value ^ bit);
+		}
+		else if("GOTO".equals(op) || "BRA".equals(op))
+		{
+			nextPc = getTarget(operands[0]);
+			cycles = 2;
+		}
+		else if(BRANCHES.contains(op))
+		{
+			if(isBranchTaken(op))
+			{
+				nextPc = getTarget(operands[0]);
+				cycles = 2;
+			}
+		}
+		else if("CALL".equals(op) || "RCALL".equals(op))
+		{
+			long target = evaluate(operands[0]);
+			cycles = 2;
+			if(target >= EXTERNAL_BASE)
+			{
+				m_externalCalls.put(operands[0], getCallCount(operands[0]) + 1);
+			}
+			else
+			{
+				m_stack.push(next);
+				nextPc = getTarget(operands[0]);
+			}
+		}
+		else if("RETURN".equals(op))
+		{
+			nextPc = m_stack.pop();
+			cycles = 2;
+		}
+		else if(op.startsWith("TBLRD"))
+		{
+			int pointer = m_ram[TBLPTRL] | (m_ram[TBLPTRL + 1] << 8) | (m_ram[TBLPTRL + 2] << 16);
+			if("TBLRD+*".equals(op))
+			{
+				pointer++;
+			}
+			Integer value = m_romBytes.get(pointer);
+			if(value == null)
+			{
+				throw new IllegalStateException("Table read outside the tables at " + Integer.toHexString(pointer));
+			}
+			m_ram[TABLAT] = value;
+			if("TBLRD*+".equals(op))
+			{
+				pointer++;
+			}
+			else if("TBLRD*-".equals(op))
+			{
+				pointer--;
+			}
+
+			m_ram[TBLPTRL] = pointer & 0xFF;
+			m_ram[TBLPTRL + 1] = (pointer >> 8) & 0xFF;
+			m_ram[TBLPTRL + 2] = (pointer >> 16) & 0x3F;
+			cycles = 2;
+		}
+		else if(!"NOP".equals(op))
+		{
+			throw new IllegalStateException("Instruction not emulated: " + instruction.m_text);
+		}
+
+		if(skip)
+		{
+			Instruction skipped = m_instructions.get(next);
+			int words = skipped == null ? 1 : skipped.m_words;
+			nextPc = next + 2 * words;
+			cycles += words;
+		}
+		if(m_pcWritten)
+		{
+			nextPc = m_pc;
+			cycles = 2;
+		}
+		m_pc = nextPc;
+		m_cycles += cycles;
+	}
+
+	/**
+	 * Run an instruction that reads a file register and writes W or the register.
+	 * @return true if the next instruction is skipped.
+	 */
+	private boolean fileOperation(Instruction instruction)
+	{
+		String op = instruction.m_opCode;
+		String[] operands = instruction.m_operands;
+		int address = getFileAddress(instruction, operands[0], operand(operands, 2));
+		boolean toFile = operands.length < 2 || evaluate(operands[1]) != 0;
+		int value = read(address);
+		int carry = getFlag(CARRY) ? 1 : 0;
+		int result;
+		boolean skip = false;
+		if("MOVF".equals(op))
+		{
+			result = setZeroNegative(value);
+		}
+		else if("INCF".equals(op))
+		{
+			result = add(value, 1, 0);
+		}
+		else if("DECF".equals(op))
+		{
+			result = subtract(value, 1, 0);
+		}
+		else if("ADDWF".equals(op))
+		{
+			result = add(value, m_w, 0);
+		}
+		else if("ADDWFC".equals(op))
+		{
+			result = add(value, m_w, carry);
+		}
+		else if("SUBWF".equals(op))
+		{
+			result = subtract(value, m_w, 0);
+		}
+		else if("SUBWFB".equals(op))
+		{
+			result = subtract(value, m_w, 1 - carry);
+		}
+		else if("SUBFWB".equals(op))
+		{
+			result = subtract(m_w, value, 1 - carry);
+		}
+		else if("XORWF".equals(op))
+		{
+			result = setZeroNegative(value ^ m_w);
+		}
+		else if("ANDWF".equals(op))
+		{
+			result = setZeroNegative(value & m_w);
+		}
+		else if("IORWF".equals(op))
+		{
+			result = setZeroNegative(value | m_w);
+		}
+		else if("COMF".equals(op))
+		{
+			result = setZeroNegative(~value);
+		}
+		else if("RLNCF".equals(op))
+		{
+			result = setZeroNegative((value << 1) | (value >> 7));
+		}
+		else if("RRNCF".equals(op))
+		{
+			result = setZeroNegative((value >> 1) | (value << 7));
+		}
+		else if("RLCF".equals(op))
+		{
+			setFlag(CARRY, (value & 0x80) != 0);
+			result = setZeroNegative((value << 1) | carry);
+		}
+		else if("RRCF".equals(op))
+		{
+			setFlag(CARRY, (value & 1) != 0);
+			result = setZeroNegative((value >> 1) | (carry << 7));
+		}
+		else if("SWAPF".equals(op))
+		{
+			result = ((value << 4) | (value >> 4)) & 0xFF;
+		}
+		else
+		{
+			// DECFSZ, INCFSZ, DCFSNZ and INFSNZ change no flags.
+			result = (op.startsWith("D") ? value - 1 : value + 1) & 0xFF;
+			skip = op.endsWith("SZ") ? result == 0 : result != 0;
+		}
+		if(toFile)
+		{
+			write(address, result);
+		}
+		else
+		{
+			m_w = result;
+		}
+		return skip;
+	}
+
+	/**
+	 * @return the literal operand as a byte.
+	 */
+	private int literal(String[] operands)
+	{
+		return (int) evaluate(operands[0]) & 0xFF;
+	}
+
+	/**
+	 * @return the operand, or null if there are not that many.
+	 */
+	private static String operand(String[] operands, int index)
+	{
+		return operands.length > index ? operands[index] : null;
+	}
+
+	/**
+	 * @return the address of the instruction a jump goes to.
+	 */
+	private int getTarget(String label)
+	{
+		int target = (int) evaluate(label);
+		if(!m_instructions.containsKey(target))
+		{
+			throw new IllegalStateException("Jump to " + label + ", which is not an instruction");
+		}
+		return target;
+	}
+
+	private boolean isBranchTaken(String op)
+	{
+		boolean negated = op.startsWith("BN") && !"BN".equals(op);
+		String condition = negated ? op.substring(2) : op.substring(1);
+		int bit = "Z".equals(condition) ? ZERO : "C".equals(condition) ? CARRY
+				: "OV".equals(condition) ? OVERFLOW : NEGATIVE;
+		return getFlag(bit) != negated;
+	}
+}
@@ -0,0 +1,167 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.model.SymbolOwnership;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.ramAllocator.BankAllocator;
+import uk.me.m0rjc.picstategenerator.ramAllocator.ProcessorRam;
+
+/**
+ * Automatic allocation of RAM banks. Every symbol of the model has an automatic
+ * location.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestBankAllocator
+{
+	private DefinitionFixture m_fixture;
+	private StateModel m_model;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestBankAllocator.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("autoBankTestModel.xml");
+		m_model = m_fixture.getModel();
+		m_builder = new Pic18AsmBuilder();
+	}
+
+	@Test
+	public void testLoad_variablesAwaitBank()
+	{
+		Assert.assertTrue(BankAllocator.hasAutoVariables(m_model));
+		for(Variable v : m_model.getVariables())
+		{
+			Assert.assertTrue(v.getName(), !v.isAutoBank() || v.isAwaitingBank());
+		}
+	}
+
+	/**
+	 * Variables that need their bank selected go into ACCESS RAM while there is
+	 * room. Those only reached by MOVFF do not, so go into a bank.
+	 */
+	@Test
+	public void testRoomInAccess_allocatesReferencedToAccess() throws Exception
+	{
+		m_fixture.assertGeneratedCodePasses(m_builder);
+		for(String name : new String[] {"stIn", "stFlags", "stBufA", "stBufB"})
+		{
+			Assert.assertTrue(name, m_model.getVariable(name).isAccess());
+		}
+		for(String name : new String[] {"stCode", "stLetter"})
+		{
+			Assert.assertEquals(name, 0, m_model.getVariable(name).getBank());
+		}
+	}
+
+	/**
+	 * With no ACCESS RAM to spare everything goes into banks, using as few as
+	 * possible.
+	 */
+	@Test
+	public void testNoRoomInAccess_packsIntoOneBank() throws Exception
+	{
+		ProcessorRam ram = new ProcessorRam(96, 2);
+		new BankAllocator(ram, 96).allocate(m_model);
+		for(String name : new String[] {"stIn", "stFlags", "stBufA", "stCode", "stBufB", "stLetter"})
+		{
+			Variable v = m_model.getVariable(name);
+			Assert.assertFalse(name, v.isAccess());
+			Assert.assertEquals(name, 0, v.getBank());
+		}
+	}
+
+	/**
+	 * When ACCESS RAM has room for one byte it goes to the input variable, which
+	 * every node reads.
+	 */
+	@Test
+	public void testOneByteInAccess_allocatesInputToAccess() throws Exception
+	{
+		ProcessorRam ram = new ProcessorRam(96, 2);
+		new BankAllocator(ram, 96 - getFixedAccessBytes() - 1).allocate(m_model);
+		Assert.assertTrue(m_model.getVariable("stIn").isAccess());
+		Assert.assertFalse(m_model.getVariable("stFlags").isAccess());
+		Assert.assertFalse(m_model.getVariable("stBufB").isAccess());
+	}
+
+	/**
+	 * An ACCESS variable declared elsewhere, such as an SFR, has no storage in
+	 * this module so does not take the room left for the input variable.
+	 */
+	@Test
+	public void testExternAccess_takesNoRoom() throws Exception
+	{
+		m_model.addVariable(new Variable("stSfr", SymbolOwnership.EXTERN, Variable.ACCESS_BANK, 8));
+		ProcessorRam ram = new ProcessorRam(96, 2);
+		new BankAllocator(ram, 96 - getFixedAccessBytes() - 1).allocate(m_model);
+		Assert.assertTrue(m_model.getVariable("stIn").isAccess());
+		Assert.assertFalse(m_model.getVariable("stFlags").isAccess());
+	}
+
+	/**
+	 * Code for variables spread between ACCESS RAM and a bank selects the bank
+	 * where it must.
+	 */
+	@Test
+	public void testSmallAccess_generatedCodePasses() throws Exception
+	{
+		m_fixture.setProcessorRam(new ProcessorRam(m_builder.getInternalAccessBytes(m_model) + 4, 2));
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("BANKSEL"));
+		Assert.assertTrue(m_model.getVariable("stIn").isAccess());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNoRoom_throws() throws Exception
+	{
+		new BankAllocator(new ProcessorRam(250, 1), 250).allocate(m_model);
+	}
+
+	@Test
+	public void testAllocateTwice_replacesAllocation() throws Exception
+	{
+		new BankAllocator(new ProcessorRam(96, 2), 96).allocate(m_model);
+		new BankAllocator(new ProcessorRam(96, 2), 0).allocate(m_model);
+		Assert.assertTrue(m_model.getVariable("stBufB").isAccess());
+	}
+
+	/** @return bytes of ACCESS RAM taken by variables with a fixed location declared here. */
+	private int getFixedAccessBytes()
+	{
+		int bytes = 0;
+		for(Variable v : m_model.getVariables())
+		{
+			if(!v.isAutoBank() && v.isAccess() && v.isMustDeclareStorage())
+			{
+				bytes += v.getSize();
+			}
+		}
+		return bytes;
+	}
+
+}
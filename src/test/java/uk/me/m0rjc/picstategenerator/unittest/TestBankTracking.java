@@ -0,0 +1,100 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.PeepholeRule;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * Tracking of the selected bank. The model keeps its flags in one bank and the
+ * values it stores in another. The emulator checks BSR on every banked access,
+ * so each test fails if code reached by a jump assumes the wrong bank.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestBankTracking
+{
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestBankTracking.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("bankTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+	}
+
+	/**
+	 * Each transition that touches the flags selects their bank once, however
+	 * many flags it tests or sets.
+	 */
+	@Test
+	public void testNoPeephole_selectsBankOncePerTransition() throws Exception
+	{
+		m_builder.setPeepholeRules(EnumSet.noneOf(PeepholeRule.class));
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertEquals(6, DefinitionFixture.count(listing, "BANKSEL  bkFlags"));
+		Assert.assertEquals(1, DefinitionFixture.count(listing, "BANKSEL  bkDigits"));
+	}
+
+	@Test
+	public void testDefaultSettings_passes() throws Exception
+	{
+		m_fixture.assertGeneratedCodePasses(m_builder);
+	}
+
+	@Test
+	public void testJumpTable_passes() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(2);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Jump table"));
+	}
+
+	@Test
+	public void testDecisionTree_passes() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(0);
+		m_builder.setDecisionTreeMinimumCases(2);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Decision tree"));
+	}
+
+	@Test
+	public void testXorChain_passes() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(0);
+		m_builder.setDecisionTreeMinimumCases(0);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("XOR chain"));
+	}
+
+	@Test
+	public void testLargeRomModel_passes() throws Exception
+	{
+		m_builder.setLargeRomModel(true);
+		m_fixture.assertGeneratedCodePasses(m_builder);
+	}
+}
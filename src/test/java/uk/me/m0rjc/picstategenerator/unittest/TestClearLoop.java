@@ -0,0 +1,136 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.OptimisationProfile;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * Large variables cleared in a counted FSR0 loop under the size profile. The
+ * numbers model clears the store of each Numbers field on entry: nmLat, of 16
+ * bytes, and two smaller stores.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestClearLoop
+{
+	/** Characters the numbers model reacts to, with one it ignores. */
+	private static final String NUMBERS_ALPHABET = "TLSC0123456789,;.x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	/** The worst case of the step routine in the cycle report. */
+	private static final Pattern STEP_WORST = Pattern.compile("; +\\d+ +(\\d+)  nmStep in total");
+
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestClearLoop.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("numbersTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+	}
+
+	@Test
+	public void testSizeProfile_largeClearInLoop() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Command nmLat := 0, 16 bytes in a loop"));
+		Assert.assertTrue(listing.contains("LFSR     FSR0, nmLat"));
+		Assert.assertTrue(listing.contains("MOVLW    .16"));
+		Assert.assertEquals(1, DefinitionFixture.count(listing, "CLRF     POSTINC0, A\n                DECFSZ   WREG, F, A"));
+	}
+
+	/**
+	 * Small variables take fewer words cleared one byte at a time.
+	 */
+	@Test
+	public void testSizeProfile_smallClearUnrolled() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Command nmTime := 0\n"));
+		Assert.assertTrue(listing.contains("Command nmCode := 0\n"));
+	}
+
+	@Test
+	public void testBalancedProfile_unrolled() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.BALANCED);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertFalse(listing.contains("in a loop"));
+		Assert.assertFalse(listing.contains("POSTINC0"));
+	}
+
+	@Test
+	public void testSpeedProfile_unrolled() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SPEED);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertFalse(listing.contains("in a loop"));
+	}
+
+	/**
+	 * Each clear appears in the report with its form and cycles.
+	 */
+	@Test
+	public void testReport_listsFormAndCycles() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.generate(m_builder);
+		Assert.assertTrue(listing.contains(";      66          nmLat := 0, 16 bytes in a loop"));
+		Assert.assertTrue(listing.contains(";       6          nmTime := 0, 6 bytes by CLRF"));
+
+		m_builder = new Pic18AsmBuilder();
+		listing = m_fixture.generate(m_builder);
+		Assert.assertTrue(listing.contains(";      16          nmLat := 0, 16 bytes by CLRF"));
+	}
+
+	/**
+	 * The loop is counted in full, so the step routine has a bounded worst
+	 * case no less than the emulator measures.
+	 */
+	@Test
+	public void testCycleAnalysis_countsLoop() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.generate(m_builder);
+		Matcher m = STEP_WORST.matcher(listing);
+		Assert.assertTrue(m.find());
+		long worst = Long.parseLong(m.group(1));
+		Assert.assertTrue(m_fixture.assertUnitTestsPass(listing) <= worst);
+	}
+
+	@Test
+	public void testSizeProfile_matchesSimulator() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		m_fixture.assertMatchesSimulator(listing, NUMBERS_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+}
@@ -0,0 +1,144 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.OptimisationProfile;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * Large variables copied in a counted loop through FSR0 under the size profile.
+ * The copy model copies cpLat, of 16 bytes, and cpCode, of 4 bytes, when each
+ * field is complete.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestCopyLoop
+{
+	/** Characters the copy model reacts to, with one it ignores. */
+	private static final String COPY_ALPHABET = "LC0123456789;.x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	/** The worst case of the step routine in the cycle report. */
+	private static final Pattern STEP_WORST = Pattern.compile("; +\\d+ +(\\d+)  cpStep in total");
+
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestCopyLoop.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("copyTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+	}
+
+	@Test
+	public void testSizeProfile_largeCopyInLoop() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Command cpLastLat := cpLat, 16 bytes in a loop"));
+		Assert.assertTrue(listing.contains("LFSR     FSR0, cpLat"));
+		Assert.assertTrue(listing.contains("MOVFF    PLUSW0, PRODH"));
+		Assert.assertTrue(listing.contains("MOVFF    PRODH, PLUSW0"));
+		Assert.assertEquals(1, DefinitionFixture.count(listing, "DECFSZ   PRODL, F, A"));
+	}
+
+	/**
+	 * Small variables take fewer words copied one byte at a time.
+	 */
+	@Test
+	public void testSizeProfile_smallCopyUnrolled() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Command cpLastCode := cpCode\n"));
+		Assert.assertTrue(listing.contains("MOVFF    (cpCode + .3), (cpLastCode + .3)"));
+	}
+
+	@Test
+	public void testBalancedProfile_unrolled() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.BALANCED);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertFalse(listing.contains("in a loop"));
+		Assert.assertFalse(listing.contains("PLUSW0, PRODH"));
+	}
+
+	@Test
+	public void testSpeedProfile_unrolled() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SPEED);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertFalse(listing.contains("in a loop"));
+	}
+
+	/**
+	 * Each copy appears in the report with its form and cycles.
+	 */
+	@Test
+	public void testReport_listsFormAndCycles() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.generate(m_builder);
+		Assert.assertTrue(listing.contains(";     193          cpLastLat := cpLat, 16 bytes in a loop"));
+		Assert.assertTrue(listing.contains(";       8          cpLastCode := cpCode, 4 bytes by MOVFF"));
+
+		m_builder = new Pic18AsmBuilder();
+		listing = m_fixture.generate(m_builder);
+		Assert.assertTrue(listing.contains(";      32          cpLastLat := cpLat, 16 bytes by MOVFF"));
+	}
+
+	/**
+	 * The loop is counted in full, so the step routine has a bounded worst
+	 * case no less than the emulator measures.
+	 */
+	@Test
+	public void testCycleAnalysis_countsLoop() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.generate(m_builder);
+		Matcher m = STEP_WORST.matcher(listing);
+		Assert.assertTrue(m.find());
+		long worst = Long.parseLong(m.group(1));
+		Assert.assertTrue(m_fixture.assertUnitTestsPass(listing) <= worst);
+	}
+
+	@Test
+	public void testSizeProfile_matchesSimulator() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		m_fixture.assertMatchesSimulator(listing, COPY_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	@Test
+	public void testDefault_matchesSimulator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		m_fixture.assertMatchesSimulator(listing, COPY_ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+}
@@ -0,0 +1,93 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
+
+/**
+ * Fixed width Numbers fields, which count down the digits left in place of
+ * comparing the store count with the width.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestCountdown
+{
+	/** Characters the numbers model reacts to, with one it ignores. */
+	private static final String NUMBERS_ALPHABET = "TLSC0123456789,;.x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	private DefinitionFixture m_fixture;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestCountdown.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("numbersTestModel.xml");
+	}
+
+	@Test
+	public void testFixedWidth_loadsAndDecrementsCounter() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(listing.contains("Command nm_countdown := 6"));
+		Assert.assertTrue(listing.contains("Command nm_countdown := 2"));
+		Assert.assertEquals(2, DefinitionFixture.count(listing, "DCFSNZ   nm_countdown, F, A"));
+	}
+
+	/**
+	 * Only the two variable width fields compare the store count.
+	 */
+	@Test
+	public void testVariableWidth_comparesStoreCount() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertEquals(2, DefinitionFixture.count(listing, "Precondition nm_storeCount <="));
+		Assert.assertTrue(listing.contains("Precondition nm_storeCount <= 0x0e"));
+		Assert.assertTrue(listing.contains("Precondition nm_storeCount <= 0x02"));
+	}
+
+	@Test
+	public void testInline_matchesSimulator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		m_fixture.assertMatchesSimulator(listing, NUMBERS_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	@Test
+	public void testStorageFsr_matchesSimulator() throws Exception
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setStorageFsr(2);
+		String listing = m_fixture.assertGeneratedCodePasses(builder);
+		m_fixture.assertMatchesSimulator(listing, NUMBERS_ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+
+	@Test
+	public void testTableBackend_matchesSimulator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18TableBuilder());
+		m_fixture.assertMatchesSimulator(listing, NUMBERS_ALPHABET, RANDOM_INPUT_LENGTH, 3);
+	}
+}
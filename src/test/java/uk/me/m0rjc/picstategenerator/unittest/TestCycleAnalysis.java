@@ -0,0 +1,115 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * Best and worst case cycle analysis of the generated code, checked against the
+ * cycles taken on the emulator, and the cycle budget.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestCycleAnalysis
+{
+	/** Summary line for the step method, giving best and worst case. */
+	private static final Pattern STEP_TOTAL = Pattern.compile(";\\s+(\\d+)\\s+(\\d+)  stStep in total");
+
+	@Rule
+	public ExpectedException expected = ExpectedException.none();
+
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestCycleAnalysis.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("dispatchTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+	}
+
+	/**
+	 * No step taken by the unit tests may take longer than the worst case.
+	 */
+	@Test
+	public void testWorstCase_boundsEmulatedSteps() throws Exception
+	{
+		assertWorstCaseBoundsSteps();
+	}
+
+	@Test
+	public void testWorstCase_jumpTables_boundsEmulatedSteps() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(2);
+		assertWorstCaseBoundsSteps();
+	}
+
+	@Test
+	public void testWorstCase_noPeephole_boundsEmulatedSteps() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(0);
+		m_builder.setDecisionTreeMinimumCases(0);
+		m_builder.setXorChainMinimumCases(0);
+		assertWorstCaseBoundsSteps();
+	}
+
+	@Test
+	public void testBudgetMet_passesAndReportsBudget() throws Exception
+	{
+		int worst = getWorstCase(m_fixture.generate(new Pic18AsmBuilder()));
+		m_builder.setCycleBudget(worst);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains(String.format(";         %7d  Budget", worst)));
+	}
+
+	@Test
+	public void testBudgetExceeded_throws() throws Exception
+	{
+		int worst = getWorstCase(m_fixture.generate(new Pic18AsmBuilder()));
+		m_builder.setCycleBudget(worst - 1);
+		expected.expect(IllegalStateException.class);
+		expected.expectMessage("over the budget of " + (worst - 1));
+		m_fixture.generate(m_builder);
+	}
+
+	private void assertWorstCaseBoundsSteps() throws Exception
+	{
+		String listing = m_fixture.generate(m_builder);
+		long measured = m_fixture.assertUnitTestsPass(listing);
+		int worst = getWorstCase(listing);
+		Assert.assertTrue("Measured " + measured + " cycles, worst case " + worst, measured <= worst);
+	}
+
+	private static int getWorstCase(String listing)
+	{
+		Matcher m = STEP_TOTAL.matcher(listing);
+		Assert.assertTrue(m.find());
+		Assert.assertTrue(Integer.parseInt(m.group(1)) <= Integer.parseInt(m.group(2)));
+		return Integer.parseInt(m.group(2));
+	}
+}
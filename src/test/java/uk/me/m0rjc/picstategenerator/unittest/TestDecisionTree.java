@@ -0,0 +1,94 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * Decision tree dispatch on the input variable, used for runs of cases too small
+ * for a jump table.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestDecisionTree
+{
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestDecisionTree.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("dispatchTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+		m_builder.setJumpTableMinimumCases(0);
+	}
+
+	@Test
+	public void testNoJumpTables_defaultMinimum_usesTrees() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Decision tree on stIn, 6 cases from '#' to 'T'"));
+		Assert.assertTrue(listing.contains("Decision tree on stIn, 7 cases from '0' to '~'"));
+		Assert.assertTrue(listing.contains("Decision tree on stIn, 10 cases from 'A' to 'J'"));
+		Assert.assertTrue(listing.contains("CPFSLT   stIn, A"));
+	}
+
+	/**
+	 * A tree of six ranges needs fewer comparisons on its worst path than testing
+	 * each case in turn.
+	 */
+	@Test
+	public void testTree_isFasterThanTestingEachCase() throws Exception
+	{
+		long treeCycles = m_fixture.assertUnitTestsPass(m_fixture.generate(m_builder));
+
+		DefinitionFixture linear = new DefinitionFixture("dispatchTestModel.xml");
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setJumpTableMinimumCases(0);
+		builder.setDecisionTreeMinimumCases(0);
+		builder.setXorChainMinimumCases(0);
+		String listing = linear.generate(builder);
+		long linearCycles = linear.assertUnitTestsPass(listing);
+
+		Assert.assertFalse(listing.contains("Decision tree"));
+		Assert.assertTrue("Tree " + treeCycles + " cycles, linear " + linearCycles,
+				treeCycles < linearCycles);
+	}
+
+	@Test
+	public void testLowMinimum_smallRuns_usesTrees() throws Exception
+	{
+		m_builder.setDecisionTreeMinimumCases(2);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Decision tree on stIn, 2 cases"));
+	}
+
+	@Test
+	public void testLargeRomModel_passes() throws Exception
+	{
+		m_builder.setLargeRomModel(true);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Decision tree"));
+	}
+}
@@ -0,0 +1,124 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.OptimisationProfile;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.PeepholeRule;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * The choice between copying a node's entry code into each transition to it
+ * and sharing one copy. In the model "small" has one word of entry code, "mid"
+ * a little more than a jump and "big" at least six words, each entered from
+ * several transitions, and "once" is entered from only one.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestEntryCodePlanner
+{
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestEntryCodePlanner.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("entryTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+	}
+
+	@Test
+	public void testSizeProfile_sharesAllRepeatedEntryCode() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SIZE);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		assertShared(true, true, true);
+		Assert.assertTrue(listing.contains("Node small entry code."));
+		Assert.assertTrue(listing.contains("Node big entry code."));
+	}
+
+	@Test
+	public void testBalancedProfile_copiesSmallEntryCode() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.BALANCED);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		assertShared(false, true, true);
+		Assert.assertFalse(listing.contains("Node small entry code."));
+		Assert.assertTrue(listing.contains("Node mid entry code."));
+	}
+
+	/**
+	 * Even for speed, large entry code is not copied.
+	 */
+	@Test
+	public void testSpeedProfile_sharesOnlyLargeEntryCode() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SPEED);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		assertShared(false, false, true);
+		Assert.assertFalse(listing.contains("Node mid entry code."));
+		Assert.assertTrue(listing.contains("Node big entry code."));
+	}
+
+	/**
+	 * Before peephole optimisation, which merges copies of code, each profile
+	 * that shares more entry code takes less program memory.
+	 */
+	@Test
+	public void testProfiles_romSizeInOrder() throws Exception
+	{
+		int size = getRomSize(OptimisationProfile.SIZE);
+		int balanced = getRomSize(OptimisationProfile.BALANCED);
+		int speed = getRomSize(OptimisationProfile.SPEED);
+		Assert.assertTrue(size < balanced);
+		Assert.assertTrue(balanced < speed);
+	}
+
+	/**
+	 * @param profile what to favour.
+	 * @return bytes of program memory taken without peephole optimisation.
+	 */
+	private int getRomSize(OptimisationProfile profile) throws Exception
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setPeepholeRules(EnumSet.noneOf(PeepholeRule.class));
+		builder.setOptimisationProfile(profile);
+		return new Pic18Emulator(m_fixture.assertGeneratedCodePasses(builder)).getRomSize();
+	}
+
+	/**
+	 * @param small true if node "small" should share its entry code.
+	 * @param mid true if node "mid" should share its entry code.
+	 * @param big true if node "big" should share its entry code.
+	 */
+	private void assertShared(boolean small, boolean mid, boolean big)
+	{
+		StateModel model = m_fixture.getModel();
+		Assert.assertEquals("small", small, model.getNode("small").isUseSharedEntryCode());
+		Assert.assertEquals("mid", mid, model.getNode("mid").isUseSharedEntryCode());
+		Assert.assertEquals("big", big, model.getNode("big").isUseSharedEntryCode());
+		Assert.assertFalse("once", model.getNode("once").isUseSharedEntryCode());
+	}
+}
@@ -0,0 +1,121 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
+
+/**
+ * Flag tests and flag commands on the same byte grouped into one mask. The
+ * model's flags take two bytes of a banked variable.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestFlagMasks
+{
+	/** Characters the model reacts to, with one it ignores. */
+	private static final String ALPHABET = "sctuvklwx";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	private DefinitionFixture m_fixture;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestFlagMasks.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("flagTestModel.xml");
+	}
+
+	/**
+	 * Three flags of a byte, one expected clear, are tested with one mask and
+	 * compare.
+	 */
+	@Test
+	public void testThreeFlagCheck_oneMaskAndCompare() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(listing.contains("Precondition Flags flFlags[0] & B'00001011' == B'00000011'"));
+		Assert.assertTrue(listing.contains("ANDLW    B'00001011'"));
+		Assert.assertTrue(listing.contains("XORLW    B'00000011'"));
+	}
+
+	/**
+	 * Flags all expected clear need no compare after the mask.
+	 */
+	@Test
+	public void testAllClearCheck_maskOnly() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(listing.contains("Precondition Flags flFlags[0] & B'00000101' == B'00000000'"));
+		Assert.assertTrue(listing.contains("ANDLW    B'00000101'"));
+		Assert.assertFalse(listing.contains("XORLW    B'00000000'"));
+	}
+
+	/**
+	 * Flags of different bytes are tested separately.
+	 */
+	@Test
+	public void testFlagsInTwoBytes_twoGroups() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(listing.contains("Precondition Flags flFlags[0] & B'00000001' == B'00000001'"));
+		Assert.assertTrue(listing.contains("Precondition Flags flFlags[1] & B'00000110' == B'00000010'"));
+	}
+
+	/**
+	 * Three or more flags set or cleared together are written with a literal mask.
+	 */
+	@Test
+	public void testThreeFlagCommands_oneMask() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(listing.contains("IORWF    (flFlags + .1), F"));
+		Assert.assertTrue(listing.contains("MOVLW    B'11101000'"));
+		Assert.assertTrue(listing.contains("ANDWF    flFlags, F"));
+	}
+
+	/**
+	 * A later write to a flag overrides an earlier one in the same group.
+	 */
+	@Test
+	public void testSetThenClear_clearWins() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(listing.contains("Command flFlags[0] := | B'00000000' & ~B'00010111'"));
+	}
+
+	@Test
+	public void testInline_matchesSimulator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		m_fixture.assertMatchesSimulator(listing, ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	@Test
+	public void testTableBackend_matchesSimulator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18TableBuilder());
+		m_fixture.assertMatchesSimulator(listing, ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+}
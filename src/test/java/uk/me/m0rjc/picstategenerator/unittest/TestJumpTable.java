@@ -0,0 +1,103 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * Jump table dispatch on the input variable. The root node of the model switches
+ * on six sparse characters and one of its nodes on ten adjacent letters.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestJumpTable
+{
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestJumpTable.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("dispatchTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+	}
+
+	/**
+	 * Ten adjacent cases reach the default minimum, so use a dense table.
+	 */
+	@Test
+	public void testDefaultSettings_denseCases_usesDenseTable() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Jump table (dense) on stIn, 10 cases from 'A' to 'J'"));
+		Assert.assertFalse(listing.contains("Jump table (sparse)"));
+		Assert.assertFalse(listing.contains("TBLRD"));
+	}
+
+	/**
+	 * Six cases spread over 50 characters are too sparse for a GOTO each, so
+	 * read an index from a byte table.
+	 */
+	@Test
+	public void testLowMinimum_sparseCases_readsIndexTable() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(2);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Jump table (sparse) on stIn, 6 cases from '#' to 'T'"));
+		Assert.assertTrue(listing.contains("TBLRD*"));
+		Assert.assertTrue(listing.contains("MOVWF    PCL, A"));
+	}
+
+	@Test
+	public void testLowMinimum_largeRomModel_passes() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(2);
+		m_builder.setLargeRomModel(true);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Jump table (sparse)"));
+		Assert.assertTrue(listing.contains("ADDWFC   PCLATU, F, A"));
+	}
+
+	/**
+	 * Any density will do when the limit is zero, so the sparse cases use a
+	 * GOTO for every character in their range.
+	 */
+	@Test
+	public void testZeroDensity_sparseCases_usesDenseTable() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(2);
+		m_builder.setJumpTableDensity(0);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Jump table (dense) on stIn, 6 cases from '#' to 'T'"));
+		Assert.assertFalse(listing.contains("TBLRD"));
+	}
+
+	@Test
+	public void testTablesDisabled_usesNoTable() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(0);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertFalse(listing.contains("Jump table"));
+	}
+}
@@ -0,0 +1,169 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.model.Command;
+import uk.me.m0rjc.picstategenerator.model.Node;
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.model.SymbolOwnership;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.Simulation;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.SimulatorBuilder;
+
+/**
+ * Keyword sets, which are read by a minimal automaton sharing both prefixes
+ * and suffixes.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestKeywords
+{
+	private StateModel m_model;
+	private Variable m_flags;
+	private Map<String, Command> m_keywords;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestKeywords.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_model = new StateModel("kt");
+		Variable input = new Variable("ktIn", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1);
+		m_model.addVariable(input);
+		m_model.setInputVariable(input);
+		m_flags = new Variable("ktFlags", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1)
+				.addFlag("A").addFlag("B");
+		m_model.addVariable(m_flags);
+		m_keywords = new HashMap<String, Command>();
+	}
+
+	/**
+	 * Keywords with no commands that differ only in the first character need
+	 * one node after each character.
+	 */
+	@Test
+	public void testCommonSuffix_sharesNodes() throws Exception
+	{
+		m_keywords.put("CAT", null);
+		m_keywords.put("BAT", null);
+		m_keywords.put("HAT", null);
+		m_model.getInitialState().addKeywords(m_keywords);
+		Assert.assertEquals(4, m_model.getNodes().size());
+	}
+
+	/**
+	 * The command is performed on the last character, so keywords with different
+	 * commands cannot share the nodes before it.
+	 */
+	@Test
+	public void testDifferentCommands_suffixNotShared() throws Exception
+	{
+		m_keywords.put("CAT", Command.setFlag(m_flags, "A", true));
+		m_keywords.put("BAT", Command.setFlag(m_flags, "B", true));
+		m_keywords.put("HAT", null);
+		Node end = m_model.getInitialState().addKeywords(m_keywords);
+		Assert.assertEquals(8, m_model.getNodes().size());
+
+		end.addString("!");
+		Simulation simulation = simulate();
+		simulation.acceptInput("BAT");
+		simulation.assertFlag("ktFlags", "A", false);
+		simulation.assertFlag("ktFlags", "B", true);
+		simulation.acceptInput("!CAT");
+		simulation.assertFlag("ktFlags", "A", true);
+	}
+
+	/**
+	 * "GET" and "SET" share the nodes after their first character, and all four
+	 * keywords share the node before the last.
+	 */
+	@Test
+	public void testCommonPrefixAndSuffix_sharesNodes() throws Exception
+	{
+		m_keywords.put("GETLED", null);
+		m_keywords.put("GETPWM", null);
+		m_keywords.put("SETLED", null);
+		m_keywords.put("SETPWM", null);
+		m_model.getInitialState().addKeywords(m_keywords);
+		Assert.assertEquals(9, m_model.getNodes().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyKeyword_throws() throws Exception
+	{
+		m_keywords.put("CAT", null);
+		m_keywords.put("", null);
+		m_model.getInitialState().addKeywords(m_keywords);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPrefixKeyword_throws() throws Exception
+	{
+		m_keywords.put("CAT", null);
+		m_keywords.put("CATS", null);
+		m_model.getInitialState().addKeywords(m_keywords);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExistingTransition_throws() throws Exception
+	{
+		m_model.getInitialState().addString("CX");
+		m_keywords.put("CAT", null);
+		m_model.getInitialState().addKeywords(m_keywords);
+	}
+
+	@Test
+	public void testGeneratedCode_passes() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("keywordTestModel.xml");
+		fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+	}
+
+	@Test
+	public void testGeneratedCode_stateIndex_passes() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("keywordTestModel.xml");
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setStateIndex(true);
+		fixture.assertGeneratedCodePasses(builder);
+	}
+
+	@Test
+	public void testGeneratedCode_tableBackend_passes() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("keywordTestModel.xml");
+		fixture.assertGeneratedCodePasses(new Pic18TableBuilder());
+	}
+
+	private Simulation simulate() throws Exception
+	{
+		SimulatorBuilder builder = new SimulatorBuilder();
+		m_model.accept(builder);
+		Simulation simulation = builder.getSimulation();
+		simulation.setInputVariable("ktIn");
+		return simulation;
+	}
+}
@@ -0,0 +1,184 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * The ROM and RAM memory map, checked against the code loaded by the emulator,
+ * and the memory limits.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestMemoryMap
+{
+	@Rule
+	public ExpectedException expected = ExpectedException.none();
+
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestMemoryMap.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("dispatchTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+	}
+
+	@Test
+	public void testRomWords_matchEmulatedCode() throws Exception
+	{
+		assertRomWordsMatchCode();
+	}
+
+	@Test
+	public void testRomWords_jumpTables_matchEmulatedCode() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(2);
+		assertRomWordsMatchCode();
+	}
+
+	@Test
+	public void testRomWords_largeRomModel_matchEmulatedCode() throws Exception
+	{
+		m_builder.setLargeRomModel(true);
+		assertRomWordsMatchCode();
+	}
+
+	@Test
+	public void testRamBytes_sumOfVariables() throws Exception
+	{
+		m_fixture.generate(m_builder);
+		Element ram = getElement("Ram");
+		Assert.assertEquals(getInt(getRoot(), "ramBytes"), getInt(ram, "bytes"));
+		Assert.assertEquals(getInt(ram, "bytes"), sumChildren(ram, "bytes"));
+		NodeList banks = ram.getElementsByTagName("Bank");
+		for(int i = 0; i < banks.getLength(); i++)
+		{
+			Element bank = (Element)banks.item(i);
+			Assert.assertEquals(getInt(bank, "bytes"), sumChildren(bank, "bytes"));
+		}
+	}
+
+	@Test
+	public void testLimitsMet_passes() throws Exception
+	{
+		m_fixture.generate(new Pic18AsmBuilder());
+		m_builder.setRomLimit(getInt(getRoot(), "romWords"));
+		m_builder.setRamLimit(getInt(getRoot(), "ramBytes"));
+		m_builder.setNodeRomLimit(getLargestNodeWords());
+		m_fixture.assertGeneratedCodePasses(m_builder);
+	}
+
+	@Test
+	public void testRomLimitExceeded_throws() throws Exception
+	{
+		m_fixture.generate(new Pic18AsmBuilder());
+		int words = getInt(getRoot(), "romWords");
+		m_builder.setRomLimit(words - 1);
+		expected.expect(IllegalStateException.class);
+		expected.expectMessage("st uses " + words + " words of program memory, over the limit of "
+				+ (words - 1));
+		m_fixture.generate(m_builder);
+	}
+
+	@Test
+	public void testRamLimitExceeded_throws() throws Exception
+	{
+		m_fixture.generate(new Pic18AsmBuilder());
+		int bytes = getInt(getRoot(), "ramBytes");
+		m_builder.setRamLimit(bytes - 1);
+		expected.expect(IllegalStateException.class);
+		expected.expectMessage("st uses " + bytes + " bytes of RAM, over the limit of " + (bytes - 1));
+		m_fixture.generate(m_builder);
+	}
+
+	@Test
+	public void testNodeRomLimitExceeded_throws() throws Exception
+	{
+		m_fixture.generate(new Pic18AsmBuilder());
+		int words = getLargestNodeWords();
+		m_builder.setNodeRomLimit(words - 1);
+		expected.expect(IllegalStateException.class);
+		expected.expectMessage("words of program memory, over the limit of " + (words - 1));
+		m_fixture.generate(m_builder);
+	}
+
+	/**
+	 * The words in the map must add up, and match the code the emulator loads.
+	 */
+	private void assertRomWordsMatchCode() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Element rom = getElement("Rom");
+		int words = getInt(rom, "words");
+		Assert.assertEquals(getInt(getRoot(), "romWords"), words);
+		Assert.assertEquals(words, sumChildren(rom, "words"));
+		Assert.assertEquals(new Pic18Emulator(listing).getRomSize(), 2 * words);
+	}
+
+	private int getLargestNodeWords()
+	{
+		int largest = 0;
+		NodeList nodes = getRoot().getElementsByTagName("Node");
+		for(int i = 0; i < nodes.getLength(); i++)
+		{
+			largest = Math.max(largest, getInt((Element)nodes.item(i), "words"));
+		}
+		return largest;
+	}
+
+	private Element getRoot()
+	{
+		return m_fixture.getMemoryMap().getDocumentElement();
+	}
+
+	private Element getElement(String name)
+	{
+		return (Element)getRoot().getElementsByTagName(name).item(0);
+	}
+
+	private static int getInt(Element e, String attribute)
+	{
+		return Integer.parseInt(e.getAttribute(attribute));
+	}
+
+	private static int sumChildren(Element e, String attribute)
+	{
+		int sum = 0;
+		for(Node n = e.getFirstChild(); n != null; n = n.getNextSibling())
+		{
+			if(n instanceof Element)
+			{
+				sum += getInt((Element)n, attribute);
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,104 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
+
+/**
+ * Removal of unreachable nodes and unused symbols. Nothing goes to the node
+ * "lost", so it and the store and method only it uses are removed, as is a
+ * variable nothing uses.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestModelPruner
+{
+	/** Characters the prune model reacts to, with one it ignores. */
+	private static final String ALPHABET = "abx";
+
+	private static final int RANDOM_INPUT_LENGTH = 1000;
+
+	private DefinitionFixture m_fixture;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestModelPruner.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("pruneTestModel.xml");
+	}
+
+	@Test
+	public void testUnreachableNodes_removed() throws Exception
+	{
+		StateModel model = m_fixture.getModel();
+		Assert.assertEquals(3, model.getNodes().size());
+		Assert.assertNotNull(model.getNode("gotA"));
+		Assert.assertNotNull(model.getNode("gotB"));
+		Assert.assertNull(model.getNode("lost"));
+	}
+
+	@Test
+	public void testUnusedVariables_removed() throws Exception
+	{
+		StateModel model = m_fixture.getModel();
+		Assert.assertEquals(2, model.getVariables().size());
+		Assert.assertNotNull(model.getVariable("prFlags"));
+		Assert.assertNull(model.getVariable("prUnused"));
+		Assert.assertNull(model.getVariable("prOrphan"));
+	}
+
+	@Test
+	public void testUnusedRomLocations_removed() throws Exception
+	{
+		StateModel model = m_fixture.getModel();
+		Assert.assertNotNull(model.getRomLocation("prMethod"));
+		Assert.assertNull(model.getRomLocation("prUnusedMethod"));
+	}
+
+	/**
+	 * The removed symbols, and the counters only the lost node's Numbers
+	 * field needed, take no RAM and are not imported.
+	 */
+	@Test
+	public void testGeneratedCode_leavesOutRemovedSymbols() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(listing.contains("EXTERN   prMethod"));
+		Assert.assertFalse(listing.contains("prUnusedMethod"));
+		Assert.assertFalse(listing.contains("prUnused"));
+		Assert.assertFalse(listing.contains("prOrphan"));
+		Assert.assertFalse(listing.contains("_storeCount"));
+		Assert.assertFalse(listing.contains("_countdown"));
+		m_fixture.assertMatchesSimulator(listing, ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	@Test
+	public void testTableBackend_matchesSimulator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18TableBuilder());
+		Assert.assertFalse(listing.contains("prOrphan"));
+		m_fixture.assertMatchesSimulator(listing, ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+}
@@ -0,0 +1,182 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.OptimisationProfile;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.PeepholeRule;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * Peephole optimisation of the generated assembler. Every rule must leave code
+ * that still passes the unit tests, with branches in range, and no larger than
+ * it was.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestPeepholeRules
+{
+	/** Characters the dispatch model reacts to, with a few it ignores. */
+	private static final String DISPATCH_ALPHABET = "#%NT/$G;,ABCDEFGHIJ05Zaz~123x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	private DefinitionFixture m_fixture;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestPeepholeRules.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("dispatchTestModel.xml");
+	}
+
+	@Test
+	public void testEachRule_passesAndDoesNotGrowCode() throws Exception
+	{
+		int unoptimised = getRomSize(EnumSet.noneOf(PeepholeRule.class));
+		for(PeepholeRule rule : PeepholeRule.values())
+		{
+			int size = getRomSize(EnumSet.of(rule));
+			Assert.assertTrue(rule + " " + size + " bytes, unoptimised " + unoptimised,
+					size <= unoptimised);
+		}
+	}
+
+	@Test
+	public void testAllRules_shrinkCode() throws Exception
+	{
+		int unoptimised = getRomSize(EnumSet.noneOf(PeepholeRule.class));
+		int optimised = getRomSize(EnumSet.allOf(PeepholeRule.class));
+		Assert.assertTrue(optimised + " bytes, unoptimised " + unoptimised, optimised < unoptimised);
+	}
+
+	/**
+	 * The fixed instructions of jump tables must be left alone.
+	 */
+	@Test
+	public void testAllRules_jumpTables_passes() throws Exception
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setJumpTableMinimumCases(2);
+		String listing = m_fixture.assertGeneratedCodePasses(builder);
+		Assert.assertTrue(listing.contains("Jump table (sparse)"));
+	}
+
+	@Test
+	public void testShortBranch_replacesGoto() throws Exception
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setPeepholeRules(EnumSet.noneOf(PeepholeRule.class));
+		String unoptimised = m_fixture.assertGeneratedCodePasses(builder);
+		builder = new Pic18AsmBuilder();
+		builder.setPeepholeRules(EnumSet.of(PeepholeRule.SHORT_BRANCH));
+		String optimised = m_fixture.assertGeneratedCodePasses(builder);
+		Assert.assertTrue(DefinitionFixture.count(optimised, " BRA ")
+				> DefinitionFixture.count(unoptimised, " BRA "));
+		Assert.assertTrue(DefinitionFixture.count(optimised, " GOTO ")
+				< DefinitionFixture.count(unoptimised, " GOTO "));
+	}
+
+	/**
+	 * Repeated code ending in a jump is replaced by a GOTO to the first copy,
+	 * under every profile.
+	 */
+	@Test
+	public void testCrossJump_mergesRepeatedTails() throws Exception
+	{
+		for(OptimisationProfile profile : OptimisationProfile.values())
+		{
+			int unoptimised = getRomSize(EnumSet.noneOf(PeepholeRule.class), profile);
+			Pic18AsmBuilder builder = new Pic18AsmBuilder();
+			builder.setOptimisationProfile(profile);
+			builder.setPeepholeRules(EnumSet.of(PeepholeRule.CROSS_JUMP));
+			String listing = m_fixture.assertGeneratedCodePasses(builder);
+			int optimised = new Pic18Emulator(listing).getRomSize();
+			Assert.assertTrue(profile + " " + optimised + " bytes, unoptimised " + unoptimised,
+					optimised < unoptimised);
+			Assert.assertTrue(listing.contains("GOTO     peep_"));
+		}
+	}
+
+	/**
+	 * Tails are left once the other rules have run, so cross jumping still
+	 * saves code.
+	 */
+	@Test
+	public void testCrossJump_withOtherRules_shrinksCode() throws Exception
+	{
+		int without = getRomSize(EnumSet.complementOf(EnumSet.of(PeepholeRule.CROSS_JUMP)),
+				OptimisationProfile.BALANCED);
+		int with = getRomSize(EnumSet.allOf(PeepholeRule.class), OptimisationProfile.BALANCED);
+		Assert.assertTrue(with + " bytes, without cross jumping " + without, with < without);
+	}
+
+	/**
+	 * The speed profile only merges tails that are jumped to, which adds no
+	 * cycles.
+	 */
+	@Test
+	public void testCrossJump_speedProfile_noSlower() throws Exception
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setOptimisationProfile(OptimisationProfile.SPEED);
+		builder.setPeepholeRules(EnumSet.complementOf(EnumSet.of(PeepholeRule.CROSS_JUMP)));
+		long without = m_fixture.assertUnitTestsPass(m_fixture.generate(builder));
+
+		builder = new Pic18AsmBuilder();
+		builder.setOptimisationProfile(OptimisationProfile.SPEED);
+		long with = m_fixture.assertUnitTestsPass(m_fixture.generate(builder));
+		Assert.assertTrue(with + " cycles, without cross jumping " + without, with <= without);
+	}
+
+	@Test
+	public void testCrossJump_matchesSimulator() throws Exception
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setPeepholeRules(EnumSet.of(PeepholeRule.CROSS_JUMP));
+		String listing = m_fixture.assertGeneratedCodePasses(builder);
+		m_fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	/**
+	 * Generate code with the given rules and run the unit tests on it.
+	 * @return bytes of program memory used.
+	 */
+	private int getRomSize(Set<PeepholeRule> rules) throws Exception
+	{
+		return getRomSize(rules, OptimisationProfile.BALANCED);
+	}
+
+	/**
+	 * Generate code with the given rules and profile and run the unit tests on it.
+	 * @return bytes of program memory used.
+	 */
+	private int getRomSize(Set<PeepholeRule> rules, OptimisationProfile profile) throws Exception
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setOptimisationProfile(profile);
+		builder.setPeepholeRules(rules);
+		return new Pic18Emulator(m_fixture.assertGeneratedCodePasses(builder)).getRomSize();
+	}
+}
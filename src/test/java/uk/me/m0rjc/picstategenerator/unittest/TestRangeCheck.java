@@ -0,0 +1,121 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.model.Precondition;
+import uk.me.m0rjc.picstategenerator.model.SymbolOwnership;
+import uk.me.m0rjc.picstategenerator.model.Transition;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
+
+/**
+ * Range preconditions tested with one subtract and compare.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestRangeCheck
+{
+	/** Characters at and either side of the bounds of each range. */
+	private static final String ALPHABET = "/09:@AZ[`afg#N;~ !}x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestRangeCheck.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("rangeTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+	}
+
+	@Test
+	public void testRange_acceptsBounds() throws Exception
+	{
+		Variable v = new Variable("v", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1);
+		Transition t = new Transition().when(Precondition.range(v, '0', '9'));
+		Assert.assertFalse(t.accepts(v, '/'));
+		Assert.assertTrue(t.accepts(v, '0'));
+		Assert.assertTrue(t.accepts(v, '9'));
+		Assert.assertFalse(t.accepts(v, ':'));
+	}
+
+	/**
+	 * Each digit of a Numbers field is tested with two ADDLW and one test of
+	 * the carry.
+	 */
+	@Test
+	public void testDigits_oneSubtractAndCompare() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Precondition rnIn in '0'..'9'"));
+		Assert.assertTrue(listing.contains("ADDLW    .208\n                ADDLW    .246"));
+		Assert.assertFalse(listing.contains("Precondition rnIn >= '0'\n"));
+	}
+
+	/**
+	 * A range that reaches either end of a byte needs only one bound.
+	 */
+	@Test
+	public void testRangeToEndOfByte_oneBound() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Precondition rnIn <= ' '"));
+		Assert.assertTrue(listing.contains("Precondition rnIn >= '~'"));
+		Assert.assertFalse(listing.contains("Precondition rnIn in 0x00"));
+		Assert.assertFalse(listing.contains("..0xFF"));
+	}
+
+	/**
+	 * Without a decision tree or jump table the character classes of the root
+	 * node are each tested as a range.
+	 */
+	@Test
+	public void testNoDispatch_rangesTested() throws Exception
+	{
+		m_builder.setJumpTableMinimumCases(0);
+		m_builder.setDecisionTreeMinimumCases(0);
+		m_builder.setXorChainMinimumCases(0);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("Precondition rnIn in 'A'..'Z'"));
+		Assert.assertTrue(listing.contains("Precondition rnIn in 'a'..'f'"));
+		m_fixture.assertMatchesSimulator(listing, ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	@Test
+	public void testDefault_matchesSimulator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		m_fixture.assertMatchesSimulator(listing, ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+
+	@Test
+	public void testTableBackend_matchesSimulator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18TableBuilder());
+		m_fixture.assertMatchesSimulator(listing, ALPHABET, RANDOM_INPUT_LENGTH, 3);
+	}
+}
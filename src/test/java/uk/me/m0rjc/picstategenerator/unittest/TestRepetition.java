@@ -0,0 +1,273 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.model.Command;
+import uk.me.m0rjc.picstategenerator.model.Node;
+import uk.me.m0rjc.picstategenerator.model.Precondition;
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.model.SymbolOwnership;
+import uk.me.m0rjc.picstategenerator.model.Transition;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.Simulation;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.SimulatorBuilder;
+
+/**
+ * Inputs of a class repeated min..max times, read on one counting state.
+ * Each test reads 'A' then the repetition of digits then ';'.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestRepetition
+{
+	/** Characters the repetition model reacts to, with one it ignores. */
+	private static final String REPETITION_ALPHABET = "ABCD0123456789,;.x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	@Rule
+	public ExpectedException expected = ExpectedException.none();
+
+	private StateModel m_model;
+	private Variable m_input;
+	private Variable m_buffer;
+	private Variable m_flags;
+	private Precondition m_digits;
+	private Node m_start;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestRepetition.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_model = new StateModel("rp");
+		m_model.setShareSubroutines(false);
+		m_input = new Variable("rpIn", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1);
+		m_model.addVariable(m_input);
+		m_model.setInputVariable(m_input);
+		m_buffer = new Variable("rpBuf", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 6);
+		m_model.addVariable(m_buffer);
+		m_flags = new Variable("rpFlags", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1)
+				.addFlag("Done").addFlag("Other");
+		m_model.addVariable(m_flags);
+		m_digits = Precondition.range(m_input, '0', '9');
+		m_start = m_model.getInitialState().addString("A");
+	}
+
+	/**
+	 * With no minimum the node itself reads the inputs, so no node is added.
+	 */
+	@Test
+	public void testMinZero_noNewNode() throws Exception
+	{
+		int nodes = m_model.getNodes().size();
+		Node end = m_start.addRepetition(m_digits, 0, 3, m_buffer, true);
+		Assert.assertSame(m_start, end);
+		Assert.assertEquals(nodes, m_model.getNodes().size());
+		finish(end);
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("A12;");
+		simulation.assertBytes("rpBuf", new byte[] {'1', '2', 0, 0});
+		simulation.assertFlag("rpFlags", "Done", true);
+		simulation.setFlag("rpFlags", "Done", false);
+		simulation.acceptInput("A;");
+		simulation.assertBytes("rpBuf", new byte[] {0, 0, 0, 0});
+		simulation.assertFlag("rpFlags", "Done", true);
+		simulation.setFlag("rpFlags", "Done", false);
+		simulation.acceptInput("A1234;");
+		simulation.assertFlag("rpFlags", "Done", false);
+	}
+
+	@Test
+	public void testMinOne_oneNewNode() throws Exception
+	{
+		int nodes = m_model.getNodes().size();
+		Node end = m_start.addRepetition(m_digits, 1, 3, m_buffer, true);
+		Assert.assertNotSame(m_start, end);
+		Assert.assertEquals(nodes + 1, m_model.getNodes().size());
+		finish(end);
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("A;");
+		simulation.assertFlag("rpFlags", "Done", false);
+		simulation.acceptInput("A123;");
+		simulation.assertChars("rpBuf", "123\0");
+		simulation.assertFlag("rpFlags", "Done", true);
+	}
+
+	/**
+	 * A variable width field counts its minimum on the first node, so needs
+	 * two states in all.
+	 */
+	@Test
+	public void testVariableWidth_oneNewNode() throws Exception
+	{
+		int nodes = m_model.getNodes().size();
+		Node end = m_start.addRepetition(m_digits, 2, 4, m_buffer, true);
+		Assert.assertEquals(nodes + 1, m_model.getNodes().size());
+		finish(end);
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("A1;");
+		simulation.assertFlag("rpFlags", "Done", false);
+		simulation.acceptInput("A12;");
+		simulation.assertChars("rpBuf", "12\0");
+		simulation.assertFlag("rpFlags", "Done", true);
+	}
+
+	/**
+	 * A fixed width field with storage counts up to index the store and down
+	 * to test the length.
+	 */
+	@Test
+	public void testFixedWidth_withStorage() throws Exception
+	{
+		int nodes = m_model.getNodes().size();
+		Node end = m_start.addRepetition(m_digits, 4, 4, m_buffer, true);
+		Assert.assertEquals(nodes + 1, m_model.getNodes().size());
+		Assert.assertEquals(4, m_start.getEntryCommands().size());
+		finish(end);
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("A123;");
+		simulation.assertFlag("rpFlags", "Done", false);
+		simulation.acceptInput("A1234;");
+		simulation.assertChars("rpBuf", "1234");
+		simulation.assertFlag("rpFlags", "Done", true);
+		simulation.setFlag("rpFlags", "Done", false);
+		simulation.acceptInput("A12345;");
+		simulation.assertFlag("rpFlags", "Done", false);
+	}
+
+	/**
+	 * Without storage only the countdown is needed.
+	 */
+	@Test
+	public void testFixedWidth_withoutStorage() throws Exception
+	{
+		int nodes = m_model.getNodes().size();
+		Node end = m_start.addRepetition(m_digits, 4, 4, null, true);
+		Assert.assertEquals(nodes + 1, m_model.getNodes().size());
+		Assert.assertEquals(1, m_start.getEntryCommands().size());
+		finish(end);
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("A123;");
+		simulation.assertFlag("rpFlags", "Done", false);
+		simulation.acceptInput("A1234;");
+		simulation.assertFlag("rpFlags", "Done", true);
+	}
+
+	/**
+	 * Transitions the node already has are only taken before the first input
+	 * of the class.
+	 */
+	@Test
+	public void testExistingTransitions_onlyBeforeFirstInput() throws Exception
+	{
+		assertExistingTransitions(4, 4, null);
+		testSetup();
+		assertExistingTransitions(4, 4, m_buffer);
+		testSetup();
+		assertExistingTransitions(2, 4, m_buffer);
+	}
+
+	/**
+	 * With no minimum the transitions the node already has may be taken at any
+	 * point.
+	 */
+	@Test
+	public void testExistingTransitions_minZero_anyPoint() throws Exception
+	{
+		m_start.addTransition(new Transition().whenEqual(m_input, 'x')
+				.goTo(m_model.createNode().addEntryCommand(Command.setFlag(m_flags, "Other", true))));
+		finish(m_start.addRepetition(m_digits, 0, 3, m_buffer, true));
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("A12x");
+		simulation.assertFlag("rpFlags", "Other", true);
+	}
+
+	@Test
+	public void testCounts_outOfRange_rejected() throws Exception
+	{
+		expected.expect(IllegalArgumentException.class);
+		m_start.addRepetition(m_digits, 3, 2, m_buffer, true);
+	}
+
+	@Test
+	public void testCounts_tooMany_rejected() throws Exception
+	{
+		expected.expect(IllegalArgumentException.class);
+		m_start.addRepetition(m_digits, 0, 256, null, true);
+	}
+
+	/**
+	 * The definition reads optional, variable and fixed width fields, with and
+	 * without storage and clearing.
+	 */
+	@Test
+	public void testDefinition_matchesSimulator() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("repetitionTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		fixture.assertMatchesSimulator(listing, REPETITION_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+		listing = fixture.assertGeneratedCodePasses(new Pic18TableBuilder());
+		fixture.assertMatchesSimulator(listing, REPETITION_ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+
+	private void assertExistingTransitions(int min, int max, Variable storage) throws Exception
+	{
+		m_start.addTransition(new Transition().whenEqual(m_input, 'x')
+				.goTo(m_model.createNode().addEntryCommand(Command.setFlag(m_flags, "Other", true))));
+		finish(m_start.addRepetition(m_digits, min, max, storage, true));
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("Ax");
+		simulation.assertFlag("rpFlags", "Other", true);
+		simulation.setFlag("rpFlags", "Other", false);
+		simulation.acceptInput("A1x");
+		simulation.assertFlag("rpFlags", "Other", false);
+		simulation.acceptInput("A1234;");
+		simulation.assertFlag("rpFlags", "Done", true);
+	}
+
+	/** Read ';' after the repetition and set the Done flag. */
+	private void finish(Node end)
+	{
+		end.addString(";").addEntryCommand(Command.setFlag(m_flags, "Done", true));
+	}
+
+	private Simulation simulate() throws Exception
+	{
+		SimulatorBuilder builder = new SimulatorBuilder();
+		m_model.accept(builder);
+		Simulation simulation = builder.getSimulation();
+		simulation.setInputVariable("rpIn");
+		return simulation;
+	}
+}
@@ -0,0 +1,182 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.xml.sax.SAXException;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
+import uk.me.m0rjc.picstategenerator.xmlDefinitionReader.XmlDefinitionLoader;
+
+/**
+ * Holding the current node as a state number dispatched through a table of
+ * GOTO. The long chain model has more than 256 nodes, so needs a two byte
+ * state number.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestStateIndex
+{
+	/** Characters the dispatch model reacts to, with a few it ignores. */
+	private static final String DISPATCH_ALPHABET = "#%NT/$G;,ABCDEFGHIJ05Zaz~123x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	/** Each entry of the state table is a GOTO. */
+	private static final String STATE_TABLE_ENTRY = "GOTO     step_";
+
+	/**
+	 * Literals in the model with too many nodes. Each gives nearly one node
+	 * per character, which is more than the 16384 nodes the state table can
+	 * hold.
+	 */
+	private static final int TOO_MANY_LITERALS = 180;
+
+	/** Characters in each literal of the model with too many nodes. */
+	private static final int LITERAL_LENGTH = 100;
+
+	@Rule
+	public ExpectedException expected = ExpectedException.none();
+
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestStateIndex.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_builder = new Pic18AsmBuilder();
+		m_builder.setStateIndex(true);
+	}
+
+	@Test
+	public void testDefault_usesStatePointer() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(listing.contains("_statePtr"));
+		Assert.assertFalse(listing.contains("tbl_states"));
+		Assert.assertFalse(fixture.getCHeader().contains("ST_STATE_"));
+	}
+
+	/**
+	 * Each node with step code has a number, exported in the header, and an
+	 * entry in the state table.
+	 */
+	@Test
+	public void testOneByteState_dispatchesThroughTable() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("GLOBAL   stState"));
+		Assert.assertTrue(listing.contains("stState                res .1"));
+		Assert.assertTrue(listing.contains("tbl_states:   GOTO     step_root"));
+		Assert.assertFalse(listing.contains("_statePtr"));
+
+		String header = fixture.getCHeader();
+		Assert.assertTrue(header.contains("#define ST_STATE_ROOT (0)"));
+		Assert.assertEquals(DefinitionFixture.count(listing, STATE_TABLE_ENTRY),
+				DefinitionFixture.count(header, "#define ST_STATE_"));
+		fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	@Test
+	public void testOneByteState_largeRomModel_passes() throws Exception
+	{
+		m_builder.setLargeRomModel(true);
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("ADDWFC   PCLATU, F, A"));
+		fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+
+	@Test
+	public void testTwoByteState_dispatchesThroughTable() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("longChainTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("lcState                res .2"));
+		Assert.assertTrue(listing.contains("MOVF     (lcState + .1), W, A"));
+		int states = DefinitionFixture.count(listing, STATE_TABLE_ENTRY);
+		Assert.assertTrue(states > 256);
+		Assert.assertEquals(states, DefinitionFixture.count(fixture.getCHeader(), "#define LC_STATE_"));
+	}
+
+	@Test
+	public void testTwoByteState_largeRomModel_passes() throws Exception
+	{
+		m_builder.setLargeRomModel(true);
+		DefinitionFixture fixture = new DefinitionFixture("longChainTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("ADDWFC   PCLATU, F, A"));
+	}
+
+	/**
+	 * The tables of the table backend point at each other, so it keeps a
+	 * pointer to the current node.
+	 */
+	@Test
+	public void testTableBackend_ignoresStateIndex() throws Exception
+	{
+		Pic18TableBuilder builder = new Pic18TableBuilder();
+		builder.setStateIndex(true);
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(builder);
+		Assert.assertFalse(listing.contains("tbl_states"));
+	}
+
+	/**
+	 * A literal has a node for each character, so enough literals give more
+	 * nodes than the state table can hold. Each literal starts and ends with
+	 * its own pair of letters so that the minimiser cannot merge their tails.
+	 * The loader reports it as an error in the definition.
+	 */
+	@Test
+	public void testTooManyStates_rejected() throws Exception
+	{
+		StringBuilder scripts = new StringBuilder();
+		for(int script = 0; script < TOO_MANY_LITERALS; script++)
+		{
+			String tag = "" + (char)('A' + script / 26) + (char)('A' + script % 26);
+			scripts.append("<Script><Literal>").append(tag);
+			for(int i = 4; i < LITERAL_LENGTH; i++)
+			{
+				scripts.append((char)('0' + i % 10));
+			}
+			scripts.append(tag).append("</Literal></Script>");
+		}
+		String definition = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<StateGeneratorRun xmlns=\"http://uk.me.m0rjc/picstategenerator\">"
+				+ "<Model name=\"tm\" root=\"root\" inputVariable=\"tmIn\" shareSubroutines=\"false\">"
+				+ "<Symbols><Symbol name=\"tmIn\" loc=\"accessram\" decl=\"global\"/></Symbols>"
+				+ "<Nodes><Node name=\"root\">" + scripts + "</Node></Nodes>"
+				+ "</Model>"
+				+ "<UnitTests/>"
+				+ "<Output><Pic18 processor=\"18F14K50\" outputBaseName=\"tm\" stateIndex=\"true\"/></Output>"
+				+ "</StateGeneratorRun>";
+		expected.expect(SAXException.class);
+		expected.expectMessage("more than the 16384 a state number can select");
+		new XmlDefinitionLoader().loadAndProcessDefinition(new ByteArrayInputStream(definition.getBytes("UTF-8")));
+	}
+}
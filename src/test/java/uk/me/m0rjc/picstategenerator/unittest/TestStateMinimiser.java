@@ -0,0 +1,141 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.model.Command;
+import uk.me.m0rjc.picstategenerator.model.Node;
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.model.SymbolOwnership;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.Simulation;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.SimulatorBuilder;
+
+/**
+ * Merging of equivalent states when the model is optimised.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestStateMinimiser
+{
+	private StateModel m_model;
+	private Variable m_input;
+	private Variable m_flags;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestStateMinimiser.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_model = new StateModel("min");
+		m_model.setShareSubroutines(false);
+		m_input = new Variable("minIn", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1);
+		m_model.addVariable(m_input);
+		m_model.setInputVariable(m_input);
+		m_flags = new Variable("minFlags", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1)
+				.addFlag("A").addFlag("B");
+		m_model.addVariable(m_flags);
+	}
+
+	/**
+	 * After 'A' or 'B' the model reads "XY" and sets the same flag, so the two
+	 * chains of three nodes merge.
+	 */
+	@Test
+	public void testSameTails_merged() throws Exception
+	{
+		Node root = m_model.getInitialState();
+		root.addString("AXY").addEntryCommand(Command.setFlag(m_flags, "A", true));
+		root.addString("BXY").addEntryCommand(Command.setFlag(m_flags, "A", true));
+		Assert.assertEquals(7, m_model.getNodes().size());
+
+		m_model.optimiseModel();
+		Assert.assertEquals(4, m_model.getNodes().size());
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("BXY");
+		simulation.assertFlag("minFlags", "A", true);
+	}
+
+	/**
+	 * The last nodes set different flags, so no node after the root is equivalent
+	 * to another.
+	 */
+	@Test
+	public void testDifferentCommands_notMerged() throws Exception
+	{
+		Node root = m_model.getInitialState();
+		root.addString("AXY").addEntryCommand(Command.setFlag(m_flags, "A", true));
+		root.addString("BXY").addEntryCommand(Command.setFlag(m_flags, "B", true));
+
+		m_model.optimiseModel();
+		Assert.assertEquals(7, m_model.getNodes().size());
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("BXY");
+		simulation.assertFlag("minFlags", "A", false);
+		simulation.assertFlag("minFlags", "B", true);
+	}
+
+	/**
+	 * Only the last nodes are equivalent, as the chains before them read
+	 * different strings.
+	 */
+	@Test
+	public void testDifferentInputs_mergesOnlyCommonEnd() throws Exception
+	{
+		Node root = m_model.getInitialState();
+		root.addString("AXY").addEntryCommand(Command.setFlag(m_flags, "A", true));
+		root.addString("BXZ").addEntryCommand(Command.setFlag(m_flags, "A", true));
+
+		m_model.optimiseModel();
+		Assert.assertEquals(6, m_model.getNodes().size());
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("BXY");
+		simulation.assertFlag("minFlags", "A", false);
+		simulation.acceptInput("BXZ");
+		simulation.assertFlag("minFlags", "A", true);
+	}
+
+	/**
+	 * A merged node is still found by its old name, which gosub commands may use.
+	 */
+	@Test
+	public void testMergedNode_foundByOldName() throws Exception
+	{
+		Node root = m_model.getInitialState();
+		Node a = root.addString("AXY").addEntryCommand(Command.setFlag(m_flags, "A", true));
+		Node b = root.addString("BXY").addEntryCommand(Command.setFlag(m_flags, "A", true));
+
+		m_model.optimiseModel();
+		Assert.assertSame(m_model.getNode(a.getStateName()), m_model.getNode(b.getStateName()));
+	}
+
+	private Simulation simulate() throws Exception
+	{
+		SimulatorBuilder builder = new SimulatorBuilder();
+		m_model.accept(builder);
+		Simulation simulation = builder.getSimulation();
+		simulation.setInputVariable("minIn");
+		return simulation;
+	}
+}
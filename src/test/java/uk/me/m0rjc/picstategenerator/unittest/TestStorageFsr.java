@@ -0,0 +1,126 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * Storing Numbers fields through a reserved FSR. The dispatch model stores
+ * into arrays in two banks.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestStorageFsr
+{
+	/** Characters the dispatch model reacts to, with a few it ignores. */
+	private static final String DISPATCH_ALPHABET = "#%NT/$G;,ABCDEFGHIJ05Zaz~123x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	@Rule
+	public ExpectedException expected = ExpectedException.none();
+
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestStorageFsr.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("dispatchTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+	}
+
+	@Test
+	public void testDefault_indexesEachStore() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("MOVFF    stIn, PLUSW0"));
+		Assert.assertFalse(listing.contains("FSR1"));
+		Assert.assertFalse(listing.contains("POSTINC"));
+	}
+
+	@Test
+	public void testFsr1_storesThroughPostIncrement() throws Exception
+	{
+		m_builder.setStorageFsr(1);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("LFSR     FSR1, stBufA"));
+		Assert.assertTrue(listing.contains("LFSR     FSR1, stBufB"));
+		Assert.assertTrue(listing.contains("MOVFF    stIn, POSTINC1"));
+		Assert.assertFalse(listing.contains("FSR2"));
+		m_fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	@Test
+	public void testFsr2_storesThroughPostIncrement() throws Exception
+	{
+		m_builder.setStorageFsr(2);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("LFSR     FSR2, stBufB"));
+		Assert.assertTrue(listing.contains("MOVFF    stIn, POSTINC2"));
+		Assert.assertFalse(listing.contains("FSR1"));
+		m_fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+
+	@Test
+	public void testFsr1_withJumpTablesAndStateIndex_passes() throws Exception
+	{
+		m_builder.setStorageFsr(1);
+		m_builder.setJumpTableMinimumCases(2);
+		m_builder.setStateIndex(true);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		m_fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 3);
+	}
+
+	/**
+	 * Setting up the FSR once replaces indexing on each store.
+	 */
+	@Test
+	public void testFsr1_smallerCode() throws Exception
+	{
+		int indexed = new Pic18Emulator(m_fixture.assertGeneratedCodePasses(m_builder)).getRomSize();
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setStorageFsr(1);
+		int fsr = new Pic18Emulator(m_fixture.assertGeneratedCodePasses(builder)).getRomSize();
+		Assert.assertTrue(fsr < indexed);
+	}
+
+	@Test
+	public void testFsr1_bankModel_passes() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("bankTestModel.xml");
+		m_builder.setStorageFsr(1);
+		String listing = fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("LFSR     FSR1, bkDigits"));
+	}
+
+	@Test
+	public void testFsr3_rejected() throws Exception
+	{
+		expected.expect(IllegalArgumentException.class);
+		m_builder.setStorageFsr(3);
+	}
+}
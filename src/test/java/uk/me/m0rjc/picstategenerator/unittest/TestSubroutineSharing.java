@@ -0,0 +1,277 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.xml.sax.SAXException;
+
+import uk.me.m0rjc.picstategenerator.model.Command;
+import uk.me.m0rjc.picstategenerator.model.Node;
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.model.SymbolOwnership;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.OptimisationProfile;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.Simulation;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.SimulatorBuilder;
+import uk.me.m0rjc.picstategenerator.xmlDefinitionReader.XmlDefinitionLoader;
+
+/**
+ * Repeated sub-graphs with different continuations shared as subroutines.
+ * The model reads a letter, a run of digits and the letter again, for each of
+ * three letters. Each letter sets its own flag, so the runs of digits cannot
+ * be merged as states.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestSubroutineSharing
+{
+	private static final String[] LETTERS = {"A", "B", "C"};
+
+	/** Characters the subroutine model reacts to, with one it ignores. */
+	private static final String SUBROUTINE_ALPHABET = "$ABCNSZQ,0123456789x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	@Rule
+	public ExpectedException expected = ExpectedException.none();
+
+	private StateModel m_model;
+	private Variable m_flags;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestSubroutineSharing.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_model = new StateModel("sr");
+		Variable input = new Variable("srIn", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1);
+		m_model.addVariable(input);
+		m_model.setInputVariable(input);
+		m_flags = new Variable("srFlags", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1)
+				.addFlag("A").addFlag("B").addFlag("C");
+		m_model.addVariable(m_flags);
+	}
+
+	/**
+	 * One run of ten digits is kept as the subroutine. The other two are
+	 * removed.
+	 */
+	@Test
+	public void testBalancedProfile_sharesLongRun() throws Exception
+	{
+		buildModel("0123456789");
+		Assert.assertEquals(37, m_model.getNodes().size());
+
+		optimise(OptimisationProfile.BALANCED);
+		Assert.assertEquals(18, m_model.getNodes().size());
+		Assert.assertTrue(m_model.requiresSubroutineStack());
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("B0123456789B");
+		simulation.assertFlag("srFlags", "A", false);
+		simulation.assertFlag("srFlags", "B", true);
+		simulation.acceptInput("C0123456789A");
+		simulation.assertFlag("srFlags", "C", false);
+	}
+
+	@Test
+	public void testSharingOff_leavesCopies() throws Exception
+	{
+		m_model.setShareSubroutines(false);
+		buildModel("0123456789");
+		optimise(OptimisationProfile.BALANCED);
+		Assert.assertEquals(37, m_model.getNodes().size());
+		Assert.assertFalse(m_model.requiresSubroutineStack());
+	}
+
+	/**
+	 * Each call costs cycles, so the speed profile shares nothing.
+	 */
+	@Test
+	public void testSpeedProfile_sharesNothing() throws Exception
+	{
+		buildModel("0123456789");
+		optimise(OptimisationProfile.SPEED);
+		Assert.assertEquals(37, m_model.getNodes().size());
+		Assert.assertFalse(m_model.requiresSubroutineStack());
+	}
+
+	/**
+	 * A run of three digits saves a few words, which only the size profile
+	 * finds worth the cycles of the calls.
+	 */
+	@Test
+	public void testShortRun_sharedOnlyForSize() throws Exception
+	{
+		buildModel("012");
+		optimise(OptimisationProfile.BALANCED);
+		Assert.assertEquals(16, m_model.getNodes().size());
+
+		testSetup();
+		buildModel("012");
+		optimise(OptimisationProfile.SIZE);
+		Assert.assertEquals(11, m_model.getNodes().size());
+		Assert.assertTrue(m_model.requiresSubroutineStack());
+
+		Simulation simulation = simulate();
+		simulation.acceptInput("C012C");
+		simulation.assertFlag("srFlags", "C", true);
+		simulation.assertFlag("srFlags", "A", false);
+	}
+
+	/**
+	 * The latitude like fields of the definition are shared under the default
+	 * balanced profile, and the code still passes.
+	 */
+	@Test
+	public void testDefinition_sharedAndPasses() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("subroutineTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(fixture.getModel().requiresSubroutineStack());
+		Assert.assertEquals(3, DefinitionFixture.count(listing, "Prepare for Gosub."));
+		Assert.assertEquals(1, DefinitionFixture.count(listing, "Return from subroutine"));
+		fixture.assertMatchesSimulator(listing, SUBROUTINE_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	@Test
+	public void testDefinition_tableBackend_matchesSimulator() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("subroutineTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(new Pic18TableBuilder());
+		fixture.assertMatchesSimulator(listing, SUBROUTINE_ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+
+	/**
+	 * The profile of the PIC18 output decides the sharing of a definition.
+	 */
+	@Test
+	public void testDefinition_outputProfileDecides() throws Exception
+	{
+		Assert.assertTrue(loadDefinition("").requiresSubroutineStack());
+		Assert.assertFalse(loadDefinition(" profile=\"speed\"").requiresSubroutineStack());
+	}
+
+	/**
+	 * The profile is only given by the output, not by the model.
+	 */
+	@Test
+	public void testDefinition_modelProfileRejected() throws Exception
+	{
+		String definition = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<StateGeneratorRun xmlns=\"http://uk.me.m0rjc/picstategenerator\">"
+				+ "<Model name=\"sd\" root=\"root\" inputVariable=\"sdIn\" profile=\"size\">"
+				+ "<Symbols><Symbol name=\"sdIn\" loc=\"accessram\" decl=\"global\"/></Symbols>"
+				+ "<Nodes><Node name=\"root\"><Script><Literal>A</Literal></Script></Node></Nodes>"
+				+ "</Model>"
+				+ "<UnitTests/>"
+				+ "<Output/>"
+				+ "</StateGeneratorRun>";
+		expected.expect(SAXException.class);
+		new XmlDefinitionLoader().loadAndProcessDefinition(new ByteArrayInputStream(definition.getBytes("UTF-8")));
+	}
+
+	/**
+	 * Load and output a definition of the model built by {@link #buildModel(String)}
+	 * with a run of ten digits.
+	 * @param pic18Attributes further attributes of the Pic18 element.
+	 * @return the model once output.
+	 */
+	private StateModel loadDefinition(String pic18Attributes) throws Exception
+	{
+		File directory = File.createTempFile("picstategenerator", "");
+		directory.delete();
+		directory.mkdir();
+		try
+		{
+			StringBuilder definition = new StringBuilder()
+				.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+				.append("<StateGeneratorRun xmlns=\"http://uk.me.m0rjc/picstategenerator\">")
+				.append("<Model name=\"sd\" root=\"root\" inputVariable=\"sdIn\">")
+				.append("<Symbols><Symbol name=\"sdIn\" loc=\"accessram\" decl=\"global\"/>")
+				.append("<Symbol name=\"sdFlags\" loc=\"accessram\" decl=\"global\">")
+				.append("<Flags><Flag>F0</Flag><Flag>F1</Flag><Flag>F2</Flag></Flags></Symbol></Symbols>")
+				.append("<Nodes><Node name=\"root\">");
+			for(int i = 0; i < LETTERS.length; i++)
+			{
+				definition.append("<Script><Literal>").append(LETTERS[i]).append("0123456789")
+					.append(LETTERS[i]).append("</Literal><Commands><SetFlag variable=\"sdFlags\" flag=\"F")
+					.append(i).append("\" value=\"true\"/></Commands></Script>");
+			}
+			definition.append("</Node></Nodes></Model><UnitTests/><Output>")
+				.append("<Pic18 processor=\"").append(DefinitionFixture.PROCESSOR)
+				.append("\" outputBaseName=\"").append(new File(directory, "sd").getPath())
+				.append("\"").append(pic18Attributes).append("/></Output></StateGeneratorRun>");
+
+			XmlDefinitionLoader loader = new XmlDefinitionLoader();
+			loader.loadAndProcessDefinition(new ByteArrayInputStream(definition.toString().getBytes("UTF-8")));
+			return loader.getModel();
+		}
+		finally
+		{
+			for(File f : directory.listFiles())
+			{
+				f.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Optimise the model and share its sub-graphs for a builder with the profile.
+	 * @param profile the builder's profile.
+	 */
+	private void optimise(OptimisationProfile profile)
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setOptimisationProfile(profile);
+		m_model.optimiseModel();
+		m_model.shareSubroutines(builder);
+	}
+
+	/**
+	 * For each letter the root reads the letter, the run of digits and the
+	 * letter again, then sets the letter's flag.
+	 */
+	private void buildModel(String digits)
+	{
+		Node root = m_model.getInitialState();
+		for(String letter : LETTERS)
+		{
+			root.addString(letter + digits + letter)
+				.addEntryCommand(Command.setFlag(m_flags, letter, true));
+		}
+	}
+
+	private Simulation simulate() throws Exception
+	{
+		SimulatorBuilder builder = new SimulatorBuilder();
+		m_model.accept(builder);
+		Simulation simulation = builder.getSimulation();
+		simulation.setInputVariable("srIn");
+		return simulation;
+	}
+}
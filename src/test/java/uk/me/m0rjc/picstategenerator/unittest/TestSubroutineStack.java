@@ -0,0 +1,152 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.model.GosubCommand;
+import uk.me.m0rjc.picstategenerator.model.Node;
+import uk.me.m0rjc.picstategenerator.model.StateModel;
+import uk.me.m0rjc.picstategenerator.model.SymbolOwnership;
+import uk.me.m0rjc.picstategenerator.model.Variable;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.Simulation;
+import uk.me.m0rjc.picstategenerator.simulatorBuilder.SimulationException;
+
+/**
+ * Subroutines that call other subroutines. The nested model calls them three
+ * deep, so needs a stack of returns indexed through FSR0.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestSubroutineStack
+{
+	/** Characters the nested model reacts to, with one it ignores. */
+	private static final String NESTED_ALPHABET = "$ABC,*0123456789x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	@Rule
+	public ExpectedException expected = ExpectedException.none();
+
+	private DefinitionFixture m_fixture;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestSubroutineStack.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("nestedSubroutineTestModel.xml");
+	}
+
+	@Test
+	public void testNested_depthFound() throws Exception
+	{
+		Assert.assertEquals(3, m_fixture.getModel().getSubroutineStackDepth());
+	}
+
+	/**
+	 * Three returns are rounded up to a stack of four, two bytes each.
+	 */
+	@Test
+	public void testNested_indexedStack() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(listing.contains("_subReturn             res .8"));
+		Assert.assertTrue(listing.contains("_subIndex              res .1"));
+		Assert.assertTrue(listing.contains("CLRF     _subIndex, A"));
+		Assert.assertTrue(listing.contains("LFSR     FSR0, _subReturn"));
+		m_fixture.assertMatchesSimulator(listing, NESTED_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	/**
+	 * Large ROM returns are padded to four bytes.
+	 */
+	@Test
+	public void testNested_largeRomModel() throws Exception
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setLargeRomModel(true);
+		String listing = m_fixture.assertGeneratedCodePasses(builder);
+		Assert.assertTrue(listing.contains("_subReturn             res .16"));
+		m_fixture.assertMatchesSimulator(listing, NESTED_ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+
+	@Test
+	public void testNested_stateIndex_matchesSimulator() throws Exception
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setStateIndex(true);
+		String listing = m_fixture.assertGeneratedCodePasses(builder);
+		m_fixture.assertMatchesSimulator(listing, NESTED_ALPHABET, RANDOM_INPUT_LENGTH, 3);
+	}
+
+	@Test
+	public void testNested_tableBackend_matchesSimulator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18TableBuilder());
+		m_fixture.assertMatchesSimulator(listing, NESTED_ALPHABET, RANDOM_INPUT_LENGTH, 4);
+	}
+
+	/**
+	 * One level keeps the single return pointer.
+	 */
+	@Test
+	public void testOneLevel_singlePointer() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("subroutineTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertEquals(1, fixture.getModel().getSubroutineStackDepth());
+		Assert.assertTrue(listing.contains("_subReturn             res .2"));
+		Assert.assertFalse(listing.contains("_subIndex"));
+	}
+
+	@Test
+	public void testRecursion_rejected() throws Exception
+	{
+		StateModel model = new StateModel("rc");
+		Variable input = new Variable("rcIn", SymbolOwnership.GLOBAL, Variable.ACCESS_BANK, 1);
+		model.addVariable(input);
+		model.setInputVariable(input);
+		Node sub = model.createNamedNode("sub");
+		sub.addString("Y").addEntryCommand(new GosubCommand("sub"));
+		model.getInitialState().addString("X").addEntryCommand(new GosubCommand("sub"));
+
+		expected.expect(IllegalStateException.class);
+		expected.expectMessage("subroutine sub can call itself");
+		model.getSubroutineStackDepths();
+	}
+
+	@Test
+	public void testSimulator_overflowFails() throws Exception
+	{
+		Simulation simulation = new Simulation();
+		simulation.setSubroutineStackDepth(2);
+		simulation.saveLocationToSubroutineStack("a", 0);
+		simulation.saveLocationToSubroutineStack("b", 0);
+
+		expected.expect(SimulationException.class);
+		expected.expectMessage("Subroutine stack overflow");
+		simulation.saveLocationToSubroutineStack("c", 0);
+	}
+}
@@ -0,0 +1,191 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.xml.sax.SAXException;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.OptimisationProfile;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18TableBuilder;
+import uk.me.m0rjc.picstategenerator.xmlDefinitionReader.XmlDefinitionLoader;
+
+/**
+ * The table backend, which writes each node as a table of operations run by an
+ * interpreter, must behave in the same way as the inline code and the simulator.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestTableBackend
+{
+	/** Characters the dispatch model reacts to, with a few it ignores. */
+	private static final String DISPATCH_ALPHABET = "#%NT/$G;,ABCDEFGHIJ05Zaz~123x";
+
+	/** Characters the bank model reacts to, with a few it ignores. */
+	private static final String BANK_ALPHABET = "FNabcdx123;y";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	@Rule
+	public ExpectedException expected = ExpectedException.none();
+
+	private Pic18TableBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestTableBackend.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_builder = new Pic18TableBuilder();
+	}
+
+	@Test
+	public void testDispatchModel_matchesSimulator() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("tbl_next:"));
+		fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	/**
+	 * The inline code must agree with the simulator on the same input, so the
+	 * two backends agree with each other.
+	 */
+	@Test
+	public void testDispatchModel_inlineMatchesSimulator() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertFalse(listing.contains("tbl_next:"));
+		fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	@Test
+	public void testDispatchModel_largeRomModel_matchesSimulator() throws Exception
+	{
+		m_builder.setLargeRomModel(true);
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(m_builder);
+		fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+
+	/**
+	 * Values that no transition tells apart share an input class.
+	 */
+	@Test
+	public void testDispatchModel_inputClasses() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		int[] classes = fixture.getModel().getInputClasses();
+		Assert.assertEquals(256, classes.length);
+		Assert.assertFalse(classes['A'] == classes['B']);
+		Assert.assertFalse(classes['0'] == classes['1']);
+		Assert.assertEquals(classes['1'], classes['4']);
+		Assert.assertEquals(classes['x'], classes['y']);
+		Assert.assertEquals(0, classes[0]);
+	}
+
+	/**
+	 * Under the speed profile every switch indexes its cases by input class.
+	 */
+	@Test
+	public void testDispatchModel_speedProfile_switchesByClass() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SPEED);
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("tbl_classes:"));
+		Assert.assertTrue(listing.contains("Switch on stIn by input class"));
+		Assert.assertFalse(listing.contains("Switch on stIn\n"));
+		fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 4);
+	}
+
+	@Test
+	public void testDispatchModel_speedProfile_largeRomModel_matchesSimulator() throws Exception
+	{
+		m_builder.setOptimisationProfile(OptimisationProfile.SPEED);
+		m_builder.setLargeRomModel(true);
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("tbl_classes:"));
+		fixture.assertMatchesSimulator(listing, DISPATCH_ALPHABET, RANDOM_INPUT_LENGTH, 5);
+	}
+
+	/**
+	 * The class table is written only if a switch uses it. Otherwise a switch
+	 * uses classes only where the pointers take fewer bytes than the ranges.
+	 */
+	@Test
+	public void testDispatchModel_rangesSmaller_noClassTable() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("dispatchTestModel.xml");
+		String listing = fixture.generate(m_builder);
+		Assert.assertFalse(listing.contains("by input class"));
+		Assert.assertFalse(listing.contains("tbl_classes:"));
+	}
+
+	/**
+	 * Variables in several banks are reached through FSR0.
+	 */
+	@Test
+	public void testBankModel_matchesSimulator() throws Exception
+	{
+		DefinitionFixture fixture = new DefinitionFixture("bankTestModel.xml");
+		String listing = fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertFalse(listing.contains("BANKSEL"));
+		fixture.assertMatchesSimulator(listing, BANK_ALPHABET, RANDOM_INPUT_LENGTH, 3);
+	}
+
+	@Test
+	public void testStorageFsr_rejected() throws Exception
+	{
+		expected.expect(IllegalArgumentException.class);
+		m_builder.setStorageFsr(1);
+	}
+
+	@Test
+	public void testStorageFsrZero_accepted() throws Exception
+	{
+		m_builder.setStorageFsr(0);
+		DefinitionFixture fixture = new DefinitionFixture("bankTestModel.xml");
+		fixture.assertGeneratedCodePasses(m_builder);
+	}
+
+	@Test
+	public void testStorageFsrInDefinition_rejected() throws Exception
+	{
+		String definition = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<StateGeneratorRun xmlns=\"http://uk.me.m0rjc/picstategenerator\">"
+				+ "<Model name=\"tb\" root=\"root\" inputVariable=\"tbIn\">"
+				+ "<Symbols><Symbol name=\"tbIn\" loc=\"accessram\" decl=\"global\"/></Symbols>"
+				+ "<Nodes><Node name=\"root\"><Script><Literal>A</Literal></Script></Node></Nodes>"
+				+ "</Model>"
+				+ "<UnitTests/>"
+				+ "<Output><Pic18 processor=\"18F14K50\" outputBaseName=\"tb\" backend=\"table\" storageFsr=\"fsr1\"/></Output>"
+				+ "</StateGeneratorRun>";
+		expected.expect(SAXException.class);
+		expected.expectMessage("cannot use FSR1");
+		new XmlDefinitionLoader().loadAndProcessDefinition(new ByteArrayInputStream(definition.getBytes("UTF-8")));
+	}
+}
@@ -0,0 +1,94 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.logging.LogManager;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * The terminator of a variable width Numbers field. A cleared store needs
+ * none. A store that is not cleared is terminated once, on leaving the field.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestTerminator
+{
+	/** Characters the numbers model reacts to, with one it ignores. */
+	private static final String NUMBERS_ALPHABET = "LS0123456789;x";
+
+	private static final int RANDOM_INPUT_LENGTH = 3000;
+
+	private DefinitionFixture m_fixture;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestTerminator.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("numbersTestModel.xml");
+	}
+
+	/**
+	 * nmLat is cleared on entry, so no digit is followed by a terminator.
+	 */
+	@Test
+	public void testClearedStore_noTerminator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertTrue(listing.contains("Command nmLat := 0"));
+		Assert.assertFalse(listing.contains("Command nmLat[nm_storeCount] := 0"));
+	}
+
+	/**
+	 * nmShort has clear="false". It is terminated only on the two transitions
+	 * that leave the node reading its last digit.
+	 */
+	@Test
+	public void testUnclearedStore_terminatedOnExit() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		Assert.assertFalse(listing.contains("Command nmShort := 0"));
+		Assert.assertEquals(2, DefinitionFixture.count(listing, "Command nmShort[nm_storeCount] := 0\n"));
+		Assert.assertEquals(2, DefinitionFixture.count(listing, "CLRF     PLUSW0, A"));
+	}
+
+	/**
+	 * A reserved storage FSR already points at the terminator.
+	 */
+	@Test
+	public void testStorageFsr_terminatorThroughIndf() throws Exception
+	{
+		Pic18AsmBuilder builder = new Pic18AsmBuilder();
+		builder.setStorageFsr(2);
+		String listing = m_fixture.assertGeneratedCodePasses(builder);
+		Assert.assertEquals(2, DefinitionFixture.count(listing, "Command nmShort[nm_storeCount] := 0 through FSR2"));
+		Assert.assertEquals(2, DefinitionFixture.count(listing, "CLRF     INDF2, A"));
+		Assert.assertFalse(listing.contains("PLUSW"));
+		m_fixture.assertMatchesSimulator(listing, NUMBERS_ALPHABET, RANDOM_INPUT_LENGTH, 1);
+	}
+
+	@Test
+	public void testInline_matchesSimulator() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(new Pic18AsmBuilder());
+		m_fixture.assertMatchesSimulator(listing, NUMBERS_ALPHABET, RANDOM_INPUT_LENGTH, 2);
+	}
+}
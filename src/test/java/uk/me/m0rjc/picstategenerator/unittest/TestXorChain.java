@@ -0,0 +1,124 @@
+package uk.me.m0rjc.picstategenerator.unittest;
+
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.LogManager;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import uk.me.m0rjc.picstategenerator.picAsmBuilder.Pic18AsmBuilder;
+
+/**
+ * XOR chain dispatch on the input variable, used when jump tables and decision
+ * trees are turned off or the run of cases is too small for them.
+ *
+ * @author Richard Corfield &lt;m0rjc@m0rjc.me.uk&gt;
+ */
+@RunWith(JUnit4.class)
+public class TestXorChain
+{
+	/** Header of the chain on the root node, and the code that follows it. */
+	private static final Pattern ROOT_CHAIN = Pattern.compile(
+			"XOR chain on stIn, 6 cases from '#' to 'T'\n([^\n]*\n){13}");
+
+	/** Operand of an XORLW. */
+	private static final Pattern XORLW = Pattern.compile("XORLW +\\.(\\d+)");
+
+	private DefinitionFixture m_fixture;
+	private Pic18AsmBuilder m_builder;
+
+	@BeforeClass
+	public static void systemSetup() throws Exception
+	{
+		// Set up logging
+		InputStream in = TestXorChain.class.getResourceAsStream("logging.properties");
+		if(in != null)
+		{
+			LogManager.getLogManager().readConfiguration(in);
+		}
+	}
+
+	@Before
+	public void testSetup() throws Exception
+	{
+		m_fixture = new DefinitionFixture("dispatchTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+		m_builder.setJumpTableMinimumCases(0);
+		m_builder.setDecisionTreeMinimumCases(0);
+	}
+
+	/**
+	 * The input is loaded once, then each XORLW takes W from the last value tested
+	 * to the next, so the running XOR of the operands gives each case in turn.
+	 */
+	@Test
+	public void testChain_loadsInputOnceAndXorsEachCase() throws Exception
+	{
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Matcher chain = ROOT_CHAIN.matcher(listing);
+		Assert.assertTrue(chain.find());
+		String code = chain.group();
+		Assert.assertTrue(code.contains("MOVF     stIn, W, A"));
+
+		Set<Character> cases = new HashSet<Character>();
+		int w = 0;
+		Matcher xor = XORLW.matcher(code);
+		while(xor.find())
+		{
+			w ^= Integer.parseInt(xor.group(1));
+			cases.add((char)w);
+		}
+		Assert.assertEquals(6, cases.size());
+		for(char c : "#%NT$G".toCharArray())
+		{
+			Assert.assertTrue(String.valueOf(c), cases.contains(c));
+		}
+	}
+
+	@Test
+	public void testChain_isFasterThanTestingEachCase() throws Exception
+	{
+		long chainCycles = m_fixture.assertUnitTestsPass(m_fixture.generate(m_builder));
+
+		DefinitionFixture linear = new DefinitionFixture("dispatchTestModel.xml");
+		m_builder = new Pic18AsmBuilder();
+		m_builder.setJumpTableMinimumCases(0);
+		m_builder.setDecisionTreeMinimumCases(0);
+		m_builder.setXorChainMinimumCases(0);
+		String listing = linear.generate(m_builder);
+		long linearCycles = linear.assertUnitTestsPass(listing);
+
+		Assert.assertFalse(listing.contains("XOR chain"));
+		Assert.assertTrue("Chain " + chainCycles + " cycles, linear " + linearCycles,
+				chainCycles < linearCycles);
+	}
+
+	@Test
+	public void testLargeRomModel_passes() throws Exception
+	{
+		m_builder.setLargeRomModel(true);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("XOR chain"));
+	}
+
+	/**
+	 * With a high minimum only the run of ten letters is long enough for a chain.
+	 */
+	@Test
+	public void testHighMinimum_chainsLongRunsOnly() throws Exception
+	{
+		m_builder.setXorChainMinimumCases(8);
+		String listing = m_fixture.assertGeneratedCodePasses(m_builder);
+		Assert.assertTrue(listing.contains("XOR chain on stIn, 10 cases"));
+		Assert.assertFalse(listing.contains("XOR chain on stIn, 6 cases"));
+	}
+}